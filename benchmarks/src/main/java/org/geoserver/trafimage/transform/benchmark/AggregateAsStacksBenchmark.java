@@ -0,0 +1,105 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.SimpleFeatureAggregator;
+import org.geoserver.trafimage.transform.SimpleFeatureHasher;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * aggregating the features into stacks of aggregates sharing a geometry in one pass
+ * compared to aggregating them first and grouping the aggregates by their geometry
+ * afterwards, as AggregateAsLineStacks did before.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregateAsStacksBenchmark {
+
+	private static final String AGG_COUNT_ATTRIBUTE_NAME = "agg_count";
+
+	@Param({"1000", "10000"})
+	public int featureCount;
+
+	@Param({"1", "8"})
+	public int stackDepth;
+
+	@Param({"10", "100"})
+	public int vertexCount;
+
+	private SimpleFeatureCollection collection;
+	private SimpleFeatureAggregator aggregator;
+
+	@Setup
+	public void setUp() {
+		this.collection = new ListFeatureCollection(BenchmarkData.createSchema(),
+				BenchmarkData.createFeatures(this.featureCount, this.stackDepth, this.vertexCount));
+
+		final ArrayList<String> aggregationColumns = new ArrayList<String>();
+		aggregationColumns.add(BenchmarkData.CATEGORY_ATTRIBUTE);
+		this.aggregator = new SimpleFeatureAggregator(aggregationColumns);
+	}
+
+	@Benchmark
+	public List<List<SimpleFeature>> aggregateAsStacks() {
+		return this.aggregator.aggregateAsStacks(this.collection, AGG_COUNT_ATTRIBUTE_NAME).getStacks();
+	}
+
+	@Benchmark
+	public HashMap<Integer, List<SimpleFeature>> aggregateAndRestack() {
+		final SimpleFeatureCollection aggregates = this.aggregator.aggregate(this.collection, AGG_COUNT_ATTRIBUTE_NAME);
+
+		// hash the aggregates again, this time only by their geometry
+		final SimpleFeatureHasher hasher = new SimpleFeatureHasher();
+		hasher.setIncludeGeometry(true);
+		hasher.setIncludedAttributes(new HashSet<String>());
+
+		final HashMap<Integer, List<SimpleFeature>> stacks = new HashMap<Integer, List<SimpleFeature>>();
+		final SimpleFeatureIterator featureIt = aggregates.features();
+		try {
+			while (featureIt.hasNext()) {
+				final SimpleFeature feature = featureIt.next();
+				final int hash = hasher.getHash(feature);
+
+				List<SimpleFeature> stack = stacks.get(hash);
+				if (stack == null) {
+					stack = new ArrayList<SimpleFeature>();
+					stacks.put(hash, stack);
+				}
+				stack.add(feature);
+			}
+		} finally {
+			featureIt.close();
+		}
+		return stacks;
+	}
+}
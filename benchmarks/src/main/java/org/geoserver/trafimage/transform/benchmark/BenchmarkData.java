@@ -0,0 +1,129 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * creates the input data of the benchmarks.
+ *
+ * The lines are random walks with slightly changing directions, similar to the
+ * railway lines the transformations are used for. All data is created from a fixed
+ * seed, so every run of a benchmark works on the same input.
+ *
+ * @author nico
+ *
+ */
+public final class BenchmarkData {
+
+	public static final String GEOMETRY_ATTRIBUTE = "the_geom";
+	public static final String LINE_ID_ATTRIBUTE = "line_id";
+	public static final String CATEGORY_ATTRIBUTE = "category";
+	public static final String ORDER_ATTRIBUTE = "order";
+
+	public static final long SEED = 14080071L;
+
+	/**
+	 * the length of a segment of the generated lines in map units
+	 */
+	private static final double SEGMENT_LENGTH = 25.0;
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private BenchmarkData() {
+	}
+
+	public static SimpleFeatureType createSchema() {
+		final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.setName("benchmark_lines");
+		typeBuilder.add(GEOMETRY_ATTRIBUTE, LineString.class);
+		typeBuilder.add(LINE_ID_ATTRIBUTE, Integer.class);
+		typeBuilder.add(CATEGORY_ATTRIBUTE, String.class);
+		typeBuilder.add(ORDER_ATTRIBUTE, Integer.class);
+		typeBuilder.setDefaultGeometry(GEOMETRY_ATTRIBUTE);
+		return typeBuilder.buildFeatureType();
+	}
+
+	/**
+	 * create a random line
+	 *
+	 * @param random
+	 * @param vertexCount the number of vertices of the line, at least 2
+	 * @return
+	 */
+	public static LineString createLine(final Random random, final int vertexCount) {
+		final Coordinate[] coordinates = new Coordinate[Math.max(2, vertexCount)];
+		double x = random.nextDouble() * 100000.0;
+		double y = random.nextDouble() * 100000.0;
+		double direction = random.nextDouble() * 2.0 * Math.PI;
+		for (int i=0; i<coordinates.length; i++) {
+			coordinates[i] = new Coordinate(x, y);
+			// mostly gentle curves with an occasional sharp bend
+			direction += (random.nextInt(20) == 0) ? (random.nextDouble() - 0.5) * Math.PI : (random.nextDouble() - 0.5) * 0.3;
+			x += Math.cos(direction) * SEGMENT_LENGTH;
+			y += Math.sin(direction) * SEGMENT_LENGTH;
+		}
+		return geometryFactory.createLineString(coordinates);
+	}
+
+	/**
+	 * create features sharing their geometries in stacks.
+	 *
+	 * Every geometry is used by stackDepth features. The categories of the features of a
+	 * stack are drawn from stackDepth values, so some of them aggregate.
+	 *
+	 * @param featureCount the total number of features
+	 * @param stackDepth the number of features sharing a geometry
+	 * @param vertexCount the number of vertices of the geometries
+	 * @return
+	 */
+	public static List<SimpleFeature> createFeatures(final int featureCount, final int stackDepth, final int vertexCount) {
+		final Random random = new Random(SEED);
+		final SimpleFeatureType schema = createSchema();
+		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(schema);
+		final int depth = Math.max(1, stackDepth);
+
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>(featureCount);
+		LineString line = null;
+		for (int i=0; i<featureCount; i++) {
+			if (i % depth == 0) {
+				line = createLine(random, vertexCount);
+			}
+			featureBuilder.set(GEOMETRY_ATTRIBUTE, line);
+			featureBuilder.set(LINE_ID_ATTRIBUTE, i / depth);
+			featureBuilder.set(CATEGORY_ATTRIBUTE, "category" + random.nextInt(depth));
+			featureBuilder.set(ORDER_ATTRIBUTE, random.nextInt(2 * depth));
+			features.add(featureBuilder.buildFeature("benchmark_lines." + i));
+		}
+		return features;
+	}
+
+	/**
+	 * random line lengths as passed to the width scripts
+	 *
+	 * @param count
+	 * @return
+	 */
+	public static double[] createLineLengths(final int count) {
+		final Random random = new Random(SEED);
+		final double[] lengths = new double[count];
+		for (int i=0; i<count; i++) {
+			lengths[i] = SEGMENT_LENGTH * (1 + random.nextInt(1000)) * random.nextDouble();
+		}
+		return lengths;
+	}
+}
@@ -0,0 +1,112 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.FeatureOrderSorter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * sorting the stacks by their order attribute. One operation sorts all stacks, including
+ * copying them from the unsorted input.
+ *
+ * sortWithComparator is the Collections.sort based approach FeatureOrderSorter replaced
+ * and serves as a baseline.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureOrderSorterBenchmark {
+
+	@Param({"1024"})
+	public int featureCount;
+
+	@Param({"4", "16", "64", "1024"})
+	public int stackDepth;
+
+	/**
+	 * use random order values from the whole integer range instead of values
+	 * below twice the stack depth
+	 */
+	@Param({"false", "true"})
+	public boolean wideOrderRange;
+
+	private List<List<SimpleFeature>> stacks;
+	private List<SimpleFeature> workStack;
+	private FeatureOrderSorter sorter;
+	private Comparator<SimpleFeature> comparator;
+
+	@Setup
+	public void setUp() {
+		final List<SimpleFeature> features = BenchmarkData.createFeatures(this.featureCount, this.stackDepth, 2);
+		if (this.wideOrderRange) {
+			final Random random = new Random(BenchmarkData.SEED);
+			for (final SimpleFeature feature: features) {
+				feature.setAttribute(BenchmarkData.ORDER_ATTRIBUTE, random.nextInt());
+			}
+		}
+		this.stacks = new ArrayList<List<SimpleFeature>>();
+		for (int i=0; i<features.size(); i+=this.stackDepth) {
+			this.stacks.add(new ArrayList<SimpleFeature>(features.subList(i, Math.min(i + this.stackDepth, features.size()))));
+		}
+		this.workStack = new ArrayList<SimpleFeature>(this.stackDepth);
+
+		this.sorter = new FeatureOrderSorter();
+		this.sorter.setOrderAttributeName(BenchmarkData.ORDER_ATTRIBUTE);
+		this.comparator = new Comparator<SimpleFeature>() {
+			@Override
+			public int compare(final SimpleFeature feature0, final SimpleFeature feature1) {
+				final Number value0 = (Number) feature0.getAttribute(BenchmarkData.ORDER_ATTRIBUTE);
+				final Number value1 = (Number) feature1.getAttribute(BenchmarkData.ORDER_ATTRIBUTE);
+				return Double.compare((value0 == null) ? 0.0 : value0.doubleValue(),
+						(value1 == null) ? 0.0 : value1.doubleValue());
+			}
+		};
+	}
+
+	@Benchmark
+	public List<SimpleFeature> sort() {
+		for (final List<SimpleFeature> stack: this.stacks) {
+			this.workStack.clear();
+			this.workStack.addAll(stack);
+			this.sorter.sort(this.workStack);
+		}
+		return this.workStack;
+	}
+
+	@Benchmark
+	public List<SimpleFeature> sortWithComparator() {
+		for (final List<SimpleFeature> stack: this.stacks) {
+			this.workStack.clear();
+			this.workStack.addAll(stack);
+			Collections.sort(this.workStack, this.comparator);
+		}
+		return this.workStack;
+	}
+}
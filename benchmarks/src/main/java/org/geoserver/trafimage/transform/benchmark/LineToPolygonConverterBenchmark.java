@@ -0,0 +1,73 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.CurveBuilder;
+import org.geoserver.trafimage.transform.LineToPolygonConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * converting lines to polygons like the stack processes do. One operation converts all lines.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineToPolygonConverterBenchmark {
+
+	@Param({"16"})
+	public int featureCount;
+
+	@Param({"10", "100", "1000"})
+	public int vertexCount;
+
+	@Param({"false", "true"})
+	public boolean enableArtifactRemoval;
+
+	private LineString[] lines;
+	private LineToPolygonConverter converter;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(BenchmarkData.SEED);
+		this.lines = new LineString[this.featureCount];
+		for (int i=0; i<this.featureCount; i++) {
+			this.lines[i] = BenchmarkData.createLine(random, this.vertexCount);
+		}
+		this.converter = new LineToPolygonConverter(new CurveBuilder());
+		this.converter.setEnableArtifactRemoval(this.enableArtifactRemoval);
+		this.converter.setWidth(10.0);
+		this.converter.setOffset(5.0);
+	}
+
+	@Benchmark
+	public void convert(final Blackhole blackhole) {
+		for (final LineString line: this.lines) {
+			blackhole.consume(this.converter.convert(line));
+		}
+	}
+}
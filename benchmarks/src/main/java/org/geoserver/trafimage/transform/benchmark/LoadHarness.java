@@ -0,0 +1,548 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.trafimage.transform.process.AggregateAsLineStacksProcess;
+import org.geoserver.trafimage.transform.process.AggregateSimilarFeaturesProcess;
+import org.geoserver.trafimage.transform.process.AggregateSimilarLinesAsPolygonsProcess;
+import org.geoserver.trafimage.transform.process.LineStacksProcess;
+import org.geoserver.trafimage.transform.process.MakeOffsettedLinesProcess;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.function.EnvFunction;
+import org.geotools.filter.function.RenderingTransformation;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.MapContent;
+import org.geotools.process.Processors;
+import org.geotools.process.factory.AnnotatedBeanProcessFactory;
+import org.geotools.renderer.RenderListener;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.SLDParser;
+import org.geotools.styling.Style;
+import org.geotools.util.SimpleInternationalString;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Expression;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * a headless load test of the transformations using a synthetic rail network.
+ *
+ * For every feature count a network is generated into a MemoryDataStore. Then the
+ * example SLDs are run against random viewports of the network in two ways:
+ *
+ * - process: only the rendering transformation of the SLD is evaluated on the features of the viewport,
+ *   which have been read from the datastore before. The query is built by the transformation like the
+ *   renderer does, so it includes the buffer around the viewport and the sorting of the process.
+ * - render: the SLD is rendered into an image by the StreamingRenderer, including reading the
+ *   features from the datastore, the transformation and drawing the result.
+ *
+ * Options are passed as --name=value, see printUsage.
+ *
+ * @author nico
+ *
+ */
+public class LoadHarness {
+
+	/**
+	 * the size of a pixel defined by the OGC for the calculation of the scale denominator
+	 */
+	private static final double OGC_PIXEL_SIZE = 0.00028;
+
+	// keep a reference, the level of loggers which are not referenced anymore may get lost
+	private static final Logger TRANSFORM_LOGGER = Logger.getLogger("org.geoserver.trafimage.transform");
+
+	private static final FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2(null);
+
+	private final LinkedHashMap<String, String> options = new LinkedHashMap<String, String>();
+
+	/**
+	 * runs the painting of the StreamingRenderers, so the allocations of the painter threads
+	 * are not lost with the threads
+	 */
+	private final ExecutorService painterPool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "load-harness-painter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public LoadHarness() {
+		this.options.put("features", "10000,100000,1000000");
+		this.options.put("stackDepth", "8");
+		this.options.put("verticesPerSegment", "20");
+		this.options.put("mode", "all");
+		this.options.put("styles", "");
+		this.options.put("examples", "examples");
+		this.options.put("requests", "50");
+		this.options.put("warmup", "10");
+		this.options.put("threads", "1");
+		this.options.put("width", "1024");
+		this.options.put("height", "768");
+		this.options.put("zoom", "0.1");
+		this.options.put("seed", "14080071");
+		this.options.put("verbose", "false");
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final LoadHarness harness = new LoadHarness();
+		for (final String arg: args) {
+			if (arg.equals("--help") || !harness.setOption(arg)) {
+				harness.printUsage();
+				System.exit(arg.equals("--help") ? 0 : 1);
+			}
+		}
+		harness.run();
+		System.exit(0);
+	}
+
+	private void printUsage() {
+		System.out.println("usage: LoadHarness [--name=value ...]");
+		System.out.println();
+		System.out.println("  features            comma separated feature counts of the generated networks");
+		System.out.println("  stackDepth          the average number of features sharing a segment");
+		System.out.println("  verticesPerSegment  the number of vertices of a segment");
+		System.out.println("  mode                process, render or all");
+		System.out.println("  styles              comma separated names of the example SLDs to use. Empty for all.");
+		System.out.println("  examples            the directory containing the example SLDs");
+		System.out.println("  requests            the number of measured requests per thread");
+		System.out.println("  warmup              the number of requests per thread run before measuring");
+		System.out.println("  threads             the number of threads sending requests");
+		System.out.println("  width, height       the size of the image in pixels");
+		System.out.println("  zoom                the width of the viewport relative to the extent of the network");
+		System.out.println("  seed                the seed of the network and the viewports");
+		System.out.println("  verbose             keep the info logging of the transformations");
+		System.out.println();
+		System.out.println("defaults:");
+		for (final Map.Entry<String, String> option: this.options.entrySet()) {
+			System.out.println("  --" + option.getKey() + "=" + option.getValue());
+		}
+	}
+
+	/**
+	 * parse an argument of the form --name=value
+	 *
+	 * @param arg
+	 * @return false when the argument is invalid
+	 */
+	private boolean setOption(final String arg) {
+		final int separator = arg.indexOf('=');
+		if (!arg.startsWith("--") || separator == -1) {
+			return false;
+		}
+		final String name = arg.substring(2, separator);
+		if (!this.options.containsKey(name)) {
+			return false;
+		}
+		this.options.put(name, arg.substring(separator + 1));
+		return true;
+	}
+
+	private int getIntOption(final String name) {
+		return Integer.parseInt(this.options.get(name).trim());
+	}
+
+	private List<String> getListOption(final String name) {
+		final List<String> values = new ArrayList<String>();
+		for (final String value: this.options.get(name).split(",")) {
+			if (!value.trim().equals("")) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+
+	public void run() throws Exception {
+		if (!Boolean.parseBoolean(this.options.get("verbose"))) {
+			TRANSFORM_LOGGER.setLevel(Level.WARNING);
+		}
+		registerProcesses();
+
+		final String mode = this.options.get("mode");
+		final boolean runProcesses = mode.equals("all") || mode.equals("process");
+		final boolean runRenderer = mode.equals("all") || mode.equals("render");
+		if (!runProcesses && !runRenderer) {
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+		final Map<String, File> sldFiles = this.findSldFiles();
+
+		System.out.println("options: " + this.options);
+		if (LoadStatistics.getAllocatedBytes() < 0) {
+			System.out.println("measuring allocations is not supported by this JVM");
+		}
+		for (final String featureCount: this.getListOption("features")) {
+			final RailNetworkGenerator generator = new RailNetworkGenerator();
+			generator.setFeatureCount(Integer.parseInt(featureCount));
+			generator.setStackDepth(this.getIntOption("stackDepth"));
+			generator.setVerticesPerSegment(this.getIntOption("verticesPerSegment"));
+			generator.setSeed(Long.parseLong(this.options.get("seed")));
+
+			final long generationStart = System.nanoTime();
+			final MemoryDataStore dataStore = generator.createDataStore();
+			System.out.println();
+			System.out.println(String.format("%s features, extent %.0f x %.0f map units, generated in %.1f s",
+					featureCount, generator.getExtentSize(), generator.getExtentSize(),
+					(System.nanoTime() - generationStart) / 1e9));
+			System.out.println(LoadStatistics.formatHeader());
+
+			final SimpleFeatureSource featureSource = dataStore.getFeatureSource(RailNetworkGenerator.TYPE_NAME);
+			final List<ReferencedEnvelope> viewports = this.createViewports(generator.getBounds());
+			try {
+				for (final Map.Entry<String, File> sldFile: sldFiles.entrySet()) {
+					if (runProcesses) {
+						this.runScenario("process", sldFile.getKey(), sldFile.getValue(), featureSource, viewports);
+					}
+					if (runRenderer) {
+						this.runScenario("render", sldFile.getKey(), sldFile.getValue(), featureSource, viewports);
+					}
+				}
+			} finally {
+				dataStore.dispose();
+			}
+		}
+	}
+
+	/**
+	 * make the processes available to the SLDs like geoserver does
+	 */
+	private static void registerProcesses() {
+		Processors.addProcessFactory(new AnnotatedBeanProcessFactory(
+				new SimpleInternationalString("trafimage geoserver transformations"), "gs",
+				AggregateAsLineStacksProcess.class,
+				AggregateSimilarFeaturesProcess.class,
+				AggregateSimilarLinesAsPolygonsProcess.class,
+				LineStacksProcess.class,
+				MakeOffsettedLinesProcess.class));
+	}
+
+	private Map<String, File> findSldFiles() throws IOException {
+		final File examplesDirectory = new File(this.options.get("examples"));
+		final File[] files = examplesDirectory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				return file.isFile() && file.getName().endsWith(".sld.xml");
+			}
+		});
+		if (files == null) {
+			throw new IOException("Could not read the directory " + examplesDirectory.getAbsolutePath());
+		}
+		Arrays.sort(files);
+
+		final List<String> selectedStyles = this.getListOption("styles");
+		final LinkedHashMap<String, File> sldFiles = new LinkedHashMap<String, File>();
+		for (final File file: files) {
+			final String name = file.getName().substring(0, file.getName().length() - ".sld.xml".length());
+			if (selectedStyles.isEmpty() || selectedStyles.contains(name)) {
+				sldFiles.put(name, file);
+			}
+		}
+		if (sldFiles.isEmpty()) {
+			throw new IOException("No SLDs found in " + examplesDirectory.getAbsolutePath());
+		}
+		return sldFiles;
+	}
+
+	private static Style loadStyle(final File sldFile) throws IOException {
+		final SLDParser parser = new SLDParser(CommonFactoryFinder.getStyleFactory(null), sldFile);
+		final Style[] styles = parser.readXML();
+		if (styles.length == 0) {
+			throw new IOException("No style found in " + sldFile.getAbsolutePath());
+		}
+		return styles[0];
+	}
+
+	/**
+	 * random viewports inside the bounds of the network. Every thread gets its own viewports.
+	 */
+	private List<ReferencedEnvelope> createViewports(final ReferencedEnvelope bounds) {
+		final Random random = new Random(Long.parseLong(this.options.get("seed")));
+		final int count = this.getIntOption("threads") * (this.getIntOption("warmup") + this.getIntOption("requests"));
+		final double width = bounds.getWidth() * Double.parseDouble(this.options.get("zoom"));
+		final double height = width * this.getIntOption("height") / this.getIntOption("width");
+
+		final List<ReferencedEnvelope> viewports = new ArrayList<ReferencedEnvelope>(count);
+		for (int i=0; i<count; i++) {
+			final double minX = bounds.getMinX() + random.nextDouble() * Math.max(0.0, bounds.getWidth() - width);
+			final double minY = bounds.getMinY() + random.nextDouble() * Math.max(0.0, bounds.getHeight() - height);
+			viewports.add(new ReferencedEnvelope(minX, minX + width, minY, minY + height, bounds.getCoordinateReferenceSystem()));
+		}
+		return viewports;
+	}
+
+	private void runScenario(final String scenario, final String name, final File sldFile,
+			final SimpleFeatureSource featureSource, final List<ReferencedEnvelope> viewports) throws Exception {
+
+		final LoadStatistics statistics = new LoadStatistics(scenario, name);
+		final int numThreads = this.getIntOption("threads");
+		final int warmup = this.getIntOption("warmup");
+		final int requests = this.getIntOption("requests");
+
+		// the runners are created up front, so failures happen before any thread waits for the others
+		final List<RequestRunner> runners = new ArrayList<RequestRunner>(numThreads);
+		for (int t=0; t<numThreads; t++) {
+			final Style style = loadStyle(sldFile);
+			if (scenario.equals("process")) {
+				final Expression transformation = style.featureTypeStyles().get(0).getTransformation();
+				if (transformation == null) {
+					return;
+				}
+				runners.add(new ProcessRunner(featureSource, transformation));
+			} else {
+				runners.add(new RenderRunner(featureSource, style, this.painterPool));
+			}
+		}
+
+		// the measured phase starts when all threads finished their warmup
+		final long[] start = new long[2];
+		final CyclicBarrier warmupDone = new CyclicBarrier(numThreads, new Runnable() {
+			@Override
+			public void run() {
+				start[0] = System.nanoTime();
+				start[1] = LoadStatistics.getAllocatedBytes();
+			}
+		});
+
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>(numThreads);
+			for (int t=0; t<numThreads; t++) {
+				final RequestRunner runner = runners.get(t);
+				final int firstViewport = t * (warmup + requests);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int i=0; i<warmup; i++) {
+							runner.run(viewports.get(firstViewport + i), null);
+						}
+						warmupDone.await();
+						for (int i=warmup; i<warmup + requests; i++) {
+							runner.run(viewports.get(firstViewport + i), statistics);
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> future: futures) {
+				future.get();
+			}
+			final long allocated = LoadStatistics.getAllocatedBytes();
+			statistics.setTotals(System.nanoTime() - start[0], (allocated < 0 || start[1] < 0) ? -1 : allocated - start[1]);
+		} finally {
+			executor.shutdownNow();
+			for (final RequestRunner runner: runners) {
+				runner.dispose();
+			}
+		}
+
+		System.out.println(statistics.formatRow());
+		if (statistics.getFirstError() != null) {
+			System.out.println("  first error: " + statistics.getFirstError());
+		}
+	}
+
+	/**
+	 * runs the requests of a thread
+	 */
+	private abstract class RequestRunner {
+
+		/**
+		 * run a request and record it
+		 *
+		 * @param viewport
+		 * @param statistics null for warmup requests
+		 */
+		void run(final ReferencedEnvelope viewport, final LoadStatistics statistics) {
+			final int width = getIntOption("width");
+			final int height = getIntOption("height");
+			// the values geoserver provides to the SLDs
+			EnvFunction.setLocalValue("wms_bbox", viewport);
+			EnvFunction.setLocalValue("wms_width", width);
+			EnvFunction.setLocalValue("wms_height", height);
+			EnvFunction.setLocalValue("wms_scale_denominator", viewport.getWidth() / (width * OGC_PIXEL_SIZE));
+			try {
+				this.execute(viewport, width, height, statistics);
+			} catch (final Exception e) {
+				if (statistics != null) {
+					statistics.addError(e);
+				}
+			}
+		}
+
+		abstract void execute(ReferencedEnvelope viewport, int width, int height, LoadStatistics statistics) throws Exception;
+
+		void dispose() {
+		}
+	}
+
+	/**
+	 * evaluates the rendering transformation on the features of the viewport
+	 */
+	private class ProcessRunner extends RequestRunner {
+
+		private final SimpleFeatureSource featureSource;
+		private final Expression transformation;
+
+		ProcessRunner(final SimpleFeatureSource featureSource, final Expression transformation) {
+			this.featureSource = featureSource;
+			this.transformation = transformation;
+		}
+
+		@Override
+		void execute(final ReferencedEnvelope viewport, final int width, final int height,
+				final LoadStatistics statistics) throws Exception {
+			// read the input before the measurement. The transformation modifies the query of the viewport
+			// like it does for the StreamingRenderer
+			final String geometryName = this.featureSource.getSchema().getGeometryDescriptor().getLocalName();
+			final Filter filter = filterFactory.bbox(filterFactory.property(geometryName), viewport);
+			Query query = new Query(RailNetworkGenerator.TYPE_NAME, filter);
+			if (this.transformation instanceof RenderingTransformation) {
+				final GridGeometry2D gridGeometry = new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), viewport);
+				query = ((RenderingTransformation) this.transformation).invertQuery(query, gridGeometry);
+			}
+			final SimpleFeatureCollection features = this.featureSource.getFeatures(query);
+			final ListFeatureCollection input = new ListFeatureCollection(features.getSchema());
+			final SimpleFeatureIterator inputIt = features.features();
+			try {
+				while (inputIt.hasNext()) {
+					input.add(inputIt.next());
+				}
+			} finally {
+				inputIt.close();
+			}
+
+			final long start = System.nanoTime();
+			final SimpleFeatureCollection output = (SimpleFeatureCollection) this.transformation.evaluate(input);
+			// the results may be built while they are read
+			long numFeatures = 0;
+			long numVertices = 0;
+			final SimpleFeatureIterator outputIt = output.features();
+			try {
+				while (outputIt.hasNext()) {
+					numFeatures++;
+					numVertices += getNumVertices(outputIt.next());
+				}
+			} finally {
+				outputIt.close();
+			}
+			final long latency = System.nanoTime() - start;
+			if (statistics != null) {
+				statistics.addRequest(latency, numFeatures, numVertices);
+			}
+		}
+	}
+
+	/**
+	 * renders the style into an image
+	 */
+	private class RenderRunner extends RequestRunner implements RenderListener {
+
+		private final MapContent mapContent;
+		private final StreamingRenderer renderer;
+		private BufferedImage image = null;
+
+		// updated by the painter thread, read after paint returned
+		private long numFeatures = 0;
+		private long numVertices = 0;
+		private Exception renderError = null;
+
+		RenderRunner(final SimpleFeatureSource featureSource, final Style style, final ExecutorService painterPool) {
+			this.mapContent = new MapContent();
+			this.mapContent.addLayer(new FeatureLayer(featureSource, style));
+			this.renderer = new StreamingRenderer();
+			this.renderer.setMapContent(this.mapContent);
+			this.renderer.setThreadPool(painterPool);
+			this.renderer.setJava2DHints(new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON));
+			this.renderer.addRenderListener(this);
+		}
+
+		@Override
+		void execute(final ReferencedEnvelope viewport, final int width, final int height,
+				final LoadStatistics statistics) throws Exception {
+			if (this.image == null || this.image.getWidth() != width || this.image.getHeight() != height) {
+				this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			}
+			this.numFeatures = 0;
+			this.numVertices = 0;
+			this.renderError = null;
+
+			final long start = System.nanoTime();
+			final Graphics2D graphics = this.image.createGraphics();
+			try {
+				graphics.setBackground(new Color(0, 0, 0, 0));
+				graphics.clearRect(0, 0, width, height);
+				this.renderer.paint(graphics, new Rectangle(width, height), viewport);
+			} finally {
+				graphics.dispose();
+			}
+			final long latency = System.nanoTime() - start;
+
+			if (this.renderError != null) {
+				throw this.renderError;
+			}
+			if (statistics != null) {
+				statistics.addRequest(latency, this.numFeatures, this.numVertices);
+			}
+		}
+
+		@Override
+		public void featureRenderer(final SimpleFeature feature) {
+			this.numFeatures++;
+			this.numVertices += getNumVertices(feature);
+		}
+
+		@Override
+		public void errorOccurred(final Exception e) {
+			if (this.renderError == null) {
+				this.renderError = e;
+			}
+		}
+
+		@Override
+		void dispose() {
+			this.mapContent.dispose();
+		}
+	}
+
+	private static long getNumVertices(final SimpleFeature feature) {
+		final Object geometry = feature.getDefaultGeometry();
+		return (geometry instanceof Geometry) ? ((Geometry) geometry).getNumPoints() : 0;
+	}
+}
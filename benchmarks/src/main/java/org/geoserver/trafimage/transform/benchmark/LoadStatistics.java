@@ -0,0 +1,154 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * collects the measurements of the requests of a load test scenario.
+ *
+ * The methods recording requests may be called by many threads.
+ *
+ * @author nico
+ *
+ */
+public class LoadStatistics {
+
+	private static final String ROW_FORMAT = "%-8s %-40s %9s %9s %9s %9s %9s %9s %11s %11s %10s %6s";
+
+	private final String scenario;
+	private final String name;
+
+	private long[] latencies = new long[64];
+	private int numRequests = 0;
+	private long numOutputFeatures = 0;
+	private long numOutputVertices = 0;
+	private int numErrors = 0;
+	private Throwable firstError = null;
+
+	private long wallTimeNanos = 0;
+	private long allocatedBytes = -1;
+
+	/**
+	 *
+	 * @param scenario the kind of test, for example "render"
+	 * @param name the name of the tested style or process
+	 */
+	public LoadStatistics(final String scenario, final String name) {
+		this.scenario = scenario;
+		this.name = name;
+	}
+
+	/**
+	 * record a successful request
+	 *
+	 * @param latencyNanos
+	 * @param outputFeatures the number of features returned by the process or drawn by the renderer
+	 * @param outputVertices the number of vertices of these features
+	 */
+	public synchronized void addRequest(final long latencyNanos, final long outputFeatures, final long outputVertices) {
+		if (this.numRequests == this.latencies.length) {
+			this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+		}
+		this.latencies[this.numRequests++] = latencyNanos;
+		this.numOutputFeatures += outputFeatures;
+		this.numOutputVertices += outputVertices;
+	}
+
+	public synchronized void addError(final Throwable error) {
+		this.numErrors++;
+		if (this.firstError == null) {
+			this.firstError = error;
+		}
+	}
+
+	/**
+	 * set the totals of the measured phase
+	 *
+	 * @param wallTimeNanos the time from the start of the first to the end of the last request
+	 * @param allocatedBytes the bytes allocated during this time, -1 when unknown
+	 */
+	public synchronized void setTotals(final long wallTimeNanos, final long allocatedBytes) {
+		this.wallTimeNanos = wallTimeNanos;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	public synchronized Throwable getFirstError() {
+		return this.firstError;
+	}
+
+	/**
+	 * the bytes allocated by all living threads so far
+	 *
+	 * @return -1 when the JVM does not support measuring the allocations
+	 */
+	public static long getAllocatedBytes() {
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long allocated = 0;
+		for (final long threadAllocated: allocationBean.getThreadAllocatedBytes(allocationBean.getAllThreadIds())) {
+			if (threadAllocated > 0) {
+				allocated += threadAllocated;
+			}
+		}
+		return allocated;
+	}
+
+	public static String formatHeader() {
+		return String.format(Locale.ROOT, ROW_FORMAT, "test", "name", "requests", "req/s", "p50 ms",
+				"p90 ms", "p99 ms", "max ms", "features", "vertices", "alloc MB", "errors");
+	}
+
+	/**
+	 * a row of the report. The features, vertices and allocations are averages per request.
+	 *
+	 * @return
+	 */
+	public synchronized String formatRow() {
+		final long[] sorted = Arrays.copyOf(this.latencies, this.numRequests);
+		Arrays.sort(sorted);
+		final int requests = Math.max(1, this.numRequests);
+		final String throughput = (this.wallTimeNanos > 0) ? format1(this.numRequests * 1e9 / this.wallTimeNanos) : "-";
+		final String allocated = (this.allocatedBytes >= 0)
+				? String.format(Locale.ROOT, "%.2f", this.allocatedBytes / (1024.0 * 1024.0) / requests) : "-";
+		return String.format(Locale.ROOT, ROW_FORMAT, this.scenario, this.name, this.numRequests, throughput,
+				formatMillis(percentile(sorted, 0.5)), formatMillis(percentile(sorted, 0.9)),
+				formatMillis(percentile(sorted, 0.99)), formatMillis(percentile(sorted, 1.0)),
+				this.numOutputFeatures / requests, this.numOutputVertices / requests, allocated, this.numErrors);
+	}
+
+	/**
+	 * nearest-rank percentile
+	 *
+	 * @param sorted
+	 * @param fraction
+	 * @return -1 when there are no values
+	 */
+	private static long percentile(final long[] sorted, final double fraction) {
+		if (sorted.length == 0) {
+			return -1;
+		}
+		final int rank = (int) Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static String formatMillis(final long nanos) {
+		return (nanos < 0) ? "-" : format1(nanos / 1e6);
+	}
+
+	private static String format1(final double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+}
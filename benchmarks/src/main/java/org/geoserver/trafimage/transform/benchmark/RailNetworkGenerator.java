@@ -0,0 +1,322 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultEngineeringCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * generates a synthetic rail network for load tests.
+ *
+ * The network consists of corridors: long curved lines split into segments. Every segment
+ * is shared by the services running along the corridor, so the features of a segment form
+ * a stack with the same geometry. The services keep their attributes along the corridor,
+ * while the number of services per segment varies around the stack depth.
+ *
+ * The attributes are the ones used by the example SLDs. The extent of the network grows
+ * with the number of features, so the density of the lines - and the number of
+ * features in a viewport of a given size - stays about the same.
+ *
+ * The network only depends on the settings and the seed.
+ *
+ * @author nico
+ *
+ */
+public class RailNetworkGenerator {
+
+	public static final String TYPE_NAME = "rail_network";
+
+	public static final String GEOMETRY_ATTRIBUTE = "the_geom";
+	public static final String LINE_ID_ATTRIBUTE = "line_id";
+	public static final String SERVICE_ID_ATTRIBUTE = "service_id";
+	public static final String KLASSE_ATTRIBUTE = "klasse";
+	public static final String KLASSE_COLOR_ATTRIBUTE = "klasse_color";
+	public static final String KLASSE_ORDER_ATTRIBUTE = "klasse_order";
+	public static final String ORDERING_ATTRIBUTE = "ordering";
+	public static final String LEVEL_ATTRIBUTE = "level";
+	public static final String INVERT_SIDES_ATTRIBUTE = "invertsides";
+	public static final String OFFSET_ATTRIBUTE = "rt_offset";
+	public static final String PRODUKT_ORDER_ATTRIBUTE = "service_produkt_order";
+	public static final String PRODUKT_COLOR_ATTRIBUTE = "service_produkt_color";
+
+	/**
+	 * the network uses a plain cartesian coordinate system with meters as units
+	 */
+	public static final CoordinateReferenceSystem CRS = DefaultEngineeringCRS.CARTESIAN_2D;
+
+	private static final String[] KLASSEN = {"schotter", "befestigungen", "risse", "andere",
+		"squat", "head_check", "gleislage", "stoesse"};
+	private static final String[] KLASSE_COLORS = {"#8c8c8c", "#2d327d", "#eb0000", "#dcdcdc",
+		"#ffb200", "#009e4f", "#a0522d", "#0079c7"};
+	private static final String[] PRODUKT_COLORS = {"#eb0000", "#2d327d", "#009e4f", "#ffb200",
+		"#8d5b2f", "#000000"};
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private int featureCount = 10000;
+	private int stackDepth = 8;
+	private int verticesPerSegment = 20;
+	private int segmentsPerCorridor = 40;
+	private double segmentLength = 2000.0;
+	private long seed = 14080071L;
+
+	/**
+	 * the total number of features
+	 *
+	 * @param featureCount
+	 */
+	public void setFeatureCount(final int featureCount) {
+		if (featureCount < 1) {
+			throw new IllegalArgumentException("The feature count must be at least 1");
+		}
+		this.featureCount = featureCount;
+	}
+
+	/**
+	 * the average number of services sharing a segment
+	 *
+	 * @param stackDepth
+	 */
+	public void setStackDepth(final int stackDepth) {
+		if (stackDepth < 1) {
+			throw new IllegalArgumentException("The stack depth must be at least 1");
+		}
+		this.stackDepth = stackDepth;
+	}
+
+	/**
+	 * the number of vertices of a segment. Larger values create longer and more detailed lines.
+	 *
+	 * @param verticesPerSegment
+	 */
+	public void setVerticesPerSegment(final int verticesPerSegment) {
+		if (verticesPerSegment < 2) {
+			throw new IllegalArgumentException("A segment needs at least 2 vertices");
+		}
+		this.verticesPerSegment = verticesPerSegment;
+	}
+
+	public void setSegmentsPerCorridor(final int segmentsPerCorridor) {
+		if (segmentsPerCorridor < 1) {
+			throw new IllegalArgumentException("A corridor needs at least 1 segment");
+		}
+		this.segmentsPerCorridor = segmentsPerCorridor;
+	}
+
+	/**
+	 * the length of a segment in map units
+	 *
+	 * @param segmentLength
+	 */
+	public void setSegmentLength(final double segmentLength) {
+		if (!(segmentLength > 0.0)) {
+			throw new IllegalArgumentException("The segment length must be positive");
+		}
+		this.segmentLength = segmentLength;
+	}
+
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	public static SimpleFeatureType createSchema() {
+		final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.setName(TYPE_NAME);
+		typeBuilder.setCRS(CRS);
+		typeBuilder.add(GEOMETRY_ATTRIBUTE, LineString.class);
+		typeBuilder.add(LINE_ID_ATTRIBUTE, Integer.class);
+		typeBuilder.add(SERVICE_ID_ATTRIBUTE, Integer.class);
+		typeBuilder.add(KLASSE_ATTRIBUTE, String.class);
+		typeBuilder.add(KLASSE_COLOR_ATTRIBUTE, String.class);
+		typeBuilder.add(KLASSE_ORDER_ATTRIBUTE, Integer.class);
+		typeBuilder.add(ORDERING_ATTRIBUTE, Integer.class);
+		typeBuilder.add(LEVEL_ATTRIBUTE, Integer.class);
+		typeBuilder.add(INVERT_SIDES_ATTRIBUTE, Boolean.class);
+		typeBuilder.add(OFFSET_ATTRIBUTE, Integer.class);
+		typeBuilder.add(PRODUKT_ORDER_ATTRIBUTE, Integer.class);
+		typeBuilder.add(PRODUKT_COLOR_ATTRIBUTE, String.class);
+		typeBuilder.setDefaultGeometry(GEOMETRY_ATTRIBUTE);
+		return typeBuilder.buildFeatureType();
+	}
+
+	/**
+	 * the width and height of the square covered by the network.
+	 *
+	 * Chosen so that the length of the lines per area is the same for all feature counts.
+	 *
+	 * @return
+	 */
+	public double getExtentSize() {
+		final double corridorLength = this.segmentLength * this.segmentsPerCorridor;
+		return corridorLength * Math.sqrt(this.getCorridorCount()) / 2.0;
+	}
+
+	/**
+	 * the area the corridors start in. The lines may leave it.
+	 *
+	 * @return
+	 */
+	public ReferencedEnvelope getBounds() {
+		final double extentSize = this.getExtentSize();
+		return new ReferencedEnvelope(0.0, extentSize, 0.0, extentSize, CRS);
+	}
+
+	private int getCorridorCount() {
+		final long segmentCount = (this.featureCount + this.stackDepth - 1) / this.stackDepth;
+		return (int) Math.max(1, (segmentCount + this.segmentsPerCorridor - 1) / this.segmentsPerCorridor);
+	}
+
+	/**
+	 * create a datastore containing the network as the feature type TYPE_NAME
+	 *
+	 * @return
+	 */
+	public MemoryDataStore createDataStore() {
+		// adding the features creates the schema
+		final MemoryDataStore dataStore = new MemoryDataStore();
+		dataStore.addFeatures(this.createFeatures());
+		return dataStore;
+	}
+
+	/**
+	 * receives the lines of the network in the order of the features
+	 */
+	public interface LineHandler {
+
+		/**
+		 *
+		 * @param segment the geometry shared by the lines of a stack
+		 * @param segmentId
+		 * @param level the position of the line in the stack, starting at 0
+		 * @param service the attribute values of the service, starting with the service_id
+		 */
+		public void handleLine(LineString segment, int segmentId, int level, Object[] service);
+	}
+
+	/**
+	 * create the features of the network
+	 *
+	 * @return
+	 */
+	public List<SimpleFeature> createFeatures() {
+		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(createSchema());
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>(this.featureCount);
+		this.createLines(new LineHandler() {
+			public void handleLine(final LineString segment, final int segmentId, final int level, final Object[] service) {
+				featureBuilder.add(segment);
+				featureBuilder.add(segmentId);
+				featureBuilder.addAll(service);
+				features.add(featureBuilder.buildFeature(TYPE_NAME + "." + features.size()));
+			}
+		});
+		return features;
+	}
+
+	/**
+	 * create the lines of the network without building features
+	 *
+	 * @param handler
+	 */
+	public void createLines(final LineHandler handler) {
+		final Random random = new Random(this.seed);
+		final double extentSize = this.getExtentSize();
+		final int maxDepth = 2 * this.stackDepth;
+
+		int numLines = 0;
+		int segmentId = 0;
+		int corridorId = 0;
+		while (numLines < this.featureCount) {
+			// the services of the corridor. The first ones run along the whole corridor,
+			// the higher ones only along the segments with deeper stacks
+			final Object[][] services = new Object[maxDepth][];
+			for (int i=0; i<maxDepth; i++) {
+				services[i] = this.createService(random, corridorId * maxDepth + i, i);
+			}
+
+			final Coordinate position = new Coordinate(random.nextDouble() * extentSize, random.nextDouble() * extentSize);
+			final double[] heading = {random.nextDouble() * 2.0 * Math.PI, 0.0};
+			for (int s=0; s<this.segmentsPerCorridor && numLines < this.featureCount; s++) {
+				final LineString segment = this.createSegment(random, position, heading);
+				final int depth = Math.max(1, Math.min(maxDepth,
+						(int) Math.round(this.stackDepth + random.nextGaussian() * this.stackDepth / 4.0)));
+				for (int i=0; i<depth && numLines < this.featureCount; i++) {
+					handler.handleLine(segment, segmentId, i, services[i]);
+					numLines++;
+				}
+				segmentId++;
+			}
+			corridorId++;
+		}
+	}
+
+	/**
+	 * the attribute values of a service, starting with the service_id
+	 */
+	private Object[] createService(final Random random, final int serviceId, final int ordering) {
+		final int klasse = random.nextInt(KLASSEN.length);
+		final int produkt = random.nextInt(PRODUKT_COLORS.length);
+		return new Object[] {
+			serviceId,
+			KLASSEN[klasse],
+			KLASSE_COLORS[klasse],
+			klasse,
+			ordering,
+			1 + random.nextInt(2),
+			random.nextInt(10) == 0,
+			random.nextInt(3),
+			produkt,
+			PRODUKT_COLORS[produkt]
+		};
+	}
+
+	/**
+	 * continue the corridor by a segment.
+	 *
+	 * @param random
+	 * @param position the end of the previous segment. Receives the end of the new segment.
+	 * @param heading the direction and the curvature of the corridor at the position. Receives
+	 * 		the ones at the end of the new segment.
+	 * @return
+	 */
+	private LineString createSegment(final Random random, final Coordinate position, final double[] heading) {
+		final Coordinate[] coordinates = new Coordinate[this.verticesPerSegment];
+		final double stepLength = this.segmentLength / (this.verticesPerSegment - 1);
+		// the curvature in radians per map unit. The radii stay above about 1km like on main lines.
+		final double maxCurvature = 1.0 / 1000.0;
+		double x = position.x;
+		double y = position.y;
+		double direction = heading[0];
+		double curvature = heading[1];
+		coordinates[0] = new Coordinate(x, y);
+		for (int i=1; i<coordinates.length; i++) {
+			curvature += (random.nextDouble() - 0.5) * maxCurvature / 4.0;
+			curvature = Math.max(-maxCurvature, Math.min(maxCurvature, curvature));
+			direction += curvature * stepLength;
+			x += Math.cos(direction) * stepLength;
+			y += Math.sin(direction) * stepLength;
+			coordinates[i] = new Coordinate(x, y);
+		}
+		position.x = x;
+		position.y = y;
+		heading[0] = direction;
+		heading[1] = curvature;
+		return geometryFactory.createLineString(coordinates);
+	}
+}
@@ -0,0 +1,95 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.CurveBuilder;
+import org.geoserver.trafimage.transform.LineToPolygonConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * converting the lines of a whole rail network to polygons stacked like the stack processes
+ * place them. One operation converts all features of the network.
+ *
+ * With large widths the offsetted lines of the upper stack levels create many join loops,
+ * which have to be found and cut when enableArtifactRemoval is set.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RailNetworkPolygonBenchmark {
+
+	@Param({"1000", "10000"})
+	public int featureCount;
+
+	/**
+	 * the width of a polygon in map units. 10 is about the width of a line at 1:5000,
+	 * 500 at 1:250000.
+	 */
+	@Param({"10", "500"})
+	public double width;
+
+	@Param({"false", "true"})
+	public boolean enableArtifactRemoval;
+
+	private LineString[] lines;
+	private double[] offsets;
+	private LineToPolygonConverter converter;
+
+	@Setup
+	public void setUp() {
+		final RailNetworkGenerator generator = new RailNetworkGenerator();
+		generator.setFeatureCount(this.featureCount);
+		final List<LineString> lineList = new ArrayList<LineString>(this.featureCount);
+		final List<Double> offsetList = new ArrayList<Double>(this.featureCount);
+		generator.createLines(new RailNetworkGenerator.LineHandler() {
+			public void handleLine(final LineString segment, final int segmentId, final int level, final Object[] service) {
+				lineList.add(segment);
+				offsetList.add((level + 0.5) * RailNetworkPolygonBenchmark.this.width);
+			}
+		});
+		this.lines = lineList.toArray(new LineString[lineList.size()]);
+		this.offsets = new double[offsetList.size()];
+		for (int i=0; i<this.offsets.length; i++) {
+			this.offsets[i] = offsetList.get(i);
+		}
+
+		this.converter = new LineToPolygonConverter(new CurveBuilder());
+		this.converter.setEnableArtifactRemoval(this.enableArtifactRemoval);
+		this.converter.setWidth(this.width);
+	}
+
+	@Benchmark
+	public int convert() {
+		int numCoordinates = 0;
+		for (int i=0; i<this.lines.length; i++) {
+			this.converter.setOffset(this.offsets[i]);
+			numCoordinates += this.converter.convert(this.lines[i]).getNumPoints();
+		}
+		return numCoordinates;
+	}
+}
@@ -0,0 +1,73 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.SimpleFeatureAggregator;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * aggregating an in-memory collection by the category of the features.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleFeatureAggregatorBenchmark {
+
+	@Param({"1000", "10000"})
+	public int featureCount;
+
+	@Param({"1", "8"})
+	public int stackDepth;
+
+	@Param({"10", "100"})
+	public int vertexCount;
+
+	/**
+	 * the number of threads used for hashing, see SimpleFeatureAggregator.setParallelism
+	 */
+	@Param({"1"})
+	public int parallelism;
+
+	private SimpleFeatureCollection collection;
+	private SimpleFeatureAggregator aggregator;
+
+	@Setup
+	public void setUp() {
+		this.collection = new ListFeatureCollection(BenchmarkData.createSchema(),
+				BenchmarkData.createFeatures(this.featureCount, this.stackDepth, this.vertexCount));
+
+		final ArrayList<String> aggregationColumns = new ArrayList<String>();
+		aggregationColumns.add(BenchmarkData.CATEGORY_ATTRIBUTE);
+		this.aggregator = new SimpleFeatureAggregator(aggregationColumns);
+		this.aggregator.setParallelism(this.parallelism);
+	}
+
+	@Benchmark
+	public SimpleFeatureCollection aggregate() {
+		return this.aggregator.aggregate(this.collection, "agg_count");
+	}
+}
@@ -0,0 +1,76 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.SimpleFeatureHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * hashing the features like the aggregation does. One operation hashes all features.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleFeatureHasherBenchmark {
+
+	@Param({"1000"})
+	public int featureCount;
+
+	@Param({"1", "8"})
+	public int stackDepth;
+
+	@Param({"10", "100", "1000"})
+	public int vertexCount;
+
+	private SimpleFeature[] features;
+	private SimpleFeatureHasher hasher;
+
+	@Setup
+	public void setUp() {
+		final List<SimpleFeature> featureList = BenchmarkData.createFeatures(this.featureCount, this.stackDepth, this.vertexCount);
+		this.features = featureList.toArray(new SimpleFeature[featureList.size()]);
+
+		this.hasher = new SimpleFeatureHasher();
+		this.hasher.setIncludeGeometry(true);
+		this.hasher.addIncludedAttribute(BenchmarkData.LINE_ID_ATTRIBUTE);
+		this.hasher.addIncludedAttribute(BenchmarkData.CATEGORY_ATTRIBUTE);
+	}
+
+	@Benchmark
+	public void getHash(final Blackhole blackhole) {
+		for (final SimpleFeature feature: this.features) {
+			blackhole.consume(this.hasher.getHash(feature));
+		}
+	}
+
+	@Benchmark
+	public void getHash64(final Blackhole blackhole) {
+		for (final SimpleFeature feature: this.features) {
+			blackhole.consume(this.hasher.getHash64(feature));
+		}
+	}
+}
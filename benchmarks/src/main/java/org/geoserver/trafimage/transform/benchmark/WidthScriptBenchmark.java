@@ -0,0 +1,126 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.trafimage.transform.script.LineStacksScript;
+import org.geoserver.trafimage.transform.script.ScriptException;
+import org.geoserver.trafimage.transform.script.WidthExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * calculating the widths of the lines of the stacks like LineStacks does. One operation
+ * is one request: creating the script, calculating the widths of all features stack by
+ * stack and terminating the script. The compiled scripts are cached, so the compilation
+ * is only part of the first operation.
+ *
+ * The scripts run in the thread which created them, so the state is per thread.
+ *
+ * @author nico
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidthScriptBenchmark {
+
+	private static final String FUNCTION_SCRIPT =
+			"function getFeatureWith(featureLength) {\n"
+			+ "  return Math.min(20, Math.max(4, Math.round(Math.log(featureLength + 1) * 2)));\n"
+			+ "}\n";
+
+	private static final String PURE_FUNCTION_SCRIPT = "var pureFeatureWidth = true;\n" + FUNCTION_SCRIPT;
+
+	private static final String BATCH_SCRIPT =
+			"function getFeatureWidths(featureLengths) {\n"
+			+ "  var widths = [];\n"
+			+ "  for (var i=0; i<featureLengths.length; i++) {\n"
+			+ "    widths.push(Math.min(20, Math.max(4, Math.round(Math.log(featureLengths[i] + 1) * 2))));\n"
+			+ "  }\n"
+			+ "  return widths;\n"
+			+ "}\n";
+
+	private static final String EXPRESSION = "clamp(round(log(featureLength + 1) * 2), 4, 20)";
+
+	@Param({"10000"})
+	public int featureCount;
+
+	@Param({"1", "8", "64"})
+	public int stackDepth;
+
+	/**
+	 * function: getFeatureWith, pure: getFeatureWith with pureFeatureWidth set,
+	 * batch: getFeatureWidths, expression: the equivalent widthExpression
+	 */
+	@Param({"function", "pure", "batch", "expression"})
+	public String implementation;
+
+	private double[] featureLengths;
+	private double[] stackLengths;
+	private int[] stackWidths;
+	private String scriptSource;
+
+	@Setup
+	public void setUp() {
+		this.featureLengths = BenchmarkData.createLineLengths(this.featureCount);
+		this.stackLengths = new double[this.stackDepth];
+		this.stackWidths = new int[this.stackDepth];
+		if ("function".equals(this.implementation)) {
+			this.scriptSource = FUNCTION_SCRIPT;
+		} else if ("pure".equals(this.implementation)) {
+			this.scriptSource = PURE_FUNCTION_SCRIPT;
+		} else if ("batch".equals(this.implementation)) {
+			this.scriptSource = BATCH_SCRIPT;
+		} else if (!"expression".equals(this.implementation)) {
+			throw new IllegalArgumentException("Unknown implementation: " + this.implementation);
+		}
+	}
+
+	@Benchmark
+	public long calculateWidths() throws ScriptException {
+		if (this.scriptSource == null) {
+			return this.evaluateExpression();
+		}
+		long widthSum = 0;
+		final LineStacksScript script = new LineStacksScript(this.scriptSource);
+		try {
+			for (int offset=0; offset<this.featureCount; offset+=this.stackDepth) {
+				final int count = Math.min(this.stackDepth, this.featureCount - offset);
+				System.arraycopy(this.featureLengths, offset, this.stackLengths, 0, count);
+				script.getFeatureWidths(this.stackLengths, count, this.stackWidths);
+				for (int i=0; i<count; i++) {
+					widthSum += this.stackWidths[i];
+				}
+			}
+		} finally {
+			script.terminate();
+		}
+		return widthSum;
+	}
+
+	private long evaluateExpression() throws ScriptException {
+		long widthSum = 0;
+		final WidthExpression expression = WidthExpression.compile(EXPRESSION);
+		for (int i=0; i<this.featureCount; i++) {
+			widthSum += Math.round(expression.evaluate(this.featureLengths[i], 1, Double.NaN, Double.NaN));
+		}
+		return widthSum;
+	}
+}
@@ -0,0 +1,324 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * an in-memory feature collection storing the attributes of the features in columns.
+ *
+ * Integer and Double attributes are kept in primitive arrays, geometries in an object
+ * array and all other attributes are dictionary-encoded, so the values repeated by
+ * thousands of aggregated or stacked features are only stored once. The SimpleFeatures
+ * added to the collection are not kept. The iterators build a new SimpleFeature for
+ * every row, following the order set by setRowOrder when there is one.
+ *
+ * The collection is meant to be filled by a single thread and read afterwards.
+ *
+ * @author nico
+ *
+ */
+public class ColumnarFeatureCollection extends AbstractFeatureCollection {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final boolean keepIds;
+	private final Column[] columns;
+	private final ReferencedEnvelope bounds;
+	private String[] ids = null;
+	private int[] rowOrder = null;
+	private int capacity = 0;
+	private int size = 0;
+
+	/**
+	 * a collection keeping the ids of the added features
+	 *
+	 * @param schema
+	 */
+	public ColumnarFeatureCollection(final SimpleFeatureType schema) {
+		this(schema, true);
+	}
+
+	/**
+	 *
+	 * @param schema
+	 * @param keepIds when false the ids of the added features are dropped and the features
+	 * 		get ids built from the name of the schema and the position in the collection.
+	 */
+	public ColumnarFeatureCollection(final SimpleFeatureType schema, final boolean keepIds) {
+		super(schema);
+		this.keepIds = keepIds;
+		this.columns = new Column[schema.getAttributeCount()];
+		for (int i=0; i<this.columns.length; i++) {
+			this.columns[i] = createColumn(schema.getType(i).getBinding());
+		}
+		this.bounds = new ReferencedEnvelope(schema.getCoordinateReferenceSystem());
+	}
+
+	private static Column createColumn(final Class<?> binding) {
+		if (Integer.class.equals(binding)) {
+			return new IntColumn();
+		}
+		if (Double.class.equals(binding)) {
+			return new DoubleColumn();
+		}
+		if (binding != null && Geometry.class.isAssignableFrom(binding)) {
+			return new ObjectColumn();
+		}
+		return new DictionaryColumn();
+	}
+
+	/**
+	 * copy the attributes of the feature to the columns
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public boolean add(final SimpleFeature feature) {
+		this.ensureCapacity(this.size + 1);
+		for (int i=0; i<this.columns.length; i++) {
+			this.columns[i].set(this.size, feature.getAttribute(i));
+		}
+		if (this.keepIds) {
+			this.ids[this.size] = feature.getID();
+		}
+		final Object geometry = feature.getDefaultGeometry();
+		if (geometry instanceof Geometry) {
+			this.bounds.expandToInclude(((Geometry) geometry).getEnvelopeInternal());
+		}
+		this.size++;
+		this.rowOrder = null;
+		return true;
+	}
+
+	public boolean addAll(final Collection<? extends SimpleFeature> features) {
+		this.ensureCapacity(this.size + features.size());
+		for (final SimpleFeature feature: features) {
+			this.add(feature);
+		}
+		return !features.isEmpty();
+	}
+
+	/**
+	 * append the rows of another collection with the same schema in the order of its iterators
+	 *
+	 * @param other
+	 * @return
+	 */
+	public boolean addAll(final ColumnarFeatureCollection other) {
+		if (other.columns.length != this.columns.length) {
+			throw new IllegalArgumentException("Can not add features of a different schema");
+		}
+		this.ensureCapacity(this.size + other.size);
+		for (int i=0; i<this.columns.length; i++) {
+			final Column column = this.columns[i];
+			final Column otherColumn = other.columns[i];
+			for (int position=0; position<other.size; position++) {
+				column.set(this.size + position, otherColumn.get(other.getRow(position)));
+			}
+		}
+		if (this.keepIds) {
+			for (int position=0; position<other.size; position++) {
+				this.ids[this.size + position] = other.getId(position);
+			}
+		}
+		this.bounds.expandToInclude(other.bounds);
+		this.size += other.size;
+		this.rowOrder = null;
+		return other.size > 0;
+	}
+
+	/**
+	 * let the iterators return the rows in the given order instead of the order they
+	 * were added in. Adding features resets the order.
+	 *
+	 * @param rowOrder the indexes of the rows in the order they should be returned. Every row
+	 * 		has to be contained once.
+	 */
+	public void setRowOrder(final int[] rowOrder) {
+		if (rowOrder.length != this.size) {
+			throw new IllegalArgumentException("The row order has "+rowOrder.length+" rows, the collection "+this.size);
+		}
+		this.rowOrder = rowOrder;
+	}
+
+	private int getRow(final int position) {
+		return (this.rowOrder == null) ? position : this.rowOrder[position];
+	}
+
+	private void ensureCapacity(final int requiredCapacity) {
+		if (this.capacity < requiredCapacity) {
+			this.capacity = Math.max(Math.max(requiredCapacity, this.capacity * 2), INITIAL_CAPACITY);
+			for (final Column column: this.columns) {
+				column.grow(this.capacity);
+			}
+			if (this.keepIds) {
+				this.ids = (this.ids == null) ? new String[this.capacity] : Arrays.copyOf(this.ids, this.capacity);
+			}
+		}
+	}
+
+	/**
+	 * the id of the feature at the position of the iteration
+	 */
+	private String getId(final int position) {
+		if (this.keepIds) {
+			return this.ids[this.getRow(position)];
+		}
+		return this.getSchema().getTypeName() + "." + (position + 1);
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@Override
+	public ReferencedEnvelope getBounds() {
+		return new ReferencedEnvelope(this.bounds, this.bounds.getCoordinateReferenceSystem());
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		return new Iterator<SimpleFeature>() {
+			private final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(getSchema());
+			private final int numRows = size;
+			private int position = 0;
+
+			public boolean hasNext() {
+				return this.position < this.numRows;
+			}
+
+			public SimpleFeature next() {
+				if (this.position >= this.numRows) {
+					throw new NoSuchElementException();
+				}
+				final int row = getRow(this.position);
+				final Object[] values = new Object[columns.length];
+				for (int i=0; i<columns.length; i++) {
+					values[i] = columns[i].get(row);
+				}
+				final SimpleFeature feature = this.featureBuilder.buildFeature(getId(this.position), values);
+				this.position++;
+				return feature;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+
+	private static abstract class Column {
+		abstract void grow(int capacity);
+		abstract void set(int row, Object value);
+		abstract Object get(int row);
+	}
+
+	private static class ObjectColumn extends Column {
+		private Object[] values = new Object[0];
+
+		void grow(final int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		void set(final int row, final Object value) {
+			this.values[row] = value;
+		}
+
+		Object get(final int row) {
+			return this.values[row];
+		}
+	}
+
+	private static class IntColumn extends Column {
+		private int[] values = new int[0];
+		private final BitSet nulls = new BitSet();
+
+		void grow(final int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		void set(final int row, final Object value) {
+			this.nulls.set(row, value == null);
+			this.values[row] = (value == null) ? 0 : ((Number) value).intValue();
+		}
+
+		Object get(final int row) {
+			return this.nulls.get(row) ? null : Integer.valueOf(this.values[row]);
+		}
+	}
+
+	private static class DoubleColumn extends Column {
+		private double[] values = new double[0];
+		private final BitSet nulls = new BitSet();
+
+		void grow(final int capacity) {
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+
+		void set(final int row, final Object value) {
+			this.nulls.set(row, value == null);
+			this.values[row] = (value == null) ? 0.0 : ((Number) value).doubleValue();
+		}
+
+		Object get(final int row) {
+			return this.nulls.get(row) ? null : Double.valueOf(this.values[row]);
+		}
+	}
+
+	/**
+	 * stores the index of the value in a dictionary of the distinct values. -1 is null.
+	 */
+	private static class DictionaryColumn extends Column {
+		private int[] codes = new int[0];
+		private final ArrayList<Object> dictionary = new ArrayList<Object>();
+		private final HashMap<Object, Integer> codesByValue = new HashMap<Object, Integer>();
+
+		void grow(final int capacity) {
+			this.codes = Arrays.copyOf(this.codes, capacity);
+		}
+
+		void set(final int row, final Object value) {
+			if (value == null) {
+				this.codes[row] = -1;
+				return;
+			}
+			Integer code = this.codesByValue.get(value);
+			if (code == null) {
+				code = this.dictionary.size();
+				this.dictionary.add(value);
+				this.codesByValue.put(value, code);
+			}
+			this.codes[row] = code;
+		}
+
+		Object get(final int row) {
+			final int code = this.codes[row];
+			return (code == -1) ? null : this.dictionary.get(code);
+		}
+	}
+}
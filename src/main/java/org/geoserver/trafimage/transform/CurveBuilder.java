@@ -5,46 +5,138 @@
  */
 package org.geoserver.trafimage.transform;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.geotools.process.ProcessException;
 import org.geotools.util.logging.Logging;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.operation.buffer.BufferParameters;
 import com.vividsolutions.jts.operation.buffer.OffsetCurveBuilder;
 
-public class CurveBuilder {
+/**
+ * builds offsetted lines using the JTS OffsetCurveBuilder with round joins
+ * 
+ * By default every quarter circle of a join is approximated by QUADRANT_SEGMENTS
+ * segments. When a maximum error of the arcs is set, the number of segments is
+ * derived from the offset of the line, so joins drawn with only a few pixels radius
+ * do not create more vertices than visible. Joins with a radius below
+ * minRoundJoinRadius are bevelled.
+ * 
+ * @author nico
+ *
+ */
+public class CurveBuilder implements OffsetCurveEngine {
 
-	private final OffsetCurveBuilder curveBuilder;
+	private static final int QUADRANT_SEGMENTS = 18;
+	
+	/**
+	 * the builders for the number of quadrant segments. index 0 is the bevel builder.
+	 */
+	private final OffsetCurveBuilder[] curveBuilders = new OffsetCurveBuilder[QUADRANT_SEGMENTS + 1];
 	private final GeometryFactory geomFactory = new GeometryFactory(new PrecisionModel());
 	
+	private final double maxArcError;
+	private final double minRoundJoinRadius;
+	private long numOutputCoordinates = 0;
+	private long numSkeletons = 0;
+	
 	private static final Logger LOGGER = Logging.getLogger(CurveBuilder.class);
 	
+	/**
+	 * builder using QUADRANT_SEGMENTS segments for every quarter circle
+	 */
 	public CurveBuilder() {
-		BufferParameters bufferParameters = new BufferParameters();
-		bufferParameters.setEndCapStyle(BufferParameters.CAP_FLAT);
-		bufferParameters.setJoinStyle(BufferParameters.JOIN_ROUND);
-
-		/*
-		 * Sets the number of line segments used to approximate an angle fillet.
-		 * 
-		 *   If quadSegs >= 1, joins are round, and quadSegs indicates the number of segments to use to approximate a quarter-circle.
-    	 *   If quadSegs = 0, joins are bevelled (flat)
-         *   If quadSegs < 0, joins are mitred, and the value of qs indicates the mitre ration limit as
-         *       mitreLimit = |quadSegs|
-         *
-         * For round joins, quadSegs determines the maximum error in the approximation to the true buffer curve. 
-         * The default value of 8 gives less than 2% max error in the buffer distance. For a max error of < 1%, 
-         * use QS = 12. For a max error of < 0.1%, use QS = 18. The error is always less than the buffer distance 
-         * (in other words, the computed buffer curve is always inside the true curve). 
-		 */
-		bufferParameters.setQuadrantSegments(18);
-		
-		this.curveBuilder = new OffsetCurveBuilder(new PrecisionModel(), bufferParameters);
+		this(0.0, 0.0);
+	}
+	
+	/**
+	 * 
+	 * @param maxArcError the maximum distance of the approximated arcs of round joins from the exact arc 
+	 * 		in map units. 0 to always use QUADRANT_SEGMENTS segments for a quarter circle.
+	 * @param minRoundJoinRadius joins of lines with a smaller offset will be bevelled
+	 */
+	public CurveBuilder(final double maxArcError, final double minRoundJoinRadius) {
+		this.maxArcError = maxArcError;
+		this.minRoundJoinRadius = minRoundJoinRadius;
+	}
+	
+	/**
+	 * the number of coordinates of all lines built by this instance
+	 * 
+	 * @return
+	 */
+	public long getNumOutputCoordinates() {
+		return this.numOutputCoordinates;
+	}
+	
+	/**
+	 * the number of OffsetSkeletons built by buildOffsettedLineStrings
+	 * 
+	 * @return
+	 */
+	public long getNumSkeletons() {
+		return this.numSkeletons;
+	}
+	
+	/**
+	 * the number of segments to approximate a quarter circle with for lines with the given offset.
+	 * 
+	 * A segment of an arc with the radius r spanning the angle a deviates by r*(1-cos(a/2)) from 
+	 * the arc, so the largest angle keeping the error below maxArcError is 2*acos(1-maxArcError/r).
+	 * 
+	 * @param lineOffset
+	 * @return 0 for bevelled joins
+	 */
+	private int getQuadrantSegments(final double lineOffset) {
+		final double radius = Math.abs(lineOffset);
+		if (radius < this.minRoundJoinRadius) {
+			return 0;
+		}
+		if (this.maxArcError <= 0.0) {
+			return QUADRANT_SEGMENTS;
+		}
+		if (this.maxArcError >= radius) {
+			return 1;
+		}
+		final double maxSegmentAngle = 2.0 * Math.acos(1.0 - this.maxArcError / radius);
+		final int quadrantSegments = (int) Math.ceil((Math.PI / 2.0) / maxSegmentAngle);
+		return Math.max(1, Math.min(QUADRANT_SEGMENTS, quadrantSegments));
+	}
+	
+	private OffsetCurveBuilder getCurveBuilder(final int quadrantSegments) {
+		OffsetCurveBuilder curveBuilder = this.curveBuilders[quadrantSegments];
+		if (curveBuilder == null) {
+			BufferParameters bufferParameters = new BufferParameters();
+			bufferParameters.setEndCapStyle(BufferParameters.CAP_FLAT);
+	
+			/*
+			 * Sets the number of line segments used to approximate an angle fillet.
+			 * 
+			 *   If quadSegs >= 1, joins are round, and quadSegs indicates the number of segments to use to approximate a quarter-circle.
+			 *   If quadSegs = 0, joins are bevelled (flat)
+			 *   If quadSegs < 0, joins are mitred, and the value of qs indicates the mitre ration limit as
+			 *       mitreLimit = |quadSegs|
+			 *
+			 * For round joins, quadSegs determines the maximum error in the approximation to the true buffer curve. 
+			 * The default value of 8 gives less than 2% max error in the buffer distance. For a max error of < 1%, 
+			 * use QS = 12. For a max error of < 0.1%, use QS = 18. The error is always less than the buffer distance 
+			 * (in other words, the computed buffer curve is always inside the true curve). 
+			 */
+			bufferParameters.setQuadrantSegments(quadrantSegments);
+			bufferParameters.setJoinStyle(quadrantSegments == 0 ? BufferParameters.JOIN_BEVEL : BufferParameters.JOIN_ROUND);
+			
+			curveBuilder = new OffsetCurveBuilder(new PrecisionModel(), bufferParameters);
+			this.curveBuilders[quadrantSegments] = curveBuilder;
+		}
+		return curveBuilder;
 	}
 
 	/**
@@ -62,7 +154,9 @@ public class CurveBuilder {
 			// JTS OffsetCurveBuilder will return null in this case
 			return coordinates;
 		}
-		final Coordinate[] result = this.curveBuilder.getOffsetCurve(coordinates, lineOffset);
+		// JTS creates NaN coordinates for repeated points of the line
+		final Coordinate[] result = this.getCurveBuilder(this.getQuadrantSegments(lineOffset))
+				.getOffsetCurve(CoordinateArrays.removeRepeatedPoints(coordinates), lineOffset);
 		if (result == null || (result.length == 0 && coordinates.length != 0)) {
 			LineString logLineGeom = this.geomFactory.createLineString(coordinates);
 			
@@ -75,6 +169,7 @@ public class CurveBuilder {
 			
 			throw new ProcessException("Could not build offsetted line");
 		}
+		this.numOutputCoordinates += result.length;
 		return result;
 	}
 	
@@ -89,4 +184,52 @@ public class CurveBuilder {
 		final LineString outLineGeom = this.geomFactory.createLineString(coordinates);
 		return outLineGeom;
 	}
+	
+	/**
+	 * build the offsetted lines for a list of offsets of the same line.
+	 * 
+	 * The segments and joins of the line are only analyzed once for all offsets
+	 * sharing the same number of quadrant segments and the same simplified line
+	 * using an OffsetSkeleton. The result is the same as calling buildOffsettedLineString
+	 * for each of the offsets.
+	 * 
+	 * @param linestring
+	 * @param lineOffsets
+	 * @return the lines in the order of the offsets
+	 */
+	public LineString[] buildOffsettedLineStrings(final LineString linestring, final double[] lineOffsets) {
+		final Coordinate[] coordinates = CoordinateArrays.removeRepeatedPoints(linestring.getCoordinates());
+		final List<OffsetSkeleton> skeletons = new ArrayList<OffsetSkeleton>();
+		final LineString[] outLineGeoms = new LineString[lineOffsets.length];
+		for (int i=0; i<lineOffsets.length; i++) {
+			final Coordinate[] offsettedCoordinates;
+			
+			// the skeleton only builds round joins
+			final int quadrantSegments = this.getQuadrantSegments(lineOffsets[i]);
+			if (quadrantSegments > 0 && lineOffsets[i] != 0.0 && coordinates.length >= 2) {
+				// JTS simplifies the line depending on the offset, so the skeleton
+				// is built for the simplified line
+				final Coordinate[] simplifiedCoordinates = OffsetSkeleton.simplify(coordinates, lineOffsets[i]);
+				OffsetSkeleton skeleton = null;
+				for (final OffsetSkeleton candidate: skeletons) {
+					if (candidate.getQuadrantSegments() == quadrantSegments
+							&& Arrays.equals(candidate.getCoordinates(), simplifiedCoordinates)) {
+						skeleton = candidate;
+						break;
+					}
+				}
+				if (skeleton == null) {
+					skeleton = new OffsetSkeleton(simplifiedCoordinates, quadrantSegments);
+					skeletons.add(skeleton);
+					this.numSkeletons++;
+				}
+				offsettedCoordinates = skeleton.buildOffsettedCoordinates(lineOffsets[i]);
+				this.numOutputCoordinates += offsettedCoordinates.length;
+			} else {
+				offsettedCoordinates = this.buildOffsettedCoordinates(coordinates, lineOffsets[i]);
+			}
+			outLineGeoms[i] = this.geomFactory.createLineString(offsettedCoordinates);
+		}
+		return outLineGeoms;
+	}
 }
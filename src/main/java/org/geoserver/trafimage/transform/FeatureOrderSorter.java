@@ -0,0 +1,229 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+
+/**
+ * sorts features by a numeric attribute. Features with a null value are sorted as 0.
+ *
+ * The values are read once per feature into an array of long keys and the features
+ * are sorted by these keys. Integral values are used as they are, floating point values
+ * are mapped to longs with the same order. Small ranges of keys - the usual case
+ * for the order attributes of the stacks - are sorted using a counting sort, larger ranges
+ * using a merge sort. Both are stable, so features with equal values keep their order.
+ *
+ * Instances are not thread safe.
+ *
+ * @author nico
+ *
+ */
+public class FeatureOrderSorter {
+
+	/**
+	 * key ranges up to this size are always sorted by a counting sort
+	 */
+	private static final int MIN_COUNTING_SORT_RANGE = 256;
+
+	/**
+	 * below this number of features a plain insertion sort is used
+	 */
+	private static final int INSERTION_SORT_SIZE = 16;
+
+	private String orderAttributeName;
+
+	private int capacity = 0;
+	private long[] keys;
+	private Number[] values;
+	private int[] order;
+	private int[] sortBuffer;
+	private SimpleFeature[] sorted;
+	private int[] counts = new int[MIN_COUNTING_SORT_RANGE + 1];
+
+	public void setOrderAttributeName(final String orderAttributeName) {
+		this.orderAttributeName = orderAttributeName;
+	}
+
+	/**
+	 * sort the features in place
+	 *
+	 * @param features
+	 */
+	public void sort(final List<SimpleFeature> features) {
+		final int size = features.size();
+		if (size < 2 || this.orderAttributeName == null || this.orderAttributeName.equals("")) {
+			return;
+		}
+		this.ensureCapacity(size);
+		if (!this.loadKeys(features, size)) {
+			// all keys are equal
+			return;
+		}
+
+		long minKey = this.keys[0];
+		long maxKey = this.keys[0];
+		for (int i=1; i<size; i++) {
+			minKey = Math.min(minKey, this.keys[i]);
+			maxKey = Math.max(maxKey, this.keys[i]);
+		}
+		final long range = maxKey - minKey;
+		if (range >= 0 && range <= Math.max(MIN_COUNTING_SORT_RANGE, 2L * size)) {
+			this.countingSort(size, minKey, (int) range);
+		} else if (size <= INSERTION_SORT_SIZE) {
+			this.insertionSort(size);
+		} else {
+			this.mergeSort(size);
+		}
+
+		for (int i=0; i<size; i++) {
+			this.sorted[i] = features.get(this.order[i]);
+		}
+		for (int i=0; i<size; i++) {
+			features.set(i, this.sorted[i]);
+			this.sorted[i] = null;
+		}
+	}
+
+	private void ensureCapacity(final int size) {
+		if (this.capacity < size) {
+			this.capacity = Math.max(size, this.capacity * 2);
+			this.keys = new long[this.capacity];
+			this.values = new Number[this.capacity];
+			this.order = new int[this.capacity];
+			this.sortBuffer = new int[this.capacity];
+			this.sorted = new SimpleFeature[this.capacity];
+		}
+	}
+
+	/**
+	 * read the order values of the features into the keys
+	 *
+	 * @param features
+	 * @param size
+	 * @return false when all keys are equal and the features do not need to be sorted
+	 */
+	private boolean loadKeys(final List<SimpleFeature> features, final int size) {
+		boolean integral = true;
+		for (int i=0; i<size; i++) {
+			final Object value = features.get(i).getAttribute(this.orderAttributeName);
+			if (value == null) {
+				this.values[i] = null;
+				continue;
+			}
+			if (!(value instanceof Number)) {
+				throw new IllegalArgumentException("Can not compare values of attributes of the type "+value.getClass().getCanonicalName());
+			}
+			this.values[i] = (Number) value;
+			integral &= isIntegral(this.values[i]);
+		}
+
+		boolean allEqual = true;
+		for (int i=0; i<size; i++) {
+			final Number value = this.values[i];
+			this.values[i] = null;
+			if (value == null) {
+				this.keys[i] = integral ? 0L : toSortableLong(0.0);
+			} else {
+				this.keys[i] = integral ? value.longValue() : toSortableLong(value.doubleValue());
+			}
+			allEqual &= (this.keys[i] == this.keys[0]);
+		}
+		return !allEqual;
+	}
+
+	private static boolean isIntegral(final Number value) {
+		return (value instanceof Integer) || (value instanceof Long) || (value instanceof Short)
+				|| (value instanceof Byte) || (value instanceof BigInteger);
+	}
+
+	/**
+	 * map a double to a long with the same order. -0.0 and 0.0 are treated as equal,
+	 * NaN is sorted after all other values.
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static long toSortableLong(final double value) {
+		final long bits = Double.doubleToLongBits(value == 0.0 ? 0.0 : value);
+		return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+	}
+
+	private void countingSort(final int size, final long minKey, final int range) {
+		if (this.counts.length < range + 2) {
+			this.counts = new int[range + 2];
+		}
+		for (int k=0; k<=range+1; k++) {
+			this.counts[k] = 0;
+		}
+		for (int i=0; i<size; i++) {
+			this.counts[(int) (this.keys[i] - minKey) + 1]++;
+		}
+		// convert the counts to the start positions of the keys
+		for (int k=1; k<=range; k++) {
+			this.counts[k] += this.counts[k-1];
+		}
+		for (int i=0; i<size; i++) {
+			this.order[this.counts[(int) (this.keys[i] - minKey)]++] = i;
+		}
+	}
+
+	private void insertionSort(final int size) {
+		for (int i=0; i<size; i++) {
+			final long key = this.keys[i];
+			int j = i - 1;
+			while (j >= 0 && this.keys[this.order[j]] > key) {
+				this.order[j+1] = this.order[j];
+				j--;
+			}
+			this.order[j+1] = i;
+		}
+	}
+
+	/**
+	 * bottom-up merge sort of the indexes of the features by their keys
+	 *
+	 * @param size
+	 */
+	private void mergeSort(final int size) {
+		for (int i=0; i<size; i++) {
+			this.order[i] = i;
+		}
+		int[] src = this.order;
+		int[] dst = this.sortBuffer;
+		for (int width=1; width<size; width*=2) {
+			for (int left=0; left<size; left+=2*width) {
+				final int mid = Math.min(left + width, size);
+				final int right = Math.min(left + 2 * width, size);
+				int a = left;
+				int b = mid;
+				int k = left;
+				while (a < mid && b < right) {
+					if (this.keys[src[b]] < this.keys[src[a]]) {
+						dst[k++] = src[b++];
+					} else {
+						dst[k++] = src[a++];
+					}
+				}
+				while (a < mid) {
+					dst[k++] = src[a++];
+				}
+				while (b < right) {
+					dst[k++] = src[b++];
+				}
+			}
+			final int[] swap = src;
+			src = dst;
+			dst = swap;
+		}
+		if (src != this.order) {
+			System.arraycopy(src, 0, this.order, 0, size);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * generalizes the lines to the output image using a ScreenGeneralizer before
+ * passing them to another OffsetCurveEngine
+ *
+ * @author nico
+ *
+ */
+public class GeneralizingOffsetCurveEngine implements OffsetCurveEngine {
+
+	private final OffsetCurveEngine engine;
+	private final ScreenGeneralizer generalizer;
+
+	public GeneralizingOffsetCurveEngine(final OffsetCurveEngine engine, final ScreenGeneralizer generalizer) {
+		this.engine = engine;
+		this.generalizer = generalizer;
+	}
+
+	public ScreenGeneralizer getGeneralizer() {
+		return this.generalizer;
+	}
+
+	public LineString buildOffsettedLineString(final LineString linestring, final double lineOffset) {
+		return this.engine.buildOffsettedLineString(this.generalizer.generalize(linestring), lineOffset);
+	}
+
+	public LineString[] buildOffsettedLineStrings(final LineString linestring, final double[] lineOffsets) {
+		return this.engine.buildOffsettedLineStrings(this.generalizer.generalize(linestring), lineOffsets);
+	}
+
+	public long getNumOutputCoordinates() {
+		return this.engine.getNumOutputCoordinates();
+	}
+}
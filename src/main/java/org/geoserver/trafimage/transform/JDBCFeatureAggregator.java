@@ -0,0 +1,288 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.jdbc.FilterToSQL;
+import org.geotools.data.jdbc.FilterToSQLException;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.store.ContentFeatureCollection;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.PreparedFilterToSQL;
+import org.geotools.jdbc.PreparedStatementSQLDialect;
+import org.geotools.jdbc.SQLDialect;
+import org.geotools.util.Converters;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+
+/**
+ * Aggregates features inside the database using a GROUP BY query, so only the
+ * aggregates get transferred instead of all features.
+ *
+ * This only works for collections read directly from a JDBCDataStore. For
+ * all other collections forCollection returns null and the features have to be
+ * aggregated in memory.
+ *
+ * @author nico
+ *
+ */
+public class JDBCFeatureAggregator {
+
+	private static final Logger LOGGER = Logging.getLogger(JDBCFeatureAggregator.class);
+
+	/**
+	 * the fields of the ContentFeatureCollection could not be read once, so the aggregation in the
+	 * database is not available with this version of geotools.
+	 */
+	private static volatile boolean fieldsInaccessible = false;
+
+	private final JDBCDataStore dataStore;
+	private final SimpleFeatureType nativeSchema;
+	private final Query query;
+	private final Transaction transaction;
+	private RequestDeadline deadline = RequestDeadline.NONE;
+
+	private JDBCFeatureAggregator(final JDBCDataStore dataStore, final SimpleFeatureType nativeSchema, final Query query,
+			final Transaction transaction) {
+		this.dataStore = dataStore;
+		this.nativeSchema = nativeSchema;
+		this.query = query;
+		this.transaction = transaction;
+	}
+
+	/**
+	 * create an aggregator for the collection
+	 *
+	 * @param collection
+	 * @return null when the collection does not originate from a JDBCDataStore or
+	 *     the query of the collection can not be aggregated in the database.
+	 */
+	public static JDBCFeatureAggregator forCollection(final SimpleFeatureCollection collection) {
+		if (!(collection instanceof ContentFeatureCollection) || fieldsInaccessible) {
+			return null;
+		}
+
+		// the collection does not expose the source and the query it has been created from
+		final Object featureSource = readField(collection, "featureSource");
+		final Object query = readField(collection, "query");
+		if (!(featureSource instanceof ContentFeatureSource) || !(query instanceof Query)) {
+			return null;
+		}
+		final ContentFeatureSource contentFeatureSource = (ContentFeatureSource) featureSource;
+		if (!(contentFeatureSource.getDataStore() instanceof JDBCDataStore)) {
+			return null;
+		}
+		final JDBCDataStore dataStore = (JDBCDataStore) contentFeatureSource.getDataStore();
+		final SimpleFeatureType nativeSchema = contentFeatureSource.getSchema();
+
+		// sql views are not supported
+		if (dataStore.getVirtualTables().containsKey(nativeSchema.getTypeName())) {
+			return null;
+		}
+
+		// queries which would not return the same features when being aggregated
+		final Query contentQuery = (Query) query;
+		if (!contentQuery.isMaxFeaturesUnlimited()
+				|| contentQuery.getStartIndex() != null
+				|| contentQuery.getCoordinateSystem() != null
+				|| contentQuery.getCoordinateSystemReproject() != null) {
+			return null;
+		}
+		return new JDBCFeatureAggregator(dataStore, nativeSchema, contentQuery, contentFeatureSource.getTransaction());
+	}
+
+	private static Object readField(final Object object, final String fieldName) {
+		try {
+			final Field field = ContentFeatureCollection.class.getDeclaredField(fieldName);
+			field.setAccessible(true);
+			return field.get(object);
+		} catch (NoSuchFieldException e) {
+			return disableFieldAccess(fieldName, e);
+		} catch (IllegalAccessException e) {
+			return disableFieldAccess(fieldName, e);
+		} catch (RuntimeException e) {
+			// may only affect this collection, so the aggregation in the database stays enabled
+			LOGGER.log(Level.FINE, "Could not read the field "+fieldName+" of the feature collection."
+					+ " Aggregating the features in memory.", e);
+			return null;
+		}
+	}
+
+	/**
+	 * the field does not exist or can not be accessed in this version of geotools.
+	 * only reported once as this would happen for every request.
+	 */
+	private static Object disableFieldAccess(final String fieldName, final Exception e) {
+		fieldsInaccessible = true;
+		LOGGER.log(Level.WARNING, "Could not access the field "+fieldName+" of the feature collection."
+				+ " Aggregating in the database is not available with this version of GeoTools,"
+				+ " all features will be aggregated in memory.", e);
+		return null;
+	}
+
+	/**
+	 * limit the time the database may spend on the query to the time left until the deadline
+	 *
+	 * @param deadline
+	 */
+	public void setDeadline(final RequestDeadline deadline) {
+		this.deadline = (deadline == null) ? RequestDeadline.NONE : deadline;
+	}
+
+	/**
+	 * aggregate the features by their geometry and the given attributes.
+	 *
+	 * @param outputSchema schema of the features to create. Must contain the geometry, the attributes and the
+	 * 		aggregateAttributeName with the type Integer
+	 * @param attributes
+	 * @param aggregateAttributeName
+	 * @return the aggregated features or null if the filter of the query can not be encoded to SQL
+	 * @throws IOException
+	 */
+	public List<SimpleFeature> aggregate(final SimpleFeatureType outputSchema, final Collection<String> attributes,
+			final String aggregateAttributeName) throws IOException {
+
+		final SQLDialect dialect = this.dataStore.getSQLDialect();
+		final GeometryDescriptor geomDescriptor = this.nativeSchema.getGeometryDescriptor();
+		final String geomColumn = geomDescriptor.getLocalName();
+
+		// the filter
+		final Filter filter = this.query.getFilter();
+		final FilterToSQL filterToSQL;
+		if (dialect instanceof PreparedStatementSQLDialect) {
+			filterToSQL = this.dataStore.createPreparedFilterToSQL(this.nativeSchema);
+		} else {
+			filterToSQL = this.dataStore.createFilterToSQL(this.nativeSchema);
+		}
+		String whereClause = "";
+		if (filter != null && filter != Filter.INCLUDE) {
+			if (!filterToSQL.getCapabilities().fullySupports(filter)) {
+				LOGGER.fine("The filter of the query can not be encoded to SQL. Not aggregating in the database.");
+				return null;
+			}
+			try {
+				whereClause = filterToSQL.encodeToString(filter);
+			} catch (FilterToSQLException e) {
+				LOGGER.log(Level.FINE, "The filter of the query can not be encoded to SQL. Not aggregating in the database.", e);
+				return null;
+			}
+		}
+
+		// the geometry gets encoded the same way as the datastore does for normal reads
+		final StringBuffer geomExpression = new StringBuffer();
+		final Object nativeSrid = geomDescriptor.getUserData().get(JDBCDataStore.JDBC_NATIVE_SRID);
+		final int srid = (nativeSrid instanceof Integer) ? (Integer) nativeSrid : -1;
+		dialect.encodeGeometryColumn(geomDescriptor, null, srid, null, geomExpression);
+
+		final StringBuffer columns = new StringBuffer();
+		for (final String attributeName: attributes) {
+			columns.append(", ");
+			dialect.encodeColumnName(null, attributeName, columns);
+		}
+
+		final StringBuffer sql = new StringBuffer("SELECT ")
+			.append(geomExpression).append(" AS ");
+		dialect.encodeColumnName(null, geomColumn, sql);
+		sql.append(columns)
+			.append(", count(*) FROM ");
+		if (this.dataStore.getDatabaseSchema() != null) {
+			dialect.encodeSchemaName(this.dataStore.getDatabaseSchema(), sql);
+			sql.append(".");
+		}
+		dialect.encodeTableName(this.nativeSchema.getTypeName(), sql);
+		sql.append(" ").append(whereClause)
+			// group by the encoded geometry, as some databases only compare the bounding boxes
+			// of geometries
+			.append(" GROUP BY ").append(geomExpression)
+			.append(columns);
+		LOGGER.fine("Aggregating in the database: "+sql.toString());
+
+		final Connection cx = this.dataStore.getConnection(this.transaction);
+		Statement statement = null;
+		ResultSet rs = null;
+		try {
+			if (filterToSQL instanceof PreparedFilterToSQL) {
+				final PreparedStatement ps = cx.prepareStatement(sql.toString());
+				statement = ps;
+				this.dataStore.setPreparedFilterValues(ps, (PreparedFilterToSQL) filterToSQL, 0, cx);
+				this.setQueryTimeout(ps);
+				rs = ps.executeQuery();
+			} else {
+				statement = cx.createStatement();
+				this.setQueryTimeout(statement);
+				rs = statement.executeQuery(sql.toString());
+			}
+			return this.readAggregates(rs, outputSchema, attributes, aggregateAttributeName, cx);
+		} catch (SQLException e) {
+			throw new IOException("Aggregating in the database failed: "+e.getMessage(), e);
+		} finally {
+			this.dataStore.closeSafe(rs);
+			this.dataStore.closeSafe(statement);
+			// connections of other transactions are owned by the transaction and get closed with it
+			if (this.transaction == null || this.transaction == Transaction.AUTO_COMMIT) {
+				this.dataStore.closeSafe(cx);
+			}
+		}
+	}
+
+	private void setQueryTimeout(final Statement statement) throws SQLException {
+		this.deadline.check();
+		if (this.deadline.hasTimeout()) {
+			statement.setQueryTimeout(this.deadline.getRemainingSeconds());
+		}
+	}
+
+	private List<SimpleFeature> readAggregates(final ResultSet rs, final SimpleFeatureType outputSchema,
+			final Collection<String> attributes, final String aggregateAttributeName, final Connection cx) throws SQLException, IOException {
+
+		final SQLDialect dialect = this.dataStore.getSQLDialect();
+		final GeometryDescriptor geomDescriptor = this.nativeSchema.getGeometryDescriptor();
+		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputSchema);
+		final String idPrefix = outputSchema.getTypeName() + ".";
+
+		final ArrayList<SimpleFeature> aggregates = new ArrayList<SimpleFeature>();
+		while (rs.next()) {
+			this.deadline.check();
+			// idx =0 is always the geometry. see SimpleFeatureAggregator.buildOutputFeatureType
+			featureBuilder.set(0, dialect.decodeGeometryValue(geomDescriptor, rs, geomDescriptor.getLocalName(),
+					this.dataStore.getGeometryFactory(), cx));
+
+			int column = 2;
+			for (final String attributeName: attributes) {
+				final AttributeDescriptor descriptor = this.nativeSchema.getDescriptor(attributeName);
+				Object value = rs.getObject(column++);
+				if (value != null && !descriptor.getType().getBinding().isInstance(value)) {
+					value = Converters.convert(value, descriptor.getType().getBinding());
+				}
+				featureBuilder.set(attributeName, value);
+			}
+			featureBuilder.set(aggregateAttributeName, rs.getInt(column));
+			aggregates.add(featureBuilder.buildFeature(idPrefix + aggregates.size()));
+		}
+		return aggregates;
+	}
+}
@@ -5,7 +5,6 @@
  */
 package org.geoserver.trafimage.transform;
 
-import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,12 +12,10 @@ import org.geoserver.trafimage.transform.util.MeasuredTime;
 import org.geotools.util.logging.Logging;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.geom.PrecisionModel;
 
 /**
  * convert lines to polygons
@@ -64,11 +61,31 @@ public class LineToPolygonConverter extends MeasuredTime {
 	protected boolean centerOnLine = true;
 	private boolean enableArtifactRemoval = false; 
 	
-	private final CurveBuilder curveBuilder = new CurveBuilder();
+	private final CurveBuilder curveBuilder;
+	private final LoopCutter loopCutter = new LoopCutter();
 	
 	private static final Logger LOGGER = Logging.getLogger(LineToPolygonConverter.class);
 	
-	public LineToPolygonConverter() {}
+	public LineToPolygonConverter() {
+		this(new CurveBuilder());
+	}
+	
+	/**
+	 * 
+	 * @param curveBuilder the builder to create the sides of the polygons with
+	 */
+	public LineToPolygonConverter(final CurveBuilder curveBuilder) {
+		this.curveBuilder = curveBuilder;
+	}
+	
+	/**
+	 * the number of coordinates of the sides of all polygons built
+	 * 
+	 * @return
+	 */
+	public long getNumOutputCoordinates() {
+		return this.curveBuilder.getNumOutputCoordinates();
+	}
 
 	
 	/**
@@ -114,7 +131,7 @@ public class LineToPolygonConverter extends MeasuredTime {
 			
 			final LinearRing linearRing;
 			if (this.enableArtifactRemoval) {
-				linearRing = geomFactory.createLinearRing(cutJoinLoops(cPolygon));
+				linearRing = geomFactory.createLinearRing(this.loopCutter.cutLoops(cPolygon));
 			} else {
 				linearRing = geomFactory.createLinearRing(cPolygon);
 			}
@@ -126,57 +143,6 @@ public class LineToPolygonConverter extends MeasuredTime {
 		}
 	}
 	
-	/**
-	 * cut off loops JTS generates when creating the offsetted curve
-	 * 
-	 * this is a quite expensive method and will also cut loops which originate in the 
-	 * line itself.
-	 * 
-	 * @param coordinates
-	 * @return
-	 */
-	private Coordinate[] cutJoinLoops(final Coordinate[] coordinates) {
-		if (coordinates.length < 3) {
-			return coordinates;
-		}
-		GeometryFactory geomFactory = new GeometryFactory(new PrecisionModel());
-		LineString[] segments = new LineString[coordinates.length-1];
-		for (int i=0; i<(coordinates.length-2); i++) {
-			final Coordinate[] segmentCoords = new Coordinate[2];
-			segmentCoords[0] = coordinates[i];
-			segmentCoords[1] = coordinates[i+1];
-			segments[i] = geomFactory.createLineString(segmentCoords);
-		}
-		
-		ArrayList<Coordinate> noloopCoords = new ArrayList<Coordinate>();
-		noloopCoords.add(segments[0].getCoordinateN(0));
-		for (int i=0; i<(segments.length-1); i++) {
-			boolean foundIntersection = false;
-			
-			for (int j=i+1; j<(segments.length-1); j++) {
-				final Geometry segmentsIntersection = (Geometry) segments[i].intersection(segments[j]);
-				if (segmentsIntersection != null) {
-					final Coordinate[] intersectionCoords = segmentsIntersection.getCoordinates();
-					if (intersectionCoords.length != 0) {
-						if (intersectionCoords[0] != segments[i].getCoordinateN(1)) {
-							foundIntersection = true;
-							i = j;
-							noloopCoords.add(intersectionCoords[0]);
-							break;
-						}
-					}
-				}
-			}
-			if (!foundIntersection) {
-				noloopCoords.add(segments[i].getCoordinateN(1));
-			}
-		}
-		noloopCoords.add(coordinates[coordinates.length-1]); // always add the last coordinate of a line
-		
-		Coordinate[] noloopCoordsA = new Coordinate[noloopCoords.size()];
-		return noloopCoords.toArray(noloopCoordsA);
-	}
-	
 	/**
 	 * line offsets for the left and right side of the polygon
 	 * 
@@ -209,9 +175,8 @@ public class LineToPolygonConverter extends MeasuredTime {
 	}
 	
 	/**
-	 * Attempt to remove rendering artifacts in polygons.
-	 * 
-	 * This is a very expensive operation and will only run in a acceptable time when there are just a few features.
+	 * Attempt to remove rendering artifacts in polygons by cutting off the loops
+	 * at the joins of the sides of the polygon.
 	 * 
 	 * @param enableArtifactRemoval
 	 */
@@ -0,0 +1,302 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.ArrayList;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * cuts off the loops JTS generates at the joins when creating offsetted curves.
+ *
+ * The ring is walked from the start. When a segment intersects a later, non-adjacent
+ * segment the part in between is skipped and the walk continues at the intersection.
+ * This will also cut loops which originate in the line itself.
+ *
+ * The intersecting segments are found using a hierarchy of envelopes over runs of
+ * consecutive segments on primitive arrays. Consecutive segments of an offsetted line
+ * stay close to each other, so the envelopes are small and only runs of segments which
+ * are close to each other get compared. Unlike a sweep along one axis this does not
+ * depend on the direction of the line and keeps the cost close to O(n log n).
+ *
+ * Instances are not thread safe.
+ *
+ * @author nico
+ *
+ */
+public class LoopCutter {
+
+	/**
+	 * the number of segments of a leaf of the hierarchy
+	 */
+	private static final int LEAF_SIZE = 8;
+
+	private int capacity = 0;
+	private double[] minXs;
+	private double[] maxXs;
+	private double[] minYs;
+	private double[] maxYs;
+
+	// the envelopes of the nodes of all levels of the hierarchy. Level 0 holds the leaves,
+	// every node of the next level covers two nodes of the level below.
+	private int nodeCapacity = 0;
+	private double[] nodeMinXs;
+	private double[] nodeMaxXs;
+	private double[] nodeMinYs;
+	private double[] nodeMaxYs;
+	private final ArrayList<int[]> levels = new ArrayList<int[]>();
+	private int numSegments = 0;
+
+	// the first later segment intersecting a segment and the point of the intersection
+	private int[] firstIntersecting;
+	private double[] intersectionXs;
+	private double[] intersectionYs;
+
+	/**
+	 *
+	 * @param coordinates closed ring. The closing segment from the second last to the last
+	 * 		coordinate is not checked for intersections.
+	 * @return the ring without the loops
+	 */
+	public Coordinate[] cutLoops(final Coordinate[] coordinates) {
+		if (coordinates.length < 4) {
+			return coordinates;
+		}
+		final int numSegments = coordinates.length - 2;
+		this.ensureCapacity(numSegments);
+		this.findFirstIntersections(coordinates, numSegments);
+
+		final ArrayList<Coordinate> noloopCoords = new ArrayList<Coordinate>(coordinates.length);
+		noloopCoords.add(coordinates[0]);
+		int i = 0;
+		while (i < numSegments) {
+			final int j = this.firstIntersecting[i];
+			if (j != -1) {
+				// skip the loop and continue with the end of the intersecting segment
+				noloopCoords.add(new Coordinate(this.intersectionXs[i], this.intersectionYs[i]));
+				i = j;
+			}
+			noloopCoords.add(coordinates[i+1]);
+			i++;
+		}
+		noloopCoords.add(coordinates[coordinates.length-1]); // always add the last coordinate of a line
+
+		if (noloopCoords.size() < 4) {
+			// not a valid ring anymore
+			return coordinates;
+		}
+		return noloopCoords.toArray(new Coordinate[noloopCoords.size()]);
+	}
+
+	private void ensureCapacity(final int numSegments) {
+		if (this.capacity < numSegments) {
+			this.capacity = Math.max(numSegments, this.capacity * 2);
+			this.minXs = new double[this.capacity];
+			this.maxXs = new double[this.capacity];
+			this.minYs = new double[this.capacity];
+			this.maxYs = new double[this.capacity];
+			this.firstIntersecting = new int[this.capacity];
+			this.intersectionXs = new double[this.capacity];
+			this.intersectionYs = new double[this.capacity];
+		}
+		// the levels hold twice the number of leaves plus one for every level rounding up
+		final int numNodes = 2 * ((numSegments + LEAF_SIZE - 1) / LEAF_SIZE) + 32;
+		if (this.nodeCapacity < numNodes) {
+			this.nodeCapacity = Math.max(numNodes, this.nodeCapacity * 2);
+			this.nodeMinXs = new double[this.nodeCapacity];
+			this.nodeMaxXs = new double[this.nodeCapacity];
+			this.nodeMinYs = new double[this.nodeCapacity];
+			this.nodeMaxYs = new double[this.nodeCapacity];
+		}
+	}
+
+	/**
+	 * find the first later non-adjacent segment intersecting each segment
+	 *
+	 * @param coordinates
+	 * @param numSegments
+	 */
+	private void findFirstIntersections(final Coordinate[] coordinates, final int numSegments) {
+		for (int s=0; s<numSegments; s++) {
+			final Coordinate c0 = coordinates[s];
+			final Coordinate c1 = coordinates[s+1];
+			this.minXs[s] = Math.min(c0.x, c1.x);
+			this.maxXs[s] = Math.max(c0.x, c1.x);
+			this.minYs[s] = Math.min(c0.y, c1.y);
+			this.maxYs[s] = Math.max(c0.y, c1.y);
+			this.firstIntersecting[s] = -1;
+		}
+		this.numSegments = numSegments;
+		this.buildHierarchy();
+
+		final int topLevel = this.levels.size() - 1;
+		this.compareNodes(coordinates, topLevel, 0, 0);
+	}
+
+	/**
+	 * compute the envelopes of the leaves and of the levels above them up to a single root
+	 */
+	private void buildHierarchy() {
+		this.levels.clear();
+		int numNodes = (this.numSegments + LEAF_SIZE - 1) / LEAF_SIZE;
+		for (int n=0; n<numNodes; n++) {
+			final int first = n * LEAF_SIZE;
+			final int end = Math.min(first + LEAF_SIZE, this.numSegments);
+			double minX = this.minXs[first];
+			double maxX = this.maxXs[first];
+			double minY = this.minYs[first];
+			double maxY = this.maxYs[first];
+			for (int s=first+1; s<end; s++) {
+				minX = Math.min(minX, this.minXs[s]);
+				maxX = Math.max(maxX, this.maxXs[s]);
+				minY = Math.min(minY, this.minYs[s]);
+				maxY = Math.max(maxY, this.maxYs[s]);
+			}
+			this.setNodeEnvelope(n, minX, maxX, minY, maxY);
+		}
+		// a level is stored as its offset in the node arrays and its number of nodes
+		this.levels.add(new int[] {0, numNodes});
+
+		int offset = numNodes;
+		while (numNodes > 1) {
+			final int below = offset - numNodes;
+			final int numParents = (numNodes + 1) / 2;
+			for (int n=0; n<numParents; n++) {
+				final int left = below + 2 * n;
+				final int right = (2 * n + 1 < numNodes) ? left + 1 : left;
+				this.setNodeEnvelope(offset + n,
+						Math.min(this.nodeMinXs[left], this.nodeMinXs[right]),
+						Math.max(this.nodeMaxXs[left], this.nodeMaxXs[right]),
+						Math.min(this.nodeMinYs[left], this.nodeMinYs[right]),
+						Math.max(this.nodeMaxYs[left], this.nodeMaxYs[right]));
+			}
+			this.levels.add(new int[] {offset, numParents});
+			offset += numParents;
+			numNodes = numParents;
+		}
+	}
+
+	private void setNodeEnvelope(final int node, final double minX, final double maxX, final double minY, final double maxY) {
+		this.nodeMinXs[node] = minX;
+		this.nodeMaxXs[node] = maxX;
+		this.nodeMinYs[node] = minY;
+		this.nodeMaxYs[node] = maxY;
+	}
+
+	/**
+	 * compare the segments of two nodes of a level with overlapping envelopes
+	 *
+	 * @param coordinates
+	 * @param level
+	 * @param a the index of the earlier node in the level
+	 * @param b the index of the later node in the level, may be a
+	 */
+	private void compareNodes(final Coordinate[] coordinates, final int level, final int a, final int b) {
+		if (a != b) {
+			final int offset = this.levels.get(level)[0];
+			final int nodeA = offset + a;
+			final int nodeB = offset + b;
+			if (this.nodeMinXs[nodeA] > this.nodeMaxXs[nodeB] || this.nodeMaxXs[nodeA] < this.nodeMinXs[nodeB]
+					|| this.nodeMinYs[nodeA] > this.nodeMaxYs[nodeB] || this.nodeMaxYs[nodeA] < this.nodeMinYs[nodeB]) {
+				return;
+			}
+		}
+		if (level == 0) {
+			this.compareLeaves(coordinates, a, b);
+			return;
+		}
+		final int numChildren = this.levels.get(level - 1)[1];
+		final int aLeft = 2 * a;
+		final int aRight = 2 * a + 1;
+		final int bLeft = 2 * b;
+		final int bRight = 2 * b + 1;
+		if (a == b) {
+			this.compareNodes(coordinates, level - 1, aLeft, aLeft);
+			if (aRight < numChildren) {
+				this.compareNodes(coordinates, level - 1, aLeft, aRight);
+				this.compareNodes(coordinates, level - 1, aRight, aRight);
+			}
+			return;
+		}
+		this.compareNodes(coordinates, level - 1, aLeft, bLeft);
+		this.compareNodes(coordinates, level - 1, aRight, bLeft);
+		if (bRight < numChildren) {
+			this.compareNodes(coordinates, level - 1, aLeft, bRight);
+			this.compareNodes(coordinates, level - 1, aRight, bRight);
+		}
+	}
+
+	private void compareLeaves(final Coordinate[] coordinates, final int a, final int b) {
+		final int endA = Math.min((a + 1) * LEAF_SIZE, this.numSegments);
+		final int endB = Math.min((b + 1) * LEAF_SIZE, this.numSegments);
+		for (int i=a*LEAF_SIZE; i<endA; i++) {
+			for (int j=(a == b) ? i + 2 : b * LEAF_SIZE; j<endB; j++) {
+				if (this.minXs[i] <= this.maxXs[j] && this.maxXs[i] >= this.minXs[j]
+						&& this.minYs[i] <= this.maxYs[j] && this.maxYs[i] >= this.minYs[j]) {
+					this.checkIntersection(coordinates, i, j);
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param coordinates
+	 * @param i the earlier segment
+	 * @param j the later segment
+	 */
+	private void checkIntersection(final Coordinate[] coordinates, final int i, final int j) {
+		if (j - i < 2) {
+			// adjacent segments always share a vertex
+			return;
+		}
+		if (this.firstIntersecting[i] != -1 && this.firstIntersecting[i] < j) {
+			return;
+		}
+
+		final double p0x = coordinates[i].x;
+		final double p0y = coordinates[i].y;
+		final double rx = coordinates[i+1].x - p0x;
+		final double ry = coordinates[i+1].y - p0y;
+		final double q0x = coordinates[j].x;
+		final double q0y = coordinates[j].y;
+		final double sx = coordinates[j+1].x - q0x;
+		final double sy = coordinates[j+1].y - q0y;
+		final double dx = q0x - p0x;
+		final double dy = q0y - p0y;
+
+		final double denominator = rx * sy - ry * sx;
+		double t;
+		if (denominator == 0.0) {
+			// parallel segments only intersect when they are collinear
+			if (dx * ry - dy * rx != 0.0) {
+				return;
+			}
+			final double lengthSq = rx * rx + ry * ry;
+			if (lengthSq == 0.0) {
+				return;
+			}
+			// use the start of the overlap on segment i
+			final double tq0 = (dx * rx + dy * ry) / lengthSq;
+			final double tq1 = ((dx + sx) * rx + (dy + sy) * ry) / lengthSq;
+			final double overlapStart = Math.max(0.0, Math.min(tq0, tq1));
+			final double overlapEnd = Math.min(1.0, Math.max(tq0, tq1));
+			if (overlapStart > overlapEnd) {
+				return;
+			}
+			t = overlapStart;
+		} else {
+			t = (dx * sy - dy * sx) / denominator;
+			final double u = (dx * ry - dy * rx) / denominator;
+			if (t < 0.0 || t > 1.0 || u < 0.0 || u > 1.0) {
+				return;
+			}
+		}
+		this.firstIntersecting[i] = j;
+		this.intersectionXs[i] = p0x + t * rx;
+		this.intersectionYs[i] = p0y + t * ry;
+	}
+}
@@ -0,0 +1,44 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * builds lines parallel to a line.
+ *
+ * Positive offsets move the line to the left, negative offsets to the right. Implementations
+ * are not required to be thread safe.
+ *
+ * @author nico
+ *
+ */
+public interface OffsetCurveEngine {
+
+	/**
+	 *
+	 * @param linestring
+	 * @param lineOffset
+	 * @return
+	 */
+	public LineString buildOffsettedLineString(LineString linestring, double lineOffset);
+
+	/**
+	 * build the offsetted lines for a list of offsets of the same line.
+	 *
+	 * @param linestring
+	 * @param lineOffsets
+	 * @return the lines in the order of the offsets
+	 */
+	public LineString[] buildOffsettedLineStrings(LineString linestring, double[] lineOffsets);
+
+	/**
+	 * the number of coordinates of all lines built by this instance
+	 *
+	 * @return
+	 */
+	public long getNumOutputCoordinates();
+}
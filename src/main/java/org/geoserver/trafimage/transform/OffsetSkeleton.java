@@ -0,0 +1,377 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.LineIntersector;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.operation.buffer.BufferInputLineSimplifier;
+
+/**
+ * The parts of a line needed to build offset curves, computed once for all offsets.
+ *
+ * Stacked lines share the same geometry and only differ by their offset. The
+ * directions of the segments, the orientation of the joins and the points of
+ * the round joins do not depend on the offset, so they are only computed once
+ * here and just get scaled for each offset.
+ *
+ * The curves follow the JTS OffsetCurveBuilder using round joins and flat end caps, so
+ * the results match the ones of CurveBuilder within floating point precision. JTS
+ * simplifies the input line by 1/100 of the offset before building the curve, so the
+ * skeleton has to be built on the line returned by simplify for the offsets it is used
+ * with. Offsets leading to the same simplified line can share a skeleton.
+ *
+ * Instances are not thread safe.
+ *
+ * @author nico
+ *
+ */
+public class OffsetSkeleton {
+
+	// the constants used by the JTS OffsetSegmentGenerator
+	private static final double OFFSET_SEGMENT_SEPARATION_FACTOR = 1.0E-3;
+	private static final double INSIDE_TURN_VERTEX_SNAP_DISTANCE_FACTOR = 1.0E-3;
+	private static final double CURVE_VERTEX_SNAP_DISTANCE_FACTOR = 1.0E-6;
+	private static final double MAX_CLOSING_SEG_LENGTH_FACTOR = 80;
+	private static final double SIMPLIFY_TOLERANCE_DIVISOR = 100.0;
+
+	private static final int FORWARD = 0;
+	private static final int REVERSE = 1;
+
+	private final Coordinate[] coordinates;
+	private final int numPoints;
+	private final int quadrantSegments;
+	private final double filletAngleQuantum;
+	private final double closingSegLengthFactor;
+
+	/**
+	 * unit vectors of the segments in the direction of the line
+	 */
+	private final double[] segmentUx;
+	private final double[] segmentUy;
+
+	/**
+	 * segments with both points at the same location
+	 */
+	private final boolean[] segmentCollapsed;
+
+	/**
+	 * orientation of the joins at the vertices when walking the line forward and reverse.
+	 * The first and the last vertex have no join.
+	 */
+	private final int[][] joinOrientation;
+
+	/**
+	 * collinear joins where the line turns back onto itself
+	 */
+	private final boolean[][] joinReversing;
+
+	/**
+	 * distance between the end of the normal of the previous segment and the start of the
+	 * normal of the next segment for offset 1.0
+	 */
+	private final double[] joinNormalSeparation;
+
+	/**
+	 * points of the round joins on the unit circle. created lazily as most joins
+	 * are on the inside of the turn on one of the sides
+	 */
+	private final double[][][] filletUnitVectors;
+
+	private final LineIntersector lineIntersector = new RobustLineIntersector();
+	private final Coordinate offset0p0 = new Coordinate();
+	private final Coordinate offset0p1 = new Coordinate();
+	private final Coordinate offset1p0 = new Coordinate();
+	private final Coordinate offset1p1 = new Coordinate();
+
+	private double[] outputBuffer = new double[64];
+	private int outputLength = 0;
+	private double minVertexDistance = 0.0;
+
+	/**
+	 *
+	 * @param coordinates the line as returned by simplify
+	 * @param quadrantSegments the number of segments used to approximate a quarter circle
+	 */
+	public OffsetSkeleton(final Coordinate[] coordinates, final int quadrantSegments) {
+		this.coordinates = coordinates;
+		this.numPoints = coordinates.length;
+		this.quadrantSegments = quadrantSegments;
+		this.filletAngleQuantum = Math.PI / 2.0 / quadrantSegments;
+		this.closingSegLengthFactor = quadrantSegments >= 8 ? MAX_CLOSING_SEG_LENGTH_FACTOR : 1.0;
+
+		final int numSegments = Math.max(this.numPoints - 1, 0);
+		this.segmentUx = new double[numSegments];
+		this.segmentUy = new double[numSegments];
+		this.segmentCollapsed = new boolean[numSegments];
+		for (int i=0; i<numSegments; i++) {
+			final double dx = coordinates[i+1].x - coordinates[i].x;
+			final double dy = coordinates[i+1].y - coordinates[i].y;
+			final double length = Math.sqrt(dx * dx + dy * dy);
+			this.segmentUx[i] = dx / length;
+			this.segmentUy[i] = dy / length;
+			this.segmentCollapsed[i] = coordinates[i].equals2D(coordinates[i+1]);
+		}
+
+		this.joinOrientation = new int[2][this.numPoints];
+		this.joinReversing = new boolean[2][this.numPoints];
+		this.joinNormalSeparation = new double[this.numPoints];
+		this.filletUnitVectors = new double[2][this.numPoints][];
+		for (int i=1; i<this.numPoints-1; i++) {
+			final Coordinate p0 = coordinates[i-1];
+			final Coordinate p1 = coordinates[i];
+			final Coordinate p2 = coordinates[i+1];
+
+			this.joinOrientation[FORWARD][i] = CGAlgorithms.computeOrientation(p0, p1, p2);
+			this.joinOrientation[REVERSE][i] = CGAlgorithms.computeOrientation(p2, p1, p0);
+			if (this.joinOrientation[FORWARD][i] == CGAlgorithms.COLLINEAR) {
+				this.lineIntersector.computeIntersection(p0, p1, p1, p2);
+				this.joinReversing[FORWARD][i] = this.lineIntersector.getIntersectionNum() >= 2;
+			}
+			if (this.joinOrientation[REVERSE][i] == CGAlgorithms.COLLINEAR) {
+				this.lineIntersector.computeIntersection(p2, p1, p1, p0);
+				this.joinReversing[REVERSE][i] = this.lineIntersector.getIntersectionNum() >= 2;
+			}
+
+			final double sx = this.segmentUy[i] - this.segmentUy[i-1];
+			final double sy = this.segmentUx[i-1] - this.segmentUx[i];
+			this.joinNormalSeparation[i] = Math.sqrt(sx * sx + sy * sy);
+		}
+	}
+
+	/**
+	 * simplify the line the way the JTS OffsetCurveBuilder does before building the
+	 * curve for the offset. Vertices forming shallow concavities are removed with a
+	 * tolerance of 1/100 of the offset.
+	 *
+	 * @param coordinates the line without repeated points
+	 * @param lineOffset
+	 * @return
+	 */
+	public static Coordinate[] simplify(final Coordinate[] coordinates, final double lineOffset) {
+		// JTS 1.13 negates the already negative tolerance of right side offsets, so
+		// both sides use the positive tolerance
+		return BufferInputLineSimplifier.simplify(coordinates, Math.abs(lineOffset) / SIMPLIFY_TOLERANCE_DIVISOR);
+	}
+
+	/**
+	 * build the offset curves for a list of offsets all leading to the line of
+	 * the skeleton when simplified.
+	 *
+	 * @param lineOffsets
+	 * @return the curves in the order of the offsets
+	 */
+	public Coordinate[][] buildOffsettedCoordinates(final double[] lineOffsets) {
+		final Coordinate[][] results = new Coordinate[lineOffsets.length][];
+		for (int i=0; i<lineOffsets.length; i++) {
+			results[i] = this.buildOffsettedCoordinates(lineOffsets[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * build the offset curve. Positive offsets are on the left side of the line,
+	 * negative offsets on the right side.
+	 *
+	 * The line has to have at least two points and simplify has to return the line
+	 * of the skeleton for the offset.
+	 *
+	 * @param lineOffset
+	 * @return the coordinates
+	 */
+	public Coordinate[] buildOffsettedCoordinates(final double lineOffset) {
+		if (lineOffset == 0.0) {
+			return this.coordinates;
+		}
+
+		// JTS builds the right side by walking the line reversed on the left side
+		// and reversing the result
+		final int direction = lineOffset < 0.0 ? REVERSE : FORWARD;
+		final double distance = Math.abs(lineOffset);
+		this.outputLength = 0;
+		this.minVertexDistance = distance * CURVE_VERTEX_SNAP_DISTANCE_FACTOR;
+
+		final int lastPoint = this.numPoints - 1;
+		this.setOffsetSegment(direction, 0, distance, this.offset1p0, this.offset1p1);
+		this.addPoint(this.offset1p0.x, this.offset1p0.y);
+		for (int k=1; k<lastPoint; k++) {
+			this.offset0p0.setCoordinate(this.offset1p0);
+			this.offset0p1.setCoordinate(this.offset1p1);
+			this.setOffsetSegment(direction, k, distance, this.offset1p0, this.offset1p1);
+			if (this.segmentCollapsed[this.segmentIndex(direction, k)]) {
+				continue;
+			}
+
+			final int vertex = this.pointIndex(direction, k);
+			final int orientation = this.joinOrientation[direction][vertex];
+			if (orientation == CGAlgorithms.COLLINEAR) {
+				if (this.joinReversing[direction][vertex]) {
+					this.addFillet(direction, vertex, distance, CGAlgorithms.CLOCKWISE);
+				}
+			} else if (orientation == CGAlgorithms.CLOCKWISE) {
+				// outside turn
+				if (this.joinNormalSeparation[vertex] * distance < distance * OFFSET_SEGMENT_SEPARATION_FACTOR) {
+					this.addPoint(this.offset0p1.x, this.offset0p1.y);
+				} else {
+					this.addPoint(this.offset0p1.x, this.offset0p1.y);
+					this.addFillet(direction, vertex, distance, orientation);
+					this.addPoint(this.offset1p0.x, this.offset1p0.y);
+				}
+			} else {
+				this.addInsideTurn(vertex, distance);
+			}
+		}
+		this.addPoint(this.offset1p1.x, this.offset1p1.y);
+
+		return this.toCoordinates(direction == REVERSE);
+	}
+
+	private int pointIndex(final int direction, final int k) {
+		return direction == FORWARD ? k : this.numPoints - 1 - k;
+	}
+
+	private int segmentIndex(final int direction, final int k) {
+		return direction == FORWARD ? k : this.numPoints - 2 - k;
+	}
+
+	/**
+	 * the k-th segment in walking direction moved to the left by distance
+	 */
+	private void setOffsetSegment(final int direction, final int k, final double distance, final Coordinate p0, final Coordinate p1) {
+		final int segment = this.segmentIndex(direction, k);
+		final double sign = direction == FORWARD ? 1.0 : -1.0;
+		final double nx = -sign * this.segmentUy[segment] * distance;
+		final double ny = sign * this.segmentUx[segment] * distance;
+		final Coordinate start = this.coordinates[this.pointIndex(direction, k)];
+		final Coordinate end = this.coordinates[this.pointIndex(direction, k + 1)];
+		p0.x = start.x + nx;
+		p0.y = start.y + ny;
+		p1.x = end.x + nx;
+		p1.y = end.y + ny;
+	}
+
+	private void addInsideTurn(final int vertex, final double distance) {
+		this.lineIntersector.computeIntersection(this.offset0p0, this.offset0p1, this.offset1p0, this.offset1p1);
+		if (this.lineIntersector.hasIntersection()) {
+			final Coordinate intersection = this.lineIntersector.getIntersection(0);
+			this.addPoint(intersection.x, intersection.y);
+		} else if (this.joinNormalSeparation[vertex] * distance < distance * INSIDE_TURN_VERTEX_SNAP_DISTANCE_FACTOR) {
+			this.addPoint(this.offset0p1.x, this.offset0p1.y);
+		} else {
+			// close the gap with short segments towards the vertex, as JTS does
+			final Coordinate s1 = this.coordinates[vertex];
+			this.addPoint(this.offset0p1.x, this.offset0p1.y);
+			this.addPoint((this.closingSegLengthFactor * this.offset0p1.x + s1.x) / (this.closingSegLengthFactor + 1),
+					(this.closingSegLengthFactor * this.offset0p1.y + s1.y) / (this.closingSegLengthFactor + 1));
+			this.addPoint((this.closingSegLengthFactor * this.offset1p0.x + s1.x) / (this.closingSegLengthFactor + 1),
+					(this.closingSegLengthFactor * this.offset1p0.y + s1.y) / (this.closingSegLengthFactor + 1));
+			this.addPoint(this.offset1p0.x, this.offset1p0.y);
+		}
+	}
+
+	/**
+	 * round join from the end of the previous offset segment to the start of the next one
+	 */
+	private void addFillet(final int direction, final int vertex, final double distance, final int orientation) {
+		double[] unitVectors = this.filletUnitVectors[direction][vertex];
+		if (unitVectors == null) {
+			unitVectors = this.buildFilletUnitVectors(direction, vertex, orientation);
+			this.filletUnitVectors[direction][vertex] = unitVectors;
+		}
+
+		final Coordinate center = this.coordinates[vertex];
+		this.addPoint(this.offset0p1.x, this.offset0p1.y);
+		for (int i=0; i<unitVectors.length; i+=2) {
+			this.addPoint(center.x + distance * unitVectors[i], center.y + distance * unitVectors[i+1]);
+		}
+		this.addPoint(this.offset1p0.x, this.offset1p0.y);
+	}
+
+	private double[] buildFilletUnitVectors(final int direction, final int vertex, final int orientation) {
+		final double sign = direction == FORWARD ? 1.0 : -1.0;
+		final int segment0 = direction == FORWARD ? vertex - 1 : vertex;
+		final int segment1 = direction == FORWARD ? vertex : vertex - 1;
+
+		// angles of the left normals of the two segments
+		double startAngle = Math.atan2(sign * this.segmentUx[segment0], -sign * this.segmentUy[segment0]);
+		final double endAngle = Math.atan2(sign * this.segmentUx[segment1], -sign * this.segmentUy[segment1]);
+		if (orientation == CGAlgorithms.CLOCKWISE) {
+			if (startAngle <= endAngle) {
+				startAngle += 2.0 * Math.PI;
+			}
+		} else {
+			if (startAngle >= endAngle) {
+				startAngle -= 2.0 * Math.PI;
+			}
+		}
+
+		final double directionFactor = orientation == CGAlgorithms.CLOCKWISE ? -1.0 : 1.0;
+		final double totalAngle = Math.abs(startAngle - endAngle);
+		final int numSegments = (int) (totalAngle / this.filletAngleQuantum + 0.5);
+		if (numSegments < 1) {
+			return new double[0];
+		}
+		final double angleIncrement = totalAngle / numSegments;
+
+		double[] unitVectors = new double[(numSegments + 1) * 2];
+		int length = 0;
+		double currentAngle = 0.0;
+		while (currentAngle < totalAngle) {
+			if (length == unitVectors.length) {
+				unitVectors = Arrays.copyOf(unitVectors, length * 2);
+			}
+			final double angle = startAngle + directionFactor * currentAngle;
+			unitVectors[length++] = Math.cos(angle);
+			unitVectors[length++] = Math.sin(angle);
+			currentAngle += angleIncrement;
+		}
+		return Arrays.copyOf(unitVectors, length);
+	}
+
+	/**
+	 * add a point to the curve unless it is too close to the previous point
+	 */
+	private void addPoint(final double x, final double y) {
+		if (this.outputLength > 0) {
+			final double dx = x - this.outputBuffer[this.outputLength - 2];
+			final double dy = y - this.outputBuffer[this.outputLength - 1];
+			if (Math.sqrt(dx * dx + dy * dy) < this.minVertexDistance) {
+				return;
+			}
+		}
+		if (this.outputLength == this.outputBuffer.length) {
+			this.outputBuffer = Arrays.copyOf(this.outputBuffer, this.outputLength * 2);
+		}
+		this.outputBuffer[this.outputLength++] = x;
+		this.outputBuffer[this.outputLength++] = y;
+	}
+
+	private Coordinate[] toCoordinates(final boolean reverse) {
+		final int size = this.outputLength / 2;
+		final Coordinate[] result = new Coordinate[size];
+		for (int i=0; i<size; i++) {
+			final int target = reverse ? size - 1 - i : i;
+			result[target] = new Coordinate(this.outputBuffer[i * 2], this.outputBuffer[i * 2 + 1]);
+		}
+		return result;
+	}
+
+	/**
+	 * the line the skeleton has been built from
+	 *
+	 * @return
+	 */
+	public Coordinate[] getCoordinates() {
+		return this.coordinates;
+	}
+
+	public int getQuadrantSegments() {
+		return this.quadrantSegments;
+	}
+}
@@ -0,0 +1,297 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequence;
+import com.vividsolutions.jts.geom.impl.PackedCoordinateSequenceFactory;
+
+/**
+ * Builds parallel lines of open polylines without going through the JTS
+ * buffer machinery.
+ *
+ * The line is read into primitive arrays once per call and all offsets are built
+ * from the same segment normals into a reused buffer. The resulting lines
+ * use packed coordinate sequences, so no Coordinate objects get created.
+ *
+ * Outside turns are joined either round or mitred. The number of points of a round join
+ * depends on the allowed error of the arc, which should be a fraction of a pixel.
+ * Mitres longer than mitreLimit times the offset are bevelled. On the inside of turns
+ * the offsetted segments are cut at their intersection. When they do not intersect, their
+ * ends are connected through points towards the vertex of the line like JTS does: halfway
+ * for mitred joins and for round joins with less than 8 segments per quarter circle,
+ * 1/81 of the offset from the ends otherwise.
+ *
+ * Curves stay within maxArcError plus 1/40 of the offset of the curves of the JTS
+ * OffsetCurveBuilder using the same number of segments per quarter circle, as long as JTS
+ * does not simplify the line. JTS removes vertices closer than 1/100 of the offset to
+ * the previous vertex first, which is not done here. Mitres exceeding the limit are
+ * bevelled where JTS squares them off at the limit.
+ *
+ * Instances are not thread safe.
+ *
+ * @author nico
+ *
+ */
+public class PolylineOffsetEngine implements OffsetCurveEngine {
+
+	public enum JoinStyle {
+		ROUND,
+		MITRE
+	}
+
+	private static final double DEFAULT_MITRE_LIMIT = 4.0;
+
+	/**
+	 * points closer than this fraction of the offset to the previous point are dropped
+	 */
+	private static final double VERTEX_SNAP_DISTANCE_FACTOR = 1.0E-9;
+
+	// the constants used by the JTS OffsetSegmentGenerator for inside turns
+	private static final double INSIDE_TURN_VERTEX_SNAP_DISTANCE_FACTOR = 1.0E-3;
+	private static final double MAX_CLOSING_SEG_LENGTH_FACTOR = 80;
+
+	private final JoinStyle joinStyle;
+	private final double maxArcError;
+	private double mitreLimit = DEFAULT_MITRE_LIMIT;
+	private final GeometryFactory geomFactory = new GeometryFactory(new PrecisionModel(), 0,
+			PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+	// the distinct points of the line and the left unit normals and lengths of its segments
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private double[] normalXs = new double[64];
+	private double[] normalYs = new double[64];
+	private double[] segmentLengths = new double[64];
+	private int numPoints = 0;
+
+	private double[] outputBuffer = new double[256];
+	private int outputLength = 0;
+	private double minVertexDistance = 0.0;
+	private double closingSegLengthFactor = 1.0;
+	private long numOutputCoordinates = 0;
+
+	/**
+	 *
+	 * @param joinStyle
+	 * @param maxArcError the maximum distance between the arc of a round join and its approximation in map units
+	 */
+	public PolylineOffsetEngine(final JoinStyle joinStyle, final double maxArcError) {
+		this.joinStyle = joinStyle;
+		this.maxArcError = maxArcError;
+	}
+
+	/**
+	 * mitres longer than mitreLimit times the offset will be bevelled. Default: 4
+	 *
+	 * @param mitreLimit
+	 */
+	public void setMitreLimit(final double mitreLimit) {
+		this.mitreLimit = mitreLimit;
+	}
+
+	public long getNumOutputCoordinates() {
+		return this.numOutputCoordinates;
+	}
+
+	public LineString buildOffsettedLineString(final LineString linestring, final double lineOffset) {
+		return this.buildOffsettedLineStrings(linestring, new double[] {lineOffset})[0];
+	}
+
+	public LineString[] buildOffsettedLineStrings(final LineString linestring, final double[] lineOffsets) {
+		this.loadLine(linestring.getCoordinateSequence());
+
+		final LineString[] outLineGeoms = new LineString[lineOffsets.length];
+		for (int i=0; i<lineOffsets.length; i++) {
+			if (lineOffsets[i] == 0.0) {
+				outLineGeoms[i] = linestring;
+			} else {
+				this.buildCurve(lineOffsets[i]);
+				this.numOutputCoordinates += this.outputLength / 2;
+				final double[] packed = Arrays.copyOf(this.outputBuffer, this.outputLength);
+				outLineGeoms[i] = this.geomFactory.createLineString(new PackedCoordinateSequence.Double(packed, 2));
+			}
+		}
+		return outLineGeoms;
+	}
+
+	/**
+	 * read the distinct points of the line and compute the normals of the segments
+	 *
+	 * @param coordinates
+	 */
+	private void loadLine(final CoordinateSequence coordinates) {
+		final int size = coordinates.size();
+		if (this.xs.length < size) {
+			this.xs = new double[size];
+			this.ys = new double[size];
+			this.normalXs = new double[size];
+			this.normalYs = new double[size];
+			this.segmentLengths = new double[size];
+		}
+
+		this.numPoints = 0;
+		for (int i=0; i<size; i++) {
+			final double x = coordinates.getX(i);
+			final double y = coordinates.getY(i);
+			if (this.numPoints > 0 && x == this.xs[this.numPoints-1] && y == this.ys[this.numPoints-1]) {
+				continue;
+			}
+			this.xs[this.numPoints] = x;
+			this.ys[this.numPoints] = y;
+			this.numPoints++;
+		}
+		if (this.numPoints < 2) {
+			throw new IllegalArgumentException("Can not offset a line with less than two distinct points");
+		}
+
+		for (int i=0; i<this.numPoints-1; i++) {
+			final double dx = this.xs[i+1] - this.xs[i];
+			final double dy = this.ys[i+1] - this.ys[i];
+			final double length = Math.sqrt(dx * dx + dy * dy);
+			this.segmentLengths[i] = length;
+			this.normalXs[i] = -dy / length;
+			this.normalYs[i] = dx / length;
+		}
+	}
+
+	/**
+	 * the largest angle of an arc segment keeping the error of the arc below maxArcError
+	 */
+	private double getMaxArcStep(final double radius) {
+		return (this.maxArcError < radius) ? 2.0 * Math.acos(1.0 - this.maxArcError / radius) : Math.PI;
+	}
+
+	private void buildCurve(final double offset) {
+		this.outputLength = 0;
+		this.minVertexDistance = Math.abs(offset) * VERTEX_SNAP_DISTANCE_FACTOR;
+		this.closingSegLengthFactor = 1.0;
+		if (this.joinStyle == JoinStyle.ROUND) {
+			final int quadrantSegments = (int) Math.ceil((Math.PI / 2.0) / this.getMaxArcStep(Math.abs(offset)));
+			if (quadrantSegments >= 8) {
+				this.closingSegLengthFactor = MAX_CLOSING_SEG_LENGTH_FACTOR;
+			}
+		}
+
+		this.addPoint(this.xs[0] + offset * this.normalXs[0], this.ys[0] + offset * this.normalYs[0]);
+		for (int i=1; i<this.numPoints-1; i++) {
+			final double n0x = this.normalXs[i-1];
+			final double n0y = this.normalYs[i-1];
+			final double n1x = this.normalXs[i];
+			final double n1y = this.normalYs[i];
+			final double cross = n0x * n1y - n0y * n1x;
+			final double dot = n0x * n1x + n0y * n1y;
+
+			// the line turns right when cross is negative, which is the outside for positive offsets
+			if (cross * offset < 0.0 || (cross == 0.0 && dot < 0.0)) {
+				this.addOutsideJoin(i, offset, cross, dot);
+			} else {
+				this.addInsideJoin(i, offset, dot);
+			}
+		}
+		final int last = this.numPoints - 1;
+		this.addPoint(this.xs[last] + offset * this.normalXs[last-1], this.ys[last] + offset * this.normalYs[last-1]);
+	}
+
+	private void addOutsideJoin(final int vertex, final double offset, final double cross, final double dot) {
+		final double x = this.xs[vertex];
+		final double y = this.ys[vertex];
+		final double n0x = this.normalXs[vertex-1];
+		final double n0y = this.normalYs[vertex-1];
+		final double n1x = this.normalXs[vertex];
+		final double n1y = this.normalYs[vertex];
+
+		if (this.joinStyle == JoinStyle.MITRE) {
+			// ratio of the length of the mitre to the offset: 1/cos(angle/2)
+			if (dot > -1.0 && Math.sqrt(2.0 / (1.0 + dot)) <= this.mitreLimit) {
+				final double factor = offset / (1.0 + dot);
+				this.addPoint(x + factor * (n0x + n1x), y + factor * (n0y + n1y));
+			} else {
+				this.addPoint(x + offset * n0x, y + offset * n0y);
+				this.addPoint(x + offset * n1x, y + offset * n1y);
+			}
+			return;
+		}
+
+		// round join. the sweep is clockwise on the left side and counter-clockwise
+		// on the right side. a line turning back onto itself gets a half circle.
+		double sweep = Math.atan2(cross, dot);
+		if (cross == 0.0) {
+			sweep = offset > 0.0 ? -Math.PI : Math.PI;
+		}
+		final double radius = Math.abs(offset);
+		final double maxStep = this.getMaxArcStep(radius);
+		final int numSteps = (int) Math.ceil(Math.abs(sweep) / maxStep);
+
+		double vx = offset * n0x;
+		double vy = offset * n0y;
+		this.addPoint(x + vx, y + vy);
+		if (numSteps > 1) {
+			// rotate the radius vector instead of evaluating sin and cos for every point
+			final double step = sweep / numSteps;
+			final double cosStep = Math.cos(step);
+			final double sinStep = Math.sin(step);
+			for (int i=1; i<numSteps; i++) {
+				final double rx = vx * cosStep - vy * sinStep;
+				vy = vx * sinStep + vy * cosStep;
+				vx = rx;
+				this.addPoint(x + vx, y + vy);
+			}
+		}
+		this.addPoint(x + offset * n1x, y + offset * n1y);
+	}
+
+	private void addInsideJoin(final int vertex, final double offset, final double dot) {
+		final double x = this.xs[vertex];
+		final double y = this.ys[vertex];
+		final double n0x = this.normalXs[vertex-1];
+		final double n0y = this.normalYs[vertex-1];
+		final double n1x = this.normalXs[vertex];
+		final double n1y = this.normalYs[vertex];
+
+		// the offsetted segments intersect at the mitre point. it is only used when it is
+		// on both of the segments.
+		final double distanceAlongSegments = Math.abs(offset) * Math.sqrt((1.0 - dot) / (1.0 + dot));
+		if (distanceAlongSegments <= Math.min(this.segmentLengths[vertex-1], this.segmentLengths[vertex])) {
+			final double factor = offset / (1.0 + dot);
+			this.addPoint(x + factor * (n0x + n1x), y + factor * (n0y + n1y));
+			return;
+		}
+		
+		// distance between the ends of the offsetted segments for offset 1
+		final double gap = Math.sqrt((n0x - n1x) * (n0x - n1x) + (n0y - n1y) * (n0y - n1y));
+		if (gap < INSIDE_TURN_VERTEX_SNAP_DISTANCE_FACTOR) {
+			this.addPoint(x + offset * n0x, y + offset * n0y);
+		} else {
+			// close the gap with two short segments towards the vertex
+			final double closingOffset = offset * this.closingSegLengthFactor / (this.closingSegLengthFactor + 1.0);
+			this.addPoint(x + offset * n0x, y + offset * n0y);
+			this.addPoint(x + closingOffset * n0x, y + closingOffset * n0y);
+			this.addPoint(x + closingOffset * n1x, y + closingOffset * n1y);
+			this.addPoint(x + offset * n1x, y + offset * n1y);
+		}
+	}
+
+	private void addPoint(final double x, final double y) {
+		if (this.outputLength > 0) {
+			final double dx = x - this.outputBuffer[this.outputLength - 2];
+			final double dy = y - this.outputBuffer[this.outputLength - 1];
+			if (Math.sqrt(dx * dx + dy * dy) < this.minVertexDistance) {
+				return;
+			}
+		}
+		if (this.outputLength == this.outputBuffer.length) {
+			this.outputBuffer = Arrays.copyOf(this.outputBuffer, this.outputLength * 2);
+		}
+		this.outputBuffer[this.outputLength++] = x;
+		this.outputBuffer[this.outputLength++] = y;
+	}
+}
@@ -0,0 +1,199 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Reduces lines to the detail visible in the output image.
+ *
+ * The coordinates get snapped to a grid aligned to the origin of the output image
+ * and the snapped line is simplified using the Douglas-Peucker algorithm. The
+ * result only depends on the coordinates of the line, so identical lines stay
+ * identical and lines sharing an endpoint still share it after the generalization.
+ *
+ * Lines collapsing to a single grid point are returned unchanged.
+ *
+ * Instances are not thread safe.
+ *
+ * @author nico
+ *
+ */
+public class ScreenGeneralizer {
+
+	private final double originX;
+	private final double originY;
+	private final double gridSize;
+	private final double tolerance;
+
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private boolean[] keep = new boolean[64];
+	private int[] rangeStack = new int[128];
+
+	private long numInputCoordinates = 0;
+	private long numOutputCoordinates = 0;
+
+	/**
+	 *
+	 * @param originX x of the origin of the grid. Usually the minimum x of the output image
+	 * @param originY y of the origin of the grid. Usually the minimum y of the output image
+	 * @param gridSize the size of the cells of the grid in map units
+	 * @param tolerance the maximum distance of removed vertices from the simplified line in map units
+	 */
+	public ScreenGeneralizer(final double originX, final double originY, final double gridSize, final double tolerance) {
+		if (gridSize <= 0.0) {
+			throw new IllegalArgumentException("gridSize must be > 0");
+		}
+		this.originX = originX;
+		this.originY = originY;
+		this.gridSize = gridSize;
+		this.tolerance = tolerance;
+	}
+
+	public long getNumInputCoordinates() {
+		return this.numInputCoordinates;
+	}
+
+	public long getNumOutputCoordinates() {
+		return this.numOutputCoordinates;
+	}
+
+	/**
+	 *
+	 * @param line
+	 * @return
+	 */
+	public LineString generalize(final LineString line) {
+		final CoordinateSequence coordinates = line.getCoordinateSequence();
+		final int size = coordinates.size();
+		this.numInputCoordinates += size;
+
+		final int numPoints = this.loadSnapped(coordinates);
+		if (numPoints < 2) {
+			this.numOutputCoordinates += size;
+			return line;
+		}
+
+		final int numKept = this.simplify(numPoints);
+		final Coordinate[] generalized = new Coordinate[numKept];
+		int j = 0;
+		for (int i=0; i<numPoints; i++) {
+			if (this.keep[i]) {
+				generalized[j++] = new Coordinate(this.xs[i], this.ys[i]);
+			}
+		}
+		this.numOutputCoordinates += numKept;
+		return line.getFactory().createLineString(generalized);
+	}
+
+	/**
+	 * snap the coordinates to the grid and drop consecutive points falling into the
+	 * same grid point
+	 *
+	 * @param coordinates
+	 * @return the number of points
+	 */
+	private int loadSnapped(final CoordinateSequence coordinates) {
+		final int size = coordinates.size();
+		if (this.xs.length < size) {
+			this.xs = new double[size];
+			this.ys = new double[size];
+			this.keep = new boolean[size];
+		}
+
+		int numPoints = 0;
+		for (int i=0; i<size; i++) {
+			final double x = this.originX + Math.rint((coordinates.getX(i) - this.originX) / this.gridSize) * this.gridSize;
+			final double y = this.originY + Math.rint((coordinates.getY(i) - this.originY) / this.gridSize) * this.gridSize;
+			if (numPoints > 0 && x == this.xs[numPoints-1] && y == this.ys[numPoints-1]) {
+				continue;
+			}
+			this.xs[numPoints] = x;
+			this.ys[numPoints] = y;
+			numPoints++;
+		}
+		return numPoints;
+	}
+
+	/**
+	 * mark the points to keep using the Douglas-Peucker algorithm
+	 *
+	 * @param numPoints
+	 * @return the number of points to keep
+	 */
+	private int simplify(final int numPoints) {
+		for (int i=0; i<numPoints; i++) {
+			this.keep[i] = false;
+		}
+		this.keep[0] = true;
+		this.keep[numPoints-1] = true;
+		int numKept = 2;
+
+		final double toleranceSq = this.tolerance * this.tolerance;
+		int stackSize = 0;
+		stackSize = this.pushRange(stackSize, 0, numPoints-1);
+		while (stackSize > 0) {
+			final int end = this.rangeStack[--stackSize];
+			final int start = this.rangeStack[--stackSize];
+
+			int maxIndex = -1;
+			double maxDistanceSq = toleranceSq;
+			for (int i=start+1; i<end; i++) {
+				final double distanceSq = this.segmentDistanceSq(i, start, end);
+				if (distanceSq > maxDistanceSq) {
+					maxDistanceSq = distanceSq;
+					maxIndex = i;
+				}
+			}
+			if (maxIndex != -1) {
+				this.keep[maxIndex] = true;
+				numKept++;
+				stackSize = this.pushRange(stackSize, start, maxIndex);
+				stackSize = this.pushRange(stackSize, maxIndex, end);
+			}
+		}
+		return numKept;
+	}
+
+	private int pushRange(int stackSize, final int start, final int end) {
+		if (end - start < 2) {
+			return stackSize;
+		}
+		if (stackSize + 2 > this.rangeStack.length) {
+			final int[] grown = new int[this.rangeStack.length * 2];
+			System.arraycopy(this.rangeStack, 0, grown, 0, stackSize);
+			this.rangeStack = grown;
+		}
+		this.rangeStack[stackSize++] = start;
+		this.rangeStack[stackSize++] = end;
+		return stackSize;
+	}
+
+	/**
+	 * the squared distance of point i from the segment between start and end
+	 */
+	private double segmentDistanceSq(final int i, final int start, final int end) {
+		final double ax = this.xs[start];
+		final double ay = this.ys[start];
+		final double dx = this.xs[end] - ax;
+		final double dy = this.ys[end] - ay;
+		final double px = this.xs[i] - ax;
+		final double py = this.ys[i] - ay;
+		final double lengthSq = dx * dx + dy * dy;
+		double t = (lengthSq == 0.0) ? 0.0 : (px * dx + py * dy) / lengthSq;
+		if (t < 0.0) {
+			t = 0.0;
+		} else if (t > 1.0) {
+			t = 1.0;
+		}
+		final double ex = px - t * dx;
+		final double ey = py - t * dy;
+		return ex * ex + ey * ey;
+	}
+}
@@ -5,23 +5,38 @@
  */
 package org.geoserver.trafimage.transform;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
+import org.geoserver.trafimage.transform.util.LongKeyedTable;
 import org.geoserver.trafimage.transform.util.MeasuredSimpleFeatureIterator;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geoserver.trafimage.transform.util.RunKeyTracker;
+import org.geoserver.trafimage.transform.util.WorkerPool;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
  * 
  * @author nico
@@ -53,11 +68,264 @@ public class SimpleFeatureAggregator {
 		public int numInputFeatures = 0;
 	}
 	
+	/**
+	 * the aggregates created so far together with the number of features in each of them
+	 */
+	private class AggregateTable {
+		private final LongKeyedTable<SimpleFeature> aggregates = new LongKeyedTable<SimpleFeature>();
+		private int[] aggregateCounts = new int[64]; // indexed like the entries of the aggregates table
+		private final SimpleFeatureBuilder featureBuilder;
+		private final HashSet<String> attributesSet;
+		private final String aggregateAttributeName;
+		private final SimpleFeatureHasher hasher;
+		
+		AggregateTable(final SimpleFeatureType outputSchema, final SimpleFeatureHasher hasher, final String aggregateAttributeName) {
+			this.featureBuilder = new SimpleFeatureBuilder(outputSchema);
+			this.hasher = hasher;
+			this.attributesSet = hasher.getIncludedAttributes();
+			this.aggregateAttributeName = aggregateAttributeName;
+		}
+		
+		/**
+		 * add count features similar to the given feature
+		 * 
+		 * @param hash the hash of the feature
+		 * @param feature
+		 * @param count
+		 */
+		void add(final long hash, final SimpleFeature feature, final int count) {
+			int aggregateIndex = this.aggregates.indexOf(hash, feature, this.hasher);
+			if (aggregateIndex < 0) {
+				// idx =0 is always the geometry. same order as during the creation of the SimpleFeatureBuilder
+				final Object geometry = feature.getDefaultGeometry();
+				this.featureBuilder.set(0, geometry);
+				
+				final Iterator<String> attributesSetIt2 = this.attributesSet.iterator();
+				while(attributesSetIt2.hasNext()) {
+					final String attributeName =  attributesSetIt2.next();
+					final Object attributeValue = feature.getAttribute(attributeName);
+					this.featureBuilder.set(attributeName, attributeValue);
+				}
+				this.featureBuilder.set(this.aggregateAttributeName, 0);
+				final SimpleFeature outputFeature = this.featureBuilder.buildFeature(feature.getID());
+				aggregateIndex = this.aggregates.add(hash, outputFeature);
+				if (aggregateIndex >= this.aggregateCounts.length) {
+					this.aggregateCounts = Arrays.copyOf(this.aggregateCounts, this.aggregateCounts.length * 2);
+				}
+			}
+			this.aggregateCounts[aggregateIndex] += count;
+		}
+		
+		/**
+		 * write the counts to the features and return them in the order of their
+		 * first occurrence
+		 * 
+		 * @param statistics
+		 * @return
+		 */
+		List<SimpleFeature> finish(final AggregationStatistics statistics) {
+			for (int i=0; i<this.aggregates.size(); i++) {
+				final int counter = this.aggregateCounts[i];
+				this.aggregates.get(i).setAttribute(this.aggregateAttributeName, counter);
+				if (counter > statistics.numMaxEntriesInAggregate) {
+					statistics.numMaxEntriesInAggregate = counter;
+				}
+			}
+			return this.aggregates.values();
+		}
+	}
+	
+	/**
+	 * aggregates grouped by their geometry
+	 * 
+	 * @author nico
+	 *
+	 */
+	public static class AggregateStacks {
+		private final SimpleFeatureType schema;
+		private final List<List<SimpleFeature>> stacks;
+		
+		AggregateStacks(final SimpleFeatureType schema, final List<List<SimpleFeature>> stacks) {
+			this.schema = schema;
+			this.stacks = stacks;
+		}
+		
+		/**
+		 * the featuretype of the aggregates
+		 * 
+		 * @return
+		 */
+		public SimpleFeatureType getSchema() {
+			return this.schema;
+		}
+		
+		/**
+		 * the aggregates sharing a geometry. All aggregates of a stack reference the same
+		 * geometry object. Stacks and aggregates are in the order of their first occurrence.
+		 * 
+		 * @return
+		 */
+		public List<List<SimpleFeature>> getStacks() {
+			return this.stacks;
+		}
+	}
+	
+	/**
+	 * an aggregate inside a stack
+	 */
+	private static class StackedAggregate {
+		final SimpleFeature feature;
+		final int stackIndex;
+		int count = 0;
+		
+		StackedAggregate(final SimpleFeature feature, final int stackIndex) {
+			this.feature = feature;
+			this.stackIndex = stackIndex;
+		}
+	}
+	
+	/**
+	 * groups the features by their geometry into stacks and by their attributes into 
+	 * aggregates inside the stacks in a single pass. The geometry and the attributes of
+	 * each feature are hashed once.
+	 */
+	private class StackTable {
+		private final LongKeyedTable<Geometry> stackGeometries = new LongKeyedTable<Geometry>();
+		private final ArrayList<List<StackedAggregate>> stacks = new ArrayList<List<StackedAggregate>>();
+		private final LongKeyedTable<StackedAggregate> aggregates = new LongKeyedTable<StackedAggregate>();
+		private final SimpleFeatureBuilder featureBuilder;
+		private final HashSet<String> attributesSet;
+		private final String aggregateAttributeName;
+		private final SimpleFeatureHasher geometryHasher;
+		private final SimpleFeatureHasher attributeHasher;
+		
+		private int currentStackIndex = -1;
+		
+		private final LongKeyedTable.Equivalence<Geometry, Geometry> geometryEquivalence = new LongKeyedTable.Equivalence<Geometry, Geometry>() {
+			public boolean isEquivalent(final Geometry entry, final Geometry probe) {
+				if (entry == null || probe == null) {
+					return entry == probe;
+				}
+				return entry.equalsExact(probe);
+			}
+		};
+		
+		private final LongKeyedTable.Equivalence<StackedAggregate, SimpleFeature> aggregateEquivalence = new LongKeyedTable.Equivalence<StackedAggregate, SimpleFeature>() {
+			public boolean isEquivalent(final StackedAggregate entry, final SimpleFeature probe) {
+				return entry.stackIndex == currentStackIndex && attributeHasher.isEquivalent(entry.feature, probe);
+			}
+		};
+		
+		StackTable(final SimpleFeatureType outputSchema, final SimpleFeatureHasher geometryHasher, 
+				final SimpleFeatureHasher attributeHasher, final String aggregateAttributeName) {
+			this.featureBuilder = new SimpleFeatureBuilder(outputSchema);
+			this.geometryHasher = geometryHasher;
+			this.attributeHasher = attributeHasher;
+			this.attributesSet = attributeHasher.getIncludedAttributes();
+			this.aggregateAttributeName = aggregateAttributeName;
+		}
+		
+		/**
+		 * add count features similar to the given feature
+		 * 
+		 * @param feature
+		 * @param count
+		 */
+		void add(final SimpleFeature feature, final int count) {
+			final Geometry geometry = (Geometry) feature.getDefaultGeometry();
+			final long geometryHash = this.geometryHasher.getHash64(feature);
+			int stackIndex = this.stackGeometries.indexOf(geometryHash, geometry, this.geometryEquivalence);
+			if (stackIndex < 0) {
+				stackIndex = this.stackGeometries.add(geometryHash, geometry);
+				this.stacks.add(new ArrayList<StackedAggregate>(2));
+			}
+			
+			// the aggregates of all stacks share one table. the key combines both hashes.
+			final long aggregateHash = this.attributeHasher.getHash64(feature) ^ (geometryHash * 0x9e3779b97f4a7c15L);
+			this.currentStackIndex = stackIndex;
+			int aggregateIndex = this.aggregates.indexOf(aggregateHash, feature, this.aggregateEquivalence);
+			if (aggregateIndex < 0) {
+				// idx =0 is always the geometry. same order as during the creation of the SimpleFeatureBuilder
+				this.featureBuilder.set(0, this.stackGeometries.get(stackIndex));
+				
+				final Iterator<String> attributesSetIt = this.attributesSet.iterator();
+				while(attributesSetIt.hasNext()) {
+					final String attributeName =  attributesSetIt.next();
+					this.featureBuilder.set(attributeName, feature.getAttribute(attributeName));
+				}
+				this.featureBuilder.set(this.aggregateAttributeName, 0);
+				final StackedAggregate aggregate = new StackedAggregate(this.featureBuilder.buildFeature(feature.getID()), stackIndex);
+				aggregateIndex = this.aggregates.add(aggregateHash, aggregate);
+				this.stacks.get(stackIndex).add(aggregate);
+			}
+			this.aggregates.get(aggregateIndex).count += count;
+		}
+		
+		/**
+		 * write the counts to the features and return the stacks
+		 * 
+		 * @param statistics
+		 * @return
+		 */
+		List<List<SimpleFeature>> finish(final AggregationStatistics statistics) {
+			final ArrayList<List<SimpleFeature>> result = new ArrayList<List<SimpleFeature>>(this.stacks.size());
+			for (final List<StackedAggregate> stack: this.stacks) {
+				final ArrayList<SimpleFeature> stackFeatures = new ArrayList<SimpleFeature>(stack.size());
+				for (final StackedAggregate aggregate: stack) {
+					aggregate.feature.setAttribute(this.aggregateAttributeName, aggregate.count);
+					if (aggregate.count > statistics.numMaxEntriesInAggregate) {
+						statistics.numMaxEntriesInAggregate = aggregate.count;
+					}
+					stackFeatures.add(aggregate.feature);
+				}
+				result.add(stackFeatures);
+			}
+			statistics.numAggregates = this.aggregates.size();
+			return result;
+		}
+		
+		/**
+		 * drop all stacks to reuse the table for the next features
+		 */
+		void clear() {
+			this.stackGeometries.clear();
+			this.stacks.clear();
+			this.aggregates.clear();
+		}
+	}
+	
+	/**
+	 * receives the stacks of aggregateAsSortedStacks as soon as they are complete
+	 */
+	public interface StackHandler {
+		public void handleStacks(List<List<SimpleFeature>> stacks);
+	}
+	
+	/**
+	 * the result of the aggregation of a chunk of features by a worker thread. Keeps
+	 * the first feature of each aggregate.
+	 */
+	private static class PartialAggregate {
+		final LongKeyedTable<SimpleFeature> features = new LongKeyedTable<SimpleFeature>();
+		long[] hashes = new long[64];
+		int[] counts = new int[64];
+		long hashingTimeSpend = 0;
+	}
+	
+	/**
+	 * number of features read from the datasource before handing them to a worker thread
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 2048;
+	
 	private ArrayList<String> aggregationColumns;
 	
 	private static final Logger LOGGER = Logging.getLogger(SimpleFeatureAggregator.class);
 	private AggregationStatistics lastStatistics = null;
 	private boolean measuringEnabled = false;
+	private int parallelism = 1;
+	private boolean databaseAggregationEnabled = false;
+	private RequestDeadline deadline = RequestDeadline.NONE;
+	private RequestMetrics requestMetrics = RequestMetrics.NONE;
 	
 	
 	public SimpleFeatureAggregator(final ArrayList<String> aggregationColumns) {
@@ -74,68 +342,111 @@ public class SimpleFeatureAggregator {
 	}
 	
 	/**
+	 * set the number of threads to use for creating the hashes and pre-aggregating the
+	 * features. The features are always read by the calling thread. The value will
+	 * be limited by WorkerPool.getMaxParallelism.
 	 * 
-	 * @param collection
-	 * @param aggregateAttributeName
-	 * @return
+	 * The result does not depend on the parallelism.
+	 * 
+	 * @param parallelism 1 to do everything in the calling thread
 	 */
-	public SimpleFeatureCollection aggregate(final SimpleFeatureCollection collection, final String aggregateAttributeName) {
-		final SimpleFeatureType inputSchema = collection.getSchema();
+	public void setParallelism(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * let the database aggregate the features when the collection has been read from
+	 * a JDBCDataStore. Collections from other sources are always aggregated in memory.
+	 * 
+	 * The aggregates are the same, but their order and feature ids differ from
+	 * the ones of the in-memory aggregation.
+	 * 
+	 * @param enabled
+	 */
+	public void setDatabaseAggregationEnabled(final boolean enabled) {
+		this.databaseAggregationEnabled = enabled;
+	}
+	
+	/**
+	 * abort the aggregation with a ProcessException when the deadline expires
+	 * 
+	 * @param deadline
+	 */
+	public void setDeadline(final RequestDeadline deadline) {
+		this.deadline = (deadline == null) ? RequestDeadline.NONE : deadline;
+	}
+	
+	/**
+	 * add the input features and the durations of reading, hashing and aggregating 
+	 * to the metrics of the request
+	 * 
+	 * @param requestMetrics
+	 */
+	public void setRequestMetrics(final RequestMetrics requestMetrics) {
+		this.requestMetrics = (requestMetrics == null) ? RequestMetrics.NONE : requestMetrics;
+	}
+	
+	private SimpleFeatureHasher createHasher(final SimpleFeatureType inputSchema) {
 		final SimpleFeatureHasher hasher = new SimpleFeatureHasher();
 		hasher.setMeasuringEnabled(this.measuringEnabled);
 		hasher.setIncludeGeometry(true);
 		
-		this.lastStatistics = new AggregationStatistics();
-		this.lastStatistics.numInputFeatures = collection.size();
-		
 		// process the attributes string into a set to eliminate duplicates
 		for (final String attributeName: this.aggregationColumns) {
 			if (inputSchema.getDescriptor(attributeName) != null) {
 				hasher.addIncludedAttribute(attributeName);
 			}
 		}
+		return hasher;
+	}
+	
+	/**
+	 * 
+	 * @param collection
+	 * @param aggregateAttributeName
+	 * @return
+	 */
+	public SimpleFeatureCollection aggregate(final SimpleFeatureCollection collection, final String aggregateAttributeName) {
+		final long aggregateStart = this.requestMetrics.startStage();
+		final SimpleFeatureType inputSchema = collection.getSchema();
+		final SimpleFeatureHasher hasher = this.createHasher(inputSchema);
+		
+		this.lastStatistics = new AggregationStatistics();
 
 		// build the new featuretype for the output geometries
 		final HashSet<String> attributesSet = hasher.getIncludedAttributes();
 		final SimpleFeatureType outputSchema = this.buildOutputFeatureType(inputSchema, attributesSet, aggregateAttributeName);
 		
+		if (this.databaseAggregationEnabled) {
+			final SimpleFeatureCollection result = this.aggregateInDatabase(collection, outputSchema, attributesSet, aggregateAttributeName);
+			if (result != null) {
+				this.reportMetrics(aggregateStart, null, 0);
+				return result;
+			}
+		}
+		
 		// aggregate the features
+		this.lastStatistics.numInputFeatures = collection.size();
 		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
 		featureIt.setMeasuringEnabled(this.measuringEnabled);
-		final HashMap<Integer, SimpleFeature> featureMap = new HashMap<Integer,SimpleFeature>();
-		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputSchema);
+		final AggregateTable aggregateTable = new AggregateTable(outputSchema, hasher, aggregateAttributeName);
+		final int usedParallelism = WorkerPool.getParallelism(this.parallelism);
+		long hashingTimeSpend = 0;
 		try {
-			while (featureIt.hasNext()) {
-				final SimpleFeature feature = featureIt.next();
-				final int hash = hasher.getHash(feature);
-				
-				if (!featureMap.containsKey(hash)) {
-					// idx =0 is always the geometry. same order as during the creation of the SimpleFeatureBuilder
-					final Object geometry = feature.getDefaultGeometry();
-					featureBuilder.set(0, geometry);
-					
-					final Iterator<String> attributesSetIt2 = attributesSet.iterator();
-					while(attributesSetIt2.hasNext()) {
-						final String attributeName =  attributesSetIt2.next();
-						final Object attributeValue = feature.getAttribute(attributeName);
-						featureBuilder.set(attributeName, attributeValue);
-					}
-					featureBuilder.set(aggregateAttributeName, 0);
-					final SimpleFeature outputFeature = featureBuilder.buildFeature(feature.getID());
-					featureMap.put(hash, outputFeature);
-				}
-				
-				final SimpleFeature outputFeature = featureMap.get(hash);
-				int counter = (Integer)outputFeature.getAttribute(aggregateAttributeName) + 1;
-				outputFeature.setAttribute(aggregateAttributeName, counter);
-				
-				if (counter > this.lastStatistics.numMaxEntriesInAggregate) {
-					this.lastStatistics.numMaxEntriesInAggregate = counter;
+			if (usedParallelism > 1) {
+				hashingTimeSpend = this.aggregateParallel(featureIt, inputSchema, aggregateTable, usedParallelism);
+			} else {
+				while (featureIt.hasNext()) {
+					this.deadline.check();
+					final SimpleFeature feature = featureIt.next();
+					aggregateTable.add(hasher.getHash64(feature), feature, 1);
 				}
+				hashingTimeSpend = hasher.getTimeSpendInNanoSeconds();
 			}
 		} finally {
 			featureIt.close(); // closes the underlying database query, ...  
 		}
+		final List<SimpleFeature> aggregates = aggregateTable.finish(this.lastStatistics);
 		
 		if (featureIt.isMeasuringEnabled()) {
 			LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on just reading "
@@ -143,13 +454,15 @@ public class SimpleFeatureAggregator {
 					+ " features from the datasource.");
 		}
 		if (hasher.isMeasuringEnabled()) {
-			LOGGER.info("Spend "+hasher.getTimeSpendInSeconds()+" seconds on just creating feature hashes.");
+			LOGGER.info("Spend "+((double) hashingTimeSpend / 1000000000.0)+" seconds on just creating feature hashes"
+					+ (usedParallelism > 1 ? " (summed over "+usedParallelism+" threads)." : "."));
 		}
 		
 		// build the result collection
-		final ListFeatureCollection result = new ListFeatureCollection(outputSchema);
-		result.addAll(featureMap.values());
+		final ColumnarFeatureCollection result = new ColumnarFeatureCollection(outputSchema);
+		result.addAll(aggregates);
 		this.lastStatistics.numAggregates = result.size();
+		this.reportMetrics(aggregateStart, featureIt, hashingTimeSpend);
 		
 		if (this.measuringEnabled) {
 			LOGGER.info("Aggregated "+collection.size()+" incoming features to "
@@ -157,6 +470,334 @@ public class SimpleFeatureAggregator {
 		}
 		return result;
 	}
+	
+	/**
+	 * aggregate the features and group the aggregates sharing a geometry into stacks.
+	 * 
+	 * This is done in a single pass over the features. The aggregates are the same as 
+	 * the ones returned by aggregate. The features are always aggregated by the calling thread.
+	 * 
+	 * @param collection
+	 * @param aggregateAttributeName
+	 * @return
+	 */
+	public AggregateStacks aggregateAsStacks(final SimpleFeatureCollection collection, final String aggregateAttributeName) {
+		final long aggregateStart = this.requestMetrics.startStage();
+		final SimpleFeatureType inputSchema = collection.getSchema();
+		final SimpleFeatureHasher attributeHasher = this.createHasher(inputSchema);
+		attributeHasher.setIncludeGeometry(false);
+		final SimpleFeatureHasher geometryHasher = new SimpleFeatureHasher();
+		geometryHasher.setMeasuringEnabled(this.measuringEnabled);
+		geometryHasher.setIncludeGeometry(true);
+		
+		this.lastStatistics = new AggregationStatistics();
+		
+		final HashSet<String> attributesSet = attributeHasher.getIncludedAttributes();
+		final SimpleFeatureType outputSchema = this.buildOutputFeatureType(inputSchema, attributesSet, aggregateAttributeName);
+		final StackTable stackTable = new StackTable(outputSchema, geometryHasher, attributeHasher, aggregateAttributeName);
+		
+		if (this.databaseAggregationEnabled) {
+			final SimpleFeatureCollection aggregates = this.aggregateInDatabase(collection, outputSchema, attributesSet, aggregateAttributeName);
+			if (aggregates != null) {
+				// the aggregates just need to be grouped by their geometries
+				final int numInputFeatures = this.lastStatistics.numInputFeatures;
+				final SimpleFeatureIterator aggregatesIt = aggregates.features();
+				try {
+					while (aggregatesIt.hasNext()) {
+						this.deadline.check();
+						final SimpleFeature aggregate = aggregatesIt.next();
+						stackTable.add(aggregate, (Integer) aggregate.getAttribute(aggregateAttributeName));
+					}
+				} finally {
+					aggregatesIt.close();
+				}
+				final List<List<SimpleFeature>> stacks = stackTable.finish(this.lastStatistics);
+				this.lastStatistics.numInputFeatures = numInputFeatures;
+				this.reportMetrics(aggregateStart, null, 0);
+				return new AggregateStacks(outputSchema, stacks);
+			}
+		}
+		
+		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
+		featureIt.setMeasuringEnabled(this.measuringEnabled);
+		int numInputFeatures = 0;
+		try {
+			while (featureIt.hasNext()) {
+				this.deadline.check();
+				stackTable.add(featureIt.next(), 1);
+				numInputFeatures++;
+			}
+		} finally {
+			featureIt.close(); // closes the underlying database query, ...  
+		}
+		final List<List<SimpleFeature>> stacks = stackTable.finish(this.lastStatistics);
+		this.lastStatistics.numInputFeatures = numInputFeatures;
+		this.reportMetrics(aggregateStart, featureIt, 
+				geometryHasher.getTimeSpendInNanoSeconds() + attributeHasher.getTimeSpendInNanoSeconds());
+		
+		if (featureIt.isMeasuringEnabled()) {
+			LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on just reading "
+					+ numInputFeatures
+					+ " features from the datasource.");
+		}
+		if (this.measuringEnabled) {
+			LOGGER.info("Spend "+(geometryHasher.getTimeSpendInSeconds() + attributeHasher.getTimeSpendInSeconds())
+					+ " seconds on just creating feature hashes.");
+			LOGGER.info("Aggregated "+numInputFeatures+" incoming features to "
+					+ this.lastStatistics.numAggregates+" outgoing features in "+stacks.size()+" stacks");
+		}
+		return new AggregateStacks(outputSchema, stacks);
+	}
+	
+	/**
+	 * the schema of the aggregates created by aggregateAsStacks and aggregateAsSortedStacks
+	 * 
+	 * @param inputSchema
+	 * @param aggregateAttributeName
+	 * @return
+	 */
+	public SimpleFeatureType buildStacksSchema(final SimpleFeatureType inputSchema, final String aggregateAttributeName) {
+		final SimpleFeatureHasher attributeHasher = this.createHasher(inputSchema);
+		return this.buildOutputFeatureType(inputSchema, attributeHasher.getIncludedAttributes(), aggregateAttributeName);
+	}
+	
+	/**
+	 * aggregate the features and group the aggregates sharing a geometry into stacks like 
+	 * aggregateAsStacks, but for features sorted by stackKeyAttributeName.
+	 * 
+	 * The key has to be equal for features with equal geometries, for example a hash of the
+	 * geometry. The stacks of the features sharing a key are passed to the handler as soon as 
+	 * the key changes, so only the features of a single key are kept in memory. The database
+	 * aggregation is not used.
+	 * 
+	 * @param collection
+	 * @param aggregateAttributeName
+	 * @param stackKeyAttributeName
+	 * @param handler
+	 * @throws ProcessException when the features are not sorted by the key
+	 */
+	public void aggregateAsSortedStacks(final SimpleFeatureCollection collection, final String aggregateAttributeName, 
+			final String stackKeyAttributeName, final StackHandler handler) throws ProcessException {
+		final long aggregateStart = this.requestMetrics.startStage();
+		final SimpleFeatureType inputSchema = collection.getSchema();
+		final SimpleFeatureHasher attributeHasher = this.createHasher(inputSchema);
+		attributeHasher.setIncludeGeometry(false);
+		final SimpleFeatureHasher geometryHasher = new SimpleFeatureHasher();
+		geometryHasher.setMeasuringEnabled(this.measuringEnabled);
+		geometryHasher.setIncludeGeometry(true);
+		
+		this.lastStatistics = new AggregationStatistics();
+		
+		final HashSet<String> attributesSet = attributeHasher.getIncludedAttributes();
+		final SimpleFeatureType outputSchema = this.buildOutputFeatureType(inputSchema, attributesSet, aggregateAttributeName);
+		final StackTable stackTable = new StackTable(outputSchema, geometryHasher, attributeHasher, aggregateAttributeName);
+		final RunKeyTracker runKey = new RunKeyTracker(stackKeyAttributeName);
+		
+		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
+		featureIt.setMeasuringEnabled(this.measuringEnabled);
+		int numInputFeatures = 0;
+		int numAggregates = 0;
+		int numStacks = 0;
+		long handlerTimeSpend = 0;
+		try {
+			while (featureIt.hasNext()) {
+				this.deadline.check();
+				final SimpleFeature feature = featureIt.next();
+				if (runKey.startsNewRun(feature) && numInputFeatures > 0) {
+					final long handlerStart = System.nanoTime();
+					numStacks += this.handleStackRun(stackTable, handler);
+					handlerTimeSpend += System.nanoTime() - handlerStart;
+					numAggregates += this.lastStatistics.numAggregates;
+				}
+				stackTable.add(feature, 1);
+				numInputFeatures++;
+			}
+			if (numInputFeatures > 0) {
+				final long handlerStart = System.nanoTime();
+				numStacks += this.handleStackRun(stackTable, handler);
+				handlerTimeSpend += System.nanoTime() - handlerStart;
+				numAggregates += this.lastStatistics.numAggregates;
+			}
+		} finally {
+			featureIt.close(); // closes the underlying database query, ...  
+		}
+		this.lastStatistics.numInputFeatures = numInputFeatures;
+		this.lastStatistics.numAggregates = numAggregates;
+		// the handler builds the stacks, its time is not spend on aggregating
+		this.reportMetrics(aggregateStart + handlerTimeSpend, featureIt, 
+				geometryHasher.getTimeSpendInNanoSeconds() + attributeHasher.getTimeSpendInNanoSeconds());
+		
+		if (featureIt.isMeasuringEnabled()) {
+			LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on just reading "
+					+ numInputFeatures
+					+ " features from the datasource.");
+		}
+		if (this.measuringEnabled) {
+			LOGGER.info("Spend "+(geometryHasher.getTimeSpendInSeconds() + attributeHasher.getTimeSpendInSeconds())
+					+ " seconds on just creating feature hashes.");
+			LOGGER.info("Aggregated "+numInputFeatures+" incoming features to "
+					+ numAggregates+" outgoing features in "+numStacks+" stacks");
+		}
+	}
+	
+	/**
+	 * add the input features and the durations of an aggregation to the metrics of the request
+	 * 
+	 * @param aggregateStart the start of the aggregation as returned by RequestMetrics.startStage
+	 * @param featureIt the iterator over the input features. null when the database aggregated them
+	 * @param hashingTimeSpend
+	 */
+	private void reportMetrics(final long aggregateStart, final MeasuredSimpleFeatureIterator featureIt, final long hashingTimeSpend) {
+		this.requestMetrics.addInputFeatures(this.lastStatistics.numInputFeatures);
+		if (featureIt != null) {
+			featureIt.reportTo(this.requestMetrics, Stage.READ);
+		}
+		this.requestMetrics.addStageTime(Stage.HASH, hashingTimeSpend);
+		this.requestMetrics.stopStage(Stage.AGGREGATE, aggregateStart);
+	}
+	
+	/**
+	 * pass the stacks of the table to the handler and clear the table
+	 * 
+	 * @return the number of stacks
+	 */
+	private int handleStackRun(final StackTable stackTable, final StackHandler handler) {
+		final List<List<SimpleFeature>> stacks = stackTable.finish(this.lastStatistics);
+		stackTable.clear();
+		handler.handleStacks(stacks);
+		return stacks.size();
+	}
+	
+	/**
+	 * try to aggregate the features using a GROUP BY query
+	 * 
+	 * @param collection
+	 * @param outputSchema
+	 * @param attributesSet
+	 * @param aggregateAttributeName
+	 * @return null when the features have to be aggregated in memory
+	 */
+	private SimpleFeatureCollection aggregateInDatabase(final SimpleFeatureCollection collection, final SimpleFeatureType outputSchema, 
+			final HashSet<String> attributesSet, final String aggregateAttributeName) {
+		final JDBCFeatureAggregator jdbcAggregator = JDBCFeatureAggregator.forCollection(collection);
+		if (jdbcAggregator == null) {
+			return null;
+		}
+		jdbcAggregator.setDeadline(this.deadline);
+		
+		final long startTime = System.nanoTime();
+		List<SimpleFeature> aggregates;
+		try {
+			aggregates = jdbcAggregator.aggregate(outputSchema, attributesSet, aggregateAttributeName);
+		} catch (IOException e) {
+			// the query may have been aborted by the timeout of the request
+			this.deadline.check();
+			LOGGER.log(Level.WARNING, "Aggregating in the database failed. Falling back to the in-memory aggregation.", e);
+			return null;
+		}
+		if (aggregates == null) {
+			return null;
+		}
+		
+		int numInputFeatures = 0;
+		for (final SimpleFeature aggregate: aggregates) {
+			final int counter = (Integer) aggregate.getAttribute(aggregateAttributeName);
+			numInputFeatures += counter;
+			if (counter > this.lastStatistics.numMaxEntriesInAggregate) {
+				this.lastStatistics.numMaxEntriesInAggregate = counter;
+			}
+		}
+		this.lastStatistics.numInputFeatures = numInputFeatures;
+		this.lastStatistics.numAggregates = aggregates.size();
+		
+		final ColumnarFeatureCollection result = new ColumnarFeatureCollection(outputSchema);
+		result.addAll(aggregates);
+		
+		if (this.measuringEnabled) {
+			LOGGER.info("Spend "+((double) (System.nanoTime() - startTime) / 1000000000.0)+" seconds on aggregating "
+					+ numInputFeatures+" features to "+result.size()+" features in the database.");
+		}
+		return result;
+	}
+	
+	/**
+	 * read the features in chunks and let the worker threads hash and pre-aggregate them.
+	 * The partial aggregates are merged in the order of the chunks, so the result is
+	 * the same as the one of the sequential aggregation.
+	 * 
+	 * @param featureIt
+	 * @param inputSchema
+	 * @param aggregateTable
+	 * @param usedParallelism
+	 * @return the time spend on hashing in nanoseconds
+	 */
+	private long aggregateParallel(final SimpleFeatureIterator featureIt, final SimpleFeatureType inputSchema, 
+			final AggregateTable aggregateTable, final int usedParallelism) {
+		
+		final LinkedList<Future<PartialAggregate>> pending = new LinkedList<Future<PartialAggregate>>();
+		long hashingTimeSpend = 0;
+		boolean completed = false;
+		try {
+			while (featureIt.hasNext()) {
+				this.deadline.check();
+				final SimpleFeature[] chunk = new SimpleFeature[PARALLEL_CHUNK_SIZE];
+				int chunkLength = 0;
+				while (chunkLength < PARALLEL_CHUNK_SIZE && featureIt.hasNext()) {
+					chunk[chunkLength++] = featureIt.next();
+				}
+				
+				final int chunkFeatureCount = chunkLength;
+				final SimpleFeatureHasher chunkHasher = this.createHasher(inputSchema);
+				pending.add(WorkerPool.submit(new Callable<PartialAggregate>() {
+					public PartialAggregate call() {
+						return aggregateChunk(chunk, chunkFeatureCount, chunkHasher);
+					}
+				}));
+				
+				// limit the number of chunks held in memory and the threads used by this request
+				if (pending.size() >= usedParallelism) {
+					hashingTimeSpend += this.mergePartialAggregate(WorkerPool.getResult(pending.removeFirst()), aggregateTable);
+				}
+			}
+			while (!pending.isEmpty()) {
+				hashingTimeSpend += this.mergePartialAggregate(WorkerPool.getResult(pending.removeFirst()), aggregateTable);
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				WorkerPool.cancelAll(pending);
+			}
+		}
+		return hashingTimeSpend;
+	}
+	
+	private static PartialAggregate aggregateChunk(final SimpleFeature[] chunk, final int chunkLength, final SimpleFeatureHasher hasher) {
+		final PartialAggregate partial = new PartialAggregate();
+		for (int i=0; i<chunkLength; i++) {
+			final SimpleFeature feature = chunk[i];
+			final long hash = hasher.getHash64(feature);
+			int index = partial.features.indexOf(hash, feature, hasher);
+			if (index < 0) {
+				index = partial.features.add(hash, feature);
+				if (index >= partial.counts.length) {
+					partial.counts = Arrays.copyOf(partial.counts, partial.counts.length * 2);
+					partial.hashes = Arrays.copyOf(partial.hashes, partial.hashes.length * 2);
+				}
+				partial.hashes[index] = hash;
+			}
+			partial.counts[index]++;
+		}
+		partial.hashingTimeSpend = hasher.getTimeSpendInNanoSeconds();
+		return partial;
+	}
+	
+	private long mergePartialAggregate(final PartialAggregate partial, final AggregateTable aggregateTable) {
+		final List<SimpleFeature> features = partial.features.values();
+		for (int i=0; i<features.size(); i++) {
+			aggregateTable.add(partial.hashes[i], features.get(i), partial.counts[i]);
+		}
+		return partial.hashingTimeSpend;
+	}
 
 	/**
 	 * build the new featuretype for the output geometries
@@ -8,67 +8,259 @@ package org.geoserver.trafimage.transform;
 import java.util.HashSet;
 import java.util.Iterator;
 
-
-// the source lz4 is hosted at https://github.com/jpountz/lz4-java
-import net.jpountz.xxhash.StreamingXXHash32;
-import net.jpountz.xxhash.XXHashFactory;
-
+import org.geoserver.trafimage.transform.util.HashState;
+import org.geoserver.trafimage.transform.util.LongKeyedTable;
 import org.geoserver.trafimage.transform.util.MeasuredTime;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * creates hashes of features from their geometry and a set of attributes.
+ *
+ * The coordinates and attribute values are fed directly into a reusable hash state,
+ * so hashing a feature does not allocate any memory. Only the x and y ordinates
+ * are part of the hash.
+ *
+ * @author nico
+ *
+ */
+public class SimpleFeatureHasher extends MeasuredTime implements LongKeyedTable.Equivalence<SimpleFeature, SimpleFeature> {
+
+	private static final long SEED = 0x5a3c71e912af028eL;
 
-public class SimpleFeatureHasher extends MeasuredTime {
+	// markers to tell the parts of the hashed data apart
+	private static final long TAG_NULL = 0x01;
+	private static final long TAG_STRING = 0x02;
+	private static final long TAG_INTEGER = 0x03;
+	private static final long TAG_FLOAT = 0x04;
+	private static final long TAG_BOOLEAN = 0x05;
+	private static final long TAG_OTHER = 0x06;
+	private static final long TAG_POINT = 0x11;
+	private static final long TAG_LINESTRING = 0x12;
+	private static final long TAG_POLYGON = 0x13;
+	private static final long TAG_COLLECTION = 0x14;
+	private static final long TAG_GEOMETRY = 0x15;
 
 	private boolean includeGeometry = true;
 	private HashSet<String> includedAttributes = new HashSet<String>();
-	private XXHashFactory hashFactory = XXHashFactory.fastestInstance();
-	private WKBWriter wkbWriter = new WKBWriter();
-	
+	private final HashState state = new HashState(SEED);
+
+	/**
+	 * positions of the included attributes in the featuretype the features
+	 * hashed last belonged to. Saves the lookups by name.
+	 */
+	private SimpleFeatureType indexedFeatureType = null;
+	private int[] attributeIndexes = null;
+	private String[] attributeNames = null;
+
 	public SimpleFeatureHasher() {
 	}
-	
+
 	public void addIncludedAttribute(final String attributeName) {
 		this.includedAttributes.add(attributeName);
+		this.indexedFeatureType = null;
 	}
-	
-	
+
+	/**
+	 * 32 bit hash of the feature. This is just the 64 bit hash folded, prefer getHash64.
+	 *
+	 * @param feature
+	 * @return
+	 */
 	public int getHash(final SimpleFeature feature) {
+		final long hash = this.getHash64(feature);
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * 64 bit hash of the geometry and the included attributes of the feature.
+	 *
+	 * Collisions are unlikely, but still possible, so users should confirm
+	 * matches using isEquivalent.
+	 *
+	 * @param feature
+	 * @return
+	 */
+	public long getHash64(final SimpleFeature feature) {
 		this.startMeasuring();
 		try {
-			final int seed = 0x12af028e;
-			StreamingXXHash32 hash32 = this.hashFactory.newStreamingHash32(seed);
+			this.state.reset();
 			if (this.includeGeometry) {
 				final Geometry geom = (Geometry) feature.getDefaultGeometry();
 				if (geom != null) {
-					final byte[] geomBytes = wkbWriter.write(geom);
-					hash32.update(geomBytes, 0, geomBytes.length);
+					this.updateGeometry(geom);
+				} else {
+					this.state.update(TAG_NULL);
 				}
 			}
-			
-			final Iterator<String> attributeIt = this.includedAttributes.iterator();
-			while (attributeIt.hasNext()) {
-				final String attributeName = attributeIt.next();
-				final Object value = feature.getAttribute(attributeName);
-				if (value != null) {
-					final byte[] valueBytes = value.toString().getBytes();
-					hash32.update(valueBytes, 0, valueBytes.length);
+
+			if (!this.includedAttributes.isEmpty()) {
+				this.indexAttributes(feature.getFeatureType());
+				for (int i=0; i<this.attributeIndexes.length; i++) {
+					this.updateValue(this.getAttributeValue(feature, i));
 				}
 			}
-			return hash32.getValue();
-			
+			return this.state.getValue();
+
 		} finally {
 			this.stopMeasuring();
 		}
 	}
-	
+
+	private void updateGeometry(final Geometry geom) {
+		if (geom instanceof LineString) {
+			this.state.update(TAG_LINESTRING);
+			this.updateCoordinates(((LineString) geom).getCoordinateSequence());
+		} else if (geom instanceof Point) {
+			this.state.update(TAG_POINT);
+			this.updateCoordinates(((Point) geom).getCoordinateSequence());
+		} else if (geom instanceof Polygon) {
+			final Polygon polygon = (Polygon) geom;
+			final int numInteriorRings = polygon.getNumInteriorRing();
+			this.state.update(TAG_POLYGON);
+			this.state.update(numInteriorRings);
+			this.updateCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+			for (int i=0; i<numInteriorRings; i++) {
+				this.updateCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+		} else if (geom instanceof GeometryCollection) {
+			final int numGeometries = geom.getNumGeometries();
+			this.state.update(TAG_COLLECTION);
+			this.state.update(numGeometries);
+			for (int i=0; i<numGeometries; i++) {
+				this.updateGeometry(geom.getGeometryN(i));
+			}
+		} else {
+			// unknown geometry class. only reached by custom geometry implementations
+			this.state.update(TAG_GEOMETRY);
+			final CoordinateSequence coordinates = geom.getFactory().getCoordinateSequenceFactory().create(geom.getCoordinates());
+			this.updateCoordinates(coordinates);
+		}
+	}
+
+	private void updateCoordinates(final CoordinateSequence coordinates) {
+		final int size = coordinates.size();
+		this.state.update(size);
+		for (int i=0; i<size; i++) {
+			this.state.update(coordinates.getX(i));
+			this.state.update(coordinates.getY(i));
+		}
+	}
+
+	/**
+	 * hash an attribute value by its type. Values of other types than the
+	 * common ones use their hashCode, which is consistent with the equals
+	 * comparison done in isEquivalent.
+	 *
+	 * @param value
+	 */
+	private void updateValue(final Object value) {
+		if (value == null) {
+			this.state.update(TAG_NULL);
+		} else if (value instanceof String) {
+			this.state.update(TAG_STRING);
+			this.state.update((String) value);
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			this.state.update(TAG_INTEGER);
+			this.state.update(((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			this.state.update(TAG_FLOAT);
+			this.state.update(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			this.state.update(TAG_BOOLEAN);
+			this.state.update(((Boolean) value).booleanValue());
+		} else {
+			this.state.update(TAG_OTHER);
+			this.state.update(value.hashCode());
+		}
+	}
+
+	/**
+	 * resolve the positions of the included attributes in the featuretype
+	 *
+	 * @param featureType
+	 */
+	private void indexAttributes(final SimpleFeatureType featureType) {
+		if (this.indexedFeatureType == featureType && this.attributeIndexes != null) {
+			return;
+		}
+		final int numAttributes = this.includedAttributes.size();
+		this.attributeIndexes = new int[numAttributes];
+		this.attributeNames = new String[numAttributes];
+		final Iterator<String> attributeIt = this.includedAttributes.iterator();
+		for (int i=0; i<numAttributes; i++) {
+			this.attributeNames[i] = attributeIt.next();
+			this.attributeIndexes[i] = featureType.indexOf(this.attributeNames[i]);
+		}
+		this.indexedFeatureType = featureType;
+	}
+
+	private Object getAttributeValue(final SimpleFeature feature, final int i) {
+		if (feature.getFeatureType() == this.indexedFeatureType) {
+			final int attributeIndex = this.attributeIndexes[i];
+			if (attributeIndex < 0) {
+				return null;
+			}
+			return feature.getAttribute(attributeIndex);
+		}
+		return feature.getAttribute(this.attributeNames[i]);
+	}
+
+	/**
+	 * check if two features are equal regarding the geometry and the attributes
+	 * included in the hash. The geometries are compared by their exact coordinates.
+	 *
+	 * @param feature0
+	 * @param feature1
+	 * @return
+	 */
+	public boolean isEquivalent(final SimpleFeature feature0, final SimpleFeature feature1) {
+		if (this.includeGeometry) {
+			final Geometry geom0 = (Geometry) feature0.getDefaultGeometry();
+			final Geometry geom1 = (Geometry) feature1.getDefaultGeometry();
+			if (geom0 == null || geom1 == null) {
+				if (geom0 != geom1) {
+					return false;
+				}
+			} else if (!geom0.equalsExact(geom1)) {
+				return false;
+			}
+		}
+
+		if (!this.includedAttributes.isEmpty()) {
+			// the features may be of different featuretypes. for example when
+			// comparing an input feature to an aggregate.
+			this.indexAttributes(feature1.getFeatureType());
+			for (int i=0; i<this.attributeNames.length; i++) {
+				final Object value0 = feature0.getAttribute(this.attributeNames[i]);
+				final Object value1 = this.getAttributeValue(feature1, i);
+				if (value0 == null) {
+					if (value1 != null) {
+						return false;
+					}
+				} else if (!value0.equals(value1)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	public HashSet<String> getIncludedAttributes() {
 		return this.includedAttributes;
 	}
-	
+
 	public void setIncludedAttributes(final HashSet<String> attributeNames) {
 		this.includedAttributes = attributeNames;
+		this.indexedFeatureType = null;
 	}
 
 	public void setIncludeGeometry(boolean includeGeometry) {
@@ -0,0 +1,142 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * trims lines to the part which may become visible in the output image, so long
+ * lines reaching far out of the image do not get offsetted completely.
+ *
+ * The lines are clipped to the viewport expanded by the distance the line gets moved
+ * by, the half width it is drawn with and a margin for the caps and joins of the
+ * strokes. The segments are clipped using the Liang-Barsky algorithm. A line
+ * leaving and re-entering the expanded viewport is split into multiple lines.
+ *
+ * @author nico
+ *
+ */
+public class ViewportClipper {
+
+	/**
+	 * added to the expansion of the viewport to cover the strokes of the lines in the output image
+	 */
+	private static final double MARGIN_IN_PIXELS = 32.0;
+
+	private final Envelope viewport;
+	private final double mapUnitsPerPixel;
+
+	private final ArrayList<Coordinate> piece = new ArrayList<Coordinate>();
+
+	/**
+	 *
+	 * @param viewport the envelope of the output image
+	 * @param mapUnitsPerPixel
+	 */
+	public ViewportClipper(final Envelope viewport, final double mapUnitsPerPixel) {
+		this.viewport = viewport;
+		this.mapUnitsPerPixel = mapUnitsPerPixel;
+	}
+
+	/**
+	 *
+	 * @param line
+	 * @param maxOffset the largest distance in map units the line will be moved by
+	 * @param maxWidthInPixels the largest width the line will be drawn with
+	 * @return the parts of the line inside the expanded viewport. Contains only the line itself
+	 * 		when it is completely inside and is empty when the line is completely outside.
+	 */
+	public List<LineString> clip(final LineString line, final double maxOffset, final double maxWidthInPixels) {
+		final double expandBy = Math.abs(maxOffset) + (maxWidthInPixels / 2.0 + MARGIN_IN_PIXELS) * this.mapUnitsPerPixel;
+		final double minX = this.viewport.getMinX() - expandBy;
+		final double minY = this.viewport.getMinY() - expandBy;
+		final double maxX = this.viewport.getMaxX() + expandBy;
+		final double maxY = this.viewport.getMaxY() + expandBy;
+
+		final Envelope lineEnv = line.getEnvelopeInternal();
+		if (lineEnv.getMinX() >= minX && lineEnv.getMaxX() <= maxX && lineEnv.getMinY() >= minY && lineEnv.getMaxY() <= maxY) {
+			return Collections.singletonList(line);
+		}
+		if (lineEnv.getMaxX() < minX || lineEnv.getMinX() > maxX || lineEnv.getMaxY() < minY || lineEnv.getMinY() > maxY) {
+			return Collections.emptyList();
+		}
+
+		final ArrayList<LineString> pieces = new ArrayList<LineString>();
+		final CoordinateSequence coordinates = line.getCoordinateSequence();
+		this.piece.clear();
+		for (int i=0; i<coordinates.size()-1; i++) {
+			final double x0 = coordinates.getX(i);
+			final double y0 = coordinates.getY(i);
+			final double dx = coordinates.getX(i+1) - x0;
+			final double dy = coordinates.getY(i+1) - y0;
+
+			// Liang-Barsky: the segment is p0 + t * d with t in [t0, t1]
+			double t0 = 0.0;
+			double t1 = 1.0;
+			final double[] p = {-dx, dx, -dy, dy};
+			final double[] q = {x0 - minX, maxX - x0, y0 - minY, maxY - y0};
+			boolean outside = false;
+			for (int k=0; k<4; k++) {
+				if (p[k] == 0.0) {
+					if (q[k] < 0.0) {
+						outside = true;
+						break;
+					}
+				} else {
+					final double t = q[k] / p[k];
+					if (p[k] < 0.0) {
+						t0 = Math.max(t0, t);
+					} else {
+						t1 = Math.min(t1, t);
+					}
+				}
+			}
+			if (outside || t0 > t1) {
+				this.finishPiece(line, pieces);
+				continue;
+			}
+
+			if (t0 > 0.0) {
+				// the segment enters the viewport
+				this.finishPiece(line, pieces);
+			}
+			if (this.piece.isEmpty()) {
+				this.addPoint(x0 + t0 * dx, y0 + t0 * dy);
+			}
+			this.addPoint(x0 + t1 * dx, y0 + t1 * dy);
+			if (t1 < 1.0) {
+				// the segment leaves the viewport
+				this.finishPiece(line, pieces);
+			}
+		}
+		this.finishPiece(line, pieces);
+		return pieces;
+	}
+
+	private void addPoint(final double x, final double y) {
+		if (!this.piece.isEmpty()) {
+			final Coordinate last = this.piece.get(this.piece.size() - 1);
+			if (last.x == x && last.y == y) {
+				return;
+			}
+		}
+		this.piece.add(new Coordinate(x, y));
+	}
+
+	private void finishPiece(final LineString line, final List<LineString> pieces) {
+		if (this.piece.size() >= 2) {
+			pieces.add(line.getFactory().createLineString(this.piece.toArray(new Coordinate[this.piece.size()])));
+		}
+		this.piece.clear();
+	}
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a histogram of durations updated by many threads without locking.
+ *
+ * The durations are counted in buckets by powers of two of their nanoseconds, bucket b
+ * holds the durations from 2^(b-1) to 2^b - 1 nanoseconds. Percentiles are reported
+ * as the upper bound of their bucket, so they are at most twice the real value.
+ *
+ * Like the StripedCounter every thread updates its own row of buckets.
+ *
+ * @author nico
+ *
+ */
+public final class LatencyHistogram {
+
+	public static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.NUM_STRIPES * NUM_BUCKETS);
+	private final StripedCounter totalNanos = new StripedCounter();
+	private final AtomicLong maxNanos = new AtomicLong(0);
+
+	/**
+	 * the bucket counting the given duration
+	 *
+	 * @param nanos
+	 * @return
+	 */
+	static int getBucket(final long nanos) {
+		return Math.min(NUM_BUCKETS - 1, NUM_BUCKETS - Long.numberOfLeadingZeros(nanos));
+	}
+
+	/**
+	 * the largest duration counted by the bucket
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	static long getBucketUpperBound(final int bucket) {
+		if (bucket >= NUM_BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		return (1L << bucket) - 1;
+	}
+
+	/**
+	 * count a duration
+	 *
+	 * @param nanos negative values are counted as 0
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0L, nanos);
+		this.buckets.incrementAndGet(StripedCounter.getStripe() * NUM_BUCKETS + getBucket(value));
+		this.totalNanos.add(value);
+
+		long max = this.maxNanos.get();
+		while (value > max && !this.maxNanos.compareAndSet(max, value)) {
+			max = this.maxNanos.get();
+		}
+	}
+
+	/**
+	 * the counts of the buckets summed over all threads
+	 *
+	 * @return
+	 */
+	public long[] getBucketCounts() {
+		final long[] counts = new long[NUM_BUCKETS];
+		for (int stripe=0; stripe<StripedCounter.NUM_STRIPES; stripe++) {
+			final int offset = stripe * NUM_BUCKETS;
+			for (int bucket=0; bucket<NUM_BUCKETS; bucket++) {
+				counts[bucket] += this.buckets.get(offset + bucket);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * the number of recorded durations
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		long count = 0;
+		for (final long bucketCount: this.getBucketCounts()) {
+			count += bucketCount;
+		}
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return this.totalNanos.sum();
+	}
+
+	public long getMaxNanos() {
+		return this.maxNanos.get();
+	}
+
+	/**
+	 * the duration below which the given fraction of the recorded durations lie
+	 *
+	 * @param fraction between 0 and 1
+	 * @return the upper bound of the bucket of the percentile, capped by the largest duration.
+	 * 		0 when nothing has been recorded.
+	 */
+	public long getPercentileNanos(final double fraction) {
+		final long[] counts = this.getBucketCounts();
+		long count = 0;
+		for (final long bucketCount: counts) {
+			count += bucketCount;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1L, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int bucket=0; bucket<NUM_BUCKETS; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank) {
+				return Math.min(getBucketUpperBound(bucket), this.getMaxNanos());
+			}
+		}
+		return this.getMaxNanos();
+	}
+
+	/**
+	 * drop all recorded durations. Durations recorded at the same time may get lost.
+	 */
+	public void reset() {
+		for (int i=0; i<this.buckets.length(); i++) {
+			this.buckets.set(i, 0L);
+		}
+		this.totalNanos.reset();
+		this.maxNanos.set(0L);
+	}
+}
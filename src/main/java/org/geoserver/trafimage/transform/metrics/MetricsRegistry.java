@@ -0,0 +1,118 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * holds the metrics of the processes and registers them as MBeans with the platform
+ * MBeanServer, so they can be watched with jconsole or any other JMX client.
+ *
+ * The MBeans are named
+ *   org.geoserver.trafimage.transform:type=Process,name=[process]
+ *   org.geoserver.trafimage.transform:type=Stage,process=[process],name=[stage]
+ * Components keeping their own counters register them as
+ *   org.geoserver.trafimage.transform:type=[type]
+ *
+ * Collecting the metrics is enabled by default and can be disabled with the system
+ * property "trafimage.transform.metricsEnabled=false".
+ *
+ * @author nico
+ *
+ */
+public class MetricsRegistry {
+
+	public static final String METRICS_ENABLED_PROPERTY = "trafimage.transform.metricsEnabled";
+	public static final String JMX_DOMAIN = "org.geoserver.trafimage.transform";
+
+	private static final Logger LOGGER = Logging.getLogger(MetricsRegistry.class);
+
+	private static final boolean enabled = !"false".equalsIgnoreCase(System.getProperty(METRICS_ENABLED_PROPERTY));
+
+	private static final ConcurrentHashMap<String, ProcessMetrics> processes = new ConcurrentHashMap<String, ProcessMetrics>();
+
+	private MetricsRegistry() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * the metrics of a process. They are created and registered as MBeans on the
+	 * first call for the process.
+	 *
+	 * @param processName the name used for the MBeans. Must be a valid value of an ObjectName
+	 * @return
+	 */
+	public static ProcessMetrics getProcessMetrics(final String processName) {
+		ProcessMetrics metrics = processes.get(processName);
+		if (metrics == null) {
+			final ProcessMetrics newMetrics = new ProcessMetrics(processName);
+			metrics = processes.putIfAbsent(processName, newMetrics);
+			if (metrics == null) {
+				metrics = newMetrics;
+				if (enabled) {
+					registerMBeans(newMetrics);
+				}
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * register the MBean of a component keeping its own counters. Does nothing when
+	 * collecting the metrics is disabled.
+	 *
+	 * @param type the type of the MBean. Must be a valid value of an ObjectName
+	 * @param mbean
+	 */
+	public static void registerMBean(final String type, final Object mbean) {
+		if (!enabled) {
+			return;
+		}
+		try {
+			registerMBean(ManagementFactory.getPlatformMBeanServer(), mbean, new ObjectName(JMX_DOMAIN + ":type=" + type));
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Could not register the MBean of "+type, e);
+		} catch (SecurityException e) {
+			LOGGER.log(Level.WARNING, "Could not register the MBean of "+type, e);
+		}
+	}
+
+	private static void registerMBeans(final ProcessMetrics metrics) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			registerMBean(server, metrics, new ObjectName(JMX_DOMAIN + ":type=Process,name="
+					+ metrics.getProcessName()));
+			for (final StageMetrics stageMetrics: metrics.getStages()) {
+				registerMBean(server, stageMetrics, new ObjectName(JMX_DOMAIN + ":type=Stage,process="
+						+ metrics.getProcessName() + ",name=" + stageMetrics.getStageName()));
+			}
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Could not register the metrics of "+metrics.getProcessName()+" as MBeans", e);
+		} catch (SecurityException e) {
+			LOGGER.log(Level.WARNING, "Could not register the metrics of "+metrics.getProcessName()+" as MBeans", e);
+		}
+	}
+
+	private static void registerMBean(final MBeanServer server, final Object mbean, final ObjectName name) throws JMException {
+		// the classes may have been loaded again when the webapp has been reloaded
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(mbean, name);
+	}
+}
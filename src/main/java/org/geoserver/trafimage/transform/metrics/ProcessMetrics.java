@@ -0,0 +1,110 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+
+/**
+ * the counters and durations of all requests of a process
+ *
+ * @author nico
+ *
+ */
+public class ProcessMetrics extends TimedMetrics implements ProcessMetricsMBean {
+
+	private final String processName;
+	private final EnumMap<Stage, StageMetrics> stages = new EnumMap<Stage, StageMetrics>(Stage.class);
+
+	private final StripedCounter failedRequests = new StripedCounter();
+	private final StripedCounter inputFeatures = new StripedCounter();
+	private final StripedCounter outputFeatures = new StripedCounter();
+	private final StripedCounter outputVertices = new StripedCounter();
+	private final StripedCounter skippedExceptions = new StripedCounter();
+
+	ProcessMetrics(final String processName) {
+		this.processName = processName;
+		for (final Stage stage: Stage.values()) {
+			this.stages.put(stage, new StageMetrics(processName, stage));
+		}
+	}
+
+	/**
+	 * start collecting the metrics of a request
+	 *
+	 * @return RequestMetrics.NONE when collecting metrics is disabled
+	 */
+	public RequestMetrics startRequest() {
+		if (!MetricsRegistry.isEnabled()) {
+			return RequestMetrics.NONE;
+		}
+		return new RequestMetrics(this);
+	}
+
+	public String getProcessName() {
+		return this.processName;
+	}
+
+	public StageMetrics getStage(final Stage stage) {
+		return this.stages.get(stage);
+	}
+
+	public Collection<StageMetrics> getStages() {
+		return Collections.unmodifiableCollection(this.stages.values());
+	}
+
+	public long getFailedRequests() {
+		return this.failedRequests.sum();
+	}
+
+	public long getInputFeatures() {
+		return this.inputFeatures.sum();
+	}
+
+	public long getOutputFeatures() {
+		return this.outputFeatures.sum();
+	}
+
+	public long getOutputVertices() {
+		return this.outputVertices.sum();
+	}
+
+	public long getSkippedExceptions() {
+		return this.skippedExceptions.sum();
+	}
+
+	/**
+	 * drop the values of the process and of all its stages
+	 */
+	@Override
+	public void reset() {
+		super.reset();
+		this.failedRequests.reset();
+		this.inputFeatures.reset();
+		this.outputFeatures.reset();
+		this.outputVertices.reset();
+		this.skippedExceptions.reset();
+		for (final StageMetrics stageMetrics: this.stages.values()) {
+			stageMetrics.reset();
+		}
+	}
+
+	void recordRequest(final long nanos, final long numInputFeatures, final long numOutputFeatures,
+			final long numOutputVertices, final long numSkippedExceptions) {
+		this.histogram.record(nanos);
+		this.inputFeatures.add(numInputFeatures);
+		this.outputFeatures.add(numOutputFeatures);
+		this.outputVertices.add(numOutputVertices);
+		this.skippedExceptions.add(numSkippedExceptions);
+	}
+
+	void recordFailedRequest(final long numInputFeatures, final long numSkippedExceptions) {
+		this.failedRequests.increment();
+		this.inputFeatures.add(numInputFeatures);
+		this.skippedExceptions.add(numSkippedExceptions);
+	}
+}
@@ -0,0 +1,46 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * the MBean of a process. The durations are the ones of the successful requests,
+ * the durations of their stages are reported by the MBeans of the stages.
+ *
+ * @author nico
+ *
+ */
+public interface ProcessMetricsMBean extends TimedMetricsMBean {
+
+	public String getProcessName();
+
+	/**
+	 * the number of requests which failed with an exception, including canceled
+	 * and timed out requests
+	 *
+	 * @return
+	 */
+	public long getFailedRequests();
+
+	public long getInputFeatures();
+
+	public long getOutputFeatures();
+
+	/**
+	 * the number of coordinates of the output geometries built by the processes.
+	 * Processes returning the geometries of their input do not count them.
+	 *
+	 * @return
+	 */
+	public long getOutputVertices();
+
+	/**
+	 * the number of features which have been skipped because an exception was
+	 * thrown while processing them
+	 *
+	 * @return
+	 */
+	public long getSkippedExceptions();
+}
@@ -0,0 +1,124 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * collects the metrics of a single request and adds them to the metrics of its
+ * process when the request is finished.
+ *
+ * The times of the stages are summed over all threads of the request, each stage used by
+ * the request is recorded as one duration. Instances may be shared by the worker threads
+ * of a request.
+ *
+ * @author nico
+ *
+ */
+public class RequestMetrics {
+
+	/**
+	 * collects nothing
+	 */
+	public static final RequestMetrics NONE = new RequestMetrics(null);
+
+	private final ProcessMetrics processMetrics;
+	private final long startNanos;
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLong inputFeatures = new AtomicLong(0);
+	private final AtomicLong skippedExceptions = new AtomicLong(0);
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+
+	RequestMetrics(final ProcessMetrics processMetrics) {
+		this.processMetrics = processMetrics;
+		this.startNanos = (processMetrics == null) ? 0 : System.nanoTime();
+	}
+
+	public boolean isEnabled() {
+		return this.processMetrics != null;
+	}
+
+	/**
+	 * the start of a stage to pass to stopStage
+	 *
+	 * @return 0 when the metrics are not collected
+	 */
+	public long startStage() {
+		return this.isEnabled() ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * add the time since the start returned by startStage to the stage
+	 *
+	 * @param stage
+	 * @param start
+	 */
+	public void stopStage(final Stage stage, final long start) {
+		if (this.isEnabled()) {
+			this.addStageTime(stage, System.nanoTime() - start);
+		}
+	}
+
+	public void addStageTime(final Stage stage, final long nanos) {
+		if (this.isEnabled() && nanos > 0) {
+			this.stageNanos.addAndGet(stage.ordinal(), nanos);
+		}
+	}
+
+	public void addInputFeatures(final long numFeatures) {
+		if (this.isEnabled()) {
+			this.inputFeatures.addAndGet(numFeatures);
+		}
+	}
+
+	/**
+	 * count features which have been skipped because of an exception
+	 *
+	 * @param numFeatures
+	 */
+	public void addSkippedExceptions(final long numFeatures) {
+		if (this.isEnabled() && numFeatures > 0) {
+			this.skippedExceptions.addAndGet(numFeatures);
+		}
+	}
+
+	/**
+	 * add the metrics of the successful request to its process. Only the first call
+	 * of finish or fail is counted.
+	 *
+	 * @param numOutputFeatures
+	 * @param numOutputVertices
+	 */
+	public void finish(final long numOutputFeatures, final long numOutputVertices) {
+		if (!this.isEnabled() || !this.finished.compareAndSet(false, true)) {
+			return;
+		}
+		this.processMetrics.recordRequest(System.nanoTime() - this.startNanos, this.inputFeatures.get(),
+				numOutputFeatures, numOutputVertices, this.skippedExceptions.get());
+		this.recordStages();
+	}
+
+	/**
+	 * count the request as failed. Only the first call of finish or fail is counted.
+	 */
+	public void fail() {
+		if (!this.isEnabled() || !this.finished.compareAndSet(false, true)) {
+			return;
+		}
+		this.processMetrics.recordFailedRequest(this.inputFeatures.get(), this.skippedExceptions.get());
+	}
+
+	private void recordStages() {
+		for (final Stage stage: Stage.values()) {
+			final long nanos = this.stageNanos.get(stage.ordinal());
+			if (nanos > 0) {
+				this.processMetrics.getStage(stage).record(nanos);
+			}
+		}
+	}
+}
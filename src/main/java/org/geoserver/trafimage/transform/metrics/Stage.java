@@ -0,0 +1,59 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * the stages of the processes whose durations are collected
+ *
+ * @author nico
+ *
+ */
+public enum Stage {
+
+	/**
+	 * reading the features from the datasource
+	 */
+	READ,
+
+	/**
+	 * creating the hashes of the features
+	 */
+	HASH,
+
+	/**
+	 * aggregating the features including reading and hashing them
+	 */
+	AGGREGATE,
+
+	/**
+	 * sorting the lines of the stacks
+	 */
+	SORT,
+
+	/**
+	 * building the offsetted lines
+	 */
+	OFFSET,
+
+	/**
+	 * converting the lines to polygons
+	 */
+	POLYGONIZE,
+
+	/**
+	 * calculating the widths with a script or an expression
+	 */
+	SCRIPT;
+
+	/**
+	 * the name used for the MBeans
+	 *
+	 * @return
+	 */
+	public String getName() {
+		return this.name().toLowerCase();
+	}
+}
@@ -0,0 +1,44 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * the durations of a stage of a process
+ *
+ * @author nico
+ *
+ */
+public class StageMetrics extends TimedMetrics implements StageMetricsMBean {
+
+	private final String processName;
+	private final Stage stage;
+
+	StageMetrics(final String processName, final Stage stage) {
+		this.processName = processName;
+		this.stage = stage;
+	}
+
+	public String getProcessName() {
+		return this.processName;
+	}
+
+	public String getStageName() {
+		return this.stage.getName();
+	}
+
+	public Stage getStage() {
+		return this.stage;
+	}
+
+	/**
+	 * record the time a request spend in the stage
+	 *
+	 * @param nanos
+	 */
+	public void record(final long nanos) {
+		this.histogram.record(nanos);
+	}
+}
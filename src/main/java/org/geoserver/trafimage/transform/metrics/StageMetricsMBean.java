@@ -0,0 +1,20 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * the MBean of a stage of a process. Every request using the stage records
+ * one duration, the time the request spend in the stage summed over its threads.
+ *
+ * @author nico
+ *
+ */
+public interface StageMetricsMBean extends TimedMetricsMBean {
+
+	public String getProcessName();
+
+	public String getStageName();
+}
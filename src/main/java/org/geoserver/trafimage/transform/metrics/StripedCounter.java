@@ -0,0 +1,81 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a counter updated by many threads without locking.
+ *
+ * The value is split into stripes selected by the id of the updating thread. Each stripe
+ * sits on its own cache line, so threads updating the counter at the same time rarely
+ * touch the same memory. Reading the value sums the stripes and is not atomic.
+ *
+ * @author nico
+ *
+ */
+public final class StripedCounter {
+
+	/**
+	 * the number of longs between two stripes. 8 longs fill a cache line of 64 bytes.
+	 */
+	static final int PADDING = 8;
+
+	/**
+	 * the number of stripes. A power of two, at least twice the number of processors
+	 */
+	static final int NUM_STRIPES = computeNumStripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(NUM_STRIPES * PADDING);
+
+	private static int computeNumStripes() {
+		final int wanted = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+		int numStripes = 1;
+		while (numStripes < wanted) {
+			numStripes <<= 1;
+		}
+		return numStripes;
+	}
+
+	/**
+	 * the stripe used by the calling thread
+	 *
+	 * @return
+	 */
+	static int getStripe() {
+		return (int) Thread.currentThread().getId() & (NUM_STRIPES - 1);
+	}
+
+	public void add(final long value) {
+		this.cells.addAndGet(getStripe() * PADDING, value);
+	}
+
+	public void increment() {
+		this.add(1L);
+	}
+
+	/**
+	 * the sum of all stripes
+	 *
+	 * @return
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i=0; i<NUM_STRIPES; i++) {
+			sum += this.cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * set the counter to 0. Updates running at the same time may get lost.
+	 */
+	public void reset() {
+		for (int i=0; i<NUM_STRIPES; i++) {
+			this.cells.set(i * PADDING, 0L);
+		}
+	}
+}
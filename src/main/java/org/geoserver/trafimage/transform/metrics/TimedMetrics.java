@@ -0,0 +1,59 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * reports the durations of a histogram in milliseconds
+ *
+ * @author nico
+ *
+ */
+abstract class TimedMetrics implements TimedMetricsMBean {
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	protected final LatencyHistogram histogram = new LatencyHistogram();
+
+	public long getCount() {
+		return this.histogram.getCount();
+	}
+
+	public double getTotalTimeMillis() {
+		return this.histogram.getTotalNanos() / NANOS_PER_MILLI;
+	}
+
+	public double getMeanTimeMillis() {
+		final long count = this.histogram.getCount();
+		if (count == 0) {
+			return 0.0;
+		}
+		return this.histogram.getTotalNanos() / NANOS_PER_MILLI / count;
+	}
+
+	public double getMaxTimeMillis() {
+		return this.histogram.getMaxNanos() / NANOS_PER_MILLI;
+	}
+
+	public double getMedianTimeMillis() {
+		return this.histogram.getPercentileNanos(0.5) / NANOS_PER_MILLI;
+	}
+
+	public double getPercentile90TimeMillis() {
+		return this.histogram.getPercentileNanos(0.9) / NANOS_PER_MILLI;
+	}
+
+	public double getPercentile99TimeMillis() {
+		return this.histogram.getPercentileNanos(0.99) / NANOS_PER_MILLI;
+	}
+
+	public long[] getHistogram() {
+		return this.histogram.getBucketCounts();
+	}
+
+	public void reset() {
+		this.histogram.reset();
+	}
+}
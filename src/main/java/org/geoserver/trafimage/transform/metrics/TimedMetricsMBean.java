@@ -0,0 +1,50 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.metrics;
+
+/**
+ * the attributes shared by the MBeans of the processes and their stages.
+ *
+ * Percentiles are the upper bounds of the buckets of the histogram, so they are
+ * at most twice the real value.
+ *
+ * @author nico
+ *
+ */
+public interface TimedMetricsMBean {
+
+	/**
+	 * the number of recorded durations
+	 *
+	 * @return
+	 */
+	public long getCount();
+
+	public double getTotalTimeMillis();
+
+	public double getMeanTimeMillis();
+
+	public double getMaxTimeMillis();
+
+	public double getMedianTimeMillis();
+
+	public double getPercentile90TimeMillis();
+
+	public double getPercentile99TimeMillis();
+
+	/**
+	 * the counts of the buckets of the histogram. Bucket b counts the durations
+	 * from 2^(b-1) to 2^b - 1 nanoseconds.
+	 *
+	 * @return
+	 */
+	public long[] getHistogram();
+
+	/**
+	 * drop all collected values
+	 */
+	public void reset();
+}
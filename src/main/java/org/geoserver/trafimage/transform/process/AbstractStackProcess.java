@@ -5,14 +5,31 @@
  */
 package org.geoserver.trafimage.transform.process;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
-import org.geoserver.trafimage.transform.CurveBuilder;
+import org.geoserver.trafimage.transform.ColumnarFeatureCollection;
+import org.geoserver.trafimage.transform.OffsetCurveEngine;
+import org.geoserver.trafimage.transform.SimpleFeatureAggregator.StackHandler;
 import org.geoserver.trafimage.transform.SimpleFeatureHelper;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geoserver.trafimage.transform.ViewportClipper;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
+import org.geoserver.trafimage.transform.script.ScriptException;
+import org.geoserver.trafimage.transform.script.WidthExpression;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geoserver.trafimage.transform.util.WorkerPool;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -26,22 +43,410 @@ abstract class AbstractStackProcess extends VectorProcess {
 	
 	private static final Logger LOGGER = Logging.getLogger(AbstractStackProcess.class);
 	
+	/**
+	 * the lines of a stack waiting to be built. All lines of a stack share the
+	 * geometry of the stack, so the offsets of all of them get built in one batch.
+	 */
+	protected static class StackLines {
+		private final ArrayList<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		private double[] offsetsInMapUnits = new double[16];
+		private double[] widthsInPixels = new double[16];
+		private int size = 0;
+		
+		void add(final SimpleFeature feature, final double offsetInMapUnits, final double widthInPixels) {
+			if (this.size == this.offsetsInMapUnits.length) {
+				this.offsetsInMapUnits = Arrays.copyOf(this.offsetsInMapUnits, this.size * 2);
+				this.widthsInPixels = Arrays.copyOf(this.widthsInPixels, this.size * 2);
+			}
+			this.features.add(feature);
+			this.offsetsInMapUnits[this.size] = offsetInMapUnits;
+			this.widthsInPixels[this.size] = widthInPixels;
+			this.size++;
+		}
+		
+		void clear() {
+			this.features.clear();
+			this.size = 0;
+		}
+	}
+	
+	/**
+	 * builds the output features of complete stacks.
+	 * 
+	 * The offset engines and the scripts are not thread safe, so every thread building
+	 * stacks uses its own StackBuilder. The builders collect the durations of their
+	 * stages and report them to the request when they are done.
+	 */
+	protected abstract class StackBuilder {
+		protected final StackLines stackLines = new StackLines();
+		protected final OffsetCurveEngine offsetCurveEngine;
+		protected final ViewportClipper clipper;
+		protected final SimpleFeatureBuilder featureBuilder;
+		protected final SimpleFeatureType outputSchema;
+		private final String widthAttributeName;
+		private final long[] stageNanos = new long[Stage.values().length];
+		private long numSkippedFeatures = 0;
+		
+		protected StackBuilder(final OffsetCurveEngine offsetCurveEngine, final ViewportClipper clipper, 
+				final SimpleFeatureType outputSchema, final String widthAttributeName) {
+			this.offsetCurveEngine = offsetCurveEngine;
+			this.clipper = clipper;
+			this.featureBuilder = new SimpleFeatureBuilder(outputSchema);
+			this.outputSchema = outputSchema;
+			this.widthAttributeName = widthAttributeName;
+		}
+		
+		/**
+		 * add the lines of a stack to the output collection
+		 * 
+		 * @param stackFeatures
+		 * @param outputCollection
+		 */
+		protected abstract void buildStack(List<SimpleFeature> stackFeatures, ColumnarFeatureCollection outputCollection);
+		
+		/**
+		 * build the lines queued in stackLines
+		 * 
+		 * @param outputCollection
+		 */
+		protected void buildQueuedLines(final ColumnarFeatureCollection outputCollection) {
+			final long start = this.startStage();
+			this.numSkippedFeatures += buildStackLines(this.stackLines, this.offsetCurveEngine, this.clipper, outputCollection, 
+					this.featureBuilder, this.outputSchema, this.widthAttributeName);
+			this.stopStage(Stage.OFFSET, start);
+		}
+		
+		/**
+		 * the start of a stage to pass to stopStage
+		 * 
+		 * @return 0 when the metrics are not collected
+		 */
+		protected long startStage() {
+			return MetricsRegistry.isEnabled() ? System.nanoTime() : 0;
+		}
+		
+		protected void stopStage(final Stage stage, final long start) {
+			if (MetricsRegistry.isEnabled()) {
+				this.stageNanos[stage.ordinal()] += System.nanoTime() - start;
+			}
+		}
+		
+		/**
+		 * add the collected durations and the skipped features to the metrics of the request
+		 * 
+		 * @param requestMetrics
+		 */
+		void reportTo(final RequestMetrics requestMetrics) {
+			for (final Stage stage: Stage.values()) {
+				requestMetrics.addStageTime(stage, this.stageNanos[stage.ordinal()]);
+			}
+			requestMetrics.addSkippedExceptions(this.numSkippedFeatures);
+		}
+		
+		/**
+		 * release the resources held by the builder. Called by the thread which created the builder.
+		 */
+		protected void dispose() {
+		}
+	}
+	
+	/**
+	 * creates the StackBuilders. Called from the worker threads, so the builders
+	 * get created by the threads using them.
+	 */
+	protected interface StackBuilderFactory {
+		public StackBuilder createStackBuilder();
+	}
+	
+	/**
+	 * the features built from a chunk of stacks by a worker thread
+	 */
+	private static class StackChunkResult {
+		final ColumnarFeatureCollection features;
+		long numOutputCoordinates = 0;
+		
+		StackChunkResult(final SimpleFeatureType outputSchema) {
+			this.features = new ColumnarFeatureCollection(outputSchema, false);
+		}
+	}
+	
+	/**
+	 * the minimum number of stacks handed to a worker thread at once
+	 */
+	private static final int MIN_STACKS_PER_TASK = 32;
+	
+	/**
+	 * the stacks are split in more chunks than threads, so threads finishing early
+	 * can take over work
+	 */
+	private static final int TASKS_PER_THREAD = 4;
+	
+	/**
+	 * build the output features of all stacks.
+	 * 
+	 * With a parallelism larger than 1 consecutive chunks of stacks are built by the
+	 * threads of the WorkerPool. The results are added to the outputCollection in the order
+	 * of the stacks, so the output does not depend on the parallelism.
+	 * 
+	 * @param stacks
+	 * @param factory
+	 * @param parallelism
+	 * @param deadline checked before building each stack
+	 * @param requestMetrics receives the durations of the stages of the StackBuilders
+	 * @param outputCollection
+	 * @return the number of coordinates of the offsetted lines
+	 * @throws ProcessException when the deadline expired
+	 */
+	protected long buildStacks(final List<List<SimpleFeature>> stacks, final StackBuilderFactory factory, final int parallelism, 
+			final RequestDeadline deadline, final RequestMetrics requestMetrics, final ColumnarFeatureCollection outputCollection) throws ProcessException {
+		
+		if (!buildsInParallel(parallelism, stacks.size())) {
+			final StackBuilder stackBuilder = factory.createStackBuilder();
+			try {
+				for (final List<SimpleFeature> stackFeatures: stacks) {
+					deadline.check();
+					stackBuilder.buildStack(stackFeatures, outputCollection);
+				}
+				return stackBuilder.offsetCurveEngine.getNumOutputCoordinates();
+			} finally {
+				stackBuilder.reportTo(requestMetrics);
+				stackBuilder.dispose();
+			}
+		}
+		
+		final int chunkSize = Math.max(MIN_STACKS_PER_TASK, stacks.size() / (parallelism * TASKS_PER_THREAD) + 1);
+		final SimpleFeatureType outputSchema = outputCollection.getSchema();
+		final LinkedList<Future<StackChunkResult>> pending = new LinkedList<Future<StackChunkResult>>();
+		long numOutputCoordinates = 0;
+		boolean completed = false;
+		try {
+			for (int chunkStart=0; chunkStart<stacks.size(); chunkStart+=chunkSize) {
+				final List<List<SimpleFeature>> chunk = stacks.subList(chunkStart, Math.min(chunkStart + chunkSize, stacks.size()));
+				pending.add(WorkerPool.submit(new Callable<StackChunkResult>() {
+					public StackChunkResult call() {
+						final StackChunkResult result = new StackChunkResult(outputSchema);
+						final StackBuilder stackBuilder = factory.createStackBuilder();
+						try {
+							for (final List<SimpleFeature> stackFeatures: chunk) {
+								deadline.check();
+								stackBuilder.buildStack(stackFeatures, result.features);
+							}
+							result.numOutputCoordinates = stackBuilder.offsetCurveEngine.getNumOutputCoordinates();
+						} finally {
+							stackBuilder.reportTo(requestMetrics);
+							stackBuilder.dispose();
+						}
+						return result;
+					}
+				}));
+				
+				// limit the number of threads used by this request
+				if (pending.size() >= parallelism) {
+					numOutputCoordinates += this.mergeStackChunk(WorkerPool.getResult(pending.removeFirst()), outputCollection);
+				}
+			}
+			while (!pending.isEmpty()) {
+				numOutputCoordinates += this.mergeStackChunk(WorkerPool.getResult(pending.removeFirst()), outputCollection);
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				WorkerPool.cancelAll(pending);
+			}
+		}
+		return numOutputCoordinates;
+	}
+	
+	/**
+	 * there have to be enough stacks to give every thread some chunks of work
+	 * 
+	 * @param parallelism
+	 * @param numStacks
+	 * @return
+	 */
+	private static boolean buildsInParallel(final int parallelism, final int numStacks) {
+		return parallelism > 1 && numStacks >= 2 * MIN_STACKS_PER_TASK;
+	}
+	
+	/**
+	 * the number of features of the stacks collected from sorted input before they get built
+	 */
+	private static final int STREAM_BATCH_SIZE = 4096;
+	
+	/**
+	 * builds the stacks read from sorted input in batches, so only the features of the
+	 * current batch are kept in memory.
+	 * 
+	 * Batches built on the calling thread share one StackBuilder, which is created with the
+	 * first batch and disposed by finish or close. The builders of the worker threads are
+	 * bound to their thread by the script context and are created per chunk.
+	 */
+	protected class StackStream implements StackHandler {
+		private final StackBuilderFactory factory;
+		private final int parallelism;
+		private final RequestDeadline deadline;
+		private final RequestMetrics requestMetrics;
+		private final ColumnarFeatureCollection outputCollection;
+		private final ArrayList<List<SimpleFeature>> batch = new ArrayList<List<SimpleFeature>>();
+		private int numBatchFeatures = 0;
+		private long numOutputCoordinates = 0;
+		private StackBuilder stackBuilder = null;
+		
+		public StackStream(final StackBuilderFactory factory, final int parallelism, final RequestDeadline deadline,
+				final RequestMetrics requestMetrics, final ColumnarFeatureCollection outputCollection) {
+			this.factory = factory;
+			this.parallelism = parallelism;
+			this.deadline = deadline;
+			this.requestMetrics = requestMetrics;
+			this.outputCollection = outputCollection;
+		}
+		
+		public void handleStacks(final List<List<SimpleFeature>> stacks) {
+			for (final List<SimpleFeature> stack: stacks) {
+				this.batch.add(stack);
+				this.numBatchFeatures += stack.size();
+			}
+			if (this.numBatchFeatures >= STREAM_BATCH_SIZE) {
+				this.flush();
+			}
+		}
+		
+		/**
+		 * build the remaining stacks and dispose the StackBuilder
+		 * 
+		 * @return the number of coordinates of all offsetted lines built by this stream
+		 */
+		public long finish() {
+			try {
+				this.flush();
+			} finally {
+				this.close();
+			}
+			return this.numOutputCoordinates;
+		}
+		
+		/**
+		 * report the metrics of the StackBuilder and dispose it. Has to be called by the thread
+		 * which created the stream, also when building the stacks failed. Calling it again does nothing.
+		 */
+		public void close() {
+			if (this.stackBuilder != null) {
+				this.numOutputCoordinates += this.stackBuilder.offsetCurveEngine.getNumOutputCoordinates();
+				this.stackBuilder.reportTo(this.requestMetrics);
+				this.stackBuilder.dispose();
+				this.stackBuilder = null;
+			}
+		}
+		
+		private void flush() {
+			if (this.batch.isEmpty()) {
+				return;
+			}
+			if (buildsInParallel(this.parallelism, this.batch.size())) {
+				this.numOutputCoordinates += buildStacks(this.batch, this.factory, this.parallelism, this.deadline, 
+						this.requestMetrics, this.outputCollection);
+			} else {
+				if (this.stackBuilder == null) {
+					this.stackBuilder = this.factory.createStackBuilder();
+				}
+				for (final List<SimpleFeature> stackFeatures: this.batch) {
+					this.deadline.check();
+					this.stackBuilder.buildStack(stackFeatures, this.outputCollection);
+				}
+			}
+			this.batch.clear();
+			this.numBatchFeatures = 0;
+		}
+	}
+	
+	private long mergeStackChunk(final StackChunkResult result, final ColumnarFeatureCollection outputCollection) {
+		outputCollection.addAll(result.features);
+		return result.numOutputCoordinates;
+	}
+	
+	/**
+	 * build the offsetted lines of a stack and add them to the output collection.
+	 * 
+	 * Consecutive lines with the same geometry are built together by the offsetEngine.
+	 * 
+	 * @param stackLines the lines to build. Will be empty afterwards.
+	 * @param offsetEngine
+	 * @param clipper clips the lines to the output image before offsetting them. null to offset the complete lines.
+	 * @param outputCollection
+	 * @param outputFeatureBuilder
+	 * @param outputSchema
+	 * @param widthAttributeName
+	 * @return the number of lines which have been skipped because they could not be offsetted
+	 */
+	protected int buildStackLines(final StackLines stackLines, final OffsetCurveEngine offsetEngine, final ViewportClipper clipper,
+			final ColumnarFeatureCollection outputCollection, 
+			final SimpleFeatureBuilder outputFeatureBuilder, final SimpleFeatureType outputSchema, final String widthAttributeName) {
+		
+		int numSkippedLines = 0;
+		int runStart = 0;
+		while (runStart < stackLines.size) {
+			final LineString line = (LineString) stackLines.features.get(runStart).getDefaultGeometry();
+			int runEnd = runStart + 1;
+			if (line != null) {
+				while (runEnd < stackLines.size) {
+					final LineString nextLine = (LineString) stackLines.features.get(runEnd).getDefaultGeometry();
+					if (nextLine == null || (nextLine != line && !nextLine.equalsExact(line))) {
+						break;
+					}
+					runEnd++;
+				}
+			}
+			
+			try {
+				if (line == null) {
+					throw new IllegalArgumentException("Feature has no geometry");
+				}
+				final double[] offsets = Arrays.copyOfRange(stackLines.offsetsInMapUnits, runStart, runEnd);
+				
+				final List<LineString> pieces;
+				if (clipper != null) {
+					double maxOffset = 0.0;
+					double maxWidthInPixels = 0.0;
+					for (int i=runStart; i<runEnd; i++) {
+						maxOffset = Math.max(maxOffset, Math.abs(stackLines.offsetsInMapUnits[i]));
+						maxWidthInPixels = Math.max(maxWidthInPixels, stackLines.widthsInPixels[i]);
+					}
+					pieces = clipper.clip(line, maxOffset, maxWidthInPixels);
+				} else {
+					pieces = Collections.singletonList(line);
+				}
+				
+				final LineString[][] offsettedLines = new LineString[pieces.size()][];
+				for (int p=0; p<pieces.size(); p++) {
+					offsettedLines[p] = offsetEngine.buildOffsettedLineStrings(pieces.get(p), offsets);
+				}
+				for (int i=runStart; i<runEnd; i++) {
+					for (int p=0; p<pieces.size(); p++) {
+						outputCollection.add(this.buildGenericOffsettedLine(stackLines.features.get(i), outputFeatureBuilder, outputSchema, 
+								offsettedLines[p][i - runStart], stackLines.widthsInPixels[i], widthAttributeName));
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				// possible cause: JTS: Invalid number of points in LineString (found 1 - must be 0 or >= 2)
+				LOGGER.warning("Ignoring possible illegal feature: " + e.getMessage());
+				numSkippedLines += runEnd - runStart;
+			}
+			runStart = runEnd;
+		}
+		stackLines.clear();
+		return numSkippedLines;
+	}
+	
 	/**
 	 * 
 	 * @param lineIn
 	 * @param outputSchema
-	 * @param offsetInMapUnits
+	 * @param offsettedLine
 	 * @return
 	 */
-	private SimpleFeature buildGenericOffsettedLine(final SimpleFeature lineIn, final SimpleFeatureBuilder outputFeatureBuilder, final SimpleFeatureType outputSchema, double offsetInMapUnits, double widthInPixels, String widthAttributeName) {
+	private SimpleFeature buildGenericOffsettedLine(final SimpleFeature lineIn, final SimpleFeatureBuilder outputFeatureBuilder, final SimpleFeatureType outputSchema, final LineString offsettedLine, double widthInPixels, String widthAttributeName) {
 		outputFeatureBuilder.reset();
 		
-		final LineString line = (LineString) lineIn.getDefaultGeometry();
-		
-		// generate the offset
-		CurveBuilder curveBuilder = new CurveBuilder();
-		final LineString offsettedLine = curveBuilder.buildOffsettedLineString(line, offsetInMapUnits);
-		
 		// write the geometry
 		GeometryDescriptor geometryDescriptor = outputSchema.getGeometryDescriptor();
 		outputFeatureBuilder.set(geometryDescriptor.getName(), offsettedLine);
@@ -65,44 +470,31 @@ abstract class AbstractStackProcess extends VectorProcess {
 	
 	
 	/**
-	 * create the new drawable lines and add them to the output collection
-	 *
-	 * TODO: needs refactoring to reduce the number of arguments
+	 * queue the drawable lines of a feature for being built with the other lines of its stack
 	 *
-	 * @param outputCollection
-	 * @param featureBuilder
+	 * @param stackLines
 	 * @param originalFeature
-	 * @param outputSchema
 	 * @param offsetMapUnits
 	 * @param featureWidthInPixels
 	 * @param stackOffsetInPixels
 	 * @param spacingBetweenStackEntries
 	 * @param drawOnBothSides
 	 * @param invertSidesAttributeName
-	 * @param widthAttributeName
 	 * @return the new stackOffsetInPixels
 	 */
-	protected double addDrawableLines(ListFeatureCollection outputCollection, SimpleFeatureBuilder featureBuilder, SimpleFeature originalFeature, 
-			SimpleFeatureType outputSchema,
+	protected double addDrawableLines(StackLines stackLines, SimpleFeature originalFeature, 
 			double offsetMapUnits, double featureWidthInPixels, double stackOffsetInPixels, int spacingBetweenStackEntries,
-			boolean drawOnBothSides, String invertSidesAttributeName, String widthAttributeName) {
+			boolean drawOnBothSides, String invertSidesAttributeName) {
 		// side inversion
 		final double inversionValue = getInversionValue(originalFeature, invertSidesAttributeName);	
 
 		if (drawOnBothSides) {
-			final SimpleFeature line1 = this.buildGenericOffsettedLine(originalFeature, featureBuilder, outputSchema, 
-					offsetMapUnits * inversionValue, featureWidthInPixels / 2.0, widthAttributeName);
-			final SimpleFeature line2 = this.buildGenericOffsettedLine(originalFeature, featureBuilder, outputSchema, 
-					offsetMapUnits * inversionValue * -1.0, featureWidthInPixels / 2.0, widthAttributeName);
-			
-			outputCollection.add(line1);
-			outputCollection.add(line2);
+			stackLines.add(originalFeature, offsetMapUnits * inversionValue, featureWidthInPixels / 2.0);
+			stackLines.add(originalFeature, offsetMapUnits * inversionValue * -1.0, featureWidthInPixels / 2.0);
 			
 			stackOffsetInPixels = stackOffsetInPixels + (featureWidthInPixels / 2.0) + spacingBetweenStackEntries;
 		} else {
-			final SimpleFeature line1 = this.buildGenericOffsettedLine(originalFeature, featureBuilder, outputSchema, 
-					offsetMapUnits * inversionValue, featureWidthInPixels, widthAttributeName);
-			outputCollection.add(line1);
+			stackLines.add(originalFeature, offsetMapUnits * inversionValue, featureWidthInPixels);
 			
 			stackOffsetInPixels = stackOffsetInPixels + featureWidthInPixels + spacingBetweenStackEntries;
 		}
@@ -178,4 +570,54 @@ abstract class AbstractStackProcess extends VectorProcess {
 		}
 		return 1.0;
 	}
+	
+	/**
+	 * compile the widthExpression parameter. The expression replaces the renderScript, so
+	 * only one of both may be set.
+	 * 
+	 * @param widthExpression
+	 * @param renderScript
+	 * @return null when no expression is set
+	 * @throws ProcessException
+	 */
+	protected static WidthExpression compileWidthExpression(final String widthExpression, final String renderScript) throws ProcessException {
+		if (widthExpression == null || widthExpression.trim().equals("")) {
+			return null;
+		}
+		if (renderScript != null && !renderScript.trim().equals("")) {
+			throw new ProcessException("The renderScript and the widthExpression can not be used together");
+		}
+		try {
+			return WidthExpression.compile(widthExpression);
+		} catch (ScriptException e) {
+			throw new ProcessException(e);
+		}
+	}
+	
+	/**
+	 * evaluate the widthExpression for a feature
+	 * 
+	 * @param widthExpression
+	 * @param feature
+	 * @param aggCount
+	 * @param customVariable1
+	 * @param customVariable2
+	 * @return the width in pixels
+	 * @throws ProcessException when the expression does not result in a number
+	 */
+	protected static int evaluateWidthExpression(final WidthExpression widthExpression, final SimpleFeature feature, final int aggCount,
+			final double customVariable1, final double customVariable2) throws ProcessException {
+		double featureLength = 0.0;
+		if (widthExpression.usesFeatureLength()) {
+			final Object geom = feature.getDefaultGeometry();
+			if (geom != null) {
+				featureLength = ((LineString) geom).getLength();
+			}
+		}
+		final double width = widthExpression.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+		if (Double.isNaN(width) || Double.isInfinite(width)) {
+			throw new ProcessException("The widthExpression did not result in a number for the feature "+feature.getID());
+		}
+		return (int) Math.rint(width);
+	}
 }
@@ -6,30 +6,36 @@
 package org.geoserver.trafimage.transform.process;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.logging.Logger;
 
-import org.geoserver.trafimage.transform.FeatureOrderComparator;
+import org.geoserver.trafimage.transform.ColumnarFeatureCollection;
+import org.geoserver.trafimage.transform.OffsetCurveEngine;
+import org.geoserver.trafimage.transform.FeatureOrderSorter;
 import org.geoserver.trafimage.transform.MapUnits;
 import org.geoserver.trafimage.transform.SimpleFeatureAggregator;
-import org.geoserver.trafimage.transform.SimpleFeatureHasher;
+import org.geoserver.trafimage.transform.SimpleFeatureAggregator.AggregateStacks;
+import org.geoserver.trafimage.transform.ViewportClipper;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.ProcessMetrics;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
 import org.geoserver.trafimage.transform.script.AggregateAsLineStacksScript;
+import org.geoserver.trafimage.transform.script.WidthExpression;
 import org.geoserver.trafimage.transform.script.ScriptException;
 import org.geoserver.trafimage.transform.util.DebugIO;
-import org.geoserver.trafimage.transform.util.MeasuredSimpleFeatureIterator;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geoserver.trafimage.transform.util.WorkerPool;
 import org.geoserver.wps.gs.GeoServerProcess;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridGeometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.util.ProgressListener;
@@ -44,47 +50,12 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 	private static final String WIDTH_ATTRIBUTE_NAME = "line_width";
 	
 	private static final Logger LOGGER = Logging.getLogger(AggregateAsLineStacksProcess.class);
+	private static final ProcessMetrics METRICS = MetricsRegistry.getProcessMetrics("AggregateAsLineStacks");
 	
 	public AggregateAsLineStacksProcess() {
 	}
 		
 
-	/**
-	 * 
-	 * @param collection
-	 * @return
-	 */
-	protected HashMap<Integer, List<SimpleFeature>> createStacksOfSimilarGeometries(SimpleFeatureCollection collection, boolean enableDurationMeasurement) {
-		final SimpleFeatureHasher hasher = new SimpleFeatureHasher();
-		hasher.setMeasuringEnabled(enableDurationMeasurement);
-		hasher.setIncludeGeometry(true);
-		hasher.setIncludedAttributes(new HashSet<String>());
-
-		HashMap<Integer, List<SimpleFeature>> stacks = new HashMap<Integer, List<SimpleFeature>>();
-		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
-		try {
-			while (featureIt.hasNext()) {
-				final SimpleFeature feature = featureIt.next();
-				final int hash = hasher.getHash(feature);
-				
-				List<SimpleFeature> stackList = stacks.get(hash);
-				if (stackList == null) {
-					stackList = new ArrayList<SimpleFeature>();
-					stacks.put(hash, stackList);
-				}
-				stackList.add(feature);
-			}
-		} finally {
-			featureIt.close();
-		}
-		
-		if (hasher.isMeasuringEnabled()) {
-			LOGGER.info("Spend "+hasher.getTimeSpendInSeconds()+" seconds on just creating feature hashes to order line stacks.");
-		}
-		return stacks;
-	}
-	
-	
 	/**
 	 * execute the transformation
 	 * 
@@ -106,7 +77,7 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 					@DescribeParameter(name = "orderAttribute", 
 							description = "The name attribute of the input collection which contains the value for the ordering of the line stacks."
 							+ " The attribute will be included in the aggregation."
-							+ " The attribute must be of type integer."
+							+ " The attribute must be numeric. Null values are placed like 0."
 							+ " The smaller the value is, the closer the feature will be placed to the orignal line.", 
 							defaultValue = "") String orderAttributeName,
 					@DescribeParameter(name = "invertSidesAttribute", 
@@ -128,6 +99,43 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 					@DescribeParameter(name = "spacingBetweenStackEntries",
 							description = "The spacing between lines in a stack as well as to the original line itself. Default is 0",
 							defaultValue = "0") Integer spacingBetweenStackEntries,
+					@DescribeParameter(name = "offsetEngine",
+							description = "The engine used to build the offsetted lines."
+							+ " jts uses the JTS OffsetCurveBuilder with round joins."
+							+ " round and mitre use a lighter engine for open lines with round or mitred joins."
+							+ " Default: jts",
+							defaultValue = "jts") String offsetEngine,
+					@DescribeParameter(name = "enableScreenGeneralization",
+							description = "Snap the lines to a grid of a quarter pixel and remove vertices which are not visible in the output image"
+							+ " before building the offsetted lines. Identical lines stay identical."
+							+ " The default is Disabled (false).",
+							defaultValue = "false") boolean enableScreenGeneralization,
+					@DescribeParameter(name = "enableViewportClipping",
+							description = "Clip the lines to the output image expanded by the width of the stack before"
+							+ " building the offsetted lines, so the work depends on the size of the image instead of the length of the lines."
+							+ " Lines leaving and re-entering the image are split into multiple features."
+							+ " The default is Disabled (false).",
+							defaultValue = "false") boolean enableViewportClipping,
+					@DescribeParameter(name = "maxParallelism",
+							description = "The maximum number of threads used to build the offsetted lines of a request."
+							+ " Each thread builds complete stacks. The result is the same regardless of this value."
+							+ " The value is capped by the system property "+WorkerPool.MAX_PARALLELISM_PROPERTY
+							+ " which defaults to the number of processors."
+							+ " The default is 1 (no parallel processing).",
+							defaultValue = "1") Integer maxParallelism,
+					@DescribeParameter(name = "stackKeyAttribute",
+							description = "The name of an attribute which is equal for features with equal geometries, for example a precomputed hash of the geometry."
+							+ " When set, the features are requested sorted by this attribute from the datasource and the stacks are aggregated and built while"
+							+ " the features are read, so only the features of a few stacks are kept in memory."
+							+ " Input which is not sorted by this attribute causes an error."
+							+ " Leave unset to read all features before building the stacks.",
+							defaultValue = "") String stackKeyAttributeName,
+					@DescribeParameter(name = "queryBufferInPixels",
+							description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded,"
+							+ " so stacks of features outside of the map which reach into the map are drawn."
+							+ " The default (-1) derives the distance from maxLineWidth and spacingBetweenStackEntries."
+							+ " Larger stacks or widths set by the renderScript or the widthExpression may need a larger value.",
+							defaultValue = "-1") Integer queryBufferInPixels,
 							
 				    // --- javascript related parameters 
 					@DescribeParameter(name = "renderScript",
@@ -135,14 +143,24 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 							+" Bypasses minLineWidth and maxLineWidth."
 							+" For a more detailed documentation check the README.",
 							defaultValue = "") String renderScript,
+					@DescribeParameter(name = "widthExpression",
+							description="An arithmetic expression calculating the width of the lines in pixels from the variables featureLength, aggCount, customVariable1 and customVariable2,"
+							+" for example \"clamp(aggCount * 2, 4, 20)\". Evaluated without a javascript interpreter, so it is a faster alternative to the renderScript."
+							+" Can not be used together with the renderScript. Bypasses minLineWidth and maxLineWidth."
+							+" For a more detailed documentation check the README.",
+							defaultValue = "") String widthExpression,
 					@DescribeParameter(name = "scriptCustomVariable1",
-							description="A value which will be exposed in the script as a global variable with the name customVariable1."
+							description="A value which will be exposed in the script and the widthExpression as a global variable with the name customVariable1."
 							+" The variable will only be available after the initial evaluation of the script, so it should only be used from the defined functions. Otherwise an \"undefined\" error will be raised."
+							+" The widthExpression uses the value as a number converted like javascript does (empty values are 0, values which are not numbers are NaN)."
+							+" The script gets the value as a string, so + and the value as a condition behave differently in the widthExpression and the script."
 							+" Useful to pass SLD and WMS parameters to the script. For example \"wms_scale_denominator\"",
 							defaultValue = "") String scriptCustomVariable1,
 					@DescribeParameter(name = "scriptCustomVariable2",
-							description="A value which will be exposed in the script as a global variable with the name customVariable2."
+							description="A value which will be exposed in the script and the widthExpression as a global variable with the name customVariable2."
 							+" The variable will only be available after the initial evaluation of the script, so it should only be used from the defined functions. Otherwise an \"undefined\" error will be raised."
+							+" The widthExpression uses the value as a number converted like javascript does (empty values are 0, values which are not numbers are NaN)."
+							+" The script gets the value as a string, so + and the value as a condition behave differently in the widthExpression and the script."
 							+" Useful to pass SLD and WMS parameters to the script. For example \"wms_scale_denominator\"",
 							defaultValue = "") String scriptCustomVariable2,		
 							
@@ -161,6 +179,12 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 							+ " This will be logged on the INFO level. "
 							+ " The default is Disabled (false).",
 							defaultValue = "false") boolean enableDurationMeasurement,
+					@DescribeParameter(name = "requestTimeout",
+							description = "The time in seconds the transformation may spend on a request before it is aborted with an error."
+							+ " The value is capped by the system property "+RequestDeadline.REQUEST_TIMEOUT_PROPERTY+"."
+							+ " Requests canceled by geoserver are always aborted."
+							+ " The default is 0 (no limit).",
+							defaultValue = "0") Integer requestTimeout,
 					@DescribeParameter(name = "debugSqlFile", 
 							description = "Name of the file to write SQL insert statements of the generated polygons to."
 							+ " Other attributes will not be written."
@@ -169,6 +193,7 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 					ProgressListener monitor
 			) throws ProcessException {
 		
+		final RequestDeadline deadline = RequestDeadline.start(monitor, requestTimeout);
 		final SimpleFeatureType inputFeatureType = collection.getSchema();
 		this.assertInputGeometryType(inputFeatureType, LineString.class);
 		
@@ -181,122 +206,287 @@ public class AggregateAsLineStacksProcess extends AbstractStackProcess implement
 		if (spacingBetweenStackEntries<0) {
 			throw new ProcessException("spacingBetweenStackEntries has to be a positive value or 0, but currently is "+spacingBetweenStackEntries);
 		}
+		this.assertOffsetEngine(offsetEngine);
 		
-		AggregateAsLineStacksScript scriptRunner = null;
+		final String script = (renderScript != null && !renderScript.trim().equals("")) ? renderScript : null;
+		if (script != null) {
+			// fail early on scripts which do not compile
+			createScriptRunner(script, scriptCustomVariable1, scriptCustomVariable2, deadline).terminate();
+		}
+		final WidthExpression compiledWidthExpression = compileWidthExpression(widthExpression, renderScript);
+		final double customVariable1 = WidthExpression.parseVariable(scriptCustomVariable1);
+		final double customVariable2 = WidthExpression.parseVariable(scriptCustomVariable2);
+
+		// create a full list of attributes to aggregate by
+		final ArrayList<String> aggregationAttributes = ParameterHelper.splitAt(attributes, ",");
+		if (orderAttributeName != null && !orderAttributeName.equals("")) {
+			aggregationAttributes.add(orderAttributeName);
+		}
+		if (invertSidesAttributeName != null && !invertSidesAttributeName.equals("")) {
+			aggregationAttributes.add(invertSidesAttributeName);
+		}
 		
+		monitor.started();
+		final RequestMetrics requestMetrics = METRICS.startRequest();
+		
+		final ColumnarFeatureCollection outputCollection;
 		try {
-			
-			if (renderScript != null && !renderScript.trim().equals("")) {
-				LOGGER.info("creating scriptRunner");
-				try {
-					scriptRunner = new AggregateAsLineStacksScript(renderScript);
-					scriptRunner.registerVariable("customVariable1", scriptCustomVariable1);
-					scriptRunner.registerVariable("customVariable2", scriptCustomVariable2);
-				} catch (ScriptException e) {
-					throw new ProcessException(e.getMessage(), e);
-				}
-			}
-
-			// create a full list of attributes to aggregate by
-			final ArrayList<String> aggregationAttributes = ParameterHelper.splitAt(attributes, ",");
-			if (orderAttributeName != null && !orderAttributeName.equals("")) {
-				aggregationAttributes.add(orderAttributeName);
-			}
-			if (invertSidesAttributeName != null && !invertSidesAttributeName.equals("")) {
-				aggregationAttributes.add(invertSidesAttributeName);
-			}
-			
-			monitor.started();
-			
-			// aggregate the features as simple lines for further processing
+			// aggregate the features and group the aggregates with similar geometries to
+			// calculate the feature stacking
 			final SimpleFeatureAggregator aggregator = new SimpleFeatureAggregator(aggregationAttributes);
 			aggregator.setMeasuringEnabled(enableDurationMeasurement);
-			final SimpleFeatureCollection aggLinesCollection = aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
-			
-			// create hashes again, this time only respecting the geometry itself to allow grouping similar geometries to
-			// calculate the feature stacking
-			final HashMap<Integer, List<SimpleFeature>> stacks = this.createStacksOfSimilarGeometries(aggLinesCollection, enableDurationMeasurement);
+			aggregator.setDeadline(deadline);
+			aggregator.setRequestMetrics(requestMetrics);
+			final SimpleFeatureType outputSchema = buildOutputFeatureType(
+					aggregator.buildStacksSchema(collection.getSchema(), AGG_COUNT_ATTRIBUTE_NAME), WIDTH_ATTRIBUTE_NAME);
+			outputCollection = new ColumnarFeatureCollection(outputSchema, false);
 			
-			SimpleFeatureType outputSchema = buildOutputFeatureType(aggLinesCollection.getSchema(), WIDTH_ATTRIBUTE_NAME);
-			final ListFeatureCollection outputCollection = new ListFeatureCollection(outputSchema);
-			final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputSchema);
+			final String finalOrderAttributeName = orderAttributeName;
+			final String finalInvertSidesAttributeName = invertSidesAttributeName;
+			final int finalMinLineWidth = minLineWidth;
+			final int finalMaxLineWidth = maxLineWidth;
+			final boolean finalDrawOnBothSides = drawOnBothSides;
+			final int finalSpacingBetweenStackEntries = spacingBetweenStackEntries;
+			final String finalOffsetEngine = offsetEngine;
+			final boolean finalEnableScreenGeneralization = enableScreenGeneralization;
+			final boolean finalEnableViewportClipping = enableViewportClipping;
+			final String finalScriptCustomVariable1 = scriptCustomVariable1;
+			final String finalScriptCustomVariable2 = scriptCustomVariable2;
+			final ReferencedEnvelope finalOutputEnv = outputEnv;
+			final int finalOutputWidth = outputWidth;
+			final int finalOutputHeight = outputHeight;
+			final StackBuilderFactory stackBuilderFactory = new StackBuilderFactory() {
+				public StackBuilder createStackBuilder() {
+					final OffsetCurveEngine offsetCurveEngine = createOffsetCurveEngine(finalOffsetEngine, finalEnableScreenGeneralization, 
+							finalOutputEnv, finalOutputWidth, finalOutputHeight);
+					final ViewportClipper clipper = finalEnableViewportClipping ? 
+							createViewportClipper(finalOutputEnv, finalOutputWidth, finalOutputHeight) : null;
+					final AggregateAsLineStacksScript scriptRunner = (script != null) ? 
+							createScriptRunner(script, finalScriptCustomVariable1, finalScriptCustomVariable2, deadline) : null;
+					return new AggregateStacksBuilder(offsetCurveEngine, clipper, outputSchema, scriptRunner, compiledWidthExpression, customVariable1, customVariable2,
+							finalOrderAttributeName,
+							finalInvertSidesAttributeName, finalMinLineWidth, finalMaxLineWidth, finalDrawOnBothSides,
+							finalSpacingBetweenStackEntries, finalOutputEnv, finalOutputWidth, finalOutputHeight);
+				}
+			};
 			
 			// build the offsetted lines
-			final FeatureOrderComparator comparator = new FeatureOrderComparator();
-			comparator.setOrderAttributeName(orderAttributeName);
-			for (List<SimpleFeature> stackFeatures: stacks.values()) {
-				Collections.sort(stackFeatures, comparator);
-				double stackOffsetInPixels = (double)spacingBetweenStackEntries;
-				for(final SimpleFeature feature: stackFeatures) {
-					try {
-
-						// find the width of the line
-						final int aggCount = Integer.parseInt(feature.getAttribute(AGG_COUNT_ATTRIBUTE_NAME).toString());
-						int featureWidthInPixels = 0;
-						
-						if (scriptRunner != null) {
-							try {
-								double featureLength = 0.0;
-								Object geom = feature.getDefaultGeometry();
-								if (geom != null) {
-									LineString lineString = (LineString)geom;
-									featureLength = lineString.getLength();
-								}
-								featureWidthInPixels = scriptRunner.getFeatureWidth(featureLength, aggCount);
-							} catch (ScriptException e) {
-								throw new ProcessException(e);
-							}
-						} else {
-							featureWidthInPixels = Math.min( Math.max(minLineWidth, aggCount), maxLineWidth);
-						}
-						
-						double baseOffsetMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, stackOffsetInPixels);
-						double featureWidthInMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, featureWidthInPixels);
-						double offsetMapUnits = calculateOffsetInMapUnits(baseOffsetMapUnits, featureWidthInMapUnits,  drawOnBothSides);
-						
-						/*
-						if (aggCount>2) {
-							LOGGER.info(
-									"aggCount: "+aggCount
-									+"; spacingBetweenStackEntries:"+(double)spacingBetweenStackEntries
-									+"; maxLineWidth: "+maxLineWidth
-									+"; minLineWidth: "+minLineWidth
-									+"; featureWidthInPixels: "+featureWidthInPixels+"px"
-									+"; featureWidthInMapUnits: "+featureWidthInMapUnits
-									+"; stackOffsetInPixels: "+stackOffsetInPixels
-									+"; offsetMapUnits: "+offsetMapUnits
-									+"; klasse_color: "+feature.getAttribute("klasse_color").toString()
-									);
-						}
-						*/
-						
-						stackOffsetInPixels = addDrawableLines(outputCollection, featureBuilder, feature, 
-								outputSchema, offsetMapUnits, featureWidthInPixels, stackOffsetInPixels, spacingBetweenStackEntries,
-								drawOnBothSides, invertSidesAttributeName, WIDTH_ATTRIBUTE_NAME);
-						
-					} catch (IllegalArgumentException e) {
-						// possible cause: JTS: Invalid number of points in LineString (found 1 - must be 0 or >= 2)
-						LOGGER.warning("Ignoring possible illegal feature: " + e.getMessage());
-					}
+			final int parallelism = WorkerPool.getParallelism(maxParallelism);
+			long numOutputCoordinates;
+			if (stackKeyAttributeName != null && !stackKeyAttributeName.equals("")) {
+				final StackStream stackStream = new StackStream(stackBuilderFactory, parallelism, deadline, requestMetrics, outputCollection);
+				try {
+					aggregator.aggregateAsSortedStacks(collection, AGG_COUNT_ATTRIBUTE_NAME, stackKeyAttributeName, stackStream);
+					numOutputCoordinates = stackStream.finish();
+				} finally {
+					stackStream.close();
 				}
+			} else {
+				final AggregateStacks aggregateStacks = aggregator.aggregateAsStacks(collection, AGG_COUNT_ATTRIBUTE_NAME);
+				numOutputCoordinates = this.buildStacks(aggregateStacks.getStacks(), stackBuilderFactory, parallelism, deadline, 
+						requestMetrics, outputCollection);
 			}
+			LOGGER.fine("Built offsetted lines with "+numOutputCoordinates+" coordinates");
+			requestMetrics.finish(outputCollection.size(), numOutputCoordinates);
+		} catch (RuntimeException e) {
+			requestMetrics.fail();
+			throw e;
+		}
+		
+		monitor.complete();
+		
+		if (!debugSqlFile.equals("")) {
+			LOGGER.warning("Writing debugSqlFile to "+debugSqlFile+". This should only be activated for debugging purposes.");
+			DebugIO.dumpCollectionToSQLFile(outputCollection, debugSqlFile, "stacked_lines");
+		}
+		
+		LOGGER.info("Returning a collection with "+outputCollection.size()+" features");
+		
+		return outputCollection;
+	}
+	
+	/**
+	 * the Rhino context is bound to the thread, so the script has to be created on
+	 * the thread using it
+	 */
+	private static AggregateAsLineStacksScript createScriptRunner(final String renderScript, final String scriptCustomVariable1, 
+			final String scriptCustomVariable2, final RequestDeadline deadline) throws ProcessException {
+		LOGGER.fine("creating scriptRunner");
+		try {
+			final AggregateAsLineStacksScript scriptRunner = new AggregateAsLineStacksScript(renderScript, deadline);
+			scriptRunner.registerVariable("customVariable1", scriptCustomVariable1);
+			scriptRunner.registerVariable("customVariable2", scriptCustomVariable2);
+			return scriptRunner;
+		} catch (ScriptException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * builds the lines of the stacks. Every thread uses its own instance.
+	 */
+	private class AggregateStacksBuilder extends StackBuilder {
+		
+		private final AggregateAsLineStacksScript scriptRunner;
+		private final WidthExpression widthExpression;
+		private final double customVariable1;
+		private final double customVariable2;
+		private final FeatureOrderSorter sorter = new FeatureOrderSorter();
+		private final String invertSidesAttributeName;
+		private final int minLineWidth;
+		private final int maxLineWidth;
+		private final boolean drawOnBothSides;
+		private final int spacingBetweenStackEntries;
+		private final ReferencedEnvelope outputEnv;
+		private final int outputWidth;
+		private final int outputHeight;
+		private double[] featureLengths = new double[0];
+		private int[] aggCounts = new int[0];
+		private int[] featureWidths = new int[0];
+		
+		AggregateStacksBuilder(final OffsetCurveEngine offsetCurveEngine, final ViewportClipper clipper, final SimpleFeatureType outputSchema,
+				final AggregateAsLineStacksScript scriptRunner, final WidthExpression widthExpression, final double customVariable1, final double customVariable2,
+				final String orderAttributeName, final String invertSidesAttributeName,
+				final int minLineWidth, final int maxLineWidth, final boolean drawOnBothSides, final int spacingBetweenStackEntries,
+				final ReferencedEnvelope outputEnv, final int outputWidth, final int outputHeight) {
+			super(offsetCurveEngine, clipper, outputSchema, WIDTH_ATTRIBUTE_NAME);
+			this.scriptRunner = scriptRunner;
+			this.widthExpression = widthExpression;
+			this.customVariable1 = customVariable1;
+			this.customVariable2 = customVariable2;
+			this.sorter.setOrderAttributeName(orderAttributeName);
+			this.invertSidesAttributeName = invertSidesAttributeName;
+			this.minLineWidth = minLineWidth;
+			this.maxLineWidth = maxLineWidth;
+			this.drawOnBothSides = drawOnBothSides;
+			this.spacingBetweenStackEntries = spacingBetweenStackEntries;
+			this.outputEnv = outputEnv;
+			this.outputWidth = outputWidth;
+			this.outputHeight = outputHeight;
+		}
+		
+		@Override
+		protected void buildStack(final List<SimpleFeature> stackFeatures, final ColumnarFeatureCollection outputCollection) {
+			final long sortStart = this.startStage();
+			this.sorter.sort(stackFeatures);
+			this.stopStage(Stage.SORT, sortStart);
+			final int numFeatures = stackFeatures.size();
+			this.ensureCapacity(numFeatures);
 			
-			monitor.complete();
-			
-			if (!debugSqlFile.equals("")) {
-				LOGGER.warning("Writing debugSqlFile to "+debugSqlFile+". This should only be activated for debugging purposes.");
-				DebugIO.dumpCollectionToSQLFile(outputCollection, debugSqlFile, "stacked_lines");
+			// find the widths of the lines. The script gets called once for the whole stack
+			final long scriptStart = this.startStage();
+			for (int i=0; i<numFeatures; i++) {
+				final SimpleFeature feature = stackFeatures.get(i);
+				final int aggCount = Integer.parseInt(feature.getAttribute(AGG_COUNT_ATTRIBUTE_NAME).toString());
+				if (this.scriptRunner != null) {
+					double featureLength = 0.0;
+					Object geom = feature.getDefaultGeometry();
+					if (geom != null) {
+						LineString lineString = (LineString)geom;
+						featureLength = lineString.getLength();
+					}
+					this.featureLengths[i] = featureLength;
+					this.aggCounts[i] = aggCount;
+				} else if (this.widthExpression != null) {
+					this.featureWidths[i] = evaluateWidthExpression(this.widthExpression, feature, aggCount,
+							this.customVariable1, this.customVariable2);
+				} else {
+					this.featureWidths[i] = Math.min( Math.max(this.minLineWidth, aggCount), this.maxLineWidth);
+				}
+			}
+			if (this.scriptRunner != null) {
+				try {
+					this.scriptRunner.getFeatureWidths(this.featureLengths, this.aggCounts, numFeatures, this.featureWidths);
+				} catch (ScriptException e) {
+					throw new ProcessException(e);
+				}
+			}
+			if (this.scriptRunner != null || this.widthExpression != null) {
+				this.stopStage(Stage.SCRIPT, scriptStart);
 			}
 			
-			LOGGER.info("Returning a collection with "+outputCollection.size()+" features");
+			double stackOffsetInPixels = (double)this.spacingBetweenStackEntries;
+			for (int i=0; i<numFeatures; i++) {
+				final SimpleFeature feature = stackFeatures.get(i);
+				final int featureWidthInPixels = this.featureWidths[i];
+				
+				double baseOffsetMapUnits = MapUnits.pixelDistanceToMapUnits(this.outputEnv, this.outputWidth, this.outputHeight, stackOffsetInPixels);
+				double featureWidthInMapUnits = MapUnits.pixelDistanceToMapUnits(this.outputEnv, this.outputWidth, this.outputHeight, featureWidthInPixels);
+				double offsetMapUnits = calculateOffsetInMapUnits(baseOffsetMapUnits, featureWidthInMapUnits, this.drawOnBothSides);
+				
+				stackOffsetInPixels = addDrawableLines(this.stackLines, feature, 
+						offsetMapUnits, featureWidthInPixels, stackOffsetInPixels, this.spacingBetweenStackEntries,
+						this.drawOnBothSides, this.invertSidesAttributeName);
+			}
 			
-			return outputCollection;
-		} finally {
-			if (scriptRunner != null) {
-				scriptRunner.terminate();
+			// all lines of the stack share the geometry
+			this.buildQueuedLines(outputCollection);
+		}
+		
+		private void ensureCapacity(final int numFeatures) {
+			if (this.featureWidths.length < numFeatures) {
+				final int capacity = Math.max(numFeatures, this.featureWidths.length * 2);
+				this.featureLengths = new double[capacity];
+				this.aggCounts = new int[capacity];
+				this.featureWidths = new int[capacity];
 			}
 		}
 		
+		@Override
+		protected void dispose() {
+			if (this.scriptRunner != null) {
+				this.scriptRunner.terminate();
+			}
+		}
 	}
 	
+	/**
+	 * only read the attributes needed for the aggregation from the datasource and 
+	 * expand the bbox by the size of a stack entry.
+	 * 
+	 * @return
+	 * @throws ProcessException
+	 */
+	public Query invertQuery(
+					@DescribeParameter(name = "attributes", 
+							description = "Comma-seperated string of attributes to include in the aggregation") String attributes,
+					@DescribeParameter(name = "orderAttribute", 
+							description = "The name attribute of the input collection which contains the value for the ordering of the line stacks.", 
+							defaultValue = "") String orderAttributeName,
+					@DescribeParameter(name = "invertSidesAttribute", 
+							description = "The name attribute of the input collection which contains the boolean value for inverting the sides on which the stacks are drawn.",
+							defaultValue = "") String invertSidesAttributeName,
+					@DescribeParameter(name = "maxLineWidth",
+							description = "The maximum width of a line in pixels.",
+							defaultValue = "80") Integer maxLineWidth,
+					@DescribeParameter(name = "spacingBetweenStackEntries",
+							description = "The spacing between lines in a stack as well as to the original line itself. Default is 0",
+							defaultValue = "0") Integer spacingBetweenStackEntries,
+					@DescribeParameter(name = "stackKeyAttribute",
+							description = "The name of an attribute which is equal for features with equal geometries, for example a precomputed hash of the geometry."
+							+ " When set, the features are requested sorted by this attribute from the datasource and the stacks are aggregated and built while"
+							+ " the features are read, so only the features of a few stacks are kept in memory."
+							+ " Input which is not sorted by this attribute causes an error."
+							+ " Leave unset to read all features before building the stacks.",
+							defaultValue = "") String stackKeyAttributeName,
+					@DescribeParameter(name = "queryBufferInPixels",
+							description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded.",
+							defaultValue = "-1") Integer queryBufferInPixels,
+					@DescribeParameter(name = "outputBBOX", 
+							description = "Bounding box for target image extent. Should be set using the env function from the WMS-Parameters.") ReferencedEnvelope outputEnv,
+					@DescribeParameter(name = "outputWidth",
+							description = "Target image width in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputWidth,
+					@DescribeParameter(name = "outputHeight",
+							description = "Target image height in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputHeight,
+					Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
+		
+		final ArrayList<String> requiredAttributes = ParameterHelper.splitAt(attributes, ",");
+		requiredAttributes.add(orderAttributeName);
+		requiredAttributes.add(invertSidesAttributeName);
+		requiredAttributes.add(stackKeyAttributeName);
+		
+		final double bufferInMapUnits = this.getQueryBufferInMapUnits(outputEnv, outputWidth, outputHeight, 
+				queryBufferInPixels, maxLineWidth + 2 * spacingBetweenStackEntries);
+		return this.sortTargetQuery(this.invertTargetQuery(targetQuery, bufferInMapUnits, requiredAttributes), stackKeyAttributeName);
+	}
 }
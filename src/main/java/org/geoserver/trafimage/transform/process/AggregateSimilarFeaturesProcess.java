@@ -6,12 +6,19 @@
 package org.geoserver.trafimage.transform.process;
 
 import org.geoserver.trafimage.transform.SimpleFeatureAggregator;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.ProcessMetrics;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geoserver.trafimage.transform.util.WorkerPool;
 import org.geoserver.wps.gs.GeoServerProcess;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
+import org.opengis.coverage.grid.GridGeometry;
 import org.opengis.util.ProgressListener;
 
 /*
@@ -28,6 +35,7 @@ import org.opengis.util.ProgressListener;
 public class AggregateSimilarFeaturesProcess extends VectorProcess implements GeoServerProcess  {
 
 	private static final String AGG_COUNT_ATTRIBUTE_NAME = "agg_count";
+	private static final ProcessMetrics METRICS = MetricsRegistry.getProcessMetrics("AggregateSimilarFeatures");
 	
 	public AggregateSimilarFeaturesProcess() {
 	}
@@ -49,6 +57,20 @@ public class AggregateSimilarFeaturesProcess extends VectorProcess implements Ge
 			
 			// processing parameters
 			@DescribeParameter(name = "attributes", description = "Comma-seperated string of attributes to include in the aggregation") String attributes,
+			@DescribeParameter(name = "maxParallelism",
+					description = "The maximum number of threads used to aggregate the features of a request."
+					+ " The features are still read by a single thread. The result is the same regardless of this value."
+					+ " The value is capped by the system property "+WorkerPool.MAX_PARALLELISM_PROPERTY
+					+ " which defaults to the number of processors."
+					+ " The default is 1 (no parallel processing).",
+					defaultValue = "1") Integer maxParallelism,
+			@DescribeParameter(name = "enableDatabaseAggregation",
+					description = "Let the database aggregate the features using a GROUP BY query when the collection"
+					+ " is read from a JDBC datastore. Only the aggregates will be transferred from the database then."
+					+ " Features from other datastores are always aggregated in memory."
+					+ " The order and the ids of the aggregated features differ from the aggregation in memory."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableDatabaseAggregation,
 
 			// other
 			@DescribeParameter(name = "enableDurationMeasurement",
@@ -56,13 +78,48 @@ public class AggregateSimilarFeaturesProcess extends VectorProcess implements Ge
 					+ " This will be logged on the INFO level. "
 					+ " The default is Disabled (false).",
 					defaultValue = "false") boolean enableDurationMeasurement,
+			@DescribeParameter(name = "requestTimeout",
+					description = "The time in seconds the transformation may spend on a request before it is aborted with an error."
+					+ " The value is capped by the system property "+RequestDeadline.REQUEST_TIMEOUT_PROPERTY+"."
+					+ " Requests canceled by geoserver are always aborted."
+					+ " The default is 0 (no limit).",
+					defaultValue = "0") Integer requestTimeout,
 					
 			ProgressListener monitor
 			) throws ProcessException {
 			
 		SimpleFeatureAggregator aggregator = new SimpleFeatureAggregator(ParameterHelper.splitAt(attributes, ","));
 		aggregator.setMeasuringEnabled(enableDurationMeasurement);
-		return aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
+		aggregator.setDatabaseAggregationEnabled(enableDatabaseAggregation);
+		aggregator.setParallelism(maxParallelism);
+		aggregator.setDeadline(RequestDeadline.start(monitor, requestTimeout));
+		
+		final RequestMetrics requestMetrics = METRICS.startRequest();
+		aggregator.setRequestMetrics(requestMetrics);
+		try {
+			final SimpleFeatureCollection result = aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
+			// the aggregates reference the geometries of the input features
+			requestMetrics.finish(result.size(), 0);
+			return result;
+		} catch (RuntimeException e) {
+			requestMetrics.fail();
+			throw e;
+		}
+	}
+	
+	/**
+	 * only read the attributes included in the aggregation from the datasource
+	 * 
+	 * @param attributes
+	 * @param targetQuery
+	 * @param targetGridGeometry
+	 * @return
+	 * @throws ProcessException
+	 */
+	public Query invertQuery(
+			@DescribeParameter(name = "attributes", description = "Comma-seperated string of attributes to include in the aggregation") String attributes,
+			Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
+		return this.invertTargetQuery(targetQuery, 0.0, ParameterHelper.splitAt(attributes, ","));
 	}
 	
 }
@@ -6,20 +6,31 @@
 package org.geoserver.trafimage.transform.process;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Logger;
 
+import org.geoserver.trafimage.transform.ColumnarFeatureCollection;
 import org.geoserver.trafimage.transform.LineToPolygonConverter;
 import org.geoserver.trafimage.transform.LinearPolygonDrawingAlgorithm;
 import org.geoserver.trafimage.transform.LogarithmicPolygonDrawingAlgorithm;
 import org.geoserver.trafimage.transform.MapUnits;
 import org.geoserver.trafimage.transform.PolygonDrawingAlgorithm;
+import org.geoserver.trafimage.transform.ScreenGeneralizer;
 import org.geoserver.trafimage.transform.SimpleFeatureAggregator;
+import org.geoserver.trafimage.transform.ViewportClipper;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.ProcessMetrics;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
 import org.geoserver.trafimage.transform.util.DebugIO;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
 import org.geoserver.wps.gs.GeoServerProcess;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -28,12 +39,11 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridGeometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
-import org.opengis.filter.sort.SortBy;
-import org.opengis.filter.sort.SortOrder;
 import org.opengis.util.ProgressListener;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -51,6 +61,7 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 	private static final String POLYGON_WIDTH_ATTRIBUTE_NAME = "polygon_width";
 	
 	private static final Logger LOGGER = Logging.getLogger(AggregateSimilarLinesAsPolygonsProcess.class);
+	private static final ProcessMetrics METRICS = MetricsRegistry.getProcessMetrics("AggregateSimilarLinesAsPolygons");
 	
 	public AggregateSimilarLinesAsPolygonsProcess() {
 	}
@@ -118,9 +129,20 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 					description = "The maximum width of a polygon in pixels.",
 					defaultValue = "20") Integer maxPolygonWidth,
 			@DescribeParameter(name = "enableArtifactRemoval",
-					description = "Attempt to remove rendering artifacts in polygons."
-					+ " This is a very expensive operation and will only run in a acceptable time when there are just a few features.",
+					description = "Attempt to remove rendering artifacts in polygons by cutting off the loops at the joins of the"
+					+ " sides of the polygons. The default is Disabled (false).",
 					defaultValue = "false") boolean enableArtifactRemoval,
+			@DescribeParameter(name = "enableScreenGeneralization",
+					description = "Snap the lines to a grid of a quarter pixel and remove vertices which are not visible in the output image"
+					+ " before building the polygons. Identical lines stay identical."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableScreenGeneralization,
+			@DescribeParameter(name = "enableViewportClipping",
+					description = "Clip the lines to the output image expanded by the offset and width of the polygon before"
+					+ " building the polygons, so the work depends on the size of the image instead of the length of the lines."
+					+ " Lines leaving and re-entering the image are split into multiple features."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableViewportClipping,
 			@DescribeParameter(name = "maxPolygonWidthFeatureCount",
 					description = "The number of features which have to be in an aggregation for the polygon to be drawn with <maxPolygonWidth>."
 					+ " This parameter is optional and allows overriding the default. The default is the number of features in the"
@@ -129,6 +151,18 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 					+ " This, of course, will result in all values above this parameter being squashed at the <maxPolygonWidth>."
 					+ " Value has to be an positive Integer larger than 0.",
 					defaultValue = "0") Integer maxPolygonWidthFeatureCount,
+			@DescribeParameter(name = "enableDatabaseAggregation",
+					description = "Let the database aggregate the features using a GROUP BY query when the collection"
+					+ " is read from a JDBC datastore. Only the aggregates will be transferred from the database then."
+					+ " Features from other datastores are always aggregated in memory."
+					+ " The order and the ids of the aggregated features differ from the aggregation in memory."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableDatabaseAggregation,
+			@DescribeParameter(name = "queryBufferInPixels",
+					description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded,"
+					+ " so features outside of the map which reach into the map after the transformation are read."
+					+ " The default (-1) derives the distance from maxPolygonWidth. Polygons with an offset larger than half of maxPolygonWidth need a larger value.",
+					defaultValue = "-1") Integer queryBufferInPixels,
 	/*			
 			@DescribeParameter(name = "widthAttribute", 
 					description = "The name attribute of the input collection which contains the value for the width of the generated polygon."
@@ -158,10 +192,17 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 					+ " This will be logged on the INFO level. "
 					+ " The default is Disabled (false).",
 					defaultValue = "false") boolean enableDurationMeasurement,
+			@DescribeParameter(name = "requestTimeout",
+					description = "The time in seconds the transformation may spend on a request before it is aborted with an error."
+					+ " The value is capped by the system property "+RequestDeadline.REQUEST_TIMEOUT_PROPERTY+"."
+					+ " Requests canceled by geoserver are always aborted."
+					+ " The default is 0 (no limit).",
+					defaultValue = "0") Integer requestTimeout,
 					
 			ProgressListener monitor
 			) throws ProcessException {
 					
+		final RequestDeadline deadline = RequestDeadline.start(monitor, requestTimeout);
 		final SimpleFeatureType inputFeatureType = collection.getSchema();
 		this.assertInputGeometryType(inputFeatureType, LineString.class);
 		
@@ -182,75 +223,117 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 		monitor.started();
 		monitor.progress(0.0f);
 		
-		// aggregate the features as simple lines for further processing
-		final SimpleFeatureAggregator aggregator = new SimpleFeatureAggregator(aggregationAttributes);
-		aggregator.setMeasuringEnabled(enableDurationMeasurement);
-		final SimpleFeatureCollection aggLinesCollection = aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
-		if (maxPolygonWidthFeatureCount>0) {
-			drawingAlgo.setMaxPolygonWidthFeatureCount(maxPolygonWidthFeatureCount);
-		} else {
-			drawingAlgo.setMaxPolygonWidthFeatureCount(aggregator.getAggregationStatistics().numMaxEntriesInAggregate);
-		}
-		drawingAlgo.setAggCountAttributeName(AGG_COUNT_ATTRIBUTE_NAME);
-		
-		final SimpleFeatureType outputFeatureType = buildPolygonFeatureType(inputFeatureType);
-		final ListFeatureCollection outputCollection = new ListFeatureCollection(outputFeatureType);
-		
-		final LineToPolygonConverter lineToPolygon = new LineToPolygonConverter();
-		lineToPolygon.setCenterOnLine(drawingAlgo.getCenterOnLine());
-		lineToPolygon.setEnableArtifactRemoval(enableArtifactRemoval);
-		lineToPolygon.setMeasuringEnabled(enableDurationMeasurement);
-		
-		// build polygons
-		final SimpleFeatureIterator aggLinesIt = aggLinesCollection.features();
-		final int aggLinesCount = aggLinesCollection.size();
-		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputFeatureType);
+		final RequestMetrics requestMetrics = METRICS.startRequest();
+		final SimpleFeatureCollection sortedOutputCollection;
 		try {
-			int aggLineI = 0;
-			while (aggLinesIt.hasNext()) {
-				final SimpleFeature aggLine = aggLinesIt.next();
+			// aggregate the features as simple lines for further processing
+			final SimpleFeatureAggregator aggregator = new SimpleFeatureAggregator(aggregationAttributes);
+			aggregator.setMeasuringEnabled(enableDurationMeasurement);
+			aggregator.setDatabaseAggregationEnabled(enableDatabaseAggregation);
+			aggregator.setDeadline(deadline);
+			aggregator.setRequestMetrics(requestMetrics);
+			final SimpleFeatureCollection aggLinesCollection = aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
+			if (maxPolygonWidthFeatureCount>0) {
+				drawingAlgo.setMaxPolygonWidthFeatureCount(maxPolygonWidthFeatureCount);
+			} else {
+				drawingAlgo.setMaxPolygonWidthFeatureCount(aggregator.getAggregationStatistics().numMaxEntriesInAggregate);
+			}
+			drawingAlgo.setAggCountAttributeName(AGG_COUNT_ATTRIBUTE_NAME);
+			
+			final SimpleFeatureType outputFeatureType = buildPolygonFeatureType(inputFeatureType);
+			final WidthBuckets widthBuckets = new WidthBuckets(outputFeatureType);
+			
+			final LineToPolygonConverter lineToPolygon = new LineToPolygonConverter(this.createCurveBuilder(outputEnv, outputWidth, outputHeight));
+			lineToPolygon.setCenterOnLine(drawingAlgo.getCenterOnLine());
+			lineToPolygon.setEnableArtifactRemoval(enableArtifactRemoval);
+			lineToPolygon.setMeasuringEnabled(enableDurationMeasurement);
+			final ScreenGeneralizer generalizer = enableScreenGeneralization ? 
+					this.createScreenGeneralizer(outputEnv, outputWidth, outputHeight) : null;
+			final ViewportClipper clipper = enableViewportClipping ? 
+					this.createViewportClipper(outputEnv, outputWidth, outputHeight) : null;
+			
+			// build polygons
+			final SimpleFeatureIterator aggLinesIt = aggLinesCollection.features();
+			final int aggLinesCount = aggLinesCollection.size();
+			final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputFeatureType);
+			try {
+				int aggLineI = 0;
+				while (aggLinesIt.hasNext()) {
+					deadline.check();
+					final SimpleFeature aggLine = aggLinesIt.next();
 				
-				monitor.progress((float)aggLineI/(float)aggLinesCount);
+					monitor.progress((float)aggLineI/(float)aggLinesCount);
 				
-				final double widthPx = drawingAlgo.getPolygonWidth(aggLine);
-				final double offsetPx = drawingAlgo.getPolygonOffset(aggLine);
+					final double widthPx = drawingAlgo.getPolygonWidth(aggLine);
+					final double offsetPx = drawingAlgo.getPolygonOffset(aggLine);
 				
-				lineToPolygon.setWidth(MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, widthPx));
-				lineToPolygon.setOffset(MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, offsetPx));
+					final double widthInMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, widthPx);
+					final double offsetInMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, offsetPx);
+					lineToPolygon.setWidth(widthInMapUnits);
+					lineToPolygon.setOffset(offsetInMapUnits);
 				
-				// the geometry is field number 0. see buildPolygonFeatureType
-				Object lineGeometry = aggLine.getDefaultGeometry();
-				if (lineGeometry != null) {
-					if (!(lineGeometry instanceof LineString)) {
-						throw new ProcessException("Input geometries must be of the type LineString, is: "+lineGeometry.getClass().getName());
+					// the geometry is field number 0. see buildPolygonFeatureType
+					Object lineGeometry = aggLine.getDefaultGeometry();
+					List<LineString> lines = Collections.singletonList(null);
+					if (lineGeometry != null) {
+						if (!(lineGeometry instanceof LineString)) {
+							throw new ProcessException("Input geometries must be of the type LineString, is: "+lineGeometry.getClass().getName());
+						}
+						lines = Collections.singletonList((LineString) lineGeometry);
+						if (clipper != null) {
+							lines = clipper.clip((LineString) lineGeometry, Math.abs(offsetInMapUnits) + widthInMapUnits, 0.0);
+						}
 					}
-					featureBuilder.set(0, lineToPolygon.convert((LineString) lineGeometry));
-				}
 				
-				// copy attributes
-				for (final AttributeDescriptor descriptor: inputFeatureType.getAttributeDescriptors()) {
-					if (!(descriptor instanceof GeometryDescriptor)) {
-						final Object value = aggLine.getAttribute(descriptor.getName());
-						if (!(value instanceof Geometry)) {
-							featureBuilder.set(descriptor.getName(), value);
+					for (int p=0; p<lines.size(); p++) {
+						LineString line = lines.get(p);
+						if (line != null) {
+							if (generalizer != null) {
+								line = generalizer.generalize(line);
+							}
+							featureBuilder.set(0, lineToPolygon.convert(line));
+						}
+					
+						// copy attributes
+						for (final AttributeDescriptor descriptor: inputFeatureType.getAttributeDescriptors()) {
+							if (!(descriptor instanceof GeometryDescriptor)) {
+								final Object value = aggLine.getAttribute(descriptor.getName());
+								if (!(value instanceof Geometry)) {
+									featureBuilder.set(descriptor.getName(), value);
+								}
+							}
 						}
+						featureBuilder.set(POLYGON_WIDTH_ATTRIBUTE_NAME, widthPx);
+						// lines split by the clipping get one feature per part
+						widthBuckets.add(widthPx, featureBuilder.buildFeature(p == 0 ? aggLine.getID() : aggLine.getID() + "." + p));
 					}
+					aggLineI++;
 				}
-				featureBuilder.set(POLYGON_WIDTH_ATTRIBUTE_NAME, widthPx);
-				outputCollection.add(featureBuilder.buildFeature(aggLine.getID()));
-				aggLineI++;
+			} finally {
+				aggLinesIt.close();
 			}
-		} finally {
-			aggLinesIt.close();
-		}
-		
-		if (lineToPolygon.isMeasuringEnabled()) {
-			LOGGER.info("Spend "+lineToPolygon.getTimeSpendInSeconds()+" seconds on just converting lines to polygons.");
+			
+			if (lineToPolygon.isMeasuringEnabled()) {
+				LOGGER.info("Spend "+lineToPolygon.getTimeSpendInSeconds()+" seconds on just converting lines to polygons.");
+			}
+			if (generalizer != null) {
+				LOGGER.fine("Generalized "+generalizer.getNumInputCoordinates()+" coordinates of the lines to "
+						+ generalizer.getNumOutputCoordinates()+" coordinates");
+			}
+			LOGGER.fine("Built polygons with "+lineToPolygon.getNumOutputCoordinates()+" coordinates");
+			
+			// sort the features so no wider polygon covers a smaller polygon. This may not be respected by the 
+			// renderer
+			final long sortStart = requestMetrics.startStage();
+			sortedOutputCollection = widthBuckets.getFeaturesByDescendingWidth();
+			requestMetrics.stopStage(Stage.SORT, sortStart);
+			
+			lineToPolygon.reportTo(requestMetrics, Stage.POLYGONIZE);
+			requestMetrics.finish(sortedOutputCollection.size(), lineToPolygon.getNumOutputCoordinates());
+		} catch (RuntimeException e) {
+			requestMetrics.fail();
+			throw e;
 		}
-		
-		// sort the features so no wider polygon covers a smaller polygon. This may not be respected by the 
-		// renderer
-		final SimpleFeatureCollection sortedOutputCollection = this.sortCollection(outputCollection);
 
 		if (!debugSqlFile.equals("")) {
 			LOGGER.warning("Writing debugSqlFile to "+debugSqlFile+". This should only be activated for debugging purposes.");
@@ -265,6 +348,46 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 		return sortedOutputCollection;
 	}
 	
+	/**
+	 * only read the attributes needed for the aggregation from the datasource and 
+	 * expand the bbox by the width of the polygons.
+	 * 
+	 * @return
+	 * @throws ProcessException
+	 */
+	public Query invertQuery(
+			@DescribeParameter(name = "attributes", 
+					description = "Comma-seperated string of attributes to include in the aggregation") String attributes,
+			@DescribeParameter(name = "offsetAttribute", 
+					description = "The name attribute of the input collection which contains the value for the offset of the generated polygon.", 
+					defaultValue = "") String offsetAttributeName,
+			@DescribeParameter(name = "widthScalingAlgorithm", 
+					description = "The scaling algorithm to use for the polygon width.", 
+					defaultValue = "linear") String widthScalingAlgorithm,
+			@DescribeParameter(name = "maxPolygonWidth",
+					description = "The maximum width of a polygon in pixels.",
+					defaultValue = "20") Integer maxPolygonWidth,
+			@DescribeParameter(name = "queryBufferInPixels",
+					description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded.",
+					defaultValue = "-1") Integer queryBufferInPixels,
+			@DescribeParameter(name = "outputBBOX", 
+					description = "Bounding box for target image extent. Should be set using the env function from the WMS-Parameters.") ReferencedEnvelope outputEnv,
+			@DescribeParameter(name = "outputWidth",
+					description = "Target image width in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputWidth,
+			@DescribeParameter(name = "outputHeight",
+					description = "Target image height in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputHeight,
+			Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
+		
+		final PolygonDrawingAlgorithm drawingAlgo = this.getPolygonDrawingAlgorithm(widthScalingAlgorithm);
+		drawingAlgo.setOffsetAttributeName(offsetAttributeName);
+		final ArrayList<String> requiredAttributes = ParameterHelper.splitAt(attributes, ",");
+		requiredAttributes.addAll(drawingAlgo.getAdditionalAggregationAttributes());
+		
+		final double bufferInMapUnits = this.getQueryBufferInMapUnits(outputEnv, outputWidth, outputHeight, 
+				queryBufferInPixels, maxPolygonWidth);
+		return this.invertTargetQuery(targetQuery, bufferInMapUnits, requiredAttributes);
+	}
+	
 	/**
 	 * 
 	 * @param name
@@ -282,18 +405,57 @@ public class AggregateSimilarLinesAsPolygonsProcess extends VectorProcess implem
 
 	
 	/**
-	 * sort the features so no wider polygon covers a smaller polygon.
+	 * collects the polygons by their width, so the output can be ordered from the widest 
+	 * to the smallest polygon without sorting the features.
 	 * 
-	 * @param inCollection
-	 * @return
+	 * The widths are derived from the agg_count, so there are at most as many buckets as
+	 * distinct counts. All polygons are stored in one collection, the buckets only keep the 
+	 * rows of their polygons. Only the widths of the buckets need to be sorted, the features 
+	 * keep the order they were built in within a bucket.
 	 */
-	private SimpleFeatureCollection sortCollection(final SimpleFeatureCollection inCollection) {
-		// seems as the sorting does not work with doubles, so this is sorting the indirect way by using the agg_count
-		// instead
-		SortBy sortBy = CommonFactoryFinder.getFilterFactory().sort(AGG_COUNT_ATTRIBUTE_NAME,
-                SortOrder.DESCENDING);
-		SimpleFeatureCollection sortedOutputCollection = inCollection.sort(sortBy);
-		return sortedOutputCollection;
+	private static class WidthBuckets {
+		private final ColumnarFeatureCollection features;
+		private final HashMap<Double, RowList> buckets = new HashMap<Double, RowList>();
+		
+		public WidthBuckets(final SimpleFeatureType schema) {
+			this.features = new ColumnarFeatureCollection(schema);
+		}
+		
+		public void add(final double width, final SimpleFeature feature) {
+			RowList bucket = this.buckets.get(width);
+			if (bucket == null) {
+				bucket = new RowList();
+				this.buckets.put(width, bucket);
+			}
+			bucket.add(this.features.size());
+			this.features.add(feature);
+		}
+		
+		public ColumnarFeatureCollection getFeaturesByDescendingWidth() {
+			final ArrayList<Double> widths = new ArrayList<Double>(this.buckets.keySet());
+			Collections.sort(widths, Collections.reverseOrder());
+			final int[] rowOrder = new int[this.features.size()];
+			int position = 0;
+			for (final Double width: widths) {
+				final RowList bucket = this.buckets.get(width);
+				System.arraycopy(bucket.rows, 0, rowOrder, position, bucket.size);
+				position += bucket.size;
+			}
+			this.features.setRowOrder(rowOrder);
+			return this.features;
+		}
+	}
+	
+	private static class RowList {
+		private int[] rows = new int[16];
+		private int size = 0;
+		
+		public void add(final int row) {
+			if (this.size == this.rows.length) {
+				this.rows = Arrays.copyOf(this.rows, this.size * 2);
+			}
+			this.rows[this.size++] = row;
+		}
 	}
 	
 }
@@ -6,28 +6,39 @@
 package org.geoserver.trafimage.transform.process;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Logger;
 
-import org.geoserver.trafimage.transform.FeatureOrderComparator;
+import org.geoserver.trafimage.transform.ColumnarFeatureCollection;
+import org.geoserver.trafimage.transform.OffsetCurveEngine;
+import org.geoserver.trafimage.transform.FeatureOrderSorter;
 import org.geoserver.trafimage.transform.MapUnits;
 import org.geoserver.trafimage.transform.SimpleFeatureHasher;
+import org.geoserver.trafimage.transform.ViewportClipper;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.ProcessMetrics;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
 import org.geoserver.trafimage.transform.script.LineStacksScript;
+import org.geoserver.trafimage.transform.script.WidthExpression;
 import org.geoserver.trafimage.transform.script.ScriptException;
 import org.geoserver.trafimage.transform.util.DebugIO;
 import org.geoserver.trafimage.transform.util.MeasuredSimpleFeatureIterator;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geoserver.trafimage.transform.util.RunKeyTracker;
+import org.geoserver.trafimage.transform.util.WorkerPool;
 import org.geoserver.wps.gs.GeoServerProcess;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridGeometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.util.ProgressListener;
@@ -40,6 +51,7 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 	private static final String WIDTH_ATTRIBUTE_NAME = "line_width";
 	
 	private static final Logger LOGGER = Logging.getLogger(LineStacksProcess.class);
+	private static final ProcessMetrics METRICS = MetricsRegistry.getProcessMetrics("LineStacks");
 	
 	public LineStacksProcess() {
 	}
@@ -63,7 +75,7 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 					// -- processing parameters -----------------------------
 					@DescribeParameter(name = "orderAttribute", 
 							description = "The name attribute of the input collection which contains the value for the ordering of the line stacks."
-							+ " The attribute must be of type integer."
+							+ " The attribute must be numeric. Null values are placed like 0."
 							+ " The smaller the value is, the closer the feature will be placed to the orignal line.", 
 							defaultValue = "") String orderAttributeName,
 					@DescribeParameter(name = "invertSidesAttribute", 
@@ -82,6 +94,43 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 					@DescribeParameter(name = "spacingBetweenStackEntries",
 							description = "The spacing between lines in a stack as well as to the original line itself. Default is 0",
 							defaultValue = "0") Integer spacingBetweenStackEntries,
+					@DescribeParameter(name = "offsetEngine",
+							description = "The engine used to build the offsetted lines."
+							+ " jts uses the JTS OffsetCurveBuilder with round joins."
+							+ " round and mitre use a lighter engine for open lines with round or mitred joins."
+							+ " Default: jts",
+							defaultValue = "jts") String offsetEngine,
+					@DescribeParameter(name = "enableScreenGeneralization",
+							description = "Snap the lines to a grid of a quarter pixel and remove vertices which are not visible in the output image"
+							+ " before building the offsetted lines. Identical lines stay identical."
+							+ " The default is Disabled (false).",
+							defaultValue = "false") boolean enableScreenGeneralization,
+					@DescribeParameter(name = "enableViewportClipping",
+							description = "Clip the lines to the output image expanded by the width of the stack before"
+							+ " building the offsetted lines, so the work depends on the size of the image instead of the length of the lines."
+							+ " Lines leaving and re-entering the image are split into multiple features."
+							+ " The default is Disabled (false).",
+							defaultValue = "false") boolean enableViewportClipping,
+					@DescribeParameter(name = "maxParallelism",
+							description = "The maximum number of threads used to build the offsetted lines of a request."
+							+ " Each thread builds complete stacks. The result is the same regardless of this value."
+							+ " The value is capped by the system property "+WorkerPool.MAX_PARALLELISM_PROPERTY
+							+ " which defaults to the number of processors."
+							+ " The default is 1 (no parallel processing).",
+							defaultValue = "1") Integer maxParallelism,
+					@DescribeParameter(name = "stackKeyAttribute",
+							description = "The name of an attribute which is equal for features with equal geometries, for example a precomputed hash of the geometry."
+							+ " When set, the features are requested sorted by this attribute from the datasource and the stacks are built while"
+							+ " the features are read, so only the features of a few stacks are kept in memory."
+							+ " Input which is not sorted by this attribute causes an error."
+							+ " Leave unset to read all features before building the stacks.",
+							defaultValue = "") String stackKeyAttributeName,
+					@DescribeParameter(name = "queryBufferInPixels",
+							description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded,"
+							+ " so stacks of features outside of the map which reach into the map are drawn."
+							+ " The default (-1) derives the distance from lineWidth and spacingBetweenStackEntries."
+							+ " Larger stacks or widths set by the renderScript or the widthExpression may need a larger value.",
+							defaultValue = "-1") Integer queryBufferInPixels,
 							
 				    // --- javascript related parameters 
 					@DescribeParameter(name = "renderScript",
@@ -89,14 +138,24 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 							+" Bypasses minLineWidth and maxLineWidth."
 							+" For a more detailed documentation check the README.",
 							defaultValue = "") String renderScript,
+					@DescribeParameter(name = "widthExpression",
+							description="An arithmetic expression calculating the width of the lines in pixels from the variables featureLength, customVariable1 and customVariable2,"
+							+" for example \"customVariable1 > 50000 ? 2 : 4\". Evaluated without a javascript interpreter, so it is a faster alternative to the renderScript."
+							+" Can not be used together with the renderScript. Bypasses lineWidth."
+							+" For a more detailed documentation check the README.",
+							defaultValue = "") String widthExpression,
 					@DescribeParameter(name = "scriptCustomVariable1",
-							description="A value which will be exposed in the script as a global variable with the name customVariable1."
+							description="A value which will be exposed in the script and the widthExpression as a global variable with the name customVariable1."
 							+" The variable will only be available after the initial evaluation of the script, so it should only be used from the defined functions. Otherwise an \"undefined\" error will be raised."
+							+" The widthExpression uses the value as a number converted like javascript does (empty values are 0, values which are not numbers are NaN)."
+							+" The script gets the value as a string, so + and the value as a condition behave differently in the widthExpression and the script."
 							+" Useful to pass SLD and WMS parameters to the script. For example \"wms_scale_denominator\"",
 							defaultValue = "") String scriptCustomVariable1,
 					@DescribeParameter(name = "scriptCustomVariable2",
-							description="A value which will be exposed in the script as a global variable with the name customVariable2."
+							description="A value which will be exposed in the script and the widthExpression as a global variable with the name customVariable2."
 							+" The variable will only be available after the initial evaluation of the script, so it should only be used from the defined functions. Otherwise an \"undefined\" error will be raised."
+							+" The widthExpression uses the value as a number converted like javascript does (empty values are 0, values which are not numbers are NaN)."
+							+" The script gets the value as a string, so + and the value as a condition behave differently in the widthExpression and the script."
 							+" Useful to pass SLD and WMS parameters to the script. For example \"wms_scale_denominator\"",
 							defaultValue = "") String scriptCustomVariable2,		
 							
@@ -115,6 +174,12 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 							+ " This will be logged on the INFO level. "
 							+ " The default is Disabled (false).",
 							defaultValue = "false") boolean enableDurationMeasurement,
+					@DescribeParameter(name = "requestTimeout",
+							description = "The time in seconds the transformation may spend on a request before it is aborted with an error."
+							+ " The value is capped by the system property "+RequestDeadline.REQUEST_TIMEOUT_PROPERTY+"."
+							+ " Requests canceled by geoserver are always aborted."
+							+ " The default is 0 (no limit).",
+							defaultValue = "0") Integer requestTimeout,
 					@DescribeParameter(name = "debugSqlFile", 
 							description = "Name of the file to write SQL insert statements of the generated polygons to."
 							+ " Other attributes will not be written."
@@ -123,6 +188,7 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 					ProgressListener monitor
 			) throws ProcessException {
 		
+		final RequestDeadline deadline = RequestDeadline.start(monitor, requestTimeout);
 		final SimpleFeatureType inputFeatureType = collection.getSchema();
 		this.assertInputGeometryType(inputFeatureType, LineString.class);
 		
@@ -132,135 +198,286 @@ public class LineStacksProcess extends AbstractStackProcess implements GeoServer
 		if (spacingBetweenStackEntries<0) {
 			throw new ProcessException("spacingBetweenStackEntries has to be a positive value or 0, but currently is "+spacingBetweenStackEntries);
 		}
+		this.assertOffsetEngine(offsetEngine);
 		
-		SimpleFeatureType outputSchema = this.buildOutputFeatureType(inputFeatureType, WIDTH_ATTRIBUTE_NAME);
-		final ListFeatureCollection outputCollection = new ListFeatureCollection(outputSchema);
+		final SimpleFeatureType outputSchema = this.buildOutputFeatureType(inputFeatureType, WIDTH_ATTRIBUTE_NAME);
+		final ColumnarFeatureCollection outputCollection = new ColumnarFeatureCollection(outputSchema, false);
 		
-		LineStacksScript scriptRunner = null;
-		try {
-			
-			if (renderScript != null && !renderScript.trim().equals("")) {
-				LOGGER.info("creating scriptRunner");
-				try {
-					scriptRunner = new LineStacksScript(renderScript);
-					scriptRunner.registerVariable("customVariable1", scriptCustomVariable1);
-					scriptRunner.registerVariable("customVariable2", scriptCustomVariable2);
-				} catch (ScriptException e) {
-					throw new ProcessException(e.getMessage(), e);
-				}
+		final String script = (renderScript != null && !renderScript.trim().equals("")) ? renderScript : null;
+		if (script != null) {
+			// fail early on scripts which do not compile
+			createScriptRunner(script, scriptCustomVariable1, scriptCustomVariable2, deadline).terminate();
+		}
+		final WidthExpression compiledWidthExpression = compileWidthExpression(widthExpression, renderScript);
+		final double customVariable1 = WidthExpression.parseVariable(scriptCustomVariable1);
+		final double customVariable2 = WidthExpression.parseVariable(scriptCustomVariable2);
+		
+		final String finalOrderAttributeName = orderAttributeName;
+		final String finalInvertSidesAttributeName = invertSidesAttributeName;
+		final int finalLineWidth = lineWidth;
+		final boolean finalDrawOnBothSides = drawOnBothSides;
+		final int finalSpacingBetweenStackEntries = spacingBetweenStackEntries;
+		final String finalOffsetEngine = offsetEngine;
+		final boolean finalEnableScreenGeneralization = enableScreenGeneralization;
+		final boolean finalEnableViewportClipping = enableViewportClipping;
+		final String finalScriptCustomVariable1 = scriptCustomVariable1;
+		final String finalScriptCustomVariable2 = scriptCustomVariable2;
+		final ReferencedEnvelope finalOutputEnv = outputEnv;
+		final int finalOutputWidth = outputWidth;
+		final int finalOutputHeight = outputHeight;
+		final StackBuilderFactory stackBuilderFactory = new StackBuilderFactory() {
+			public StackBuilder createStackBuilder() {
+				final OffsetCurveEngine offsetCurveEngine = createOffsetCurveEngine(finalOffsetEngine, finalEnableScreenGeneralization, 
+						finalOutputEnv, finalOutputWidth, finalOutputHeight);
+				final ViewportClipper clipper = finalEnableViewportClipping ? 
+						createViewportClipper(finalOutputEnv, finalOutputWidth, finalOutputHeight) : null;
+				final LineStacksScript scriptRunner = (script != null) ? 
+						createScriptRunner(script, finalScriptCustomVariable1, finalScriptCustomVariable2, deadline) : null;
+				return new LineStacksBuilder(offsetCurveEngine, clipper, outputSchema, scriptRunner, compiledWidthExpression, customVariable1, customVariable2,
+						finalOrderAttributeName,
+						finalInvertSidesAttributeName, finalLineWidth, finalDrawOnBothSides, finalSpacingBetweenStackEntries,
+						finalOutputEnv, finalOutputWidth, finalOutputHeight);
 			}
+		};
 
-			monitor.started();
-			
-			// create hashes to find similar geometries
-			final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
-			featureIt.setMeasuringEnabled(enableDurationMeasurement);
-			try {
-			    SimpleFeatureHasher hasher = new SimpleFeatureHasher();
-			    hasher.setIncludeGeometry(true);
-			    final HashMap<Integer, ArrayList<SimpleFeature>> stacks = new HashMap<Integer, ArrayList<SimpleFeature>>();
+		monitor.started();
+		final RequestMetrics requestMetrics = METRICS.startRequest();
+		
+		// create hashes to find similar geometries
+		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
+		featureIt.setMeasuringEnabled(enableDurationMeasurement);
+		final SimpleFeatureHasher hasher = new SimpleFeatureHasher();
+		hasher.setIncludeGeometry(true);
+		int numInputFeatures = 0;
+		long numOutputCoordinates = 0;
+		final StackStream stackStream = new StackStream(stackBuilderFactory, WorkerPool.getParallelism(maxParallelism), deadline,
+				requestMetrics, outputCollection);
+		try {
+		    final HashMap<Integer, List<SimpleFeature>> stacks = new HashMap<Integer, List<SimpleFeature>>();
+		    final RunKeyTracker runKey = (stackKeyAttributeName != null && !stackKeyAttributeName.equals("")) ? 
+		    		new RunKeyTracker(stackKeyAttributeName) : null;
 
-				while (featureIt.hasNext()) {
-					final SimpleFeature feature = featureIt.next();
-					final int hash = hasher.getHash(feature);
-					
-					if (!stacks.containsKey(hash)) {
-						stacks.put(hash, new ArrayList<SimpleFeature>());
-					}
-					stacks.get(hash).add(feature);
+			while (featureIt.hasNext()) {
+				deadline.check();
+				final SimpleFeature feature = featureIt.next();
+				if (runKey != null && runKey.startsNewRun(feature) && !stacks.isEmpty()) {
+					// all features sharing a geometry with the previous features have been read
+					stackStream.handleStacks(new ArrayList<List<SimpleFeature>>(stacks.values()));
+					stacks.clear();
+				}
+				final int hash = hasher.getHash(feature);
+				
+				if (!stacks.containsKey(hash)) {
+					stacks.put(hash, new ArrayList<SimpleFeature>());
 				}
+				stacks.get(hash).add(feature);
+				numInputFeatures++;
+			}
 
 
-                if (enableDurationMeasurement) {
-                    LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on just reading "
-                            + collection.size()
-                            + " features from the datasource.");
-                }
+            if (enableDurationMeasurement) {
+                LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on just reading "
+                        + collection.size()
+                        + " features from the datasource.");
+            }
 
-                final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outputSchema);
+            // build the offsetted lines
+            stackStream.handleStacks(new ArrayList<List<SimpleFeature>>(stacks.values()));
+            numOutputCoordinates = stackStream.finish();
+            LOGGER.fine("Built offsetted lines with "+numOutputCoordinates+" coordinates");
 
+		} catch (RuntimeException e) {
+			requestMetrics.fail();
+			throw e;
+		} finally {
+			stackStream.close();
+			featureIt.close(); // closes the underlying database query, ...  
+		}
+		requestMetrics.addInputFeatures(numInputFeatures);
+		featureIt.reportTo(requestMetrics, Stage.READ);
+		hasher.reportTo(requestMetrics, Stage.HASH);
+		requestMetrics.finish(outputCollection.size(), numOutputCoordinates);
+		
+		monitor.complete();
+					
+		if (!debugSqlFile.equals("")) {
+			LOGGER.warning("Writing debugSqlFile to "+debugSqlFile+". This should only be activated for debugging purposes.");
+			DebugIO.dumpCollectionToSQLFile(outputCollection, debugSqlFile, "stacked_lines");
+		}
+		
+		LOGGER.info("Returning a collection with "+outputCollection.size()+" features");
+		
+		return outputCollection;
+	}
+	
+	/**
+	 * the Rhino context is bound to the thread, so the script has to be created on
+	 * the thread using it
+	 */
+	private static LineStacksScript createScriptRunner(final String renderScript, final String scriptCustomVariable1, 
+			final String scriptCustomVariable2, final RequestDeadline deadline) throws ProcessException {
+		LOGGER.fine("creating scriptRunner");
+		try {
+			final LineStacksScript scriptRunner = new LineStacksScript(renderScript, deadline);
+			scriptRunner.registerVariable("customVariable1", scriptCustomVariable1);
+			scriptRunner.registerVariable("customVariable2", scriptCustomVariable2);
+			return scriptRunner;
+		} catch (ScriptException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * builds the lines of the stacks. Every thread uses its own instance.
+	 */
+	private class LineStacksBuilder extends StackBuilder {
+		
+		private final LineStacksScript scriptRunner;
+		private final WidthExpression widthExpression;
+		private final double customVariable1;
+		private final double customVariable2;
+		private final FeatureOrderSorter sorter = new FeatureOrderSorter();
+		private final String invertSidesAttributeName;
+		private final int lineWidth;
+		private final boolean drawOnBothSides;
+		private final int spacingBetweenStackEntries;
+		private final ReferencedEnvelope outputEnv;
+		private final int outputWidth;
+		private final int outputHeight;
+		private double[] featureLengths = new double[0];
+		private int[] featureWidths = new int[0];
+		
+		LineStacksBuilder(final OffsetCurveEngine offsetCurveEngine, final ViewportClipper clipper, final SimpleFeatureType outputSchema,
+				final LineStacksScript scriptRunner, final WidthExpression widthExpression, final double customVariable1, final double customVariable2,
+				final String orderAttributeName, final String invertSidesAttributeName,
+				final int lineWidth, final boolean drawOnBothSides, final int spacingBetweenStackEntries,
+				final ReferencedEnvelope outputEnv, final int outputWidth, final int outputHeight) {
+			super(offsetCurveEngine, clipper, outputSchema, WIDTH_ATTRIBUTE_NAME);
+			this.scriptRunner = scriptRunner;
+			this.widthExpression = widthExpression;
+			this.customVariable1 = customVariable1;
+			this.customVariable2 = customVariable2;
+			this.sorter.setOrderAttributeName(orderAttributeName);
+			this.invertSidesAttributeName = invertSidesAttributeName;
+			this.lineWidth = lineWidth;
+			this.drawOnBothSides = drawOnBothSides;
+			this.spacingBetweenStackEntries = spacingBetweenStackEntries;
+			this.outputEnv = outputEnv;
+			this.outputWidth = outputWidth;
+			this.outputHeight = outputHeight;
+		}
+		
+		@Override
+		protected void buildStack(final List<SimpleFeature> stackFeatures, final ColumnarFeatureCollection outputCollection) {
+            final long sortStart = this.startStage();
+            this.sorter.sort(stackFeatures);
+            this.stopStage(Stage.SORT, sortStart);
+            final int numFeatures = stackFeatures.size();
+            this.ensureCapacity(numFeatures);
 
-                // build the offsetted lines
-                final FeatureOrderComparator comparator = new FeatureOrderComparator();
-                comparator.setOrderAttributeName(orderAttributeName);
-                for (List<SimpleFeature> stackFeatures: stacks.values()) {
-                    Collections.sort(stackFeatures, comparator);
-                    HashMap<Double, Double> stackOffsetInPixels = new HashMap<Double, Double>();
-                    for(final SimpleFeature feature: stackFeatures) {
-                        try {		
-                            // find the width of the line
-                            int featureWidthInPixels = lineWidth;
-                            if (scriptRunner != null) {
-                                try {
-                                    double featureLength = 0.0;
-                                    Object geom = feature.getDefaultGeometry();
-                                    if (geom != null) {
-                                        LineString lineString = (LineString)geom;
-                                        featureLength = lineString.getLength();
-                                    }
-                                    featureWidthInPixels = scriptRunner.getFeatureWidth(featureLength);
-                                } catch (ScriptException e) {
-                                    throw new ProcessException(e);
-                                }
-                            }
+            // find the widths of the lines. The script gets called once for the whole stack
+            final long scriptStart = this.startStage();
+            if (this.scriptRunner != null) {
+                for (int i=0; i<numFeatures; i++) {
+                    double featureLength = 0.0;
+                    Object geom = stackFeatures.get(i).getDefaultGeometry();
+                    if (geom != null) {
+                        LineString lineString = (LineString)geom;
+                        featureLength = lineString.getLength();
+                    }
+                    this.featureLengths[i] = featureLength;
+                }
+                try {
+                    this.scriptRunner.getFeatureWidths(this.featureLengths, numFeatures, this.featureWidths);
+                } catch (ScriptException e) {
+                    throw new ProcessException(e);
+                }
+                this.stopStage(Stage.SCRIPT, scriptStart);
+            } else if (this.widthExpression != null) {
+                // the features of LineStacks are not aggregated
+                for (int i=0; i<numFeatures; i++) {
+                    this.featureWidths[i] = evaluateWidthExpression(this.widthExpression, stackFeatures.get(i), 1,
+                            this.customVariable1, this.customVariable2);
+                }
+                this.stopStage(Stage.SCRIPT, scriptStart);
+            } else {
+                Arrays.fill(this.featureWidths, 0, numFeatures, this.lineWidth);
+            }
 
-                            double inversionValue = getInversionValue(feature, invertSidesAttributeName);
-                            double stackOffsetInPixelsSide = stackOffsetInPixels.containsKey(inversionValue) ?
-                                    stackOffsetInPixels.get(inversionValue) : (double)spacingBetweenStackEntries;
-                            
-                            double baseOffsetMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, stackOffsetInPixelsSide);
-                            double featureWidthInMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, featureWidthInPixels);
-                            double offsetMapUnits = calculateOffsetInMapUnits(baseOffsetMapUnits, featureWidthInMapUnits,  drawOnBothSides);
-                            
-                            /*
-                            if (aggCount>2) {
-                                LOGGER.info(
-                                        "aggCount: "+aggCount
-                                        +"; spacingBetweenStackEntries:"+(double)spacingBetweenStackEntries
-                                        +"; maxLineWidth: "+maxLineWidth
-                                        +"; minLineWidth: "+minLineWidth
-                                        +"; featureWidthInPixels: "+featureWidthInPixels+"px"
-                                        +"; featureWidthInMapUnits: "+featureWidthInMapUnits
-                                        +"; stackOffsetInPixels: "+stackOffsetInPixels
-                                        +"; offsetMapUnits: "+offsetMapUnits
-                                        +"; klasse_color: "+feature.getAttribute("klasse_color").toString()
-                                        );
-                            }
-                            */
+            HashMap<Double, Double> stackOffsetInPixels = new HashMap<Double, Double>();
+            for (int i=0; i<numFeatures; i++) {
+                final SimpleFeature feature = stackFeatures.get(i);
+                final int featureWidthInPixels = this.featureWidths[i];
 
-                            stackOffsetInPixelsSide = addDrawableLines(outputCollection, featureBuilder, feature,
-                                    outputSchema, offsetMapUnits, featureWidthInPixels, stackOffsetInPixelsSide, spacingBetweenStackEntries,
-                                    drawOnBothSides, invertSidesAttributeName, WIDTH_ATTRIBUTE_NAME);
+                double inversionValue = getInversionValue(feature, this.invertSidesAttributeName);
+                double stackOffsetInPixelsSide = stackOffsetInPixels.containsKey(inversionValue) ?
+                        stackOffsetInPixels.get(inversionValue) : (double)this.spacingBetweenStackEntries;
+                
+                double baseOffsetMapUnits = MapUnits.pixelDistanceToMapUnits(this.outputEnv, this.outputWidth, this.outputHeight, stackOffsetInPixelsSide);
+                double featureWidthInMapUnits = MapUnits.pixelDistanceToMapUnits(this.outputEnv, this.outputWidth, this.outputHeight, featureWidthInPixels);
+                double offsetMapUnits = calculateOffsetInMapUnits(baseOffsetMapUnits, featureWidthInMapUnits, this.drawOnBothSides);
 
-                            stackOffsetInPixels.put(inversionValue, stackOffsetInPixelsSide);
-                            
-                        } catch (IllegalArgumentException e) {
-                            // possible cause: JTS: Invalid number of points in LineString (found 1 - must be 0 or >= 2)
-                            LOGGER.warning("Ignoring possible illegal feature: " + e.getMessage());
-                        }
-                    }
-                }
+                stackOffsetInPixelsSide = addDrawableLines(this.stackLines, feature,
+                        offsetMapUnits, featureWidthInPixels, stackOffsetInPixelsSide, this.spacingBetweenStackEntries,
+                        this.drawOnBothSides, this.invertSidesAttributeName);
 
-			} finally {
-				featureIt.close(); // closes the underlying database query, ...  
-			}
-			
-			monitor.complete();
-						
-			if (!debugSqlFile.equals("")) {
-				LOGGER.warning("Writing debugSqlFile to "+debugSqlFile+". This should only be activated for debugging purposes.");
-				DebugIO.dumpCollectionToSQLFile(outputCollection, debugSqlFile, "stacked_lines");
+                stackOffsetInPixels.put(inversionValue, stackOffsetInPixelsSide);
+            }
+            
+            // all lines of the stack share the geometry
+            this.buildQueuedLines(outputCollection);
+		}
+		
+		private void ensureCapacity(final int numFeatures) {
+			if (this.featureWidths.length < numFeatures) {
+				final int capacity = Math.max(numFeatures, this.featureWidths.length * 2);
+				this.featureLengths = new double[capacity];
+				this.featureWidths = new int[capacity];
 			}
-			
-			LOGGER.info("Returning a collection with "+outputCollection.size()+" features");
-			
-			return outputCollection;
-		} finally {
-			if (scriptRunner != null) {
-				scriptRunner.terminate();
+		}
+		
+		@Override
+		protected void dispose() {
+			if (this.scriptRunner != null) {
+				this.scriptRunner.terminate();
 			}
 		}
 	}
 	
-
+	/**
+	 * expand the bbox by the size of a stack entry. All attributes are read as they
+	 * are copied to the output.
+	 * 
+	 * @return
+	 * @throws ProcessException
+	 */
+	public Query invertQuery(
+					@DescribeParameter(name = "lineWidth",
+							description = "The minimum width of a line in pixels.",
+							defaultValue = "8") Integer lineWidth,
+					@DescribeParameter(name = "spacingBetweenStackEntries",
+							description = "The spacing between lines in a stack as well as to the original line itself. Default is 0",
+							defaultValue = "0") Integer spacingBetweenStackEntries,
+					@DescribeParameter(name = "stackKeyAttribute",
+							description = "The name of an attribute which is equal for features with equal geometries, for example a precomputed hash of the geometry."
+							+ " When set, the features are requested sorted by this attribute from the datasource and the stacks are built while"
+							+ " the features are read, so only the features of a few stacks are kept in memory."
+							+ " Input which is not sorted by this attribute causes an error."
+							+ " Leave unset to read all features before building the stacks.",
+							defaultValue = "") String stackKeyAttributeName,
+					@DescribeParameter(name = "queryBufferInPixels",
+							description = "The distance in pixels by which the bounding box used to read the features from the datasource is expanded.",
+							defaultValue = "-1") Integer queryBufferInPixels,
+					@DescribeParameter(name = "outputBBOX", 
+							description = "Bounding box for target image extent. Should be set using the env function from the WMS-Parameters.") ReferencedEnvelope outputEnv,
+					@DescribeParameter(name = "outputWidth",
+							description = "Target image width in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputWidth,
+					@DescribeParameter(name = "outputHeight",
+							description = "Target image height in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputHeight,
+					Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
+		
+		final double bufferInMapUnits = this.getQueryBufferInMapUnits(outputEnv, outputWidth, outputHeight, 
+				queryBufferInPixels, lineWidth + 2 * spacingBetweenStackEntries);
+		return this.sortTargetQuery(this.invertTargetQuery(targetQuery, bufferInMapUnits, null), stackKeyAttributeName);
+	}
 }
@@ -6,14 +6,26 @@
 package org.geoserver.trafimage.transform.process;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
-import org.geoserver.trafimage.transform.CurveBuilder;
+import org.geoserver.trafimage.transform.OffsetCurveEngine;
 import org.geoserver.trafimage.transform.MapUnits;
+import org.geoserver.trafimage.transform.ViewportClipper;
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.ProcessMetrics;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
 import org.geoserver.trafimage.transform.util.MeasuredSimpleFeatureIterator;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
 import org.geoserver.wps.gs.GeoServerProcess;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.ProcessException;
@@ -21,6 +33,7 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridGeometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
@@ -36,6 +49,7 @@ import com.vividsolutions.jts.geom.LineString;
 public class MakeOffsettedLinesProcess extends VectorProcess implements GeoServerProcess  {
 
 	private static final Logger LOGGER = Logging.getLogger(MakeOffsettedLinesProcess.class);
+	private static final ProcessMetrics METRICS = MetricsRegistry.getProcessMetrics("MakeOffsettedLines");
 	
 	public MakeOffsettedLinesProcess() {}
 
@@ -58,6 +72,23 @@ public class MakeOffsettedLinesProcess extends VectorProcess implements GeoServe
 			@DescribeParameter(name = "offsetInPixels",
 					description = "The offset the lines should have in pixels. Negative an positive values control the direction of the displacement.",
 					defaultValue = "0.0") Double offsetInPixels,
+			@DescribeParameter(name = "offsetEngine",
+					description = "The engine used to build the offsetted lines."
+					+ " jts uses the JTS OffsetCurveBuilder with round joins."
+					+ " round and mitre use a lighter engine for open lines with round or mitred joins."
+					+ " Default: jts",
+					defaultValue = "jts") String offsetEngine,
+			@DescribeParameter(name = "enableScreenGeneralization",
+					description = "Snap the lines to a grid of a quarter pixel and remove vertices which are not visible in the output image"
+					+ " before building the offsetted lines. Identical lines stay identical."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableScreenGeneralization,
+			@DescribeParameter(name = "enableViewportClipping",
+					description = "Clip the lines to the output image expanded by the offset before"
+					+ " building the offsetted lines, so the work depends on the size of the image instead of the length of the lines."
+					+ " Lines leaving and re-entering the image are split into multiple features."
+					+ " The default is Disabled (false).",
+					defaultValue = "false") boolean enableViewportClipping,
 
 					
 			 // --- output image parameters --------------------------------------
@@ -75,6 +106,13 @@ public class MakeOffsettedLinesProcess extends VectorProcess implements GeoServe
 					+ " This will be logged on the INFO level. "
 					+ " The default is Disabled (false).",
 					defaultValue = "false") boolean enableDurationMeasurement,
+			@DescribeParameter(name = "requestTimeout",
+					description = "The time in seconds the transformation may spend on a request before it is aborted with an error."
+					+ " The lines are offsetted while the renderer reads them, so this includes the time spent on rendering."
+					+ " The value is capped by the system property "+RequestDeadline.REQUEST_TIMEOUT_PROPERTY+"."
+					+ " Requests canceled by geoserver are always aborted."
+					+ " The default is 0 (no limit).",
+					defaultValue = "0") Integer requestTimeout,
 			ProgressListener monitor
 			) throws ProcessException {
 		
@@ -84,7 +122,7 @@ public class MakeOffsettedLinesProcess extends VectorProcess implements GeoServe
 		validBindings.add(LineString.class);
 		// TODO: support multilinestrings
 		this.assertInputGeometryType(inputFeatureType, validBindings);
-		
+		this.assertOffsetEngine(offsetEngine);
 		
 		if (offsetInPixels == 0) {	// nothing to do. taking shortcut
 			return collection;
@@ -92,49 +130,263 @@ public class MakeOffsettedLinesProcess extends VectorProcess implements GeoServe
 		
 		final double offsetInMapUnits = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, offsetInPixels);
 		
-		final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(inputFeatureType);
-		final ListFeatureCollection outputCollection = new ListFeatureCollection(inputFeatureType);
-		final GeometryDescriptor geomDescriptor = inputFeatureType.getGeometryDescriptor();
-		final CurveBuilder curveBuilder = new CurveBuilder();
+		return new OffsettedLinesCollection(collection, offsetInMapUnits, offsetEngine, enableScreenGeneralization,
+				enableViewportClipping, outputEnv, outputWidth, outputHeight, enableDurationMeasurement,
+				RequestDeadline.start(monitor, requestTimeout));
+	}
+	
+	/**
+	 * offsets the lines of the input collection while the collection is iterated, so
+	 * no features are buffered and the renderer gets the first line right away. 
+	 * 
+	 * Every iterator reads the input collection again and uses its own offset engine. The
+	 * collection is counted as one request in the metrics, which is recorded when the first
+	 * iterator is closed. Renderers iterating the collection more than once do not count
+	 * as multiple requests.
+	 */
+	private class OffsettedLinesCollection extends AbstractFeatureCollection {
+		
+		private final SimpleFeatureCollection source;
+		private final double offsetInMapUnits;
+		private final String offsetEngine;
+		private final boolean enableScreenGeneralization;
+		private final boolean enableViewportClipping;
+		private final ReferencedEnvelope outputEnv;
+		private final int outputWidth;
+		private final int outputHeight;
+		private final boolean measuringEnabled;
+		private final RequestDeadline deadline;
+		private RequestMetrics requestMetrics = null;
+		
+		/**
+		 * the number of lines returned by an iterator which read the whole input. -1 until known.
+		 */
+		private volatile int numOffsettedLines = -1;
+		
+		OffsettedLinesCollection(final SimpleFeatureCollection source, final double offsetInMapUnits, final String offsetEngine,
+				final boolean enableScreenGeneralization, final boolean enableViewportClipping, final ReferencedEnvelope outputEnv,
+				final int outputWidth, final int outputHeight, final boolean measuringEnabled, final RequestDeadline deadline) {
+			super(source.getSchema());
+			this.source = source;
+			this.offsetInMapUnits = offsetInMapUnits;
+			this.offsetEngine = offsetEngine;
+			this.enableScreenGeneralization = enableScreenGeneralization;
+			this.enableViewportClipping = enableViewportClipping;
+			this.outputEnv = outputEnv;
+			this.outputWidth = outputWidth;
+			this.outputHeight = outputHeight;
+			this.measuringEnabled = measuringEnabled;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * the number of offsetted lines. 
+		 * 
+		 * Once an iterator has read the whole input, the number of lines it returned is used. 
+		 * Otherwise without viewport clipping this is the size of the input, which is an upper 
+		 * bound as lines which can not be offsetted get skipped. With viewport clipping lines 
+		 * may get split, so the lines get built and counted once. This is not recorded in the 
+		 * metrics.
+		 */
+		@Override
+		public int size() {
+			if (this.numOffsettedLines >= 0) {
+				return this.numOffsettedLines;
+			}
+			if (!this.enableViewportClipping) {
+				return this.source.size();
+			}
+			final OffsettingIterator featureIt = new OffsettingIterator(RequestMetrics.NONE);
+			try {
+				while (featureIt.hasNext()) {
+					featureIt.next();
+				}
+				return this.numOffsettedLines;
+			} finally {
+				featureIt.close();
+			}
+		}
+		
+		/**
+		 * the metrics shared by all iterators of the collection. Started by the first iterator.
+		 * 
+		 * @return
+		 */
+		private synchronized RequestMetrics getRequestMetrics() {
+			if (this.requestMetrics == null) {
+				this.requestMetrics = METRICS.startRequest();
+			}
+			return this.requestMetrics;
+		}
 		
-		final MeasuredSimpleFeatureIterator featureIt = new MeasuredSimpleFeatureIterator(collection.features());
-		featureIt.setMeasuringEnabled(enableDurationMeasurement);
-		try {
-			while (featureIt.hasNext()) {
+		/**
+		 * the bounds of the input features expanded by the offset
+		 */
+		@Override
+		public ReferencedEnvelope getBounds() {
+			final ReferencedEnvelope sourceBounds = this.source.getBounds();
+			final ReferencedEnvelope bounds = new ReferencedEnvelope(sourceBounds, sourceBounds.getCoordinateReferenceSystem());
+			bounds.expandBy(Math.abs(this.offsetInMapUnits));
+			return bounds;
+		}
+		
+		@Override
+		public SimpleFeatureIterator features() {
+			return new OffsettingIterator(this.getRequestMetrics());
+		}
+		
+		@Override
+		protected Iterator<SimpleFeature> openIterator() {
+			return new OffsettingIterator(this.getRequestMetrics());
+		}
+		
+		
+		private class OffsettingIterator implements SimpleFeatureIterator, Iterator<SimpleFeature> {
+			
+			private final MeasuredSimpleFeatureIterator featureIt;
+			private final SimpleFeatureType schema = getSchema();
+			private final SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(this.schema);
+			private final OffsetCurveEngine offsetCurveEngine = createOffsetCurveEngine(offsetEngine, enableScreenGeneralization, 
+					outputEnv, outputWidth, outputHeight);
+			private final ViewportClipper clipper = enableViewportClipping ? 
+					createViewportClipper(outputEnv, outputWidth, outputHeight) : null;
+			
+			private final RequestMetrics requestMetrics;
+			
+			// the offsetted lines of the last read feature
+			private final ArrayList<SimpleFeature> pending = new ArrayList<SimpleFeature>();
+			private int pendingIndex = 0;
+			private int numInputFeatures = 0;
+			private int numOutputFeatures = 0;
+			private int numSkippedFeatures = 0;
+			private long offsetTimeSpend = 0;
+			private boolean closed = false;
+			
+			OffsettingIterator(final RequestMetrics requestMetrics) {
+				this.requestMetrics = requestMetrics;
+				this.featureIt = new MeasuredSimpleFeatureIterator(source.features());
+				this.featureIt.setMeasuringEnabled(measuringEnabled);
+			}
+			
+			public boolean hasNext() {
+				while (this.pendingIndex >= this.pending.size()) {
+					if (this.closed) {
+						return false;
+					}
+					if (!this.featureIt.hasNext()) {
+						numOffsettedLines = this.numOutputFeatures;
+						// iterators opened by the AbstractFeatureCollection may not get closed
+						this.close();
+						return false;
+					}
+					try {
+						deadline.check();
+					} catch (ProcessException e) {
+						this.requestMetrics.fail();
+						this.close();
+						throw e;
+					}
+					this.pending.clear();
+					this.pendingIndex = 0;
+					this.offsetFeature(this.featureIt.next());
+				}
+				return true;
+			}
+			
+			public SimpleFeature next() throws NoSuchElementException {
+				if (!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				this.numOutputFeatures++;
+				return this.pending.get(this.pendingIndex++);
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			
+			public void close() {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				this.pending.clear();
+				this.featureIt.close(); // closes the underlying database query, ...
+				
+				if (this.featureIt.isMeasuringEnabled()) {
+					LOGGER.info("Spend "+this.featureIt.getTimeSpendInSeconds()+" seconds on reading "
+							+ " and generating offsets for "
+							+ this.numOutputFeatures
+							+ " features from the datasource.");
+				}
+				LOGGER.fine("Built offsetted lines with "+this.offsetCurveEngine.getNumOutputCoordinates()+" coordinates");
+				
+				this.requestMetrics.addInputFeatures(this.numInputFeatures);
+				this.requestMetrics.addSkippedExceptions(this.numSkippedFeatures);
+				this.featureIt.reportTo(this.requestMetrics, Stage.READ);
+				this.requestMetrics.addStageTime(Stage.OFFSET, this.offsetTimeSpend);
+				this.requestMetrics.finish(this.numOutputFeatures, this.offsetCurveEngine.getNumOutputCoordinates());
+			}
+			
+			private void offsetFeature(final SimpleFeature inputFeature) {
+				this.numInputFeatures++;
+				final long offsetStart = this.requestMetrics.startStage();
 				try {
-					final SimpleFeature inputFeature = featureIt.next();
-					
-					// create the new geometry with the offset
 					LineString line =  (LineString) inputFeature.getDefaultGeometry();
-					LineString offsettedLine = curveBuilder.buildOffsettedLineString(line, offsetInMapUnits);
-					featureBuilder.set(geomDescriptor.getName(), offsettedLine);
+					final List<LineString> pieces = (this.clipper != null) ? 
+							this.clipper.clip(line, offsetInMapUnits, 0.0) : Collections.singletonList(line);
 					
-					// copy attributes
-					for (final AttributeDescriptor descriptor: inputFeatureType.getAttributeDescriptors()) {
-						if (!(descriptor instanceof GeometryDescriptor)) {
-							final Object value = inputFeature.getAttribute(descriptor.getName());
-							if (!(value instanceof Geometry)) {
-								featureBuilder.set(descriptor.getName(), value);
+					final GeometryDescriptor geomDescriptor = this.schema.getGeometryDescriptor();
+					for (final LineString piece: pieces) {
+						// create the new geometry with the offset
+						LineString offsettedLine = this.offsetCurveEngine.buildOffsettedLineString(piece, offsetInMapUnits);
+						this.featureBuilder.set(geomDescriptor.getName(), offsettedLine);
+						
+						// copy attributes
+						for (final AttributeDescriptor descriptor: this.schema.getAttributeDescriptors()) {
+							if (!(descriptor instanceof GeometryDescriptor)) {
+								final Object value = inputFeature.getAttribute(descriptor.getName());
+								if (!(value instanceof Geometry)) {
+									this.featureBuilder.set(descriptor.getName(), value);
+								}
 							}
 						}
+						
+						this.pending.add(this.featureBuilder.buildFeature(null));
 					}
-					
-					outputCollection.add(featureBuilder.buildFeature(null));
 				} catch (IllegalArgumentException e) {
 					// possible cause: JTS: Invalid number of points in LineString (found 1 - must be 0 or >= 2)
 					LOGGER.warning("Ignoring possible illegal feature: " + e.getMessage());
+					this.numSkippedFeatures++;
+				}
+				if (this.requestMetrics.isEnabled()) {
+					this.offsetTimeSpend += System.nanoTime() - offsetStart;
 				}
 			}
-		} finally {
-			featureIt.close();
 		}
+	}
+	
+	/**
+	 * expand the bbox by the offset, so lines moved into the map get read. All attributes 
+	 * are read as they are copied to the output.
+	 * 
+	 * @return
+	 * @throws ProcessException
+	 */
+	public Query invertQuery(
+			@DescribeParameter(name = "offsetInPixels",
+					description = "The offset the lines should have in pixels. Negative an positive values control the direction of the displacement.",
+					defaultValue = "0.0") Double offsetInPixels,
+			@DescribeParameter(name = "outputBBOX", 
+					description = "Bounding box for target image extent. Should be set using the env function from the WMS-Parameters.") ReferencedEnvelope outputEnv,
+			@DescribeParameter(name = "outputWidth",
+					description = "Target image width in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputWidth,
+			@DescribeParameter(name = "outputHeight",
+					description = "Target image height in pixels. Should be set using the env function from the WMS-Parameters.", minValue = 1) Integer outputHeight,
+			Query targetQuery, GridGeometry targetGridGeometry) throws ProcessException {
 		
-		if (featureIt.isMeasuringEnabled()) {
-			LOGGER.info("Spend "+featureIt.getTimeSpendInSeconds()+" seconds on reading "
-					+ " and generating offsets for "
-					+ outputCollection.size()
-					+ " features from the datasource.");
-		}
-		return outputCollection;
+		final double bufferInMapUnits = this.getQueryBufferInMapUnits(outputEnv, outputWidth, outputHeight, 
+				null, Math.abs(offsetInPixels));
+		return this.invertTargetQuery(targetQuery, bufferInMapUnits, null);
 	}
 }
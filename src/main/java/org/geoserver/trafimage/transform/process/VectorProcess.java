@@ -6,16 +6,236 @@
 package org.geoserver.trafimage.transform.process;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 
+import org.geoserver.trafimage.transform.CurveBuilder;
+import org.geoserver.trafimage.transform.GeneralizingOffsetCurveEngine;
+import org.geoserver.trafimage.transform.MapUnits;
+import org.geoserver.trafimage.transform.OffsetCurveEngine;
+import org.geoserver.trafimage.transform.PolylineOffsetEngine;
+import org.geoserver.trafimage.transform.ScreenGeneralizer;
+import org.geoserver.trafimage.transform.ViewportClipper;
 import org.geoserver.wps.gs.GeoServerProcess;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.visitor.BBOXExpandingFilterVisitor;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.ProcessException;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+import org.opengis.filter.spatial.BBOX;
 
 
 abstract class VectorProcess implements GeoServerProcess {
 	
+	/**
+	 * collects the names of the geometry attributes the bbox filters are applied to
+	 */
+	private static class BBOXGeometryNameCollector extends DefaultFilterVisitor {
+		final LinkedHashSet<String> geometryNames = new LinkedHashSet<String>();
+		
+		@Override
+		public Object visit(final BBOX filter, final Object data) {
+			if (filter.getExpression1() instanceof PropertyName) {
+				this.geometryNames.add(((PropertyName) filter.getExpression1()).getPropertyName());
+			}
+			return data;
+		}
+	}
+	
+	/**
+	 * the maximum distance of the round joins of offsetted lines from the exact arc
+	 */
+	private static final double MAX_ARC_ERROR_IN_PIXELS = 0.1;
+	
+	/**
+	 * joins of lines offsetted by less than this are bevelled by the jts engine
+	 * as the arc would be smaller than a pixel
+	 */
+	private static final double MIN_ROUND_JOIN_RADIUS_IN_PIXELS = 1.0;
+	
+	/**
+	 * the size of the grid the lines get snapped to by the screen generalization
+	 */
+	private static final double GENERALIZATION_GRID_SIZE_IN_PIXELS = 0.25;
+	
+	/**
+	 * the distance of vertices from the line below which they get removed by the screen generalization
+	 */
+	private static final double GENERALIZATION_TOLERANCE_IN_PIXELS = 0.25;
+	
+	/**
+	 * create a generalizer reducing the lines to the detail visible in the output image.
+	 * 
+	 * @param outputEnv
+	 * @param outputWidth
+	 * @param outputHeight
+	 * @return
+	 */
+	protected ScreenGeneralizer createScreenGeneralizer(final ReferencedEnvelope outputEnv, final Integer outputWidth, final Integer outputHeight) {
+		return new ScreenGeneralizer(outputEnv.getMinX(), outputEnv.getMinY(),
+				MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, GENERALIZATION_GRID_SIZE_IN_PIXELS),
+				MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, GENERALIZATION_TOLERANCE_IN_PIXELS));
+	}
+	
+	/**
+	 * create a clipper trimming lines to the part visible in the output image
+	 * 
+	 * @param outputEnv
+	 * @param outputWidth
+	 * @param outputHeight
+	 * @return
+	 */
+	protected ViewportClipper createViewportClipper(final ReferencedEnvelope outputEnv, final Integer outputWidth, final Integer outputHeight) {
+		return new ViewportClipper(outputEnv, MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, 1.0));
+	}
+	
+	/**
+	 * create a CurveBuilder which approximates the arcs of the joins not more
+	 * precise than visible in the output image.
+	 * 
+	 * @param outputEnv
+	 * @param outputWidth
+	 * @param outputHeight
+	 * @return
+	 */
+	protected CurveBuilder createCurveBuilder(final ReferencedEnvelope outputEnv, final Integer outputWidth, final Integer outputHeight) {
+		return new CurveBuilder(
+				MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, MAX_ARC_ERROR_IN_PIXELS),
+				MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, MIN_ROUND_JOIN_RADIUS_IN_PIXELS));
+	}
+	
+	/**
+	 * create the engine to build offsetted lines with
+	 * 
+	 * @param engineName "jts", "round" or "mitre"
+	 * @param enableScreenGeneralization generalize the lines to the output image before offsetting them
+	 * @param outputEnv
+	 * @param outputWidth
+	 * @param outputHeight
+	 * @return
+	 */
+	protected OffsetCurveEngine createOffsetCurveEngine(final String engineName, final boolean enableScreenGeneralization,
+			final ReferencedEnvelope outputEnv, final Integer outputWidth, final Integer outputHeight) {
+		this.assertOffsetEngine(engineName);
+		final OffsetCurveEngine engine;
+		if (engineName == null || engineName.equals("") || engineName.equals("jts")) {
+			engine = this.createCurveBuilder(outputEnv, outputWidth, outputHeight);
+		} else {
+			final double maxArcError = MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, MAX_ARC_ERROR_IN_PIXELS);
+			if (engineName.equals("round")) {
+				engine = new PolylineOffsetEngine(PolylineOffsetEngine.JoinStyle.ROUND, maxArcError);
+			} else {
+				engine = new PolylineOffsetEngine(PolylineOffsetEngine.JoinStyle.MITRE, maxArcError);
+			}
+		}
+		if (enableScreenGeneralization) {
+			return new GeneralizingOffsetCurveEngine(engine, this.createScreenGeneralizer(outputEnv, outputWidth, outputHeight));
+		}
+		return engine;
+	}
+	
+	/**
+	 * convert the buffer of the query to the datasource to map units.
+	 * 
+	 * @param outputEnv
+	 * @param outputWidth
+	 * @param outputHeight
+	 * @param queryBufferInPixels the buffer requested by the user. Negative values or null to use derivedBufferInPixels
+	 * @param derivedBufferInPixels the buffer calculated from the other parameters of the process
+	 * @return
+	 */
+	protected double getQueryBufferInMapUnits(final ReferencedEnvelope outputEnv, final Integer outputWidth, final Integer outputHeight,
+			final Integer queryBufferInPixels, final double derivedBufferInPixels) {
+		if (outputEnv == null || outputWidth == null || outputHeight == null) {
+			return 0.0;
+		}
+		final double bufferInPixels = (queryBufferInPixels == null || queryBufferInPixels < 0) ? derivedBufferInPixels : queryBufferInPixels;
+		return MapUnits.pixelDistanceToMapUnits(outputEnv, outputWidth, outputHeight, bufferInPixels);
+	}
+	
+	/**
+	 * modify the query GeoServer will use to read the input collection from the datasource.
+	 * 
+	 * The bbox filters get expanded by bufferInMapUnits, so features outside of the map which
+	 * get moved into the map by the transformation are read. When requiredAttributes is set, only 
+	 * the geometry and these attributes will be read. This only happens when the name of the 
+	 * geometry attribute is known from the bbox filter, otherwise all attributes are read.
+	 * 
+	 * @param targetQuery
+	 * @param bufferInMapUnits
+	 * @param requiredAttributes the attributes the process needs. null to read all attributes
+	 * @return
+	 */
+	protected Query invertTargetQuery(final Query targetQuery, final double bufferInMapUnits, final Collection<String> requiredAttributes) {
+		final Filter filter = targetQuery.getFilter();
+		if (filter == null) {
+			return targetQuery;
+		}
+		if (bufferInMapUnits > 0.0) {
+			final BBOXExpandingFilterVisitor expander = new BBOXExpandingFilterVisitor(bufferInMapUnits, 
+					bufferInMapUnits, bufferInMapUnits, bufferInMapUnits);
+			targetQuery.setFilter((Filter) filter.accept(expander, null));
+		}
+		
+		if (requiredAttributes != null) {
+			final BBOXGeometryNameCollector nameCollector = new BBOXGeometryNameCollector();
+			filter.accept(nameCollector, null);
+			nameCollector.geometryNames.remove("");
+			if (nameCollector.geometryNames.size() == 1) {
+				final LinkedHashSet<String> propertyNames = new LinkedHashSet<String>(nameCollector.geometryNames);
+				for (final String attributeName: requiredAttributes) {
+					if (attributeName != null && !attributeName.equals("")) {
+						propertyNames.add(attributeName);
+					}
+				}
+				final FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+				final ArrayList<PropertyName> properties = new ArrayList<PropertyName>();
+				for (final String propertyName: propertyNames) {
+					properties.add(ff.property(propertyName));
+				}
+				targetQuery.setProperties(properties);
+			}
+		}
+		return targetQuery;
+	}
+	
+	/**
+	 * let the datasource return the features sorted by an attribute
+	 * 
+	 * @param targetQuery
+	 * @param sortAttributeName the query is not changed when this is null or empty
+	 * @return
+	 */
+	protected Query sortTargetQuery(final Query targetQuery, final String sortAttributeName) {
+		if (sortAttributeName != null && !sortAttributeName.equals("")) {
+			final FilterFactory ff = CommonFactoryFinder.getFilterFactory();
+			targetQuery.setSortBy(new SortBy[] {ff.sort(sortAttributeName, SortOrder.ASCENDING)});
+		}
+		return targetQuery;
+	}
+	
+	/**
+	 * check the name of the offsetEngine parameter before any feature gets processed
+	 * 
+	 * @param engineName "jts", "round" or "mitre". null and "" select "jts"
+	 */
+	protected void assertOffsetEngine(final String engineName) throws ProcessException {
+		if (engineName == null || engineName.equals("") || engineName.equals("jts")
+				|| engineName.equals("round") || engineName.equals("mitre")) {
+			return;
+		}
+		throw new ProcessException("Unknown offsetEngine: "+engineName+". Valid values are jts, round and mitre.");
+	}
+	
 	/**
 	 * 
 	 * @param inputSchema
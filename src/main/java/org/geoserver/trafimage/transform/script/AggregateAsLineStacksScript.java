@@ -5,14 +5,39 @@
  */
 package org.geoserver.trafimage.transform.script;
 
-public class AggregateAsLineStacksScript extends Script {
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+
+public class AggregateAsLineStacksScript extends FeatureWidthScript {
+
+	private final double[] singleLength = new double[1];
+	private final int[] singleAggCount = new int[1];
+	private final int[] singleWidth = new int[1];
 
 	public AggregateAsLineStacksScript(String scriptSource) throws ScriptException {
-		super(scriptSource, "AggregateAsLineStacksScript");
+		this(scriptSource, null);
+	}
+
+	public AggregateAsLineStacksScript(String scriptSource, RequestDeadline deadline) throws ScriptException {
+		super(scriptSource, "AggregateAsLineStacksScript", true, deadline);
 	}
 
 	public int getFeatureWidth(double featureLength, int aggCount) throws ScriptException {
-		Object[] args = {featureLength, aggCount};
-		return callFunctionInteger("getFeatureWith", args);
+		singleLength[0] = featureLength;
+		singleAggCount[0] = aggCount;
+		calculateFeatureWidths(singleLength, singleAggCount, 1, singleWidth);
+		return singleWidth[0];
+	}
+
+	/**
+	 * get the widths of many features at once
+	 * 
+	 * @param featureLengths
+	 * @param aggCounts
+	 * @param count the number of features
+	 * @param featureWidths receives the widths
+	 * @throws ScriptException
+	 */
+	public void getFeatureWidths(double[] featureLengths, int[] aggCounts, int count, int[] featureWidths) throws ScriptException {
+		calculateFeatureWidths(featureLengths, aggCounts, count, featureWidths);
 	}
 }
@@ -0,0 +1,198 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import java.util.HashMap;
+
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.mozilla.javascript.Context;
+
+/**
+ * a script calculating the widths of features from their length and the number of
+ * aggregated features.
+ *
+ * The widths are calculated by the "getFeatureWith" function of the script, called
+ * once per feature, or by the optional "getFeatureWidths" function which receives arrays
+ * of the values of many features and returns an array of widths.
+ *
+ * Scripts setting the global variable "pureFeatureWidth" to true declare that the width only
+ * depends on the arguments and the custom variables. The widths of these scripts are
+ * memoized by the number of aggregated features and the length rounded to a relative
+ * precision of about 0.02%. The functions get called with the rounded lengths then.
+ *
+ * @author nico
+ *
+ */
+abstract class FeatureWidthScript extends Script {
+
+	public static final String WIDTH_FUNCTION_NAME = "getFeatureWith";
+	public static final String BATCH_WIDTH_FUNCTION_NAME = "getFeatureWidths";
+	public static final String PURE_VARIABLE_NAME = "pureFeatureWidth";
+
+	/**
+	 * the lengths are rounded by dropping the lower bits of the mantissa.
+	 * Keeping 12 bits of the mantissa leaves a relative error below 2^-13.
+	 */
+	private static final int DROPPED_MANTISSA_BITS = 40;
+
+	private final boolean passAggCount;
+	private final boolean pure;
+	private final boolean batched;
+
+	private final HashMap<Long, Integer> memo = new HashMap<Long, Integer>();
+	private final HashMap<Long, Integer> pendingSlots = new HashMap<Long, Integer>();
+
+	private int capacity = 0;
+	private int[] featureSlots;
+	private double[] slotLengths;
+	private double[] slotAggCounts;
+	private long[] slotKeys;
+	private int[] slotWidths;
+
+	/**
+	 *
+	 * @param scriptSource
+	 * @param scriptName
+	 * @param passAggCount pass the number of aggregated features to the functions of the script
+	 * @param deadline the deadline of the request. May be null
+	 * @throws ScriptException
+	 */
+	protected FeatureWidthScript(final String scriptSource, final String scriptName, final boolean passAggCount,
+			final RequestDeadline deadline) throws ScriptException {
+		super(scriptSource, scriptName, deadline);
+		this.passAggCount = passAggCount;
+		this.batched = hasFunction(BATCH_WIDTH_FUNCTION_NAME);
+		if (!this.batched && !hasFunction(WIDTH_FUNCTION_NAME)) {
+			terminate();
+			throw new ScriptException("The script must define a " + WIDTH_FUNCTION_NAME
+					+ " or a " + BATCH_WIDTH_FUNCTION_NAME + " function");
+		}
+		final Object pureValue = getVariable(PURE_VARIABLE_NAME);
+		this.pure = (pureValue != null) && Context.toBoolean(pureValue);
+	}
+
+	/**
+	 * calculate the widths of many features with as few calls into the script as possible
+	 *
+	 * @param featureLengths
+	 * @param aggCounts the numbers of aggregated features, or null when the script does not use them
+	 * @param count the number of features
+	 * @param featureWidths receives the widths
+	 * @throws ScriptException
+	 */
+	protected void calculateFeatureWidths(final double[] featureLengths, final int[] aggCounts, final int count,
+			final int[] featureWidths) throws ScriptException {
+		this.ensureCapacity(count);
+
+		// collect the distinct values to pass to the script
+		int numSlots = 0;
+		for (int i=0; i<count; i++) {
+			final int aggCount = (aggCounts == null) ? 0 : aggCounts[i];
+			if (!this.pure) {
+				this.setSlot(numSlots, featureLengths[i], aggCount, 0L);
+				this.featureSlots[i] = numSlots++;
+				continue;
+			}
+			final long lengthBucket = Double.doubleToLongBits(Math.abs(featureLengths[i])) >>> DROPPED_MANTISSA_BITS;
+			final long key = ((long) aggCount << 32) | lengthBucket;
+			final Integer memoizedWidth = this.memo.get(key);
+			if (memoizedWidth != null) {
+				featureWidths[i] = memoizedWidth;
+				this.featureSlots[i] = -1;
+				continue;
+			}
+			final Integer slot = this.pendingSlots.get(key);
+			if (slot != null) {
+				this.featureSlots[i] = slot;
+				continue;
+			}
+			// use the center of the bucket
+			final double bucketLength = Double.longBitsToDouble((lengthBucket << DROPPED_MANTISSA_BITS)
+					| (1L << (DROPPED_MANTISSA_BITS - 1)));
+			this.setSlot(numSlots, bucketLength, aggCount, key);
+			this.pendingSlots.put(key, numSlots);
+			this.featureSlots[i] = numSlots++;
+		}
+		this.pendingSlots.clear();
+		if (numSlots == 0) {
+			return;
+		}
+
+		this.callScript(numSlots);
+
+		if (this.pure) {
+			for (int slot=0; slot<numSlots; slot++) {
+				this.memo.put(this.slotKeys[slot], this.slotWidths[slot]);
+			}
+		}
+		for (int i=0; i<count; i++) {
+			if (this.featureSlots[i] != -1) {
+				featureWidths[i] = this.slotWidths[this.featureSlots[i]];
+			}
+		}
+	}
+
+	private void setSlot(final int slot, final double length, final int aggCount, final long key) {
+		this.slotLengths[slot] = length;
+		this.slotAggCounts[slot] = aggCount;
+		this.slotKeys[slot] = key;
+	}
+
+	private void callScript(final int numSlots) throws ScriptException {
+		if (this.batched) {
+			final Object[] args;
+			if (this.passAggCount) {
+				args = new Object[] {newNumberArray(this.slotLengths, numSlots), newNumberArray(this.slotAggCounts, numSlots)};
+			} else {
+				args = new Object[] {newNumberArray(this.slotLengths, numSlots)};
+			}
+			callFunctionIntegerArray(BATCH_WIDTH_FUNCTION_NAME, args, numSlots, this.slotWidths);
+			return;
+		}
+		for (int slot=0; slot<numSlots; slot++) {
+			final Object[] args;
+			if (this.passAggCount) {
+				args = new Object[] {this.slotLengths[slot], (int) this.slotAggCounts[slot]};
+			} else {
+				args = new Object[] {this.slotLengths[slot]};
+			}
+			final Integer width = callFunctionInteger(WIDTH_FUNCTION_NAME, args);
+			if (width == null) {
+				throw new ScriptException(WIDTH_FUNCTION_NAME + " did not return a number");
+			}
+			this.slotWidths[slot] = width;
+		}
+	}
+
+	private void ensureCapacity(final int count) {
+		if (this.capacity < count) {
+			this.capacity = Math.max(count, this.capacity * 2);
+			this.featureSlots = new int[this.capacity];
+			this.slotLengths = new double[this.capacity];
+			this.slotAggCounts = new double[this.capacity];
+			this.slotKeys = new long[this.capacity];
+			this.slotWidths = new int[this.capacity];
+		}
+	}
+
+	/**
+	 * true when the script declared its widths to only depend on the arguments
+	 *
+	 * @return
+	 */
+	public boolean isPure() {
+		return this.pure;
+	}
+
+	/**
+	 * true when the script defines the batch function
+	 *
+	 * @return
+	 */
+	public boolean isBatched() {
+		return this.batched;
+	}
+}
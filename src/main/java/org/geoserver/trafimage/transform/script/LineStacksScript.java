@@ -5,14 +5,36 @@
  */
 package org.geoserver.trafimage.transform.script;
 
-public class LineStacksScript extends Script {
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+
+public class LineStacksScript extends FeatureWidthScript {
+
+	private final double[] singleLength = new double[1];
+	private final int[] singleWidth = new int[1];
 
 	public LineStacksScript(String scriptSource) throws ScriptException {
-		super(scriptSource, "LineStacksScript");
+		this(scriptSource, null);
+	}
+
+	public LineStacksScript(String scriptSource, RequestDeadline deadline) throws ScriptException {
+		super(scriptSource, "LineStacksScript", false, deadline);
 	}
 
 	public int getFeatureWidth(double featureLength) throws ScriptException {
-		Object[] args = {featureLength};
-		return callFunctionInteger("getFeatureWith", args);
+		singleLength[0] = featureLength;
+		calculateFeatureWidths(singleLength, null, 1, singleWidth);
+		return singleWidth[0];
+	}
+
+	/**
+	 * get the widths of many features at once
+	 * 
+	 * @param featureLengths
+	 * @param count the number of features
+	 * @param featureWidths receives the widths
+	 * @throws ScriptException
+	 */
+	public void getFeatureWidths(double[] featureLengths, int count, int[] featureWidths) throws ScriptException {
+		calculateFeatureWidths(featureLengths, null, count, featureWidths);
 	}
 }
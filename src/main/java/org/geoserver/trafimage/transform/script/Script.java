@@ -8,6 +8,7 @@ package org.geoserver.trafimage.transform.script;
 //import java.util.logging.Logger;
 
 //import org.geotools.util.logging.Logging;
+import org.geoserver.trafimage.transform.util.RequestDeadline;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.RhinoException;
@@ -24,7 +25,7 @@ class Script {
 	 * the context is thread specific and there should be only one context per thread
 	 * 
 	 */
-	private final Context ctx = Context.enter(); 
+	private final Context ctx = ScriptContextFactory.enterContextForScript(); 
 	
 	private final Scriptable scope;
 	
@@ -33,18 +34,33 @@ class Script {
 	private final String scriptName;
 	
 	public Script(String scriptSource, String scriptName) throws ScriptException {
+		this(scriptSource, scriptName, null);
+	}
+	
+	/**
+	 * 
+	 * @param scriptSource
+	 * @param scriptName
+	 * @param deadline the deadline of the request. The script gets aborted with a ProcessException
+	 * 		when the deadline expires. May be null
+	 * @throws ScriptException
+	 */
+	public Script(String scriptSource, String scriptName, RequestDeadline deadline) throws ScriptException {
 		this.scriptName = scriptName;
+		ScriptContextFactory.setDeadline(ctx, deadline);
 		
-		scope = ctx.initStandardObjects();
-		
-		// add a minimal console object for logging
-		Object consoleObj = Context.javaToJS(new ConsoleObject(), scope);
-		ScriptableObject.putConstProperty(scope, "console", consoleObj);
-		
+		// the compiled script and the standard objects are shared with other requests. The
+		// functions of the script get defined in a new scope
+		scope = ScriptCache.createScope(ctx);
 		try {
-			ctx.evaluateString(scope, scriptSource, scriptName, 1, null);
+			ScriptCache.getCompiledScript(ctx, scriptSource, scriptName).exec(ctx, scope);
 		} catch (RhinoException e) {
+			// the caller will not be able to terminate this instance
+			terminate();
 			throw makeScriptException(e);
+		} catch (RuntimeException e) {
+			terminate();
+			throw e;
 		}
 	}
 	
@@ -83,11 +99,65 @@ class Script {
 	protected Integer callFunctionInteger(String functionName, Object[] args) throws ScriptException {
 		Object result = callFunction(functionName, args);
 		if (result != null) {
-			return (int) Math.rint(Double.parseDouble(result.toString()));
+			return toInteger(functionName, result);
 		}
 		return null;
 	}
 	
+	/**
+	 * call a JS function returning an array of numbers
+	 * 
+	 * @param functionName
+	 * @param args
+	 * @param expectedLength the number of elements the array must have
+	 * @param values receives the rounded elements of the array
+	 * @throws ScriptException
+	 */
+	protected void callFunctionIntegerArray(String functionName, Object[] args, int expectedLength, int[] values) throws ScriptException {
+		Object result = callFunction(functionName, args);
+		if (!(result instanceof Scriptable)) {
+			throw new ScriptException(functionName+" did not return an array");
+		}
+		Scriptable array = (Scriptable) result;
+		if (Context.toNumber(ScriptableObject.getProperty(array, "length")) != expectedLength) {
+			throw new ScriptException(functionName+" did not return an array of "+expectedLength+" elements");
+		}
+		for (int i=0; i<expectedLength; i++) {
+			values[i] = toInteger(functionName, ScriptableObject.getProperty(array, i));
+		}
+	}
+	
+	/**
+	 * convert a JS value to a rounded integer without going through its string representation
+	 * 
+	 * @param functionName
+	 * @param value
+	 * @return
+	 * @throws ScriptException
+	 */
+	private int toInteger(String functionName, Object value) throws ScriptException {
+		double number = Context.toNumber(value);
+		if (Double.isNaN(number)) {
+			throw new ScriptException(functionName+" did not return a number");
+		}
+		return (int) Math.rint(number);
+	}
+	
+	/**
+	 * create a JS array of numbers
+	 * 
+	 * @param values
+	 * @param length the number of values to copy to the array
+	 * @return
+	 */
+	protected Scriptable newNumberArray(double[] values, int length) {
+		Object[] elements = new Object[length];
+		for (int i=0; i<length; i++) {
+			elements[i] = values[i];
+		}
+		return ctx.newArray(scope, elements);
+	}
+	
 	/**
 	 * 
 	 * @param functionName
@@ -113,6 +183,17 @@ class Script {
 		return scope.get(functionName, scope) instanceof Function;
 	}
 	
+	/**
+	 * get the value of a global variable of the script
+	 * 
+	 * @param variableName
+	 * @return the value or null when the variable is not defined
+	 */
+	protected Object getVariable(String variableName) {
+		Object value = ScriptableObject.getProperty(scope, variableName);
+		return (value == Scriptable.NOT_FOUND) ? null : value;
+	}
+	
 	/**
 	 * create a ScriptException from a RhinoException
 	 * 
@@ -149,6 +230,7 @@ class Script {
 	 * 
 	 */
 	public void terminate() {
+		ScriptContextFactory.setDeadline(ctx, null);
 		Context.exit();
 	}
 }
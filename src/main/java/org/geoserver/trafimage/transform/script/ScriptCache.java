@@ -0,0 +1,181 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geotools.util.logging.Logging;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * caches the compiled render scripts of all requests, so the source of a script
+ * is only parsed once and not on every tile.
+ *
+ * The compiled scripts are executed in a new scope per script instance. These scopes
+ * inherit from a sealed scope holding the standard objects and the console object,
+ * which is shared by all scripts. Scripts can not modify the standard objects.
+ *
+ * The number of cached scripts is limited by the system property
+ * "trafimage.transform.scriptCacheSize" (default 32), the least recently used script
+ * is evicted first. The optimization level used to compile the scripts is read from the
+ * system property "trafimage.transform.scriptOptimizationLevel" (default 0, -1 to
+ * use the interpreter).
+ *
+ * The hits and misses of the cache are published by the MBean
+ * org.geoserver.trafimage.transform:type=ScriptCache.
+ *
+ * @author nico
+ *
+ */
+class ScriptCache {
+
+	public static final String CACHE_SIZE_PROPERTY = "trafimage.transform.scriptCacheSize";
+	public static final String OPTIMIZATION_LEVEL_PROPERTY = "trafimage.transform.scriptOptimizationLevel";
+
+	private static final Logger LOGGER = Logging.getLogger(ScriptCache.class);
+
+	private static final int CACHE_SIZE = Math.max(1, Integer.getInteger(CACHE_SIZE_PROPERTY, 32));
+	private static final int OPTIMIZATION_LEVEL = Integer.getInteger(OPTIMIZATION_LEVEL_PROPERTY, 0);
+
+	private static final AtomicLong hits = new AtomicLong(0);
+	private static final AtomicLong misses = new AtomicLong(0);
+
+	private static final LinkedHashMap<String, org.mozilla.javascript.Script> compiledScripts =
+			new LinkedHashMap<String, org.mozilla.javascript.Script>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, org.mozilla.javascript.Script> eldest) {
+			return this.size() > CACHE_SIZE;
+		}
+	};
+
+	private static ScriptableObject sharedScope = null;
+
+	static {
+		MetricsRegistry.registerMBean("ScriptCache", new ScriptCacheStatistics());
+	}
+
+	private ScriptCache() {
+	}
+
+	/**
+	 * get the compiled script for the source. Scripts which are not cached yet get compiled
+	 * using the context of the calling thread.
+	 *
+	 * Scripts compiled in a context of another factory do not count their instructions,
+	 * so they are not cached. Otherwise the requests running them later could not be aborted.
+	 *
+	 * @param ctx the context of the calling thread
+	 * @param scriptSource
+	 * @param scriptName
+	 * @return
+	 * @throws org.mozilla.javascript.RhinoException when the script does not compile
+	 */
+	static org.mozilla.javascript.Script getCompiledScript(final Context ctx, final String scriptSource, final String scriptName) {
+		final boolean ownContext = ScriptContextFactory.isOwnContext(ctx);
+		if (ownContext) {
+			synchronized (compiledScripts) {
+				final org.mozilla.javascript.Script compiledScript = compiledScripts.get(scriptSource);
+				if (compiledScript != null) {
+					hits.incrementAndGet();
+					return compiledScript;
+				}
+			}
+		}
+		final long numMisses = misses.incrementAndGet();
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Compiling "+scriptName+" at optimization level "+OPTIMIZATION_LEVEL
+					+ ". The script cache had "+hits.get()+" hits and "+numMisses+" misses so far.");
+		}
+
+		// compile outside of the lock. Requests compiling the same script at the same time
+		// just do the work twice
+		final int previousOptimizationLevel = ctx.getOptimizationLevel();
+		final org.mozilla.javascript.Script compiledScript;
+		try {
+			ctx.setOptimizationLevel(OPTIMIZATION_LEVEL);
+			compiledScript = ctx.compileString(scriptSource, scriptName, 1, null);
+		} finally {
+			ctx.setOptimizationLevel(previousOptimizationLevel);
+		}
+		if (ownContext) {
+			synchronized (compiledScripts) {
+				compiledScripts.put(scriptSource, compiledScript);
+			}
+		}
+		return compiledScript;
+	}
+
+	/**
+	 * create a new, empty scope inheriting from the shared scope
+	 *
+	 * @param ctx the context of the calling thread
+	 * @return
+	 */
+	static Scriptable createScope(final Context ctx) {
+		final Scriptable parentScope = getSharedScope(ctx);
+		final Scriptable scope = ctx.newObject(parentScope);
+		scope.setPrototype(parentScope);
+		scope.setParentScope(null);
+		return scope;
+	}
+
+	private static synchronized Scriptable getSharedScope(final Context ctx) {
+		if (sharedScope == null) {
+			final ScriptableObject scope = ctx.initStandardObjects(null, true);
+
+			// add a minimal console object for logging
+			Object consoleObj = Context.javaToJS(new ConsoleObject(), scope);
+			ScriptableObject.putConstProperty(scope, "console", consoleObj);
+
+			scope.sealObject();
+			sharedScope = scope;
+		}
+		return sharedScope;
+	}
+
+	/**
+	 * the number of scripts found in the cache
+	 *
+	 * @return
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * the number of scripts which had to be compiled
+	 *
+	 * @return
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * the number of cached scripts
+	 *
+	 * @return
+	 */
+	static int getSize() {
+		synchronized (compiledScripts) {
+			return compiledScripts.size();
+		}
+	}
+
+	static int getMaxSize() {
+		return CACHE_SIZE;
+	}
+}
@@ -0,0 +1,34 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+/**
+ * publishes the counters of the ScriptCache
+ *
+ * @author nico
+ *
+ */
+public class ScriptCacheStatistics implements ScriptCacheStatisticsMBean {
+
+	ScriptCacheStatistics() {
+	}
+
+	public long getHits() {
+		return ScriptCache.getHits();
+	}
+
+	public long getMisses() {
+		return ScriptCache.getMisses();
+	}
+
+	public int getSize() {
+		return ScriptCache.getSize();
+	}
+
+	public int getMaxSize() {
+		return ScriptCache.getMaxSize();
+	}
+}
@@ -0,0 +1,38 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+/**
+ * the MBean of the cache of the compiled scripts
+ *
+ * @author nico
+ *
+ */
+public interface ScriptCacheStatisticsMBean {
+
+	/**
+	 * the number of scripts found in the cache
+	 *
+	 * @return
+	 */
+	public long getHits();
+
+	/**
+	 * the number of scripts which had to be compiled
+	 *
+	 * @return
+	 */
+	public long getMisses();
+
+	/**
+	 * the number of cached scripts
+	 *
+	 * @return
+	 */
+	public int getSize();
+
+	public int getMaxSize();
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.geoserver.trafimage.transform.util.RequestDeadline;
+import org.geotools.util.logging.Logging;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/**
+ * creates the contexts of the scripts. Running scripts check the deadline of their
+ * request every few thousand instructions, so endless loops in scripts do not
+ * run forever.
+ *
+ * The factory is not installed as the global ContextFactory to leave other users of
+ * rhino inside geoserver alone. When the calling thread already has entered a context
+ * of another factory, rhino returns that context. The deadline can not be checked in
+ * such a foreign context and the scripts compiled in it are not cached.
+ *
+ * @author nico
+ *
+ */
+class ScriptContextFactory extends ContextFactory {
+
+	/**
+	 * the number of instructions between the checks of the deadline
+	 */
+	private static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
+	private static final Object DEADLINE_KEY = new Object();
+
+	private static final ScriptContextFactory instance = new ScriptContextFactory();
+
+	private static final Logger LOGGER = Logging.getLogger(ScriptContextFactory.class);
+
+	private static final AtomicBoolean foreignContextReported = new AtomicBoolean(false);
+
+	private ScriptContextFactory() {
+	}
+
+	/**
+	 * enter a context for the calling thread
+	 *
+	 * @return
+	 */
+	static Context enterContextForScript() {
+		final Context ctx = instance.enterContext();
+		if (!isOwnContext(ctx) && foreignContextReported.compareAndSet(false, true)) {
+			LOGGER.warning("The thread "+Thread.currentThread().getName()+" already uses a rhino context of "
+					+ ctx.getFactory().getClass().getName()+". The scripts running in this context can not be aborted "
+					+ "when the request times out.");
+		}
+		return ctx;
+	}
+
+	/**
+	 * true when the context has been created by this factory, so the scripts compiled in it
+	 * count their instructions and check the deadline
+	 *
+	 * @param ctx
+	 * @return
+	 */
+	static boolean isOwnContext(final Context ctx) {
+		return ctx.getFactory() == instance;
+	}
+
+	/**
+	 * set the deadline the scripts running in the context have to respect
+	 *
+	 * @param ctx
+	 * @param deadline null to remove the deadline
+	 */
+	static void setDeadline(final Context ctx, final RequestDeadline deadline) {
+		if (deadline == null) {
+			ctx.removeThreadLocal(DEADLINE_KEY);
+		} else {
+			ctx.putThreadLocal(DEADLINE_KEY, deadline);
+		}
+	}
+
+	@Override
+	protected Context makeContext() {
+		final Context ctx = super.makeContext();
+		// the threshold has to be set when compiling scripts, otherwise the
+		// compiled code does not count its instructions
+		ctx.setInstructionObserverThreshold(INSTRUCTION_OBSERVER_THRESHOLD);
+		return ctx;
+	}
+
+	/**
+	 * @throws org.geotools.process.ProcessException when the deadline expired. This is not a
+	 * 		javascript error, so it can not be caught by the script.
+	 */
+	@Override
+	protected void observeInstructionCount(final Context ctx, final int instructionCount) {
+		final Object deadline = ctx.getThreadLocal(DEADLINE_KEY);
+		if (deadline != null) {
+			((RequestDeadline) deadline).check();
+		}
+	}
+}
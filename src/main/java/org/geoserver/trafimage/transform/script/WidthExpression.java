@@ -0,0 +1,679 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mozilla.javascript.Context;
+
+/**
+ * a small arithmetic expression language to calculate the width of a feature without
+ * a javascript interpreter.
+ *
+ * The expressions use the syntax of javascript expressions and know the variables
+ * featureLength, aggCount, customVariable1 and customVariable2, the operators
+ * + - * / % &lt; &lt;= &gt; &gt;= == != &amp;&amp; || ! ?: and the functions min, max, clamp(value, min, max),
+ * abs, sqrt, pow, exp, log, log10, round, floor and ceil. The functions may be prefixed by "Math.".
+ * Comparisons and ! return 1 or 0, 0 and NaN are false. As in javascript, || returns its left
+ * operand when it is true and its right operand otherwise, &amp;&amp; returns its left operand when
+ * it is false and its right operand otherwise.
+ *
+ * The custom variables are numbers converted from the parameter values like javascript
+ * converts strings to numbers. The renderScript gets the same values as strings, so
+ * expressions using the custom variables with + or as a truth value do not give the
+ * same results as the renderScript: for customVariable1 "0", customVariable1 || 4 is 4
+ * here and "0" in javascript, and for customVariable2 "5", aggCount * 2 + customVariable2
+ * adds the numbers here and concatenates the strings in javascript. The same applies to
+ * comparing the two custom variables with each other.
+ *
+ * Expressions get parsed to a tree of nodes evaluating on doubles, parts without variables
+ * are evaluated once while parsing. The parsed expressions are immutable and cached by their
+ * source in a cache bounded by the system property "trafimage.transform.scriptCacheSize".
+ *
+ * @author nico
+ *
+ */
+public final class WidthExpression {
+
+	private static final int CACHE_SIZE = Math.max(1, Integer.getInteger(ScriptCache.CACHE_SIZE_PROPERTY, 32));
+
+	private static final LinkedHashMap<String, WidthExpression> expressions =
+			new LinkedHashMap<String, WidthExpression>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, WidthExpression> eldest) {
+			return this.size() > CACHE_SIZE;
+		}
+	};
+
+	private final Node root;
+	private final boolean usesFeatureLength;
+
+	private WidthExpression(final Node root, final boolean usesFeatureLength) {
+		this.root = root;
+		this.usesFeatureLength = usesFeatureLength;
+	}
+
+	/**
+	 * get the parsed expression for the source
+	 *
+	 * @param source
+	 * @return
+	 * @throws ScriptException when the expression can not be parsed
+	 */
+	public static WidthExpression compile(final String source) throws ScriptException {
+		synchronized (expressions) {
+			final WidthExpression expression = expressions.get(source);
+			if (expression != null) {
+				return expression;
+			}
+		}
+		final Parser parser = new Parser(source);
+		final WidthExpression expression = new WidthExpression(parser.parse(), parser.usesFeatureLength);
+		synchronized (expressions) {
+			expressions.put(source, expression);
+		}
+		return expression;
+	}
+
+	/**
+	 * convert the value of a custom variable to a number the way javascript converts strings
+	 * to numbers: surrounding whitespace is ignored, empty values and null are 0 and values
+	 * which are not numbers are NaN.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static double parseVariable(final String value) {
+		return Context.toNumber(value);
+	}
+
+	/**
+	 * true when the expression uses the featureLength variable. When false the length
+	 * of the features does not need to be calculated.
+	 *
+	 * @return
+	 */
+	public boolean usesFeatureLength() {
+		return this.usesFeatureLength;
+	}
+
+	public double evaluate(final double featureLength, final double aggCount,
+			final double customVariable1, final double customVariable2) {
+		return this.root.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+	}
+
+
+	private static abstract class Node {
+		abstract double evaluate(double featureLength, double aggCount, double customVariable1, double customVariable2);
+
+		boolean isConstant() {
+			return false;
+		}
+	}
+
+	private static final class Constant extends Node {
+		private final double value;
+
+		Constant(final double value) {
+			this.value = value;
+		}
+
+		double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+			return this.value;
+		}
+
+		boolean isConstant() {
+			return true;
+		}
+	}
+
+	private static final class FeatureLength extends Node {
+		double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+			return featureLength;
+		}
+	}
+
+	private static final class AggCount extends Node {
+		double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+			return aggCount;
+		}
+	}
+
+	private static final class CustomVariable1 extends Node {
+		double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+			return customVariable1;
+		}
+	}
+
+	private static final class CustomVariable2 extends Node {
+		double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+			return customVariable2;
+		}
+	}
+
+	private static boolean isTrue(final double value) {
+		// NaN != 0.0 is true, but NaN is false in javascript
+		return value != 0.0 && value == value;
+	}
+
+	private static double fromBoolean(final boolean value) {
+		return value ? 1.0 : 0.0;
+	}
+
+
+	/**
+	 * recursive descent parser building the nodes
+	 */
+	private static final class Parser {
+		private final String source;
+		private int pos = 0;
+		boolean usesFeatureLength = false;
+
+		Parser(final String source) {
+			this.source = source;
+		}
+
+		Node parse() throws ScriptException {
+			final Node node = this.parseConditional();
+			this.skipWhitespace();
+			if (this.pos < this.source.length()) {
+				throw this.error("Unexpected character '" + this.source.charAt(this.pos) + "'");
+			}
+			return node;
+		}
+
+		private Node parseConditional() throws ScriptException {
+			final Node condition = this.parseOr();
+			if (!this.accept("?")) {
+				return condition;
+			}
+			final Node whenTrue = this.parseConditional();
+			this.expect(":");
+			final Node whenFalse = this.parseConditional();
+			if (condition.isConstant()) {
+				return isTrue(constantValue(condition)) ? whenTrue : whenFalse;
+			}
+			return new Node() {
+				double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+					return isTrue(condition.evaluate(featureLength, aggCount, customVariable1, customVariable2))
+							? whenTrue.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+							: whenFalse.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+				}
+			};
+		}
+
+		private Node parseOr() throws ScriptException {
+			Node node = this.parseAnd();
+			while (this.accept("||")) {
+				final Node left = node;
+				final Node right = this.parseAnd();
+				if (left.isConstant()) {
+					node = isTrue(constantValue(left)) ? left : right;
+					continue;
+				}
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						final double leftValue = left.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+						return isTrue(leftValue) ? leftValue
+								: right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			}
+			return node;
+		}
+
+		private Node parseAnd() throws ScriptException {
+			Node node = this.parseEquality();
+			while (this.accept("&&")) {
+				final Node left = node;
+				final Node right = this.parseEquality();
+				if (left.isConstant()) {
+					node = isTrue(constantValue(left)) ? right : left;
+					continue;
+				}
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						final double leftValue = left.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+						return isTrue(leftValue) ? right.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								: leftValue;
+					}
+				};
+			}
+			return node;
+		}
+
+		private Node parseEquality() throws ScriptException {
+			Node node = this.parseRelational();
+			while (true) {
+				final String operator;
+				if (this.accept("==")) {
+					operator = "==";
+				} else if (this.accept("!=")) {
+					operator = "!=";
+				} else {
+					return node;
+				}
+				node = binary(operator, node, this.parseRelational());
+			}
+		}
+
+		private Node parseRelational() throws ScriptException {
+			Node node = this.parseAdditive();
+			while (true) {
+				final String operator;
+				if (this.accept("<=")) {
+					operator = "<=";
+				} else if (this.accept(">=")) {
+					operator = ">=";
+				} else if (this.accept("<")) {
+					operator = "<";
+				} else if (this.accept(">")) {
+					operator = ">";
+				} else {
+					return node;
+				}
+				node = binary(operator, node, this.parseAdditive());
+			}
+		}
+
+		private Node parseAdditive() throws ScriptException {
+			Node node = this.parseMultiplicative();
+			while (true) {
+				final String operator;
+				if (this.accept("+")) {
+					operator = "+";
+				} else if (this.accept("-")) {
+					operator = "-";
+				} else {
+					return node;
+				}
+				node = binary(operator, node, this.parseMultiplicative());
+			}
+		}
+
+		private Node parseMultiplicative() throws ScriptException {
+			Node node = this.parseUnary();
+			while (true) {
+				final String operator;
+				if (this.accept("*")) {
+					operator = "*";
+				} else if (this.accept("/")) {
+					operator = "/";
+				} else if (this.accept("%")) {
+					operator = "%";
+				} else {
+					return node;
+				}
+				node = binary(operator, node, this.parseUnary());
+			}
+		}
+
+		private Node parseUnary() throws ScriptException {
+			if (this.accept("-")) {
+				final Node operand = this.parseUnary();
+				return fold(new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return -operand.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				}, operand);
+			}
+			if (this.accept("!")) {
+				final Node operand = this.parseUnary();
+				return fold(new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(!isTrue(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2)));
+					}
+				}, operand);
+			}
+			if (this.accept("+")) {
+				return this.parseUnary();
+			}
+			return this.parsePrimary();
+		}
+
+		private Node parsePrimary() throws ScriptException {
+			this.skipWhitespace();
+			if (this.pos >= this.source.length()) {
+				throw this.error("Unexpected end of the expression");
+			}
+			final char c = this.source.charAt(this.pos);
+			if (this.accept("(")) {
+				final Node node = this.parseConditional();
+				this.expect(")");
+				return node;
+			}
+			if (Character.isDigit(c) || c == '.') {
+				return this.parseNumber();
+			}
+			if (Character.isJavaIdentifierStart(c)) {
+				final int start = this.pos;
+				String name = this.parseIdentifier();
+				if (name.startsWith("Math.")) {
+					name = name.substring(5);
+				}
+				if (this.accept("(")) {
+					return this.parseFunction(name, start);
+				}
+				return this.variable(name, start);
+			}
+			throw this.error("Unexpected character '" + c + "'");
+		}
+
+		private Node parseNumber() throws ScriptException {
+			final int start = this.pos;
+			while (this.pos < this.source.length()) {
+				final char c = this.source.charAt(this.pos);
+				if (Character.isDigit(c) || c == '.') {
+					this.pos++;
+				} else if ((c == 'e' || c == 'E') && this.pos > start) {
+					this.pos++;
+					if (this.pos < this.source.length() && (this.source.charAt(this.pos) == '+' || this.source.charAt(this.pos) == '-')) {
+						this.pos++;
+					}
+				} else {
+					break;
+				}
+			}
+			try {
+				return new Constant(Double.parseDouble(this.source.substring(start, this.pos)));
+			} catch (NumberFormatException e) {
+				this.pos = start;
+				throw this.error("Invalid number");
+			}
+		}
+
+		private String parseIdentifier() {
+			final int start = this.pos;
+			while (this.pos < this.source.length()
+					&& (Character.isJavaIdentifierPart(this.source.charAt(this.pos)) || this.source.charAt(this.pos) == '.')) {
+				this.pos++;
+			}
+			return this.source.substring(start, this.pos);
+		}
+
+		private Node variable(final String name, final int start) throws ScriptException {
+			if (name.equals("featureLength")) {
+				this.usesFeatureLength = true;
+				return new FeatureLength();
+			} else if (name.equals("aggCount")) {
+				return new AggCount();
+			} else if (name.equals("customVariable1")) {
+				return new CustomVariable1();
+			} else if (name.equals("customVariable2")) {
+				return new CustomVariable2();
+			} else if (name.equals("PI")) {
+				return new Constant(Math.PI);
+			} else if (name.equals("E")) {
+				return new Constant(Math.E);
+			}
+			throw this.error("Unknown variable " + name, start);
+		}
+
+		private Node parseFunction(final String name, final int start) throws ScriptException {
+			final List<Node> args = new ArrayList<Node>();
+			if (!this.accept(")")) {
+				do {
+					args.add(this.parseConditional());
+				} while (this.accept(","));
+				this.expect(")");
+			}
+			final int numArgs = args.size();
+			if (name.equals("min") || name.equals("max")) {
+				if (numArgs < 1) {
+					throw this.error(name + " expects at least one argument", start);
+				}
+				final boolean isMin = name.equals("min");
+				Node node = args.get(0);
+				for (int i=1; i<numArgs; i++) {
+					node = binary(isMin ? "min" : "max", node, args.get(i));
+				}
+				return node;
+			}
+			if (name.equals("clamp")) {
+				if (numArgs != 3) {
+					throw this.error("clamp expects 3 arguments", start);
+				}
+				return binary("min", binary("max", args.get(0), args.get(1)), args.get(2));
+			}
+			if (name.equals("pow")) {
+				if (numArgs != 2) {
+					throw this.error("pow expects 2 arguments", start);
+				}
+				return binary("pow", args.get(0), args.get(1));
+			}
+			if (numArgs != 1) {
+				throw this.error(name + " expects 1 argument", start);
+			}
+			return unaryFunction(name, args.get(0), start);
+		}
+
+		private Node unaryFunction(final String name, final Node operand, final int start) throws ScriptException {
+			final Node node;
+			if (name.equals("abs")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.abs(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("sqrt")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.sqrt(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("exp")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.exp(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("log")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.log(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("log10")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.log10(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("round")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						// javascript rounds .5 up
+						return Math.floor(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2) + 0.5);
+					}
+				};
+			} else if (name.equals("floor")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.floor(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (name.equals("ceil")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.ceil(operand.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else {
+				throw this.error("Unknown function " + name, start);
+			}
+			return fold(node, operand);
+		}
+
+		private static Node binary(final String operator, final Node left, final Node right) {
+			final Node node;
+			if (operator.equals("+")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								+ right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			} else if (operator.equals("-")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								- right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			} else if (operator.equals("*")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								* right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			} else if (operator.equals("/")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								/ right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			} else if (operator.equals("%")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								% right.evaluate(featureLength, aggCount, customVariable1, customVariable2);
+					}
+				};
+			} else if (operator.equals("<")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								< right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("<=")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								<= right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals(">")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								> right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals(">=")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								>= right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("==")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								== right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("!=")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return fromBoolean(left.evaluate(featureLength, aggCount, customVariable1, customVariable2)
+								!= right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("min")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.min(left.evaluate(featureLength, aggCount, customVariable1, customVariable2),
+								right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("max")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.max(left.evaluate(featureLength, aggCount, customVariable1, customVariable2),
+								right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else if (operator.equals("pow")) {
+				node = new Node() {
+					double evaluate(final double featureLength, final double aggCount, final double customVariable1, final double customVariable2) {
+						return Math.pow(left.evaluate(featureLength, aggCount, customVariable1, customVariable2),
+								right.evaluate(featureLength, aggCount, customVariable1, customVariable2));
+					}
+				};
+			} else {
+				throw new IllegalArgumentException("Unknown operator " + operator);
+			}
+			return fold(node, left, right);
+		}
+
+		/**
+		 * replace nodes which only depend on constants by their value
+		 */
+		private static Node fold(final Node node, final Node... operands) {
+			for (final Node operand: operands) {
+				if (!operand.isConstant()) {
+					return node;
+				}
+			}
+			return new Constant(constantValue(node));
+		}
+
+		private static double constantValue(final Node node) {
+			return node.evaluate(0.0, 0.0, 0.0, 0.0);
+		}
+
+		private void skipWhitespace() {
+			while (this.pos < this.source.length() && Character.isWhitespace(this.source.charAt(this.pos))) {
+				this.pos++;
+			}
+		}
+
+		private boolean accept(final String token) {
+			this.skipWhitespace();
+			if (!this.source.startsWith(token, this.pos)) {
+				return false;
+			}
+			// do not take the first character of a two character operator
+			final int end = this.pos + token.length();
+			if (token.length() == 1 && end < this.source.length()) {
+				final char next = this.source.charAt(end);
+				final char c = token.charAt(0);
+				if ((c == '<' || c == '>' || c == '!' || c == '=') && next == '=') {
+					return false;
+				}
+				if ((c == '&' || c == '|') && next == c) {
+					return false;
+				}
+			}
+			this.pos = end;
+			return true;
+		}
+
+		private void expect(final String token) throws ScriptException {
+			if (!this.accept(token)) {
+				throw this.error("Expected '" + token + "'");
+			}
+		}
+
+		private ScriptException error(final String message) {
+			return this.error(message, this.pos);
+		}
+
+		private ScriptException error(final String message, final int position) {
+			return new ScriptException("Error in widthExpression at position " + (position + 1) + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+/**
+ * reusable 64 bit hash state which consumes primitive values directly.
+ *
+ * The mixing follows XXHash64: the input words are distributed over four
+ * accumulator lanes which get merged and avalanched in getValue. As the input is
+ * fed in 64 bit words instead of bytes the values are not compatible with the
+ * XXHash64 of a serialized representation of the same data.
+ *
+ * Instances are not thread safe. Call reset before hashing a new value.
+ *
+ * @author nico
+ *
+ */
+public final class HashState {
+
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+	private final long seed;
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private int lane;
+	private long numWords;
+
+	public HashState(final long seed) {
+		this.seed = seed;
+		this.reset();
+	}
+
+	public void reset() {
+		this.v1 = this.seed + PRIME64_1 + PRIME64_2;
+		this.v2 = this.seed + PRIME64_2;
+		this.v3 = this.seed;
+		this.v4 = this.seed - PRIME64_1;
+		this.lane = 0;
+		this.numWords = 0;
+	}
+
+	private static long round(long acc, final long input) {
+		acc += input * PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME64_1;
+	}
+
+	private static long mergeRound(long acc, final long value) {
+		acc ^= round(0, value);
+		return acc * PRIME64_1 + PRIME64_4;
+	}
+
+	public void update(final long value) {
+		switch (this.lane) {
+			case 0: this.v1 = round(this.v1, value); break;
+			case 1: this.v2 = round(this.v2, value); break;
+			case 2: this.v3 = round(this.v3, value); break;
+			default: this.v4 = round(this.v4, value); break;
+		}
+		this.lane = (this.lane + 1) & 3;
+		this.numWords++;
+	}
+
+	public void update(final int value) {
+		this.update((long) value);
+	}
+
+	public void update(final boolean value) {
+		this.update(value ? 1L : 0L);
+	}
+
+	/**
+	 * hash the exact bits of a double. 0.0 and -0.0 are different values here.
+	 *
+	 * @param value
+	 */
+	public void update(final double value) {
+		this.update(Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * hash the characters of a string. The length is included, so consecutive
+	 * strings can not be shifted into each other.
+	 *
+	 * @param value
+	 */
+	public void update(final CharSequence value) {
+		final int length = value.length();
+		this.update((long) length);
+		int i = 0;
+		for (; i + 4 <= length; i += 4) {
+			this.update(((long) value.charAt(i))
+					| ((long) value.charAt(i + 1)) << 16
+					| ((long) value.charAt(i + 2)) << 32
+					| ((long) value.charAt(i + 3)) << 48);
+		}
+		if (i < length) {
+			long word = 0;
+			for (int shift = 0; i < length; i++, shift += 16) {
+				word |= ((long) value.charAt(i)) << shift;
+			}
+			this.update(word);
+		}
+	}
+
+	/**
+	 * the hash of all values consumed since the last reset
+	 *
+	 * @return
+	 */
+	public long getValue() {
+		long h = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7)
+				+ Long.rotateLeft(this.v3, 12) + Long.rotateLeft(this.v4, 18);
+		h = mergeRound(h, this.v1);
+		h = mergeRound(h, this.v2);
+		h = mergeRound(h, this.v3);
+		h = mergeRound(h, this.v4);
+		h += this.numWords * 8 + PRIME64_5;
+
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		h ^= h >>> 32;
+		return h;
+	}
+}
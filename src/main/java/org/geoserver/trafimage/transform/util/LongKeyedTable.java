@@ -0,0 +1,176 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * open-addressing hash table keyed by primitive 64 bit hashes.
+ *
+ * The table does not trust the keys to be unique: Two entries with the same
+ * key may exist side by side. Lookups compare the key first and confirm the match
+ * using an Equivalence, so a hash collision results in a second entry instead of
+ * silently merging two distinct values.
+ *
+ * Entries are numbered in the order they have been added. This index is stable
+ * and may be used to keep additional data in parallel arrays.
+ *
+ * @author nico
+ *
+ * @param <V>
+ */
+public class LongKeyedTable<V> {
+
+	/**
+	 * decides if a stored entry matches the object being looked up
+	 *
+	 * @param <V> type of the stored entries
+	 * @param <P> type of the probe objects
+	 */
+	public interface Equivalence<V, P> {
+
+		public boolean isEquivalent(V entry, P probe);
+	}
+
+	private static final int DEFAULT_CAPACITY = 64;
+	private static final float MAX_LOAD_FACTOR = 0.6f;
+
+	/**
+	 * index of the entry stored in a slot plus one. 0 marks an empty slot
+	 */
+	private int[] slots;
+
+	/**
+	 * the keys of the slots, duplicated here to avoid touching the entries during probing
+	 */
+	private long[] slotKeys;
+	private int mask;
+	private int resizeThreshold;
+
+	private final ArrayList<V> entries;
+
+	public LongKeyedTable() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 *
+	 * @param expectedSize number of entries expected to be stored in the table
+	 */
+	public LongKeyedTable(final int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * MAX_LOAD_FACTOR < expectedSize) {
+			capacity = capacity << 1;
+		}
+		this.entries = new ArrayList<V>(Math.max(expectedSize, 16));
+		this.allocateSlots(capacity);
+	}
+
+	private void allocateSlots(final int capacity) {
+		this.slots = new int[capacity];
+		this.slotKeys = new long[capacity];
+		this.mask = capacity - 1;
+		this.resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+	}
+
+	private int slotOf(final long key) {
+		// the keys are hashes already. just fold the upper bits in.
+		return ((int) (key ^ (key >>> 32))) & this.mask;
+	}
+
+	/**
+	 * find the entry stored under the key which is equivalent to the probe.
+	 *
+	 * @param key
+	 * @param probe
+	 * @param equivalence
+	 * @return the index of the entry or -1 when there is no such entry
+	 */
+	public <P> int indexOf(final long key, final P probe, final Equivalence<? super V, ? super P> equivalence) {
+		int slot = this.slotOf(key);
+		int stored;
+		while ((stored = this.slots[slot]) != 0) {
+			if (this.slotKeys[slot] == key) {
+				final int index = stored - 1;
+				if (equivalence.isEquivalent(this.entries.get(index), probe)) {
+					return index;
+				}
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * add a new entry. This does not check if an equivalent entry exists already.
+	 *
+	 * @param key
+	 * @param value
+	 * @return the index of the new entry
+	 */
+	public int add(final long key, final V value) {
+		if (this.entries.size() >= this.resizeThreshold) {
+			this.grow();
+		}
+		final int index = this.entries.size();
+		this.entries.add(value);
+		this.insertSlot(key, index);
+		return index;
+	}
+
+	private void insertSlot(final long key, final int index) {
+		int slot = this.slotOf(key);
+		while (this.slots[slot] != 0) {
+			slot = (slot + 1) & this.mask;
+		}
+		this.slots[slot] = index + 1;
+		this.slotKeys[slot] = key;
+	}
+
+	private void grow() {
+		final int[] oldSlots = this.slots;
+		final long[] oldSlotKeys = this.slotKeys;
+		this.allocateSlots(oldSlots.length << 1);
+		for (int i=0; i<oldSlots.length; i++) {
+			if (oldSlots[i] != 0) {
+				this.insertSlot(oldSlotKeys[i], oldSlots[i] - 1);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return
+	 */
+	public V get(final int index) {
+		return this.entries.get(index);
+	}
+
+	/**
+	 * all entries in the order they have been added
+	 *
+	 * @return
+	 */
+	public List<V> values() {
+		return this.entries;
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	public boolean isEmpty() {
+		return this.entries.isEmpty();
+	}
+
+	public void clear() {
+		this.entries.clear();
+		Arrays.fill(this.slots, 0);
+	}
+}
@@ -5,11 +5,25 @@
  */
 package org.geoserver.trafimage.transform.util;
 
+import org.geoserver.trafimage.transform.metrics.MetricsRegistry;
+import org.geoserver.trafimage.transform.metrics.RequestMetrics;
+import org.geoserver.trafimage.transform.metrics.Stage;
+
+/**
+ * measures the time spend in a part of a process.
+ *
+ * The time is measured when the durations get logged or when the metrics of the
+ * processes are collected.
+ *
+ * @author nico
+ *
+ */
 abstract public class MeasuredTime {
 	
 	private long timeSpend = 0;
 	private long measureStart = 0;
 	private boolean measuringEnabled = false;
+	private boolean timingEnabled = MetricsRegistry.isEnabled();
 	
 	public void clearTimeSpend() {
 		this.timeSpend = 0;
@@ -23,22 +37,44 @@ abstract public class MeasuredTime {
 		return (double) this.getTimeSpendInNanoSeconds() / 1000000000.0;
 	}
 	
+	/**
+	 * true when the durations should be logged
+	 * 
+	 * @return
+	 */
 	public boolean isMeasuringEnabled() {
 		return this.measuringEnabled;
 	}
 
+	/**
+	 * enable the logging of the durations. The time is measured for the metrics
+	 * of the processes anyways, as long as they are enabled.
+	 * 
+	 * @param enabled
+	 */
 	public void setMeasuringEnabled(boolean enabled) {
 		this.measuringEnabled = enabled;
+		this.timingEnabled = enabled || MetricsRegistry.isEnabled();
+	}
+	
+	/**
+	 * add the time spend to a stage of the request
+	 * 
+	 * @param requestMetrics
+	 * @param stage
+	 */
+	public void reportTo(final RequestMetrics requestMetrics, final Stage stage) {
+		requestMetrics.addStageTime(stage, this.timeSpend);
 	}
 	
 	protected void startMeasuring() {
-		if (this.measuringEnabled) {
+		if (this.timingEnabled) {
 			this.measureStart = System.nanoTime();
 		}
 	}
 	
 	protected void stopMeasuring() {
-		if (this.measuringEnabled) {
+		if (this.timingEnabled) {
 			this.timeSpend = this.timeSpend + (System.nanoTime() - this.measureStart);
 		}
 	}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+import org.geotools.process.ProcessException;
+import org.opengis.util.ProgressListener;
+
+/**
+ * the time budget of a request.
+ *
+ * The loops of the processes call check regularly, so requests which have been canceled
+ * by geoserver or ran out of time stop as soon as possible instead of finishing work
+ * nobody waits for anymore. Instances may be shared by the worker threads of a request.
+ *
+ * The time limit is set by a process parameter and capped by the system property
+ * "trafimage.transform.requestTimeout". Both are in seconds, 0 means no limit.
+ *
+ * @author nico
+ *
+ */
+public class RequestDeadline {
+
+	public static final String REQUEST_TIMEOUT_PROPERTY = "trafimage.transform.requestTimeout";
+
+	/**
+	 * a deadline which never expires
+	 */
+	public static final RequestDeadline NONE = new RequestDeadline(null, 0);
+
+	private final ProgressListener monitor;
+	private final int timeoutInSeconds;
+	private final long deadlineNanos;
+
+	/**
+	 *
+	 * @param monitor the listener of the request. May be null
+	 * @param timeoutInSeconds the time limit of the request. Values < 1 are no limit.
+	 */
+	private RequestDeadline(final ProgressListener monitor, final int timeoutInSeconds) {
+		this.monitor = monitor;
+		this.timeoutInSeconds = Math.max(0, timeoutInSeconds);
+		this.deadlineNanos = System.nanoTime() + this.timeoutInSeconds * 1000000000L;
+	}
+
+	/**
+	 * start the deadline of a request
+	 *
+	 * @param monitor the listener of the request. May be null
+	 * @param requestedTimeoutInSeconds the time limit set by the request. null and values < 1 are no limit.
+	 * @return
+	 */
+	public static RequestDeadline start(final ProgressListener monitor, final Integer requestedTimeoutInSeconds) {
+		return new RequestDeadline(monitor, getTimeout(requestedTimeoutInSeconds));
+	}
+
+	/**
+	 * the time limit for a request asking for requestedTimeoutInSeconds
+	 *
+	 * @param requestedTimeoutInSeconds
+	 * @return the limit in seconds, 0 when there is none
+	 */
+	public static int getTimeout(final Integer requestedTimeoutInSeconds) {
+		final int maxTimeout = Math.max(0, Integer.getInteger(REQUEST_TIMEOUT_PROPERTY, 0));
+		final int requestedTimeout = (requestedTimeoutInSeconds == null) ? 0 : Math.max(0, requestedTimeoutInSeconds);
+		if (maxTimeout == 0) {
+			return requestedTimeout;
+		}
+		if (requestedTimeout == 0) {
+			return maxTimeout;
+		}
+		return Math.min(maxTimeout, requestedTimeout);
+	}
+
+	public boolean hasTimeout() {
+		return this.timeoutInSeconds > 0;
+	}
+
+	/**
+	 * the seconds left until the deadline, rounded up
+	 *
+	 * @return 0 when there is no time limit, otherwise at least 1
+	 */
+	public int getRemainingSeconds() {
+		if (!this.hasTimeout()) {
+			return 0;
+		}
+		final long remainingNanos = this.deadlineNanos - System.nanoTime();
+		return (int) Math.max(1, (remainingNanos + 999999999L) / 1000000000L);
+	}
+
+	/**
+	 * abort the request when it has been canceled or ran out of time
+	 *
+	 * @throws ProcessException
+	 */
+	public void check() throws ProcessException {
+		if (this.monitor != null && this.monitor.isCanceled()) {
+			throw new ProcessException("The request has been canceled");
+		}
+		if (this.hasTimeout() && System.nanoTime() - this.deadlineNanos > 0) {
+			throw new ProcessException("The request exceeded its time limit of "+this.timeoutInSeconds+" seconds");
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+import java.util.HashSet;
+
+import org.geotools.process.ProcessException;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * finds the runs of consecutive features sharing the value of an attribute when the
+ * features are sorted by this attribute.
+ *
+ * The keys of the finished runs are remembered, so input which was not sorted by
+ * the datasource does not silently split runs. The order of the keys is not checked,
+ * as the collation of the database does not need to match the ordering of the java values.
+ *
+ * @author nico
+ *
+ */
+public class RunKeyTracker {
+
+	private final String attributeName;
+	private final HashSet<Object> finishedKeys = new HashSet<Object>();
+	private boolean started = false;
+	private Object currentKey = null;
+
+	public RunKeyTracker(final String attributeName) {
+		this.attributeName = attributeName;
+	}
+
+	/**
+	 *
+	 * @param feature
+	 * @return true when the feature starts a new run. The run of the previous features is complete then.
+	 * @throws ProcessException when the features are not sorted by the attribute
+	 */
+	public boolean startsNewRun(final SimpleFeature feature) throws ProcessException {
+		final Object key = feature.getAttribute(this.attributeName);
+		if (!this.started) {
+			this.started = true;
+			this.currentKey = key;
+			return true;
+		}
+		if (key == null ? this.currentKey == null : key.equals(this.currentKey)) {
+			return false;
+		}
+		this.finishedKeys.add(this.currentKey);
+		if (this.finishedKeys.contains(key)) {
+			throw new ProcessException("The features are not sorted by the attribute "+this.attributeName
+					+ ". The value "+key+" appeared again after other values.");
+		}
+		this.currentKey = key;
+		return true;
+	}
+}
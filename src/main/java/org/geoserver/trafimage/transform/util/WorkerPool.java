@@ -0,0 +1,116 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.process.ProcessException;
+
+/**
+ * Pool of worker threads shared by all requests.
+ *
+ * The number of threads is limited by the system property
+ * "trafimage.transform.maxParallelism" which defaults to the number of available
+ * processors. Requests limit their own share by the number of tasks they keep
+ * in flight.
+ *
+ * @author nico
+ *
+ */
+public class WorkerPool {
+
+	public static final String MAX_PARALLELISM_PROPERTY = "trafimage.transform.maxParallelism";
+
+	private static ExecutorService executor = null;
+
+	private WorkerPool() {
+	}
+
+	/**
+	 * the upper limit for the parallelism of a single request
+	 *
+	 * @return
+	 */
+	public static int getMaxParallelism() {
+		final int maxParallelism = Integer.getInteger(MAX_PARALLELISM_PROPERTY,
+				Runtime.getRuntime().availableProcessors());
+		return Math.max(1, maxParallelism);
+	}
+
+	/**
+	 * the parallelism to use for a request asking for requestedParallelism threads
+	 *
+	 * @param requestedParallelism values < 1 are treated as 1
+	 * @return
+	 */
+	public static int getParallelism(final Integer requestedParallelism) {
+		if (requestedParallelism == null || requestedParallelism < 1) {
+			return 1;
+		}
+		return Math.min(requestedParallelism, getMaxParallelism());
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getMaxParallelism(), new ThreadFactory() {
+				private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+				public Thread newThread(Runnable runnable) {
+					final Thread thread = new Thread(runnable, "trafimage-transform-worker-" + threadCounter.incrementAndGet());
+					// never keep geoserver from shutting down
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	public static <T> Future<T> submit(final Callable<T> task) {
+		return getExecutor().submit(task);
+	}
+
+	/**
+	 * wait for the result of a task and unwrap exceptions thrown by the task
+	 *
+	 * @param future
+	 * @return
+	 */
+	public static <T> T getResult(final Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessException("Interrupted while waiting for a worker thread", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ProcessException(cause);
+		}
+	}
+
+	/**
+	 * cancel tasks which are not needed anymore, for example after an exception
+	 *
+	 * @param futures
+	 */
+	public static void cancelAll(final Iterable<? extends Future<?>> futures) {
+		for (final Future<?> future: futures) {
+			future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ *
+ * @author nico
+ *
+ */
+public class ColumnarFeatureCollectionTest extends TestCase {
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	private SimpleFeatureType featureType;
+
+	@Override
+	protected void setUp() {
+		final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.setName("lines");
+		typeBuilder.add("the_geom", LineString.class);
+		typeBuilder.add("agg_count", Integer.class);
+		typeBuilder.add("width", Double.class);
+		typeBuilder.add("line_key", String.class);
+		this.featureType = typeBuilder.buildFeatureType();
+	}
+
+	private SimpleFeature createFeature(final String id, final double x, final Integer aggCount, final Double width,
+			final String lineKey) {
+		final LineString line = this.geometryFactory.createLineString(new Coordinate[] {
+				new Coordinate(x, 0.0), new Coordinate(x + 1.0, 1.0)});
+		return SimpleFeatureBuilder.build(this.featureType, new Object[] {line, aggCount, width, lineKey}, id);
+	}
+
+	private static List<SimpleFeature> toList(final ColumnarFeatureCollection collection) {
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		final SimpleFeatureIterator it = collection.features();
+		try {
+			while (it.hasNext()) {
+				features.add(it.next());
+			}
+		} finally {
+			it.close();
+		}
+		return features;
+	}
+
+	public void testKeepsTheNullsOfNumericColumns() {
+		final ColumnarFeatureCollection collection = new ColumnarFeatureCollection(this.featureType);
+		collection.add(this.createFeature("l.1", 0.0, 3, null, "a"));
+		collection.add(this.createFeature("l.2", 1.0, null, 2.5, "a"));
+		collection.add(this.createFeature("l.3", 2.0, 0, 0.0, "a"));
+
+		final List<SimpleFeature> features = toList(collection);
+		assertEquals(3, features.size());
+		assertEquals(Integer.valueOf(3), features.get(0).getAttribute("agg_count"));
+		assertNull(features.get(0).getAttribute("width"));
+		assertNull(features.get(1).getAttribute("agg_count"));
+		assertEquals(Double.valueOf(2.5), features.get(1).getAttribute("width"));
+		// 0 is stored like null, but is not null
+		assertEquals(Integer.valueOf(0), features.get(2).getAttribute("agg_count"));
+		assertEquals(Double.valueOf(0.0), features.get(2).getAttribute("width"));
+	}
+
+	public void testRoundTripsDictionaryEncodedValues() {
+		final String[] keys = new String[] {"a", "b", null, "a", "b", "c"};
+		final ColumnarFeatureCollection collection = new ColumnarFeatureCollection(this.featureType);
+		for (int i=0; i<keys.length; i++) {
+			collection.add(this.createFeature("l."+i, i, 1, 1.0, keys[i]));
+		}
+
+		final List<SimpleFeature> features = toList(collection);
+		assertEquals(keys.length, features.size());
+		for (int i=0; i<keys.length; i++) {
+			assertEquals(keys[i], features.get(i).getAttribute("line_key"));
+			assertEquals("l."+i, features.get(i).getID());
+			assertEquals(i, ((LineString) features.get(i).getDefaultGeometry()).getStartPoint().getX(), 0.0);
+		}
+		assertEquals(0.0, collection.getBounds().getMinX(), 0.0);
+		assertEquals(keys.length, collection.getBounds().getMaxX(), 0.0);
+	}
+
+	public void testAddAllAppendsTheRowsInIterationOrder() {
+		final ColumnarFeatureCollection other = new ColumnarFeatureCollection(this.featureType);
+		other.add(this.createFeature("o.1", 10.0, 1, null, "x"));
+		other.add(this.createFeature("o.2", 20.0, null, 2.0, "y"));
+		other.setRowOrder(new int[] {1, 0});
+
+		final ColumnarFeatureCollection collection = new ColumnarFeatureCollection(this.featureType);
+		collection.add(this.createFeature("c.1", 0.0, 5, 5.0, "y"));
+		assertTrue(collection.addAll(other));
+		assertFalse(collection.addAll(new ColumnarFeatureCollection(this.featureType)));
+
+		final List<SimpleFeature> features = toList(collection);
+		assertEquals(3, features.size());
+		assertEquals("c.1", features.get(0).getID());
+		assertEquals("o.2", features.get(1).getID());
+		assertNull(features.get(1).getAttribute("agg_count"));
+		assertEquals("y", features.get(1).getAttribute("line_key"));
+		assertEquals("o.1", features.get(2).getID());
+		assertNull(features.get(2).getAttribute("width"));
+		assertEquals("x", features.get(2).getAttribute("line_key"));
+		assertEquals(21.0, collection.getBounds().getMaxX(), 0.0);
+	}
+
+	public void testBuildsIdsFromThePositionWithoutKeepingIds() {
+		final ColumnarFeatureCollection collection = new ColumnarFeatureCollection(this.featureType, false);
+		collection.add(this.createFeature("l.7", 0.0, 1, 1.0, "a"));
+		collection.add(this.createFeature("l.8", 1.0, 2, 2.0, "b"));
+		collection.setRowOrder(new int[] {1, 0});
+
+		final List<SimpleFeature> features = toList(collection);
+		assertEquals("lines.1", features.get(0).getID());
+		assertEquals("b", features.get(0).getAttribute("line_key"));
+		assertEquals("lines.2", features.get(1).getID());
+		assertEquals("a", features.get(1).getAttribute("line_key"));
+	}
+
+	public void testAddingResetsTheRowOrder() {
+		final ColumnarFeatureCollection collection = new ColumnarFeatureCollection(this.featureType);
+		collection.add(this.createFeature("l.1", 0.0, 1, 1.0, "a"));
+		collection.add(this.createFeature("l.2", 1.0, 2, 2.0, "b"));
+		collection.setRowOrder(new int[] {1, 0});
+		collection.add(this.createFeature("l.3", 2.0, 3, 3.0, "c"));
+
+		final List<SimpleFeature> features = toList(collection);
+		assertEquals("l.1", features.get(0).getID());
+		assertEquals("l.3", features.get(2).getID());
+
+		try {
+			collection.setRowOrder(new int[] {0, 1});
+			fail("an IllegalArgumentException was expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
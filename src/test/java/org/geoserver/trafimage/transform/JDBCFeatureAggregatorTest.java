@@ -0,0 +1,188 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.h2.H2DataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * compares the aggregation in a H2 database with the aggregation in memory
+ *
+ * @author nico
+ *
+ */
+public class JDBCFeatureAggregatorTest extends TestCase {
+
+	private static final String TYPE_NAME = "lines";
+	private static final String AGG_COUNT_ATTRIBUTE_NAME = "agg_count";
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	private File directory;
+	private JDBCDataStore dataStore;
+	private SimpleFeatureType schema;
+	private int featureId = 0;
+
+	@Override
+	protected void setUp() throws Exception {
+		this.directory = File.createTempFile("jdbcaggregator", "");
+		this.directory.delete();
+		this.directory.mkdirs();
+
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("dbtype", "h2");
+		params.put("database", new File(this.directory, "aggregates").getAbsolutePath());
+		this.dataStore = new H2DataStoreFactory().createDataStore(params);
+
+		this.dataStore.createSchema(DataUtilities.createType(TYPE_NAME, "geom:LineString,name:String,direction:Integer"));
+		final SimpleFeatureStore store = (SimpleFeatureStore) this.dataStore.getFeatureSource(TYPE_NAME);
+		this.schema = store.getSchema();
+
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		for (int i=0; i<3; i++) {
+			features.add(this.buildFeature(0.0, "S1", 1));
+		}
+		features.add(this.buildFeature(0.0, "S1", 2));
+		features.add(this.buildFeature(0.0, "S2", 1));
+		features.add(this.buildFeature(1.0, "S1", 1));
+		features.add(this.buildFeature(1.0, "S1", 1));
+		features.add(this.buildFeature(2.0, null, 1));
+		features.add(this.buildFeature(2.0, null, 1));
+		features.add(this.buildFeature(2.0, "S3", null));
+		store.addFeatures(DataUtilities.collection(features));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.dataStore.dispose();
+		deleteRecursive(this.directory);
+	}
+
+	private static void deleteRecursive(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child: children) {
+				deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+
+	private SimpleFeature buildFeature(final double y, final String name, final Integer direction) {
+		final Coordinate[] coordinates = new Coordinate[] {
+				new Coordinate(600000.0, 200000.0 + y),
+				new Coordinate(600100.5, 200050.25 + y),
+				new Coordinate(600200.0, 200000.0 + y)
+		};
+		final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(this.schema);
+		builder.set("geom", this.geometryFactory.createLineString(coordinates));
+		builder.set("name", name);
+		builder.set("direction", direction);
+		this.featureId++;
+		return builder.buildFeature(TYPE_NAME + "." + this.featureId);
+	}
+
+	/**
+	 * the aggregates as a multiset of the geometry, the attributes and the count
+	 *
+	 * @param collection
+	 * @return
+	 */
+	private static Map<String, Integer> toMultiset(final SimpleFeatureCollection collection) {
+		final Map<String, Integer> multiset = new HashMap<String, Integer>();
+		final SimpleFeatureIterator featureIt = collection.features();
+		try {
+			while (featureIt.hasNext()) {
+				final SimpleFeature feature = featureIt.next();
+				final String key = feature.getDefaultGeometry().toString()
+						+ "|" + feature.getAttribute("name")
+						+ "|" + feature.getAttribute("direction")
+						+ "|" + feature.getAttribute(AGG_COUNT_ATTRIBUTE_NAME);
+				final Integer count = multiset.get(key);
+				multiset.put(key, (count == null) ? 1 : count + 1);
+			}
+		} finally {
+			featureIt.close();
+		}
+		return multiset;
+	}
+
+	private static SimpleFeatureCollection aggregate(final SimpleFeatureCollection collection,
+			final boolean databaseAggregationEnabled) {
+		final SimpleFeatureAggregator aggregator = new SimpleFeatureAggregator(
+				new ArrayList<String>(Arrays.asList("name", "direction")));
+		aggregator.setDatabaseAggregationEnabled(databaseAggregationEnabled);
+		return aggregator.aggregate(collection, AGG_COUNT_ATTRIBUTE_NAME);
+	}
+
+	private void assertSameAggregates(final SimpleFeatureCollection collection) {
+		assertNotNull("the collection should be aggregated in the database",
+				JDBCFeatureAggregator.forCollection(collection));
+
+		final Map<String, Integer> inMemory = toMultiset(aggregate(collection, false));
+		final Map<String, Integer> inDatabase = toMultiset(aggregate(collection, true));
+		assertFalse(inMemory.isEmpty());
+		assertEquals(inMemory, inDatabase);
+	}
+
+	public void testAggregatesAllFeatures() throws IOException {
+		final SimpleFeatureCollection collection = this.dataStore.getFeatureSource(TYPE_NAME).getFeatures();
+		assertSameAggregates(collection);
+		assertEquals(6, aggregate(collection, true).size());
+	}
+
+	public void testAggregatesFilteredFeatures() throws IOException {
+		final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+		final Filter filter = ff.equals(ff.property("name"), ff.literal("S1"));
+		final SimpleFeatureCollection collection = this.dataStore.getFeatureSource(TYPE_NAME)
+				.getFeatures(new Query(TYPE_NAME, filter));
+		assertSameAggregates(collection);
+		assertEquals(3, aggregate(collection, true).size());
+	}
+
+	public void testKeepsTheConnectionOfTheTransaction() throws IOException {
+		final Transaction transaction = new DefaultTransaction();
+		try {
+			final SimpleFeatureStore store = (SimpleFeatureStore) this.dataStore.getFeatureSource(TYPE_NAME);
+			store.setTransaction(transaction);
+			assertSameAggregates(store.getFeatures());
+
+			// the connection of the transaction has to be usable after the aggregation
+			store.addFeatures(DataUtilities.collection(Arrays.asList(this.buildFeature(3.0, "S4", 1))));
+			assertSameAggregates(store.getFeatures());
+			transaction.commit();
+		} finally {
+			transaction.close();
+		}
+		final SimpleFeatureCollection collection = this.dataStore.getFeatureSource(TYPE_NAME).getFeatures();
+		assertEquals(7, aggregate(collection, true).size());
+	}
+}
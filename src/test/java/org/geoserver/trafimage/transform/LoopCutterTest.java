@@ -0,0 +1,183 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.algorithm.LineIntersector;
+import com.vividsolutions.jts.algorithm.RobustLineIntersector;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ *
+ * @author nico
+ *
+ */
+public class LoopCutterTest extends TestCase {
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private static Coordinate[] ring(final double... xys) {
+		final Coordinate[] coordinates = new Coordinate[xys.length / 2];
+		for (int i=0; i<coordinates.length; i++) {
+			coordinates[i] = new Coordinate(xys[2*i], xys[2*i+1]);
+		}
+		return coordinates;
+	}
+
+	private static void assertCoordinates(final Coordinate[] expected, final Coordinate[] actual) {
+		assertEquals(ringToString(expected)+" != "+ringToString(actual), expected.length, actual.length);
+		for (int i=0; i<expected.length; i++) {
+			assertTrue(ringToString(expected)+" != "+ringToString(actual), expected[i].equals2D(actual[i]));
+		}
+	}
+
+	private static String ringToString(final Coordinate[] coordinates) {
+		final StringBuilder sb = new StringBuilder();
+		for (final Coordinate coordinate: coordinates) {
+			sb.append(sb.length() == 0 ? "" : ", ").append(coordinate.x).append(" ").append(coordinate.y);
+		}
+		return sb.toString();
+	}
+
+	public void testCutsAJoinLoop() {
+		// the segment from (6 4) to (6 -4) crosses the first segment at (6 0), the part in between
+		// is the loop. The walk continues with the end of the crossing segment.
+		final Coordinate[] coordinates = ring(0,0, 10,0, 10,4, 6,4, 6,-4, 20,-4, 20,10, 0,10, 0,0);
+		final Coordinate[] expected = ring(0,0, 6,0, 6,-4, 20,-4, 20,10, 0,10, 0,0);
+
+		final Coordinate[] result = new LoopCutter().cutLoops(coordinates);
+		assertCoordinates(expected, result);
+		assertTrue(this.geometryFactory.createPolygon(this.geometryFactory.createLinearRing(result), null).isValid());
+	}
+
+	public void testCutsConsecutiveLoops() {
+		final Coordinate[] coordinates = ring(0,0, 10,0, 10,4, 6,4, 6,-4,
+				20,-4, 20,2, 16,2, 16,-8, 30,-8, 30,10, 0,10, 0,0);
+		final Coordinate[] expected = ring(0,0, 6,0, 6,-4, 16,-4, 16,-8, 30,-8, 30,10, 0,10, 0,0);
+		assertCoordinates(expected, new LoopCutter().cutLoops(coordinates));
+	}
+
+	public void testCutsCollinearOverlaps() {
+		// the line turns back onto itself along the x-axis
+		final Coordinate[] coordinates = ring(0,0, 10,0, 4,0, 4,-5, 20,-5, 20,10, 0,10, 0,0);
+		final Coordinate[] expected = ring(0,0, 4,0, 4,-5, 20,-5, 20,10, 0,10, 0,0);
+		assertCoordinates(expected, new LoopCutter().cutLoops(coordinates));
+	}
+
+	public void testKeepsRingsWithoutLoops() {
+		final Coordinate[] coordinates = ring(0,0, 10,0, 10,4, 6,4, 6,10, 0,10, 0,0);
+		assertCoordinates(coordinates, new LoopCutter().cutLoops(coordinates));
+	}
+
+	/**
+	 * the segments of a line running north-south all overlap on the x-axis, which made
+	 * a sweep along the x-axis compare every pair of segments
+	 */
+	public void testCutsLongNorthSouthRingsQuickly() {
+		final int numVerticesPerSide = 50000;
+		final Random random = new Random(14080071L);
+		final Coordinate[] coordinates = new Coordinate[2 * numVerticesPerSide + 1];
+		for (int i=0; i<numVerticesPerSide; i++) {
+			final double x = 30.0 * Math.sin(i / 50.0) + random.nextDouble() * 3.0;
+			final double y = i * 2.0;
+			coordinates[i] = new Coordinate(x - 10.0, y);
+			coordinates[2 * numVerticesPerSide - 1 - i] = new Coordinate(x + 10.0, y);
+		}
+		// a join loop on the western side
+		final int loopStart = numVerticesPerSide / 2;
+		coordinates[loopStart + 1] = new Coordinate(coordinates[loopStart].x + 5.0, coordinates[loopStart].y + 8.0);
+		coordinates[loopStart + 2] = new Coordinate(coordinates[loopStart].x + 5.0, coordinates[loopStart].y - 4.0);
+		coordinates[coordinates.length - 1] = new Coordinate(coordinates[0]);
+
+		final LoopCutter loopCutter = new LoopCutter();
+		loopCutter.cutLoops(coordinates);
+		final long start = System.nanoTime();
+		final Coordinate[] result = loopCutter.cutLoops(coordinates);
+		final long durationMillis = (System.nanoTime() - start) / 1000000;
+
+		assertTrue("cutting the loops took "+durationMillis+" ms", durationMillis < 1000);
+		// the two vertices of the loop are replaced by the intersection of the crossing segments
+		assertEquals(coordinates.length - 1, result.length);
+		for (int i=0; i<=loopStart; i++) {
+			assertTrue(coordinates[i].equals2D(result[i]));
+		}
+		assertTrue(result[loopStart + 1].y > coordinates[loopStart].y && result[loopStart + 1].y < coordinates[loopStart + 3].y);
+		for (int i=loopStart+2; i<result.length; i++) {
+			assertTrue(coordinates[i + 1].equals2D(result[i]));
+		}
+	}
+
+	/**
+	 * the hierarchy has to find the same intersections as comparing all pairs of segments
+	 */
+	public void testMatchesTheSearchOverAllPairs() {
+		final Random random = new Random(14080071L);
+		final LoopCutter loopCutter = new LoopCutter();
+		for (int r=0; r<200; r++) {
+			// rings of growing size to also test the reuse of the arrays
+			final Coordinate[] coordinates = new Coordinate[5 + r];
+			double x = 0.0;
+			double y = 0.0;
+			for (int i=0; i<coordinates.length-1; i++) {
+				coordinates[i] = new Coordinate(x, y);
+				x += random.nextDouble() * 10.0 - 3.0;
+				y += random.nextDouble() * 10.0 - 5.0;
+			}
+			coordinates[coordinates.length-1] = new Coordinate(coordinates[0]);
+
+			final Coordinate[] expected = cutLoopsComparingAllPairs(coordinates);
+			final Coordinate[] result = loopCutter.cutLoops(coordinates);
+			assertEquals(ringToString(coordinates), expected.length, result.length);
+			for (int i=0; i<expected.length; i++) {
+				assertEquals(ringToString(coordinates), 0.0, expected[i].distance(result[i]), 1.0E-9);
+			}
+		}
+	}
+
+	/**
+	 * the walk of LoopCutter.cutLoops using JTS to compare every pair of segments
+	 *
+	 * @param coordinates
+	 * @return
+	 */
+	private static Coordinate[] cutLoopsComparingAllPairs(final Coordinate[] coordinates) {
+		final int numSegments = coordinates.length - 2;
+		final LineIntersector lineIntersector = new RobustLineIntersector();
+		final List<Coordinate> noloopCoords = new ArrayList<Coordinate>();
+		noloopCoords.add(coordinates[0]);
+		int i = 0;
+		while (i < numSegments) {
+			for (int j=i+2; j<numSegments; j++) {
+				lineIntersector.computeIntersection(coordinates[i], coordinates[i+1], coordinates[j], coordinates[j+1]);
+				if (lineIntersector.hasIntersection()) {
+					// the intersection closest to the start of the segment
+					Coordinate intersection = lineIntersector.getIntersection(0);
+					for (int n=1; n<lineIntersector.getIntersectionNum(); n++) {
+						if (lineIntersector.getIntersection(n).distance(coordinates[i]) < intersection.distance(coordinates[i])) {
+							intersection = lineIntersector.getIntersection(n);
+						}
+					}
+					noloopCoords.add(intersection);
+					i = j;
+					break;
+				}
+			}
+			noloopCoords.add(coordinates[i+1]);
+			i++;
+		}
+		noloopCoords.add(coordinates[coordinates.length-1]);
+		if (noloopCoords.size() < 4) {
+			return coordinates;
+		}
+		return noloopCoords.toArray(new Coordinate[noloopCoords.size()]);
+	}
+}
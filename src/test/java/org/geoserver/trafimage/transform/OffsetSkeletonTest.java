@@ -0,0 +1,131 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.operation.buffer.BufferParameters;
+
+/**
+ * compares the curves of the OffsetSkeleton and of CurveBuilder.buildOffsettedLineStrings
+ * with the ones of the JTS OffsetCurveBuilder for the geometries of rail-lines.wkt
+ *
+ * @author nico
+ *
+ */
+public class OffsetSkeletonTest extends TestCase {
+
+	private static final double[] OFFSETS = new double[] {1.0, -1.0, 5.0, -5.0, 20.0, -20.0, 80.0, -80.0};
+	private static final int[] QUADRANT_SEGMENTS = new int[] {1, 6, 18};
+
+	/**
+	 * the skeleton scales precomputed unit vectors instead of offsetting every segment,
+	 * so the coordinates differ from JTS in the last digits
+	 */
+	private static final double TOLERANCE_FACTOR = 1.0E-9;
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	private Map<String, LineString> lines;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.lines = RailLineFixtures.load();
+	}
+
+	private static void assertSameCurve(final String message, final LineString expected, final LineString actual,
+			final double lineOffset) {
+		assertTrue(message+": expected "+expected+" but was "+actual,
+				expected.equalsExact(actual, Math.abs(lineOffset) * TOLERANCE_FACTOR));
+	}
+
+	public void testSkeletonMatchesJts() {
+		int numUnchanged = 0;
+		int numSimplified = 0;
+		for (final Map.Entry<String, LineString> entry: this.lines.entrySet()) {
+			final Coordinate[] coordinates = CoordinateArrays.removeRepeatedPoints(entry.getValue().getCoordinates());
+			for (final int quadrantSegments: QUADRANT_SEGMENTS) {
+				for (final double offset: OFFSETS) {
+					final String message = entry.getKey()+" offset="+offset+" quadrantSegments="+quadrantSegments;
+					final Coordinate[] simplifiedCoordinates = OffsetSkeleton.simplify(coordinates, offset);
+					if (simplifiedCoordinates.length < coordinates.length) {
+						numSimplified++;
+					} else {
+						numUnchanged++;
+					}
+					final Coordinate[] curve = new OffsetSkeleton(simplifiedCoordinates, quadrantSegments)
+							.buildOffsettedCoordinates(offset);
+					final LineString jtsCurve = RailLineFixtures.buildJtsOffsetCurve(entry.getValue(), offset,
+							BufferParameters.JOIN_ROUND, quadrantSegments, BufferParameters.DEFAULT_MITRE_LIMIT);
+					assertSameCurve(message, jtsCurve, this.geometryFactory.createLineString(curve), offset);
+				}
+			}
+		}
+		// the fixtures have to cover lines with and without vertices removed by the simplification
+		assertTrue(numUnchanged > 0);
+		assertTrue(numSimplified > 0);
+	}
+
+	/**
+	 * JTS removes vertices closer than 1/100 of the offset to the previous vertex when
+	 * they form a shallow concavity. The vertices of this line are 15cm apart and
+	 * deviate by up to 2cm from a smooth curve, so the larger offsets get simplified.
+	 */
+	public void testCurveBuilderUsesTheSkeletonForNearlyCollinearVertices() {
+		final LineString line = this.lines.get("nearly-collinear");
+		final Coordinate[] coordinates = line.getCoordinates();
+		int numSimplified = 0;
+		for (final double offset: OFFSETS) {
+			if (OffsetSkeleton.simplify(coordinates, offset).length < coordinates.length) {
+				numSimplified++;
+			}
+		}
+		assertTrue(numSimplified > 0);
+
+		final CurveBuilder curveBuilder = new CurveBuilder();
+		final LineString[] curves = curveBuilder.buildOffsettedLineStrings(line, OFFSETS);
+		// offsets with different simplified lines can not share a skeleton
+		assertTrue(curveBuilder.getNumSkeletons() > 1);
+		long numCoordinates = 0;
+		for (int i=0; i<OFFSETS.length; i++) {
+			final LineString jtsCurve = RailLineFixtures.buildJtsOffsetCurve(line, OFFSETS[i],
+					BufferParameters.JOIN_ROUND, 18, BufferParameters.DEFAULT_MITRE_LIMIT);
+			assertSameCurve("offset="+OFFSETS[i], jtsCurve, curves[i], OFFSETS[i]);
+			numCoordinates += curves[i].getNumPoints();
+		}
+		// all curves have been built by skeletons and none by the JTS OffsetCurveBuilder
+		assertEquals(numCoordinates, curveBuilder.getNumOutputCoordinates());
+	}
+
+	public void testCurveBuilderBuildsTheSameCurvesForAllOffsetsOfALine() {
+		// bevelled joins below an offset of 2 and fewer segments for small offsets
+		final CurveBuilder[] curveBuilders = new CurveBuilder[] {new CurveBuilder(), new CurveBuilder(0.05, 2.0)};
+		for (final CurveBuilder curveBuilder: curveBuilders) {
+			for (final Map.Entry<String, LineString> entry: this.lines.entrySet()) {
+				final LineString[] curves = curveBuilder.buildOffsettedLineStrings(entry.getValue(), OFFSETS);
+				for (int i=0; i<OFFSETS.length; i++) {
+					final LineString curve = curveBuilder.buildOffsettedLineString(entry.getValue(), OFFSETS[i]);
+					assertSameCurve(entry.getKey()+" offset="+OFFSETS[i], curve, curves[i], OFFSETS[i]);
+				}
+			}
+		}
+	}
+
+	public void testCurveBuilderIgnoresRepeatedVertices() {
+		final LineString line = this.lines.get("repeated-vertices");
+		for (final LineString curve: new CurveBuilder().buildOffsettedLineStrings(line, OFFSETS)) {
+			for (final Coordinate coordinate: curve.getCoordinates()) {
+				assertFalse(curve.toString(), Double.isNaN(coordinate.x) || Double.isNaN(coordinate.y));
+			}
+		}
+	}
+}
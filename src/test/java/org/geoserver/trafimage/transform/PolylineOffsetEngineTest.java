@@ -0,0 +1,146 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.geoserver.trafimage.transform.PolylineOffsetEngine.JoinStyle;
+
+import com.vividsolutions.jts.algorithm.distance.DiscreteHausdorffDistance;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.operation.buffer.BufferParameters;
+
+/**
+ * compares the curves of the PolylineOffsetEngine with the ones of the JTS OffsetCurveBuilder
+ * for the geometries of rail-lines.wkt. These are synthetic lines shaped like rail lines,
+ * not real-world rail geometries. Offsets for which JTS removes vertices of
+ * densely digitized lines are skipped, as the engine does not simplify the line.
+ *
+ * @author nico
+ *
+ */
+public class PolylineOffsetEngineTest extends TestCase {
+
+	private static final double[] OFFSETS = new double[] {1.0, -1.0, 5.0, -5.0, 20.0, -20.0, 80.0, -80.0};
+	private static final double[] MAX_ARC_ERRORS = new double[] {0.01, 0.25};
+	private static final double MITRE_LIMIT = 4.0;
+
+	/**
+	 * JTS places the vertices of round joins at other angles than the engine, so the curves
+	 * may differ by the error of the arcs plus a small part of the offset.
+	 */
+	private static final double ROUND_DEVIATION_FACTOR = 1.0 / 40.0;
+
+	/**
+	 * inside turns are closed like JTS does, so mitred joins are held to the same bound.
+	 */
+	private static final double MITRE_DEVIATION_FACTOR = ROUND_DEVIATION_FACTOR;
+
+	private Map<String, LineString> lines;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.lines = RailLineFixtures.load();
+	}
+
+	/**
+	 * check if JTS builds the curve from the unsimplified line
+	 */
+	private static boolean isUnsimplified(final LineString line, final double offset) {
+		final Coordinate[] coordinates = CoordinateArrays.removeRepeatedPoints(line.getCoordinates());
+		return OffsetSkeleton.simplify(coordinates, offset).length == coordinates.length;
+	}
+
+	/**
+	 * the number of segments per quarter circle of the arcs the engine builds for the offset
+	 */
+	private static int getQuadrantSegments(final double maxArcError, final double offset) {
+		final double radius = Math.abs(offset);
+		final double maxStep = (maxArcError < radius) ? 2.0 * Math.acos(1.0 - maxArcError / radius) : Math.PI;
+		return (int) Math.ceil((Math.PI / 2.0) / maxStep);
+	}
+
+	private static double hausdorffDistance(final Geometry geom1, final Geometry geom2) {
+		final DiscreteHausdorffDistance distance = new DiscreteHausdorffDistance(geom1, geom2);
+		distance.setDensifyFraction(0.05);
+		return distance.distance();
+	}
+
+	public void testRoundJoinsFollowJts() {
+		for (final Map.Entry<String, LineString> entry: this.lines.entrySet()) {
+			for (final double maxArcError: MAX_ARC_ERRORS) {
+				final PolylineOffsetEngine engine = new PolylineOffsetEngine(JoinStyle.ROUND, maxArcError);
+				for (final double offset: OFFSETS) {
+					if (!isUnsimplified(entry.getValue(), offset)) {
+						continue;
+					}
+					final LineString curve = engine.buildOffsettedLineString(entry.getValue(), offset);
+					final LineString jtsCurve = RailLineFixtures.buildJtsOffsetCurve(entry.getValue(), offset,
+							BufferParameters.JOIN_ROUND, getQuadrantSegments(maxArcError, offset), MITRE_LIMIT);
+
+					final double bound = maxArcError + Math.abs(offset) * ROUND_DEVIATION_FACTOR;
+					final double distance = hausdorffDistance(curve, jtsCurve);
+					assertTrue(entry.getKey()+" offset="+offset+" maxArcError="+maxArcError+": "+distance+" > "+bound,
+							distance <= bound);
+				}
+			}
+		}
+	}
+
+	public void testMitreJoinsFollowJts() {
+		for (final Map.Entry<String, LineString> entry: this.lines.entrySet()) {
+			final PolylineOffsetEngine engine = new PolylineOffsetEngine(JoinStyle.MITRE, 0.01);
+			engine.setMitreLimit(MITRE_LIMIT);
+			for (final double offset: OFFSETS) {
+				if (!isUnsimplified(entry.getValue(), offset)) {
+					continue;
+				}
+				final LineString curve = engine.buildOffsettedLineString(entry.getValue(), offset);
+				final LineString jtsCurve = RailLineFixtures.buildJtsOffsetCurve(entry.getValue(), offset,
+						BufferParameters.JOIN_MITRE, BufferParameters.DEFAULT_QUADRANT_SEGMENTS, MITRE_LIMIT);
+
+				final double bound = Math.abs(offset) * MITRE_DEVIATION_FACTOR;
+				final double distance = hausdorffDistance(curve, jtsCurve);
+				assertTrue(entry.getKey()+" offset="+offset+": "+distance+" > "+bound, distance <= bound);
+			}
+		}
+	}
+
+	public void testBuildsTheSameCurvesForAllOffsetsOfALine() {
+		for (final Map.Entry<String, LineString> entry: this.lines.entrySet()) {
+			final PolylineOffsetEngine engine = new PolylineOffsetEngine(JoinStyle.ROUND, 0.01);
+			final LineString[] curves = engine.buildOffsettedLineStrings(entry.getValue(), OFFSETS);
+			assertEquals(OFFSETS.length, curves.length);
+			for (int i=0; i<OFFSETS.length; i++) {
+				final LineString curve = engine.buildOffsettedLineString(entry.getValue(), OFFSETS[i]);
+				assertTrue(entry.getKey()+" offset="+OFFSETS[i], curve.equalsExact(curves[i]));
+			}
+		}
+	}
+
+	public void testCountsTheOutputCoordinates() {
+		final PolylineOffsetEngine engine = new PolylineOffsetEngine(JoinStyle.ROUND, 0.01);
+		long numCoordinates = 0;
+		for (final LineString line: this.lines.values()) {
+			for (final LineString curve: engine.buildOffsettedLineStrings(line, OFFSETS)) {
+				numCoordinates += curve.getNumPoints();
+			}
+		}
+		assertEquals(numCoordinates, engine.getNumOutputCoordinates());
+	}
+
+	public void testKeepsTheLineForOffsetZero() {
+		final LineString line = this.lines.values().iterator().next();
+		final PolylineOffsetEngine engine = new PolylineOffsetEngine(JoinStyle.ROUND, 0.01);
+		assertSame(line, engine.buildOffsettedLineString(line, 0.0));
+	}
+}
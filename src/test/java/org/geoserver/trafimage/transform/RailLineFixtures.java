@@ -0,0 +1,95 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateArrays;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.operation.buffer.BufferParameters;
+import com.vividsolutions.jts.operation.buffer.OffsetCurveBuilder;
+
+/**
+ * the rail geometries of rail-lines.wkt and the JTS offset curves to compare with
+ *
+ * @author nico
+ *
+ */
+final class RailLineFixtures {
+
+	private static final String RESOURCE_NAME = "rail-lines.wkt";
+
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	private RailLineFixtures() {
+	}
+
+	/**
+	 * the lines by their names in the order of the file
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	static Map<String, LineString> load() throws IOException {
+		final InputStream stream = RailLineFixtures.class.getResourceAsStream(RESOURCE_NAME);
+		if (stream == null) {
+			throw new IOException("Resource "+RESOURCE_NAME+" not found");
+		}
+		final Map<String, LineString> lines = new LinkedHashMap<String, LineString>();
+		final WKTReader wktReader = new WKTReader(GEOMETRY_FACTORY);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				final String[] parts = line.split("\t", 2);
+				lines.put(parts[0], (LineString) wktReader.read(parts[1]));
+			}
+		} catch (ParseException e) {
+			throw new IOException("Invalid geometry in "+RESOURCE_NAME+": "+e.getMessage(), e);
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * the offset curve built by the JTS OffsetCurveBuilder with flat end caps.
+	 *
+	 * JTS 1.13 returns NaN coordinates for lines with repeated points, so these get
+	 * removed first.
+	 *
+	 * @param linestring
+	 * @param lineOffset
+	 * @param joinStyle one of the BufferParameters.JOIN_* constants
+	 * @param quadrantSegments
+	 * @param mitreLimit
+	 * @return
+	 */
+	static LineString buildJtsOffsetCurve(final LineString linestring, final double lineOffset, final int joinStyle,
+			final int quadrantSegments, final double mitreLimit) {
+		final BufferParameters bufferParameters = new BufferParameters();
+		bufferParameters.setEndCapStyle(BufferParameters.CAP_FLAT);
+		bufferParameters.setJoinStyle(joinStyle);
+		bufferParameters.setQuadrantSegments(quadrantSegments);
+		bufferParameters.setMitreLimit(mitreLimit);
+		final Coordinate[] coordinates = CoordinateArrays.removeRepeatedPoints(linestring.getCoordinates());
+		return GEOMETRY_FACTORY.createLineString(
+				new OffsetCurveBuilder(new PrecisionModel(), bufferParameters).getOffsetCurve(coordinates, lineOffset));
+	}
+}
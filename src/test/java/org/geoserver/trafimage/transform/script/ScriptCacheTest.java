@@ -0,0 +1,58 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+
+/**
+ *
+ * @author nico
+ *
+ */
+public class ScriptCacheTest extends TestCase {
+
+	public void testCachesCompiledScripts() throws ScriptException {
+		final String source = "var width = 4; // testCachesCompiledScripts";
+		final long misses = ScriptCache.getMisses();
+		final long hits = ScriptCache.getHits();
+		new Script(source, "first").terminate();
+		new Script(source, "second").terminate();
+		assertEquals(misses + 1, ScriptCache.getMisses());
+		assertEquals(hits + 1, ScriptCache.getHits());
+	}
+
+	/**
+	 * rhino hands out the context the thread already entered, even when it belongs to
+	 * another factory. The code compiled in it does not count its instructions.
+	 */
+	public void testDoesNotCacheScriptsOfForeignContexts() throws ScriptException {
+		final String source = "var width = 4; // testDoesNotCacheScriptsOfForeignContexts";
+		final long misses = ScriptCache.getMisses();
+		final long hits = ScriptCache.getHits();
+		final Context foreignContext = Context.enter();
+		try {
+			assertFalse(ScriptContextFactory.isOwnContext(foreignContext));
+			new Script(source, "foreign").terminate();
+			new Script(source, "foreign").terminate();
+		} finally {
+			Context.exit();
+		}
+		assertEquals(misses + 2, ScriptCache.getMisses());
+		assertEquals(hits, ScriptCache.getHits());
+
+		// the script has to be compiled again in a context counting the instructions
+		final Script script = new Script(source, "own");
+		try {
+			assertTrue(ScriptContextFactory.isOwnContext(Context.getCurrentContext()));
+		} finally {
+			script.terminate();
+		}
+		assertEquals(misses + 3, ScriptCache.getMisses());
+		assertNull(Context.getCurrentContext());
+	}
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.script;
+
+import junit.framework.TestCase;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * compares the values of the width expressions with the ones of rhino evaluating
+ * the same source as javascript. The custom variables are passed to rhino as strings,
+ * as the processes do.
+ *
+ * @author nico
+ *
+ */
+public class WidthExpressionTest extends TestCase {
+
+	/**
+	 * expressions not using the custom variables with + or as a truth value
+	 */
+	private static final String[] EXPRESSIONS = new String[] {
+		"aggCount * 2 + featureLength / 100",
+		"aggCount % 3 - -customVariable1",
+		"customVariable1 - 0 || 4",
+		"customVariable1 * 1 && 4",
+		"aggCount > 2 || customVariable2",
+		"aggCount > 2 && customVariable2",
+		"0 || customVariable1",
+		"5 && aggCount",
+		"!(customVariable1 * 1) + (aggCount == 2)",
+		"customVariable1 * 2 + customVariable2 * 1",
+		"customVariable1 == 3 || customVariable2 < 0",
+		"customVariable1 > 50000 ? 2 : Math.min(2 + Math.log(aggCount), 12)",
+		"Math.max(Math.sqrt(featureLength), Math.pow(aggCount, 2)) - Math.abs(customVariable2)",
+		"Math.floor(featureLength / 7) + Math.ceil(aggCount / 4) + Math.exp(0)",
+	};
+
+	private static final double[][] NUMBERS = new double[][] {
+		// featureLength, aggCount
+		{1234.5, 1},
+		{10.0, 2},
+		{0.0, 3},
+		{99999.0, 12},
+	};
+
+	private static final String[][] CUSTOM_VARIABLES = new String[][] {
+		{"0", "0"},
+		{"3", "-1.5"},
+		{"abc", " 7 "},
+		{"60000", ""},
+		{"0x10", "1e3"},
+		{null, "NaN"},
+	};
+
+	private static double evaluateJavascript(final Context ctx, final Scriptable scope, final String source,
+			final double featureLength, final double aggCount, final String customVariable1, final String customVariable2) {
+		scope.put("featureLength", scope, featureLength);
+		scope.put("aggCount", scope, aggCount);
+		scope.put("customVariable1", scope, customVariable1);
+		scope.put("customVariable2", scope, customVariable2);
+		return Context.toNumber(ctx.evaluateString(scope, source, source, 1, null));
+	}
+
+	private static double evaluateExpression(final String source, final double featureLength, final double aggCount,
+			final String customVariable1, final String customVariable2) throws ScriptException {
+		return WidthExpression.compile(source).evaluate(featureLength, aggCount,
+				WidthExpression.parseVariable(customVariable1), WidthExpression.parseVariable(customVariable2));
+	}
+
+	public void testMatchesJavascript() throws ScriptException {
+		final Context ctx = Context.enter();
+		try {
+			final Scriptable scope = ctx.initStandardObjects();
+			for (final String source: EXPRESSIONS) {
+				for (final double[] numbers: NUMBERS) {
+					for (final String[] customVariables: CUSTOM_VARIABLES) {
+						final double expected = evaluateJavascript(ctx, scope, source, numbers[0], numbers[1],
+								customVariables[0], customVariables[1]);
+						final double actual = evaluateExpression(source, numbers[0], numbers[1],
+								customVariables[0], customVariables[1]);
+						final String message = source+" with "+numbers[0]+", "+numbers[1]+", \""+customVariables[0]
+								+"\", \""+customVariables[1]+"\"";
+						if (Double.isNaN(expected)) {
+							assertTrue(message, Double.isNaN(actual));
+						} else {
+							assertEquals(message, expected, actual, Math.abs(expected) * 1.0E-12);
+						}
+					}
+				}
+			}
+		} finally {
+			Context.exit();
+		}
+	}
+
+	/**
+	 * the differences documented in the javadoc of WidthExpression
+	 */
+	public void testCustomVariablesAreNumbers() throws ScriptException {
+		final Context ctx = Context.enter();
+		try {
+			final Scriptable scope = ctx.initStandardObjects();
+			assertEquals(4.0, evaluateExpression("customVariable1 || 4", 0.0, 1.0, "0", ""), 0.0);
+			assertEquals(0.0, evaluateJavascript(ctx, scope, "customVariable1 || 4", 0.0, 1.0, "0", ""), 0.0);
+
+			assertEquals(11.0, evaluateExpression("aggCount * 2 + customVariable2", 0.0, 3.0, "", "5"), 0.0);
+			assertEquals(65.0, evaluateJavascript(ctx, scope, "aggCount * 2 + customVariable2", 0.0, 3.0, "", "5"), 0.0);
+		} finally {
+			Context.exit();
+		}
+	}
+
+	public void testParsesVariablesLikeJavascript() {
+		assertEquals(0.0, WidthExpression.parseVariable(null), 0.0);
+		assertEquals(0.0, WidthExpression.parseVariable(" "), 0.0);
+		assertEquals(7.0, WidthExpression.parseVariable(" 7 "), 0.0);
+		assertEquals(16.0, WidthExpression.parseVariable("0x10"), 0.0);
+		assertTrue(Double.isNaN(WidthExpression.parseVariable("abc")));
+	}
+
+	public void testLogicalOperatorsReturnTheirOperands() throws ScriptException {
+		assertEquals(4.0, WidthExpression.compile("customVariable1 || 4").evaluate(0.0, 1.0, Double.NaN, 0.0), 0.0);
+		assertEquals(7.0, WidthExpression.compile("customVariable1 || 4").evaluate(0.0, 1.0, 7.0, 0.0), 0.0);
+		assertEquals(4.0, WidthExpression.compile("customVariable1 && 4").evaluate(0.0, 1.0, 7.0, 0.0), 0.0);
+		assertTrue(Double.isNaN(WidthExpression.compile("customVariable1 && 4").evaluate(0.0, 1.0, Double.NaN, 0.0)));
+		assertEquals(3.0, WidthExpression.compile("2 && 3 || 5").evaluate(0.0, 1.0, 0.0, 0.0), 0.0);
+	}
+}
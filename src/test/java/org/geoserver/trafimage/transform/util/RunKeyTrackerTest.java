@@ -0,0 +1,73 @@
+/* Copyright (c) 2014 geOps - www.geops.de. All rights reserved.
+ *
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.trafimage.transform.util;
+
+import junit.framework.TestCase;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ *
+ * @author nico
+ *
+ */
+public class RunKeyTrackerTest extends TestCase {
+
+	private SimpleFeatureType featureType;
+
+	@Override
+	protected void setUp() {
+		final SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.setName("lines");
+		typeBuilder.add("line_key", String.class);
+		this.featureType = typeBuilder.buildFeatureType();
+	}
+
+	private SimpleFeature createFeature(final String key) {
+		return SimpleFeatureBuilder.build(this.featureType, new Object[] {key}, null);
+	}
+
+	private int countRuns(final String... keys) {
+		final RunKeyTracker runKey = new RunKeyTracker("line_key");
+		int numRuns = 0;
+		for (final String key: keys) {
+			if (runKey.startsNewRun(this.createFeature(key))) {
+				numRuns++;
+			}
+		}
+		return numRuns;
+	}
+
+	public void testFindsRuns() {
+		assertEquals(3, this.countRuns("a", "a", "b", null, null));
+	}
+
+	/**
+	 * databases may sort by a collation differing from String.compareTo
+	 */
+	public void testAcceptsAnyOrderOfTheKeys() {
+		assertEquals(4, this.countRuns("b", "B", "a", "A", "A"));
+	}
+
+	public void testFailsWhenAKeyReappears() {
+		try {
+			this.countRuns("a", "b", "a");
+			fail("a ProcessException was expected");
+		} catch (ProcessException e) {
+			// expected
+		}
+		try {
+			this.countRuns(null, "b", null);
+			fail("a ProcessException was expected");
+		} catch (ProcessException e) {
+			// expected
+		}
+	}
+}